@@ -37,13 +37,16 @@ import android.Manifest;
 import android.app.Activity;
 import android.hardware.display.DisplayManager;
 import android.opengl.GLSurfaceView;
+import android.opengl.Matrix;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 import android.view.Display;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -54,12 +57,32 @@ import android.speech.tts.TextToSpeech;
 import org.rajawali3d.scene.ASceneFrameCallback;
 import org.rajawali3d.surface.RajawaliSurfaceView;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.nio.FloatBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Locale;
 
-import com.projecttango.tangosupport.TangoPointCloudManager;
+import com.projecttango.examples.java.pointcloud.pipeline.AlertScheduler;
+import com.projecttango.examples.java.pointcloud.pipeline.AnalysisWorker;
+import com.projecttango.examples.java.pointcloud.pipeline.Clock;
+import com.projecttango.examples.java.pointcloud.pipeline.ConnectionGate;
+import com.projecttango.examples.java.pointcloud.pipeline.DepthPoseProvider;
+import com.projecttango.examples.java.pointcloud.pipeline.LatencyTracker;
+import com.projecttango.examples.java.pointcloud.pipeline.LoadGovernor;
+import com.projecttango.examples.java.pointcloud.pipeline.MotionEstimator;
+import com.projecttango.examples.java.pointcloud.pipeline.ObstacleAnalyzer;
+import com.projecttango.examples.java.pointcloud.pipeline.PointCloudFrame;
+import com.projecttango.examples.java.pointcloud.pipeline.PoseRing;
+import com.projecttango.examples.java.pointcloud.pipeline.RenderFrame;
+import com.projecttango.examples.java.pointcloud.pipeline.SurfaceReconstructor;
+import com.projecttango.examples.java.pointcloud.processing.ParallelChunks;
+import com.projecttango.examples.java.pointcloud.processing.PointCompactor;
+import com.projecttango.examples.java.pointcloud.recording.PointCloudRecorder;
+import com.projecttango.examples.java.pointcloud.trace.TraceLog;
 import com.projecttango.tangosupport.TangoSupport;
 
 /**
@@ -77,24 +100,104 @@ public class PointCloudActivity extends Activity {
     private Tango mTango;
     private TangoConfig mConfig;
     private TangoUx mTangoUx;
-    private TangoPointCloudManager mPointCloudManager;
+    private AnalysisWorker mAnalysisWorker;
+    private AnalysisWorker mRenderWorker;
+    private AnalysisWorker mSurfaceWorker;
+    // Threads splitting large frames for the analysis and the render preparation, each counting
+    // the worker thread itself. Half the cores each, so the two stages don't compete.
+    private static final int PARALLEL_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private ParallelChunks mAnalysisParallel;
+    private ParallelChunks mRenderParallel;
+    private AlertScheduler mAlertScheduler;
 
     private PointCloudRajawaliRenderer mRenderer;
     private RajawaliSurfaceView mSurfaceView;
     private TextView mPointCountTextView;
     private TextView mAverageZTextView;
+    private TextView mMapMemoryTextView;
+    private TextView mLatencyTextView;
     private TextToSpeech tts; // for text-to-speech
 
     private double mPointCloudPreviousTimeStamp;
-    private double ttsPreviousAlertTimeStamp;
-    private boolean mIsConnected = false;
+    // Tango connection state, checked without locking by every thread using the service.
+    private final ConnectionGate mConnection = new ConnectionGate();
+
+    private static final String RECORDING_EXTENSION = ".icurec";
+
+    // Trace events, named in the trace files in this order.
+    private static final int TRACE_ANALYZED = 0;
+    private static final int TRACE_ALERT = 1;
+    private static final String[] TRACE_EVENTS = {"analyzed", "alert"};
 
     private static final DecimalFormat FORMAT_THREE_DECIMAL = new DecimalFormat("0.000");
     private static final double UPDATE_INTERVAL_MS = 100.0;
 
     private double mPointCloudTimeToNextUpdate = UPDATE_INTERVAL_MS;
 
-    private int mDisplayRotation = 0;
+    // Time the analysis and the render preparation may each take per depth frame, leaving
+    // headroom within the 200ms between frames of the depth sensor.
+    private static final long PROCESSING_BUDGET_MS = 100;
+    // Lowers quality when frames take too long to process. Fed from the analysis thread.
+    private final LoadGovernor mLoadGovernor = new LoadGovernor(PROCESSING_BUDGET_MS);
+    // Depth frames compacted, render preparation thread only.
+    private long mDepthFrameCount;
+
+    // One warning per azimuth sector of the obstacle analysis, from left to right.
+    private static final String[] SECTOR_WARNINGS = {
+            "There is an object to your left within arms length.",
+            "There is an object ahead-left of you within arms length.",
+            "There is an object ahead of you within arms length.",
+            "There is an object ahead-right of you within arms length.",
+            "There is an object to your right within arms length."
+    };
+
+    private volatile int mDisplayRotation = 0;
+
+    // Tango timestamps count seconds since boot, like the elapsed realtime clock.
+    private final Clock mClock = new Clock() {
+        @Override
+        public long nanoTime() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+    // Time from the capture of each frame to each stage of the pipeline.
+    private final LatencyTracker mLatencyTracker = new LatencyTracker(mClock);
+    private final StringBuilder mLatencyText = new StringBuilder();
+    // Capture time of the cloud uploaded last and not drawn yet, OpenGL thread only.
+    private double mUploadedTimestamp = Double.NaN;
+
+    // Recent device poses in the start of service frame, written by the pose callback.
+    private static final int POSE_RING_CAPACITY = 256;
+    private static final double POSE_MAX_STALENESS_SECONDS = 0.1;
+    private final PoseRing mDevicePoses =
+            new PoseRing(POSE_RING_CAPACITY, POSE_MAX_STALENESS_SECONDS);
+    // Depth camera pose relative to the device, read from Tango once connected.
+    private volatile float[] mDeviceTdepth;
+    // The start of service frame is Z up, the OpenGL world frame Y up.
+    private static final float[] OPENGL_T_START_OF_SERVICE = {
+            1, 0, 0, 0,
+            0, 0, -1, 0,
+            0, 1, 0, 0,
+            0, 0, 0, 1};
+    // OpenGL thread only.
+    private final PoseRing.Pose mLatestDevicePose = new PoseRing.Pose();
+    private final PoseRing.Pose mCameraPose = new PoseRing.Pose();
+    private final float[] mRenderDepthPose = new float[16];
+    // Velocity of the device, fed from the pose callback and read by the analysis.
+    private final MotionEstimator mMotionEstimator = new MotionEstimator();
+    // Compacts every depth frame on the render preparation thread.
+    private final PointCompactor mPointCompactor = ObstacleAnalyzer.createPointCompactor(
+            PointCloudRajawaliRenderer.MAX_NUMBER_OF_POINTS);
+    // Points the render preparation at the compacted points, render preparation thread only.
+    private final PointCloudFrame mCompactedFrame = new PointCloudFrame(4);
+    // Per-frame analysis, run on the analysis worker thread.
+    private final ObstacleAnalyzer mObstacleAnalyzer = new ObstacleAnalyzer(
+            PointCloudRajawaliRenderer.MAX_NUMBER_OF_POINTS, 4, SECTOR_WARNINGS.length);
+    // Set while recording depth frames to a file.
+    private volatile PointCloudRecorder mRecorder;
+    // Set while the activity is started and the trace files could be created.
+    private volatile TraceLog mTraceLog;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -103,12 +206,59 @@ public class PointCloudActivity extends Activity {
 
         mPointCountTextView = (TextView) findViewById(R.id.point_count_textview);
         mAverageZTextView = (TextView) findViewById(R.id.average_z_textview);
+        mMapMemoryTextView = (TextView) findViewById(R.id.map_memory_textview);
+        mLatencyTextView = (TextView) findViewById(R.id.latency_textview);
         mSurfaceView = (RajawaliSurfaceView) findViewById(R.id.gl_surface_view);
 
-        mPointCloudManager = new TangoPointCloudManager();
         mTangoUx = setupTangoUxAndLayout();
         mRenderer = new PointCloudRajawaliRenderer(this);
         setupRenderer();
+        mObstacleAnalyzer.setDepthPoseProvider(mDepthPoseProvider);
+        mObstacleAnalyzer.setMotionEstimator(mMotionEstimator);
+        mLoadGovernor.setListener(new LoadGovernor.Listener() {
+            @Override
+            public void onLevelChanged(LoadGovernor governor, int level) {
+                applyQualityLevel(governor);
+            }
+        });
+        mObstacleAnalyzer.setListener(new ObstacleAnalyzer.Listener() {
+            @Override
+            public void onFrameAnalyzed(ObstacleAnalyzer analyzer, PointCloudFrame frame) {
+                onPointCloudAnalyzed(analyzer, frame);
+            }
+        });
+        mAnalysisParallel = new ParallelChunks("PointCloudAnalysisChunks", PARALLEL_THREADS);
+        mRenderParallel = new ParallelChunks("PointCloudRenderPrepChunks", PARALLEL_THREADS);
+        mObstacleAnalyzer.setParallel(mAnalysisParallel);
+        mRenderer.getFramePreparer().setParallel(mRenderParallel);
+        mRenderer.getFramePreparer().setDepthPoseProvider(mRenderPrepDepthPoses);
+        mAnalysisWorker = new AnalysisWorker("PointCloudAnalysis",
+                PointCloudRajawaliRenderer.MAX_NUMBER_OF_POINTS, 4, mObstacleAnalyzer);
+        mRenderWorker = new AnalysisWorker("PointCloudRenderPrep",
+                PointCloudRajawaliRenderer.MAX_NUMBER_OF_POINTS, 4,
+                new AnalysisWorker.FrameProcessor() {
+                    @Override
+                    public void process(PointCloudFrame frame) {
+                        // Drop low confidence speckle and points out of the tracking range once,
+                        // for the analysis, the surface and the rendering.
+                        double timestamp = frame.getTimestamp();
+                        int numPoints = mPointCompactor.compact(frame.getPoints(),
+                                frame.getNumPoints());
+                        FloatBuffer points = mPointCompactor.getOutput();
+                        // Under load only some frames are analysed.
+                        if (mDepthFrameCount++ % mLoadGovernor.getAnalysisStride() == 0) {
+                            mAnalysisWorker.publish(timestamp, numPoints, points);
+                        }
+                        mSurfaceWorker.publish(timestamp, numPoints, points);
+                        mCompactedFrame.setView(timestamp, numPoints, points);
+                        mRenderer.getFramePreparer().process(mCompactedFrame);
+                        mLatencyTracker.stamp(LatencyTracker.STAGE_PREPARED, timestamp);
+                    }
+                });
+        mRenderer.getSurfaceReconstructor().setDepthPoseProvider(mSurfaceDepthPoses);
+        mSurfaceWorker = new AnalysisWorker("PointCloudSurface",
+                PointCloudRajawaliRenderer.MAX_NUMBER_OF_POINTS, 4,
+                mRenderer.getSurfaceReconstructor());
 
         /* Setup tts */
         tts = new TextToSpeech(getApplicationContext(), new TextToSpeech.OnInitListener() {
@@ -121,6 +271,9 @@ public class PointCloudActivity extends Activity {
             }
         });
 
+        mAlertScheduler = new AlertScheduler("ObstacleAlerts", mSpeaker, mClock,
+                mLatencyTracker.getHistogram(LatencyTracker.STAGE_ALERTED));
+
         DisplayManager displayManager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         if (displayManager != null) {
             displayManager.registerDisplayListener(new DisplayManager.DisplayListener() {
@@ -131,9 +284,7 @@ public class PointCloudActivity extends Activity {
 
                 @Override
                 public void onDisplayChanged(int displayId) {
-                    synchronized (this) {
-                        setDisplayRotation();
-                    }
+                    setDisplayRotation();
                 }
 
                 @Override
@@ -149,6 +300,11 @@ public class PointCloudActivity extends Activity {
         mSurfaceView.onResume();
 
         mTangoUx.start(new StartParams());
+        startTracing();
+        mAnalysisWorker.start();
+        mRenderWorker.start();
+        mSurfaceWorker.start();
+        mAlertScheduler.start();
         // Check and request camera permission at run time.
         bindTangoService();
     }
@@ -156,31 +312,49 @@ public class PointCloudActivity extends Activity {
     @Override
     protected void onStop() {
         super.onStop();
-
-        // Synchronize against disconnecting while the service is being used in the OpenGL
-        // thread or in the UI thread.
-        // NOTE: DO NOT lock against this same object in the Tango callback thread.
+        // Stop the analysis and alert threads and the recorder first so they don't use text to
+        // speech or Tango after the shutdown below. Frames still published before the disconnect
+        // are simply left in the handoff slot. The render preparation feeds the other two, so it
+        // stops first.
+        mRenderWorker.stop();
+        mAnalysisWorker.stop();
+        mSurfaceWorker.stop();
+        mAlertScheduler.stop();
+        stopRecording();
+        stopTracing();
+
+        // Stop frames from entering, then wait for a connection in progress and for the frame
+        // inside. No other thread calls into the service: the OpenGL thread and the depth pose
+        // providers read the pose ring, which keeps its last poses until reconnected.
+        // NOTE: DO NOT use the connection gate in the Tango callback thread.
         // Tango.disconnect will block here until all Tango callback calls are finished.
-        // If you lock against this object in a Tango callback thread it will cause a deadlock.
-        synchronized (this) {
-            if (mIsConnected) {
-                try {
-                    mTangoUx.stop();
-                    mTango.disconnect();
-                    mIsConnected = false;
-
-                    /* Shut down tts */
-                    if (tts != null) {
-                        tts.stop();
-                        tts.shutdown();
-                    }
-                } catch (TangoErrorException e) {
-                    Log.e(TAG, getString(R.string.exception_tango_error), e);
+        // If a Tango callback waited on this disconnect it would cause a deadlock.
+        if (mConnection.beginDisconnect()) {
+            try {
+                mTangoUx.stop();
+                mTango.disconnect();
+
+                /* Shut down tts */
+                if (tts != null) {
+                    tts.stop();
+                    tts.shutdown();
                 }
+            } catch (TangoErrorException e) {
+                Log.e(TAG, getString(R.string.exception_tango_error), e);
+            } finally {
+                mConnection.endDisconnect();
             }
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The workers using the chunk threads were stopped in onStop.
+        mAnalysisParallel.shutdown();
+        mRenderParallel.shutdown();
+    }
+
     /**
      * Initialize Tango Service as a normal Android Service.
      */
@@ -195,28 +369,31 @@ public class PointCloudActivity extends Activity {
             // thread changes involved.
             @Override
             public void run() {
-                // Synchronize against disconnecting while the service is being used in the OpenGL
-                // thread or in the UI thread.
-                synchronized (PointCloudActivity.this) {
-                    try {
-                        TangoSupport.initialize();
-                        mConfig = setupTangoConfig(mTango);
-                        mTango.connect(mConfig);
-                        startupTango();
-                        mIsConnected = true;
-                        setDisplayRotation();
-                    } catch (TangoOutOfDateException e) {
-                        if (mTangoUx != null) {
-                            mTangoUx.showTangoOutOfDate();
-                        }
-                        Log.e(TAG, getString(R.string.exception_out_of_date), e);
-                    } catch (TangoErrorException e) {
-                        Log.e(TAG, getString(R.string.exception_tango_error), e);
-                        showsToastAndFinishOnUiThread(R.string.exception_tango_error);
-                    } catch (TangoInvalidException e) {
-                        Log.e(TAG, getString(R.string.exception_tango_invalid), e);
-                        showsToastAndFinishOnUiThread(R.string.exception_tango_invalid);
+                // Other threads only start using the service once the connection is complete.
+                if (!mConnection.beginConnect()) {
+                    return;
+                }
+                boolean connected = false;
+                try {
+                    TangoSupport.initialize();
+                    mConfig = setupTangoConfig(mTango);
+                    mTango.connect(mConfig);
+                    startupTango();
+                    connected = true;
+                    setDisplayRotation();
+                } catch (TangoOutOfDateException e) {
+                    if (mTangoUx != null) {
+                        mTangoUx.showTangoOutOfDate();
                     }
+                    Log.e(TAG, getString(R.string.exception_out_of_date), e);
+                } catch (TangoErrorException e) {
+                    Log.e(TAG, getString(R.string.exception_tango_error), e);
+                    showsToastAndFinishOnUiThread(R.string.exception_tango_error);
+                } catch (TangoInvalidException e) {
+                    Log.e(TAG, getString(R.string.exception_tango_invalid), e);
+                    showsToastAndFinishOnUiThread(R.string.exception_tango_invalid);
+                } finally {
+                    mConnection.endConnect(connected);
                 }
             }
         });
@@ -234,12 +411,33 @@ public class PointCloudActivity extends Activity {
         return config;
     }
 
+    /**
+     * @return The fixed transform from the depth camera to the device frame, from the
+     * extrinsics of both relative to the IMU.
+     */
+    private float[] getDeviceTdepth() {
+        TangoPoseData imuTdevicePose = mTango.getPoseAtTime(0.0, new TangoCoordinateFramePair(
+                TangoPoseData.COORDINATE_FRAME_IMU, TangoPoseData.COORDINATE_FRAME_DEVICE));
+        TangoPoseData imuTdepthPose = mTango.getPoseAtTime(0.0, new TangoCoordinateFramePair(
+                TangoPoseData.COORDINATE_FRAME_IMU, TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH));
+        float[] imuTdevice = new float[16];
+        float[] imuTdepth = new float[16];
+        float[] deviceTimu = new float[16];
+        float[] deviceTdepth = new float[16];
+        PoseRing.Pose.toMatrix(imuTdevicePose.translation, imuTdevicePose.rotation, imuTdevice);
+        PoseRing.Pose.toMatrix(imuTdepthPose.translation, imuTdepthPose.rotation, imuTdepth);
+        Matrix.invertM(deviceTimu, 0, imuTdevice, 0);
+        Matrix.multiplyMM(deviceTdepth, 0, deviceTimu, 0, imuTdepth, 0);
+        return deviceTdepth;
+    }
+
     /**
      * Set up the callback listeners for the Tango service and obtain other parameters required
      * after Tango connection.
      * Listen to updates from the Point Cloud and Tango Events and Pose.
      */
     private void startupTango() {
+        mDeviceTdepth = getDeviceTdepth();
         ArrayList<TangoCoordinateFramePair> framePairs = new ArrayList<TangoCoordinateFramePair>();
 
         framePairs.add(new TangoCoordinateFramePair(TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
@@ -252,6 +450,15 @@ public class PointCloudActivity extends Activity {
                 if (mTangoUx != null) {
                     mTangoUx.updatePoseStatus(pose.statusCode);
                 }
+                if (pose.statusCode == TangoPoseData.POSE_VALID) {
+                    mDevicePoses.publish(pose.timestamp, pose.translation, pose.rotation);
+                    // Start of service frame, Z up, to the OpenGL world frame of the depth poses.
+                    double[] translation = pose.translation;
+                    mMotionEstimator.update(pose.timestamp, translation[0], translation[2],
+                            -translation[1]);
+                } else {
+                    mMotionEstimator.reset();
+                }
             }
 
             @Override
@@ -261,56 +468,22 @@ public class PointCloudActivity extends Activity {
 
             @Override
             public void onPointCloudAvailable(TangoPointCloudData pointCloud) {
+                mLatencyTracker.stamp(LatencyTracker.STAGE_CALLBACK, pointCloud.timestamp);
                 if (mTangoUx != null) {
                     mTangoUx.updatePointCloud(pointCloud);
                 }
-                mPointCloudManager.updatePointCloud(pointCloud);
-
-                final double currentTimeStamp = pointCloud.timestamp;
-                final double pointCloudFrameDelta =
-                        (currentTimeStamp - mPointCloudPreviousTimeStamp) * SECS_TO_MILLISECS;
-                final double ttsAlertTimeDelta =
-                        (currentTimeStamp - ttsPreviousAlertTimeStamp) * SECS_TO_MILLISECS;
-                mPointCloudPreviousTimeStamp = currentTimeStamp;
-                final double averageDepth = getAveragedDepth(pointCloud.points,
-                        pointCloud.numPoints);
-
-                mPointCloudTimeToNextUpdate -= pointCloudFrameDelta;
-
-                if (mPointCloudTimeToNextUpdate < 0.0) {
-                    mPointCloudTimeToNextUpdate = UPDATE_INTERVAL_MS;
-                    final String pointCountString = Integer.toString(pointCloud.numPoints);
-
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            mPointCountTextView.setText(pointCountString);
-                            mAverageZTextView.setText(FORMAT_THREE_DECIMAL.format(averageDepth));
-                        }
-                    });
-                }
 
-                double MIN_TRACKING_METERS = 0.50;
-                double ARM_LENGTH_METERS = 1.42;
-                double WAIT_TIME_MILLISECS = 5000.0; // five seconds
-
-                // double MIN_X_METERS = -0.05;
-                // double MAX_X_METERS = 0.05
-                // double MIN_Y_METERS = -0.5
-                // double MAX_Y_METERS = 0.5;
-                if (MIN_TRACKING_METERS <= averageDepth &&
-                        averageDepth <= ARM_LENGTH_METERS &&
-                        ttsAlertTimeDelta >= WAIT_TIME_MILLISECS) {
-                    if (!tts.isSpeaking()) {
-                        ttsPreviousAlertTimeStamp = currentTimeStamp;
-                        String warning = "There is an object ahead of you within arms length.";
-                        tts.speak(warning, TextToSpeech.QUEUE_FLUSH, null);
-                    }
+                // Hand the frame over to the render preparation thread, which compacts it and
+                // passes the compacted points on to the analysis and surface threads. This only
+                // copies the points once so the Tango callback thread is never held up.
+                mRenderWorker.publish(pointCloud.timestamp, pointCloud.numPoints,
+                        pointCloud.points);
+                // Recordings keep every point so they can be replayed with other thresholds.
+                PointCloudRecorder recorder = mRecorder;
+                if (recorder != null) {
+                    recorder.record(pointCloud.timestamp, pointCloud.numPoints,
+                            pointCloud.points);
                 }
-                float[] averagedXY = getAveragedXY(pointCloud.points, pointCloud.numPoints);
-                double averagedX = averagedXY[0];
-                double averagedY = averagedXY[1];
-                System.out.println("avg (x,y) : " + "(" + averagedX + ", " + averagedY + ")");
             }
 
             @Override
@@ -327,6 +500,170 @@ public class PointCloudActivity extends Activity {
         });
     }
 
+    /**
+     * Updates the UI and speaks obstacle warnings from the analysis of a depth frame. Called from
+     * the analysis worker thread.
+     */
+    private void onPointCloudAnalyzed(ObstacleAnalyzer analyzer, PointCloudFrame frame) {
+        final double currentTimeStamp = frame.getTimestamp();
+        final double pointCloudFrameDelta =
+                (currentTimeStamp - mPointCloudPreviousTimeStamp) * SECS_TO_MILLISECS;
+        mPointCloudPreviousTimeStamp = currentTimeStamp;
+        final double averageDepth = analyzer.getStats().getMeanZ();
+
+        // The two workers run in parallel, so the slower one limits the pipeline.
+        mLoadGovernor.onFrameProcessed(Math.max(analyzer.getProcessNanos(),
+                mRenderer.getFramePreparer().getLastPrepareNanos()));
+
+        mPointCloudTimeToNextUpdate -= pointCloudFrameDelta;
+
+        if (mPointCloudTimeToNextUpdate < 0.0) {
+            mPointCloudTimeToNextUpdate = UPDATE_INTERVAL_MS * mLoadGovernor.getUiIntervalScale();
+            final String pointCountString = Integer.toString(frame.getNumPoints());
+            final String mapMemoryString = Integer.toString(Math.round(
+                    analyzer.getOccupancyMap().getMemoryBytesPerSquareMeter() / 1024));
+            mLatencyText.setLength(0);
+            mLatencyText.append(String.format(Locale.US,
+                    "quality level %d, load %.2f, points kept %.0f%%\n", mLoadGovernor.getLevel(),
+                    mLoadGovernor.getLoad(), 100 * mPointCompactor.getKeptRatio()));
+            SurfaceReconstructor surface = mRenderer.getSurfaceReconstructor();
+            mLatencyText.append(String.format(Locale.US, "surface %d blocks in %.1f ms\n",
+                    surface.getLastBlocksMeshed(), surface.getLastMeshNanos() / 1e6));
+            mLatencyText.append(String.format(Locale.US,
+                    "mean upload: cloud %.2f ms, surface %.2f ms\n",
+                    mRenderer.getAverageUploadNanos() / 1e6,
+                    mRenderer.getAverageSurfaceUploadNanos() / 1e6));
+            mLatencyTracker.format(mLatencyText);
+            final String latencyString = mLatencyText.toString();
+
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mPointCountTextView.setText(pointCountString);
+                    mAverageZTextView.setText(FORMAT_THREE_DECIMAL.format(averageDepth));
+                    mMapMemoryTextView.setText(mapMemoryString);
+                    mLatencyTextView.setText(latencyString);
+                }
+            });
+        }
+
+        // Every frame is reported, including frames without an obstacle, so the scheduler can
+        // tell when an alert has cleared.
+        mAlertScheduler.report(currentTimeStamp, analyzer.getObstacleSeverity(),
+                analyzer.getAlertSector());
+        mLatencyTracker.stamp(LatencyTracker.STAGE_ANALYZED, currentTimeStamp);
+        float floorHeight = analyzer.getFloorHeight();
+        if (!Float.isNaN(floorHeight)) {
+            mRenderer.setFloorHeight(floorHeight);
+        }
+        TraceLog traceLog = mTraceLog;
+        if (traceLog != null) {
+            traceLog.trace(TRACE_ANALYZED, analyzer.getNumVoxels(),
+                    analyzer.getStats().getMeanX(), analyzer.getStats().getMeanY());
+            int severity = analyzer.getObstacleSeverity();
+            if (severity != AlertScheduler.SEVERITY_NONE) {
+                float distance = severity == AlertScheduler.SEVERITY_NOTICE
+                        ? analyzer.getObstacleDistance() : analyzer.getCorridorDistance();
+                traceLog.trace(TRACE_ALERT, analyzer.getAlertSector(), distance, severity);
+            }
+        }
+    }
+
+    /**
+     * Sets the quality levers for the current level of the load governor. Called from the
+     * analysis worker thread.
+     */
+    private void applyQualityLevel(LoadGovernor governor) {
+        float voxelSizeScale = governor.getVoxelSizeScale();
+        mObstacleAnalyzer.setVoxelSize(ObstacleAnalyzer.DEFAULT_VOXEL_SIZE_METERS * voxelSizeScale);
+        mRenderer.setVoxelSize(
+                PointCloudRajawaliRenderer.DEFAULT_VOXEL_SIZE_METERS * voxelSizeScale);
+        mRenderer.setPointBudget(Math.round(PointCloudRajawaliRenderer.ACCUMULATED_POINT_BUDGET
+                * governor.getPointBudgetScale()));
+        Log.i(TAG, "Quality level " + governor.getLevel() + ", load " + governor.getLoad());
+    }
+
+    /**
+     * Speaks the alerts chosen by the alert scheduler, on the scheduler thread.
+     */
+    private final AlertScheduler.Speaker mSpeaker = new AlertScheduler.Speaker() {
+        @Override
+        public void speak(int severity, int direction, boolean interrupt) {
+            String warning = SECTOR_WARNINGS[direction];
+            if (severity == AlertScheduler.SEVERITY_URGENT) {
+                warning = "Stop. " + warning;
+            }
+            tts.speak(warning, interrupt ? TextToSpeech.QUEUE_FLUSH : TextToSpeech.QUEUE_ADD,
+                    null);
+        }
+
+        @Override
+        public boolean isSpeaking() {
+            return tts.isSpeaking();
+        }
+    };
+
+    /**
+     * Looks up depth camera poses in the ring of device poses, so no thread has to query Tango
+     * for them. Each thread needs its own instance.
+     */
+    private class RingDepthPoseProvider implements DepthPoseProvider {
+        private final PoseRing.Pose mDevicePose = new PoseRing.Pose();
+        private final float[] mStartOfServiceTdevice = new float[16];
+        private final float[] mOpenGlTdevice = new float[16];
+
+        @Override
+        public boolean getDepthPose(double timestamp, float[] worldTdepth) {
+            float[] deviceTdepth = mDeviceTdepth;
+            if (deviceTdepth == null || !mDevicePoses.getPoseAt(timestamp, mDevicePose)) {
+                return false;
+            }
+            mDevicePose.toMatrix(mStartOfServiceTdevice);
+            Matrix.multiplyMM(mOpenGlTdevice, 0, OPENGL_T_START_OF_SERVICE, 0,
+                    mStartOfServiceTdevice, 0);
+            Matrix.multiplyMM(worldTdepth, 0, mOpenGlTdevice, 0, deviceTdepth, 0);
+            return true;
+        }
+    }
+
+    // Depth camera poses for the analysis thread, the recorder thread, the render and surface
+    // worker threads and the OpenGL thread.
+    private final DepthPoseProvider mDepthPoseProvider = new RingDepthPoseProvider();
+    private final DepthPoseProvider mRecorderDepthPoses = new RingDepthPoseProvider();
+    private final DepthPoseProvider mRenderPrepDepthPoses = new RingDepthPoseProvider();
+    private final DepthPoseProvider mSurfaceDepthPoses = new RingDepthPoseProvider();
+    private final DepthPoseProvider mRenderDepthPoses = new RingDepthPoseProvider();
+
+    /**
+     * Converts a device pose in the start of service frame into the pose of the OpenGL camera
+     * showing the scene on the display: OpenGL world frame, rotated with the display.
+     */
+    private static void toOpenGlCameraPose(PoseRing.Pose devicePose, int displayRotation,
+                                           PoseRing.Pose out) {
+        double[] t = devicePose.translation;
+        out.timestamp = devicePose.timestamp;
+        out.translation[0] = t[0];
+        out.translation[1] = t[2];
+        out.translation[2] = -t[1];
+        // The device frame already follows the OpenGL camera convention in the natural display
+        // orientation. Turn the world a quarter turn around X, and the camera a quarter turn
+        // around Z per display rotation.
+        double[] q = devicePose.rotation;
+        double s = Math.sqrt(0.5);
+        double x = s * (q[0] - q[3]);
+        double y = s * (q[1] + q[2]);
+        double z = s * (q[2] - q[1]);
+        double w = s * (q[3] + q[0]);
+        double angle = -displayRotation * Math.PI / 4;
+        double rz = Math.sin(angle);
+        double rw = Math.cos(angle);
+        double[] r = out.rotation;
+        r[0] = x * rw + y * rz;
+        r[1] = y * rw - x * rz;
+        r[2] = z * rw + w * rz;
+        r[3] = w * rw - z * rz;
+    }
+
     /**
      * Sets Rajawali surface view and its renderer. This is ideally called only once in onCreate.
      */
@@ -338,44 +675,33 @@ public class PointCloudActivity extends Activity {
                 // NOTE: This will be executed on each cycle before rendering, called from the
                 // OpenGL rendering thread
 
-                // Prevent concurrent access from a service disconnect through the onPause event.
-                synchronized (PointCloudActivity.this) {
-                    // Don't execute any tango API actions if we're not connected to the service.
-                    if (!mIsConnected) {
-                        return;
-                    }
-
-                    // Update point cloud data.
-                    TangoPointCloudData pointCloud = mPointCloudManager.getLatestPointCloud();
-                    if (pointCloud != null) {
-                        // Calculate the camera color pose at the camera frame update time in
-                        // OpenGL engine.
-                        TangoSupport.TangoMatrixTransformData transform =
-                                TangoSupport.getMatrixTransformAtTime(pointCloud.timestamp,
-                                        TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                                        TangoPoseData.COORDINATE_FRAME_CAMERA_DEPTH,
-                                        TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
-                                        TangoSupport.TANGO_SUPPORT_ENGINE_TANGO,
-                                        TangoSupport.ROTATION_IGNORED);
-                        if (transform.statusCode == TangoPoseData.POSE_VALID) {
-                            mRenderer.updatePointCloud(pointCloud, transform.matrix);
-                        }
+                // Poses come from the ring filled by the pose callback, so this thread never
+                // calls into Tango. It still only draws while connected: a disconnect from onStop
+                // waits for this frame to leave the gate, but this thread never waits for the
+                // disconnect, it just skips frames.
+                if (!mConnection.tryEnter()) {
+                    return;
+                }
+                try {
+                    // Update point cloud data, already downsampled and colored by the render
+                    // worker so only the upload is left for this thread.
+                    RenderFrame pointCloud = mRenderer.pollPointCloud();
+                    if (pointCloud != null && mRenderDepthPoses.getDepthPose(
+                            pointCloud.getTimestamp(), mRenderDepthPose)) {
+                        mRenderer.updatePointCloud(pointCloud, mRenderDepthPose);
+                        mUploadedTimestamp = pointCloud.getTimestamp();
+                        mLatencyTracker.stamp(LatencyTracker.STAGE_UPLOADED, mUploadedTimestamp);
                     }
 
-                    // Update current camera pose.
-                    try {
-                        // Calculate the last depth camera pose. This transform is used to display
-                        // frustum in third and top down view, and used to render camera pose in
-                        // first person view.
-                        TangoPoseData lastFramePose = TangoSupport.getPoseAtTime(0,
-                                TangoPoseData.COORDINATE_FRAME_START_OF_SERVICE,
-                                TangoPoseData.COORDINATE_FRAME_DEVICE,
-                                TangoSupport.TANGO_SUPPORT_ENGINE_OPENGL,
-                                mDisplayRotation);
-                        mRenderer.updateCameraPose(lastFramePose);
-                    } catch (TangoErrorException e) {
-                        Log.e(TAG, "Could not get valid transform");
+                    // Update current camera pose. This transform is used to display frustum
+                    // in third and top down view, and used to render camera pose in first
+                    // person view.
+                    if (mDevicePoses.getLatestPose(mLatestDevicePose)) {
+                        toOpenGlCameraPose(mLatestDevicePose, mDisplayRotation, mCameraPose);
+                        mRenderer.updateCameraPose(mCameraPose);
                     }
+                } finally {
+                    mConnection.exit();
                 }
             }
 
@@ -391,7 +717,10 @@ public class PointCloudActivity extends Activity {
 
             @Override
             public void onPostFrame(long sceneTime, double deltaTime) {
-
+                if (!Double.isNaN(mUploadedTimestamp)) {
+                    mLatencyTracker.stamp(LatencyTracker.STAGE_DRAWN, mUploadedTimestamp);
+                    mUploadedTimestamp = Double.NaN;
+                }
             }
         });
         mSurfaceView.setSurfaceRenderer(mRenderer);
@@ -473,56 +802,130 @@ public class PointCloudActivity extends Activity {
         mRenderer.setTopDownView();
     }
 
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
-        mRenderer.onTouchEvent(event);
-        return true;
+    /**
+     * Record button onClick callback. Starts or stops recording depth frames to a file in the
+     * app's external files directory.
+     */
+    public void onRecordClicked(View v) {
+        Button button = (Button) v;
+        if (mRecorder == null) {
+            if (startRecording()) {
+                button.setText(R.string.stop_recording);
+            }
+        } else {
+            stopRecording();
+            button.setText(R.string.record);
+        }
     }
 
     /**
-     * Calculates the average depth from a point cloud buffer.
-     *
-     * @param pointCloudBuffer
-     * @param numPoints
-     * @return Average depth.
+     * Latency button onClick callback. Writes the latency of every pipeline stage to a file in
+     * the app's external files directory.
      */
-    private float getAveragedDepth(FloatBuffer pointCloudBuffer, int numPoints) {
-        float totalZ = 0;
-        float averageZ = 0;
-
-        if (numPoints != 0) {
-            int numFloats = 4 * numPoints;
-            for (int i = 2; i < numFloats; i = i + 4) {
-                totalZ = totalZ + pointCloudBuffer.get(i);
+    public void onDumpLatencyClicked(View v) {
+        File file = new File(getExternalFilesDir(null),
+                "latency-" + System.currentTimeMillis() + ".tsv");
+        try {
+            Writer writer = new FileWriter(file);
+            try {
+                mLatencyTracker.dump(writer);
+            } finally {
+                writer.close();
             }
-            averageZ = totalZ / numPoints;
+            Log.i(TAG, "Wrote pipeline latency to " + file);
+            Toast.makeText(this, getString(R.string.latency_dumped, file.getName()),
+                    Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.e(TAG, getString(R.string.exception_latency_dump), e);
+            Toast.makeText(this, R.string.exception_latency_dump, Toast.LENGTH_LONG).show();
         }
-        return averageZ;
     }
 
-    private float[] getAveragedXY(FloatBuffer pointCloudBuffer, int numPoints) {
-        float ret[] = new float[2];
-        // initialize
-        ret[0] = 0;
-        ret[1] = 0;
-
-        float totalX = 0;
-        float averageX = 0;
-        float totalY = 0;
-        float averageY = 0;
-
-        if (numPoints != 0) {
-            int numFloats = 4 * numPoints;
-            for (int i = 1; i < numFloats; i = i + 4) {
-                totalX = totalX + pointCloudBuffer.get(i - 1);
-                totalY = totalY + pointCloudBuffer.get(i);
-            }
-            averageX = totalX / numPoints;
-            averageY = totalY / numPoints;
-            ret[0] = averageX;
-            ret[1] = averageY;
+    /**
+     * Starts recording depth frames and depth camera poses.
+     *
+     * @return True if the recording was started.
+     */
+    private boolean startRecording() {
+        File file = new File(getExternalFilesDir(null),
+                "pointcloud-" + System.currentTimeMillis() + RECORDING_EXTENSION);
+        try {
+            // Quantized frames keep hour long sessions within the device storage.
+            PointCloudRecorder recorder = new PointCloudRecorder(file,
+                    PointCloudRajawaliRenderer.MAX_NUMBER_OF_POINTS, 4, mRecorderDepthPoses,
+                    true);
+            recorder.start();
+            mRecorder = recorder;
+            Log.i(TAG, "Recording point clouds to " + file);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, getString(R.string.exception_recording), e);
+            Toast.makeText(this, R.string.exception_recording, Toast.LENGTH_LONG).show();
+            return false;
+        }
+    }
+
+    /**
+     * Stops the current recording, if any, and finishes writing its file.
+     */
+    private void stopRecording() {
+        PointCloudRecorder recorder = mRecorder;
+        if (recorder == null) {
+            return;
+        }
+        mRecorder = null;
+        try {
+            recorder.close();
+            Log.i(TAG, "Recorded " + recorder.getFramesRecorded() + " frames, dropped "
+                    + recorder.getFramesDropped() + " to " + recorder.getFile());
+        } catch (IOException e) {
+            Log.e(TAG, getString(R.string.exception_recording), e);
+        }
+    }
+
+    /**
+     * Starts tracing to rotating files in the app's external files directory. The per-frame
+     * trace events replace logging to logcat, which allocates and blocks the calling thread.
+     */
+    private void startTracing() {
+        File directory = new File(getExternalFilesDir(null), "trace");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create " + directory + ", tracing is off");
+            return;
+        }
+        try {
+            TraceLog traceLog = new TraceLog(directory, "trace-" + System.currentTimeMillis(),
+                    TRACE_EVENTS, mClock, TraceLog.DEFAULT_CAPACITY,
+                    TraceLog.DEFAULT_MAX_FILE_BYTES, TraceLog.DEFAULT_MAX_FILES);
+            traceLog.start();
+            mTraceLog = traceLog;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not create trace file, tracing is off", e);
+        }
+    }
+
+    /**
+     * Stops tracing, if started, and finishes writing the trace files.
+     */
+    private void stopTracing() {
+        TraceLog traceLog = mTraceLog;
+        if (traceLog == null) {
+            return;
         }
-        return ret;
+        mTraceLog = null;
+        try {
+            traceLog.close();
+            Log.i(TAG, "Traced " + traceLog.getRecordsWritten() + " records, dropped "
+                    + traceLog.getRecordsDropped());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write trace file", e);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        mRenderer.onTouchEvent(event);
+        return true;
     }
 
     /**
@@ -15,22 +15,26 @@
  */
 package com.projecttango.examples.java.pointcloud;
 
-import com.google.atap.tangoservice.TangoPointCloudData;
-import com.google.atap.tangoservice.TangoPoseData;
 import com.google.atap.tangoservice.TangoXyzIjData;
 
 import android.content.Context;
 import android.graphics.Color;
 import android.view.MotionEvent;
 
-import org.rajawali3d.math.Matrix4;
 import org.rajawali3d.math.Quaternion;
 import org.rajawali3d.math.vector.Vector3;
 import org.rajawali3d.renderer.RajawaliRenderer;
 
+import com.projecttango.examples.java.pointcloud.pipeline.PoseRing;
+import com.projecttango.examples.java.pointcloud.pipeline.RenderFrame;
+import com.projecttango.examples.java.pointcloud.pipeline.RenderFramePreparer;
+import com.projecttango.examples.java.pointcloud.pipeline.SurfaceMeshUpdate;
+import com.projecttango.examples.java.pointcloud.pipeline.SurfaceReconstructor;
 import com.projecttango.examples.java.pointcloud.rajawali.FrustumAxes;
 import com.projecttango.examples.java.pointcloud.rajawali.Grid;
 import com.projecttango.examples.java.pointcloud.rajawali.PointCloud;
+import com.projecttango.examples.java.pointcloud.rajawali.PointCloudRing;
+import com.projecttango.examples.java.pointcloud.rajawali.SurfaceMesh;
 /**
  * Renderer for Point Cloud data.
  */
@@ -38,14 +42,41 @@ public class PointCloudRajawaliRenderer extends RajawaliRenderer {
 
     private static final float CAMERA_NEAR = 0.01f;
     private static final float CAMERA_FAR = 200f;
-    private static final int MAX_NUMBER_OF_POINTS = 60000;
+    static final int MAX_NUMBER_OF_POINTS = 60000;
+    // Edge length of the voxels used to thin out the rendered cloud.
+    static final float DEFAULT_VOXEL_SIZE_METERS = 0.03f;
+    // Number of recent clouds rendered together, and the most points drawn for all of them.
+    static final int ACCUMULATED_CLOUDS = 8;
+    static final int ACCUMULATED_POINT_BUDGET = 2 * MAX_NUMBER_OF_POINTS;
+    // Clouds older than the newest one are drawn with only every n-th point.
+    static final int OLDER_CLOUD_DECIMATION = 2;
+    // Height of the grid until the floor has been detected.
+    static final float DEFAULT_FLOOR_HEIGHT_METERS = -1.3f;
 
     private TouchViewHandler mTouchViewHandler;
 
     // Objects rendered in the scene.
-    private PointCloud mPointCloud;
+    private PointCloudRing mPointClouds;
     private FrustumAxes mFrustumAxes;
     private Grid mGrid;
+    private SurfaceMesh mSurfaceMesh;
+    // Height the grid is moved to on the next frame, written by the analysis thread.
+    private volatile float mFloorHeight = DEFAULT_FLOOR_HEIGHT_METERS;
+    // Point budget applied on the next frame, written by the analysis thread.
+    private volatile int mPointBudget = ACCUMULATED_POINT_BUDGET;
+
+    // Downsamples and colors each cloud on a worker thread before it is uploaded.
+    private final RenderFramePreparer mFramePreparer = new RenderFramePreparer(
+            MAX_NUMBER_OF_POINTS, PointCloud.createColorMap(4), DEFAULT_VOXEL_SIZE_METERS);
+    // Fuses the clouds into a volume and meshes its surfaces on another worker thread.
+    private final SurfaceReconstructor mSurfaceReconstructor =
+            new SurfaceReconstructor(MAX_NUMBER_OF_POINTS, 4);
+
+    // Math objects reused for every frame so the rendering thread doesn't allocate.
+    private final Vector3 mPointCloudPosition = new Vector3();
+    private final Quaternion mPointCloudOrientation = new Quaternion();
+    private final Vector3 mCameraPosition = new Vector3();
+    private final Quaternion mCameraOrientation = new Quaternion();
 
     public PointCloudRajawaliRenderer(Context context) {
         super(context);
@@ -55,7 +86,7 @@ public class PointCloudRajawaliRenderer extends RajawaliRenderer {
     @Override
     protected void initScene() {
         mGrid = new Grid(100, 1, 1, 0xFFCCCCCC);
-        mGrid.setPosition(0, -1.3f, 0);
+        mGrid.setPosition(0, DEFAULT_FLOOR_HEIGHT_METERS, 0);
         getCurrentScene().addChild(mGrid);
 
         mFrustumAxes = new FrustumAxes(3);
@@ -63,8 +94,12 @@ public class PointCloudRajawaliRenderer extends RajawaliRenderer {
 
         // Indicate 4 floats per point since the point cloud data comes
         // in XYZC format.
-        mPointCloud = new PointCloud(MAX_NUMBER_OF_POINTS, 4);
-        getCurrentScene().addChild(mPointCloud);
+        mPointClouds = new PointCloudRing(ACCUMULATED_CLOUDS, MAX_NUMBER_OF_POINTS, 4,
+                ACCUMULATED_POINT_BUDGET);
+        mPointClouds.setOlderDecimation(OLDER_CLOUD_DECIMATION);
+        getCurrentScene().addChild(mPointClouds);
+        mSurfaceMesh = new SurfaceMesh(mSurfaceReconstructor.getMaxBlocks());
+        getCurrentScene().addChild(mSurfaceMesh);
         getCurrentScene().setBackgroundColor(Color.WHITE);
         getCurrentCamera().setNearPlane(CAMERA_NEAR);
         getCurrentCamera().setFarPlane(CAMERA_FAR);
@@ -72,33 +107,139 @@ public class PointCloudRajawaliRenderer extends RajawaliRenderer {
     }
     
 
+    @Override
+    protected void onRender(long ellapsedRealtime, double deltaTime) {
+        float floorHeight = mFloorHeight;
+        if (mGrid.getY() != floorHeight) {
+            mGrid.setY(floorHeight);
+        }
+        int pointBudget = mPointBudget;
+        if (mPointClouds.getPointBudget() != pointBudget) {
+            mPointClouds.setPointBudget(pointBudget);
+        }
+        SurfaceMeshUpdate surfaceUpdate = mSurfaceReconstructor.poll();
+        if (surfaceUpdate != null) {
+            mSurfaceMesh.update(surfaceUpdate);
+        }
+        super.onRender(ellapsedRealtime, deltaTime);
+    }
+
+    /**
+     * Moves the grid to the detected floor height, in the OpenGL world frame. Can be called from
+     * any thread.
+     */
+    public void setFloorHeight(float floorHeight) {
+        mFloorHeight = floorHeight;
+    }
+
+    /**
+     * Sets the most points drawn for all the accumulated clouds together, from the next frame.
+     * Can be called from any thread.
+     */
+    public void setPointBudget(int pointBudget) {
+        mPointBudget = pointBudget;
+    }
+
+    /**
+     * @return The frame processor preparing point clouds for rendering. It is meant to be run by
+     * an {@link com.projecttango.examples.java.pointcloud.pipeline.AnalysisWorker}.
+     */
+    public RenderFramePreparer getFramePreparer() {
+        return mFramePreparer;
+    }
+
+    /**
+     * @return The frame processor reconstructing the surfaces rendered with the point clouds. It
+     * is meant to be run by an
+     * {@link com.projecttango.examples.java.pointcloud.pipeline.AnalysisWorker}.
+     */
+    public SurfaceReconstructor getSurfaceReconstructor() {
+        return mSurfaceReconstructor;
+    }
+
+    /**
+     * Takes the newest point cloud prepared for rendering, which stays valid until the next call.
+     * NOTE: This needs to be called from the OpenGL rendering thread.
+     *
+     * @return The prepared point cloud, or null if there is no new one.
+     */
+    public RenderFrame pollPointCloud() {
+        return mFramePreparer.poll();
+    }
+
     /**
-     * Updates the rendered point cloud. For this, we need the point cloud data and the device pose
-     * at the time the cloud data was acquired.
+     * Updates the rendered point cloud. For this, we need the prepared point cloud and the device
+     * pose at the time the cloud data was acquired.
      * NOTE: This needs to be called from the OpenGL rendering thread.
      */
-    public void updatePointCloud(TangoPointCloudData pointCloudData, float[] openGlTdepth) {
-        mPointCloud.updateCloud(pointCloudData.numPoints, pointCloudData.points);
-        Matrix4 openGlTdepthMatrix = new Matrix4(openGlTdepth);
-        mPointCloud.setPosition(openGlTdepthMatrix.getTranslation());
+    public void updatePointCloud(RenderFrame frame, float[] openGlTdepth) {
+        depthTransform(openGlTdepth, mPointCloudPosition, mPointCloudOrientation);
+        mPointClouds.addCloud(frame, mPointCloudPosition, mPointCloudOrientation);
+    }
+
+    /**
+     * Split a column-major OpenGL world from depth matrix into the position and orientation of
+     * the cloud. Allocates nothing.
+     */
+    static void depthTransform(float[] openGlTdepth, Vector3 position, Quaternion orientation) {
+        position.setAll(openGlTdepth[12], openGlTdepth[13], openGlTdepth[14]);
+        // Same as Quaternion.fromMatrix, which allocates a copy of the matrix on every call.
+        orientation.fromAxes(openGlTdepth[0], openGlTdepth[4], openGlTdepth[8],
+                openGlTdepth[1], openGlTdepth[5], openGlTdepth[9],
+                openGlTdepth[2], openGlTdepth[6], openGlTdepth[10]);
         // Conjugating the Quaternion is need because Rajawali uses left handed convention.
-        mPointCloud.setOrientation(new Quaternion().fromMatrix(openGlTdepthMatrix).conjugate());
+        orientation.conjugate();
+    }
+
+    /**
+     * @return Mean time the OpenGL rendering thread spends uploading a point cloud.
+     */
+    public long getAverageUploadNanos() {
+        PointCloudRing pointClouds = mPointClouds;
+        return pointClouds == null ? 0 : pointClouds.getAverageUploadNanos();
+    }
+
+    /**
+     * @return Mean time the OpenGL rendering thread spends uploading a surface mesh update.
+     */
+    public long getAverageSurfaceUploadNanos() {
+        SurfaceMesh surfaceMesh = mSurfaceMesh;
+        return surfaceMesh == null ? 0 : surfaceMesh.getAverageUploadNanos();
     }
 
     /**
      * Updates our information about the current device pose.
      * NOTE: This needs to be called from the OpenGL rendering thread.
      */
-    public void updateCameraPose(TangoPoseData cameraPose) {
-        float[] rotation = cameraPose.getRotationAsFloats();
-        float[] translation = cameraPose.getTranslationAsFloats();
-        Quaternion quaternion = new Quaternion(rotation[3], rotation[0], rotation[1], rotation[2]);
-        mFrustumAxes.setPosition(translation[0], translation[1], translation[2]);
+    public void updateCameraPose(PoseRing.Pose cameraPose) {
+        cameraTransform(cameraPose.rotation, cameraPose.translation, mCameraPosition,
+                mCameraOrientation);
+        mFrustumAxes.setPosition(mCameraPosition);
+        mFrustumAxes.setOrientation(mCameraOrientation);
+        mTouchViewHandler.updateCamera(mCameraPosition, mCameraOrientation);
+    }
+
+    /**
+     * Convert a Tango pose, rotation as XYZW, into the Rajawali camera position and orientation.
+     * Allocates nothing.
+     */
+    static void cameraTransform(double[] rotation, double[] translation, Vector3 position,
+                                Quaternion orientation) {
         // Conjugating the Quaternion is need because Rajawali uses left handed convention for
         // quaternions.
-        mFrustumAxes.setOrientation(quaternion.conjugate());
-        mTouchViewHandler.updateCamera(new Vector3(translation[0], translation[1], translation[2]),
-                quaternion);
+        orientation.setAll(rotation[3], rotation[0], rotation[1], rotation[2]).conjugate();
+        position.setAll(translation[0], translation[1], translation[2]);
+    }
+
+    /**
+     * Sets the voxel size used to downsample the rendered point cloud. Zero renders every point.
+     */
+    public void setVoxelSize(float voxelSize) {
+        mFramePreparer.setVoxelSize(voxelSize);
+    }
+
+    public float getVoxelSize() {
+        return mFramePreparer.getVoxelSize();
     }
 
     @Override
@@ -51,7 +51,7 @@ public class TouchViewHandler {
     private GestureDetector gestureDetector;
     private ScaleGestureDetector scaleGestureDetector;
 
-    private Vector3 topDownCameraDelta = new Vector3();
+    private final Vector3 topDownCameraDelta = new Vector3();
     private float thirdPersonPitch = TOUCH_THIRD_PITCH_DEFAULT;
     private float thirdPersonYaw = TOUCH_THIRD_YAW_DEFAULT;
 
@@ -78,7 +78,8 @@ public class TouchViewHandler {
         } else if (viewMode == ViewMode.TOP_DOWN) {
             camera.setPosition(position.x + topDownCameraDelta.x, TOUCH_TOP_DISTANCE,
                     position.z + topDownCameraDelta.z);
-            camera.setRotation(Vector3.Axis.X, 90);
+            // The Axis overload allocates a new axis vector on every call.
+            camera.setRotation(Vector3.X, 90);
         } else if (viewMode == ViewMode.THIRD_PERSON) {
             camera.setPosition(position.x, position.y, position.z);
             camera.setRotZ(thirdPersonPitch);
@@ -99,7 +100,7 @@ public class TouchViewHandler {
 
     public void setTopDownView() {
         viewMode = ViewMode.TOP_DOWN;
-        topDownCameraDelta = new Vector3();
+        topDownCameraDelta.setAll(0, 0, 0);
         camera.setFieldOfView(TOP_DOWN_FOV);
     }
 
@@ -110,6 +111,24 @@ public class TouchViewHandler {
         camera.setFieldOfView(THIRD_PERSON_FOV);
     }
 
+    /**
+     * Move the top-down camera or turn the third person one by a scroll distance in pixels.
+     */
+    void drag(float distanceX, float distanceY) {
+        if (viewMode == ViewMode.TOP_DOWN) {
+            double factor = camera.getFieldOfView() / 45;
+            topDownCameraDelta.add(distanceX / 100 * factor, 0, distanceY / 100 * factor);
+        } else if (viewMode == ViewMode.THIRD_PERSON) {
+            thirdPersonPitch -= distanceY / 10;
+            thirdPersonPitch =
+                    Math.min(thirdPersonPitch, TOUCH_THIRD_PITCH_LIMIT);
+            thirdPersonPitch =
+                    Math.max(thirdPersonPitch, -TOUCH_THIRD_PITCH_LIMIT);
+            thirdPersonYaw -= distanceX / 10;
+            thirdPersonYaw %= 360;
+        }
+    }
+
     private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
         float scale = 1f;
 
@@ -128,21 +147,7 @@ public class TouchViewHandler {
     private class DragListener extends GestureDetector.SimpleOnGestureListener {
         @Override
         public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-
-            if (viewMode == ViewMode.TOP_DOWN) {
-                double factor = camera.getFieldOfView() / 45;
-                topDownCameraDelta.add(
-                        new Vector3(distanceX / 100 * factor, 0, distanceY / 100 * factor));
-            } else if (viewMode == ViewMode.THIRD_PERSON) {
-                thirdPersonPitch -= distanceY / 10;
-                thirdPersonPitch =
-                        Math.min(thirdPersonPitch, TOUCH_THIRD_PITCH_LIMIT);
-                thirdPersonPitch =
-                        Math.max(thirdPersonPitch, -TOUCH_THIRD_PITCH_LIMIT);
-                thirdPersonYaw -= distanceX / 10;
-                thirdPersonYaw %= 360;
-            }
-
+            drag(distanceX, distanceY);
             return true;
         }
     }
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.mapping;
+
+import com.projecttango.examples.java.pointcloud.processing.LongIntHashMap;
+
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Extracts the zero crossing of a {@link TsdfVolume} block as a triangle mesh with marching
+ * cubes. Each cell between eight neighboring voxel centers is turned into up to a few triangles
+ * with vertices on the cell edges where the signed distance changes sign.
+ * <p/>
+ * The triangle table is built when the class is loaded by walking the sign changes around each
+ * face of the cube, rather than copied from the classic table. Faces with two diagonal corners
+ * behind the surface are always split the same way, so neighboring cells agree on the shared
+ * face and the mesh has no cracks. Triangles wind counterclockwise seen from in front of the
+ * surface, where the sensor was.
+ * <p/>
+ * Vertices are emitted unshared, three per triangle, in the world frame of the volume, with one
+ * packed RGBA color per vertex shaded from the triangle normal so the mesh reads without scene
+ * lights. Not thread safe.
+ */
+public class MarchingCubes {
+    public static final int FLOATS_PER_VERTEX = 3;
+
+    // Corner c of a cell is at offset (c & 1, (c >> 1) & 1, c >> 2).
+    private static final int[][] EDGE_CORNERS = new int[12][];
+    // Triangles of each of the 256 corner sign cases, three edge indices per triangle.
+    private static final int[][] TRIANGLES = new int[256][];
+    private static final int MAX_TRIANGLES_PER_CELL;
+
+    static {
+        int edge = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            int bit = 1 << axis;
+            for (int corner = 0; corner < 8; corner++) {
+                if ((corner & bit) == 0) {
+                    EDGE_CORNERS[edge++] = new int[] {corner, corner | bit};
+                }
+            }
+        }
+        int maxTriangles = 0;
+        for (int cube = 0; cube < 256; cube++) {
+            TRIANGLES[cube] = buildTriangles(cube);
+            maxTriangles = Math.max(maxTriangles, TRIANGLES[cube].length / 3);
+        }
+        MAX_TRIANGLES_PER_CELL = maxTriangles;
+    }
+
+    private static final int CELLS_PER_BLOCK = TsdfVolume.VOXELS_PER_BLOCK;
+    // The block plus one layer of voxels from the neighbors above it on each axis.
+    private static final int SAMPLES = TsdfVolume.BLOCK_SIZE + 1;
+    private static final int LOCAL_MASK = TsdfVolume.BLOCK_SIZE - 1;
+
+    // Shading: a light from above and slightly in front, on a light gray base color.
+    private static final float LIGHT_X = 0.27f;
+    private static final float LIGHT_Y = 0.89f;
+    private static final float LIGHT_Z = 0.36f;
+    private static final float AMBIENT = 0.35f;
+    private static final int BASE_RED = 0xb0;
+    private static final int BASE_GREEN = 0xbc;
+    private static final int BASE_BLUE = 0xc8;
+
+    private final float[] mDistances = new float[SAMPLES * SAMPLES * SAMPLES];
+    private final float[] mWeights = new float[SAMPLES * SAMPLES * SAMPLES];
+    private final float[] mCorners = new float[8];
+    private final float[] mEdgeVertices = new float[12 * 3];
+    private final float[] mVertices;
+    private final int[] mColors;
+    private final boolean mLittleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    private int mVertexCount;
+
+    public MarchingCubes() {
+        mVertices = new float[getMaxVerticesPerBlock() * FLOATS_PER_VERTEX];
+        mColors = new int[getMaxVerticesPerBlock()];
+    }
+
+    /**
+     * @return The most vertices {@link #meshBlock} can emit for one block.
+     */
+    public static int getMaxVerticesPerBlock() {
+        return CELLS_PER_BLOCK * MAX_TRIANGLES_PER_CELL * 3;
+    }
+
+    /**
+     * @return Triangles of a corner sign case as edge indices, where bit c of {@code cube} is set
+     * if corner c is behind the surface.
+     */
+    static int[] getTriangles(int cube) {
+        return TRIANGLES[cube];
+    }
+
+    /**
+     * Build the triangles of one case. Going counterclockwise around each face seen from outside
+     * the cube, every run of corners behind the surface is cut off by a segment from the edge
+     * where the run starts to the edge where it ends. Each crossed edge then starts exactly one
+     * segment, and following them gives closed loops, which are triangulated as fans.
+     */
+    private static int[] buildTriangles(int cube) {
+        int[] next = new int[12];
+        Arrays.fill(next, -1);
+        for (int axis = 0; axis < 3; axis++) {
+            int u = 1 << ((axis + 1) % 3);
+            int w = 1 << ((axis + 2) % 3);
+            for (int side = 0; side < 2; side++) {
+                int base = side << axis;
+                int[] face = side == 1
+                        ? new int[] {base, base | u, base | u | w, base | w}
+                        : new int[] {base, base | w, base | u | w, base | u};
+                for (int k = 0; k < 4; k++) {
+                    int from = face[k];
+                    int to = face[(k + 1) % 4];
+                    boolean fromInside = (cube & (1 << from)) != 0;
+                    boolean toInside = (cube & (1 << to)) != 0;
+                    if (!fromInside && toInside) {
+                        // Entering a run; find the edge where it ends.
+                        int end = (k + 1) % 4;
+                        while ((cube & (1 << face[(end + 1) % 4])) != 0) {
+                            end = (end + 1) % 4;
+                        }
+                        next[edgeIndex(from, to)] = edgeIndex(face[end], face[(end + 1) % 4]);
+                    }
+                }
+            }
+        }
+        int[] triangles = new int[12 * 3];
+        int count = 0;
+        boolean[] visited = new boolean[12];
+        int[] loop = new int[12];
+        for (int start = 0; start < 12; start++) {
+            if (next[start] < 0 || visited[start]) {
+                continue;
+            }
+            int length = 0;
+            for (int e = start; !visited[e]; e = next[e]) {
+                visited[e] = true;
+                loop[length++] = e;
+            }
+            for (int i = 1; i + 1 < length; i++) {
+                triangles[count++] = loop[0];
+                triangles[count++] = loop[i];
+                triangles[count++] = loop[i + 1];
+            }
+        }
+        return Arrays.copyOf(triangles, count);
+    }
+
+    private static int edgeIndex(int a, int b) {
+        int low = Math.min(a, b);
+        int high = Math.max(a, b);
+        int axis = Integer.numberOfTrailingZeros(high ^ low);
+        // Edges along an axis are numbered by the corners they start from, in order.
+        int index = 0;
+        for (int corner = 0; corner < low; corner++) {
+            if ((corner & (1 << axis)) == 0) {
+                index++;
+            }
+        }
+        return axis * 4 + index;
+    }
+
+    /**
+     * Mesh one block of a volume. The result stays in {@link #getVertices()} and
+     * {@link #getColors()} until the next call.
+     *
+     * @return The number of vertices emitted, three per triangle.
+     */
+    public int meshBlock(TsdfVolume volume, int block) {
+        mVertexCount = 0;
+        gatherSamples(volume, block);
+        final float voxelSize = volume.getVoxelSize();
+        final float originX = (volume.getBlockCoordinate(block, 0) * TsdfVolume.BLOCK_SIZE + 0.5f)
+                * voxelSize;
+        final float originY = (volume.getBlockCoordinate(block, 1) * TsdfVolume.BLOCK_SIZE + 0.5f)
+                * voxelSize;
+        final float originZ = (volume.getBlockCoordinate(block, 2) * TsdfVolume.BLOCK_SIZE + 0.5f)
+                * voxelSize;
+        final float[] distances = mDistances;
+        final float[] weights = mWeights;
+        final float[] corners = mCorners;
+        for (int x = 0; x < TsdfVolume.BLOCK_SIZE; x++) {
+            for (int y = 0; y < TsdfVolume.BLOCK_SIZE; y++) {
+                for (int z = 0; z < TsdfVolume.BLOCK_SIZE; z++) {
+                    int cube = 0;
+                    boolean valid = true;
+                    for (int c = 0; c < 8 && valid; c++) {
+                        int s = sampleIndex(x + (c & 1), y + ((c >> 1) & 1), z + (c >> 2));
+                        float distance = distances[s];
+                        // Cells with a corner never observed are left open rather than guessed.
+                        valid = weights[s] > 0;
+                        corners[c] = distance;
+                        if (distance < 0) {
+                            cube |= 1 << c;
+                        }
+                    }
+                    if (valid && cube != 0 && cube != 0xff) {
+                        emitCell(cube, originX + x * voxelSize, originY + y * voxelSize,
+                                originZ + z * voxelSize, voxelSize);
+                    }
+                }
+            }
+        }
+        return mVertexCount;
+    }
+
+    /**
+     * Copy the voxels of the block, and of the first layer of its neighbors above on each axis,
+     * into one array so cells on the block boundary need no lookups. Missing voxels get a zero
+     * weight.
+     */
+    private void gatherSamples(TsdfVolume volume, int block) {
+        int bx = volume.getBlockCoordinate(block, 0);
+        int by = volume.getBlockCoordinate(block, 1);
+        int bz = volume.getBlockCoordinate(block, 2);
+        for (int neighbor = 0; neighbor < 8; neighbor++) {
+            int dx = neighbor & 1;
+            int dy = (neighbor >> 1) & 1;
+            int dz = neighbor >> 2;
+            int other = neighbor == 0 ? block : volume.findBlock(bx + dx, by + dy, bz + dz);
+            // Range of local coordinates copied from this block on each axis.
+            int firstX = dx * TsdfVolume.BLOCK_SIZE;
+            int firstY = dy * TsdfVolume.BLOCK_SIZE;
+            int firstZ = dz * TsdfVolume.BLOCK_SIZE;
+            int endX = dx == 0 ? TsdfVolume.BLOCK_SIZE : SAMPLES;
+            int endY = dy == 0 ? TsdfVolume.BLOCK_SIZE : SAMPLES;
+            int endZ = dz == 0 ? TsdfVolume.BLOCK_SIZE : SAMPLES;
+            float[] distances = other == LongIntHashMap.NO_VALUE
+                    ? null : volume.getDistances(other);
+            float[] weights = other == LongIntHashMap.NO_VALUE ? null : volume.getWeights(other);
+            for (int x = firstX; x < endX; x++) {
+                for (int y = firstY; y < endY; y++) {
+                    for (int z = firstZ; z < endZ; z++) {
+                        int s = sampleIndex(x, y, z);
+                        if (distances == null) {
+                            mWeights[s] = 0;
+                            continue;
+                        }
+                        int local = ((x & LOCAL_MASK) << (2 * TsdfVolume.BLOCK_BITS))
+                                | ((y & LOCAL_MASK) << TsdfVolume.BLOCK_BITS) | (z & LOCAL_MASK);
+                        mDistances[s] = distances[local];
+                        mWeights[s] = weights[local];
+                    }
+                }
+            }
+        }
+    }
+
+    private static int sampleIndex(int x, int y, int z) {
+        return (x * SAMPLES + y) * SAMPLES + z;
+    }
+
+    private void emitCell(int cube, float x, float y, float z, float voxelSize) {
+        final float[] corners = mCorners;
+        final float[] edgeVertices = mEdgeVertices;
+        int[] triangles = TRIANGLES[cube];
+        // Place the vertex of each crossed edge at the linear zero crossing.
+        for (int e = 0; e < 12; e++) {
+            int a = EDGE_CORNERS[e][0];
+            int b = EDGE_CORNERS[e][1];
+            float da = corners[a];
+            float db = corners[b];
+            if ((da < 0) == (db < 0)) {
+                continue;
+            }
+            float t = da / (da - db);
+            int axis = e >> 2;
+            edgeVertices[e * 3] = x + ((a & 1) + (axis == 0 ? t : 0)) * voxelSize;
+            edgeVertices[e * 3 + 1] = y + (((a >> 1) & 1) + (axis == 1 ? t : 0)) * voxelSize;
+            edgeVertices[e * 3 + 2] = z + ((a >> 2) + (axis == 2 ? t : 0)) * voxelSize;
+        }
+        final float[] vertices = mVertices;
+        for (int i = 0; i < triangles.length; i += 3) {
+            int v = mVertexCount * FLOATS_PER_VERTEX;
+            for (int k = 0; k < 3; k++) {
+                int e = triangles[i + k] * 3;
+                vertices[v + k * 3] = edgeVertices[e];
+                vertices[v + k * 3 + 1] = edgeVertices[e + 1];
+                vertices[v + k * 3 + 2] = edgeVertices[e + 2];
+            }
+            int color = shade(vertices, v);
+            mColors[mVertexCount] = color;
+            mColors[mVertexCount + 1] = color;
+            mColors[mVertexCount + 2] = color;
+            mVertexCount += 3;
+        }
+    }
+
+    /**
+     * @return The packed RGBA color of the triangle starting at {@code v}, lit from its normal.
+     */
+    private int shade(float[] vertices, int v) {
+        float ax = vertices[v + 3] - vertices[v];
+        float ay = vertices[v + 4] - vertices[v + 1];
+        float az = vertices[v + 5] - vertices[v + 2];
+        float bx = vertices[v + 6] - vertices[v];
+        float by = vertices[v + 7] - vertices[v + 1];
+        float bz = vertices[v + 8] - vertices[v + 2];
+        float nx = ay * bz - az * by;
+        float ny = az * bx - ax * bz;
+        float nz = ax * by - ay * bx;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        float diffuse = length > 0
+                ? Math.max(0f, (nx * LIGHT_X + ny * LIGHT_Y + nz * LIGHT_Z) / length) : 0f;
+        float light = AMBIENT + (1f - AMBIENT) * diffuse;
+        int r = (int) (BASE_RED * light);
+        int g = (int) (BASE_GREEN * light);
+        int b = (int) (BASE_BLUE * light);
+        return mLittleEndian
+                ? 0xff000000 | (b << 16) | (g << 8) | r
+                : (r << 24) | (g << 16) | (b << 8) | 0xff;
+    }
+
+    /**
+     * @return Vertices of the last block meshed, three floats each, in the world frame.
+     */
+    public float[] getVertices() {
+        return mVertices;
+    }
+
+    /**
+     * @return One packed RGBA color per vertex of the last block meshed, as stored in memory when
+     * written as a native order int.
+     */
+    public int[] getColors() {
+        return mColors;
+    }
+
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+}
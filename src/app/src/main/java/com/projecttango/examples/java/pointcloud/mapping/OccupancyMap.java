@@ -0,0 +1,362 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.mapping;
+
+import com.projecttango.examples.java.pointcloud.processing.LongIntHashMap;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Sparse probabilistic occupancy map of the world, fused across depth frames.
+ * <p/>
+ * The map is made of blocks of 16x16x16 voxels, created the first time a point lands in them and
+ * found through a {@link LongIntHashMap} keyed by block coordinates. Each voxel stores its
+ * occupancy as a log-odds value quantized to a byte. Points raise the log-odds of the voxel they
+ * fall in; a subset of the rays from the sensor to the points lower the log-odds of the voxels
+ * they cross. Free space never creates blocks, so memory grows with the observed surfaces only.
+ * <p/>
+ * Each frame only touches the blocks its points and rays pass through, so the cost of
+ * {@link #integrate} depends on the frame size and not on the size of the map.
+ * Not thread safe.
+ */
+public class OccupancyMap {
+    public static final int BLOCK_BITS = 4;
+    public static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    public static final int VOXELS_PER_BLOCK = BLOCK_SIZE * BLOCK_SIZE * BLOCK_SIZE;
+    private static final int LOCAL_MASK = BLOCK_SIZE - 1;
+
+    // Log-odds are stored in units of 1/32.
+    private static final float LOG_ODDS_SCALE = 32f;
+    private static final int LOG_ODDS_HIT = Math.round(0.85f * LOG_ODDS_SCALE);
+    private static final int LOG_ODDS_MISS = Math.round(-0.4f * LOG_ODDS_SCALE);
+    private static final int LOG_ODDS_MIN = Math.round(-2f * LOG_ODDS_SCALE);
+    private static final int LOG_ODDS_MAX = Math.round(3.5f * LOG_ODDS_SCALE);
+
+    private static final int CHUNK_POINTS = 1024;
+    private static final int INITIAL_BLOCK_CAPACITY = 256;
+    // Marks voxels already updated in the current frame.
+    private static final int FRAME_HIT = 1;
+    private static final int FRAME_MISS = 0;
+
+    private final float mVoxelSize;
+    private final float mInverseVoxelSize;
+
+    private final LongIntHashMap mBlockIndex = new LongIntHashMap(INITIAL_BLOCK_CAPACITY);
+    private byte[][] mBlocks = new byte[INITIAL_BLOCK_CAPACITY][];
+    private int[] mBlockFrames = new int[INITIAL_BLOCK_CAPACITY];
+    private int mBlockCount;
+    // Block columns seen from above, used to express memory use per square meter.
+    private final LongIntHashMap mColumns = new LongIntHashMap(INITIAL_BLOCK_CAPACITY);
+
+    private final LongIntHashMap mFrameVoxels;
+    private final float[] mScratch;
+
+    private float mMaxRayLength = 4f;
+    private int mFreeSpaceStride = 4;
+
+    private int mFrame;
+    private int mBlocksTouched;
+    private int mVoxelsUpdated;
+    private long mLastBlockKey = Long.MIN_VALUE;
+    private int mLastBlock = LongIntHashMap.NO_VALUE;
+
+    /**
+     * @param voxelSize         Edge length of a voxel in meters.
+     * @param maxPointsPerFrame Largest number of points passed to {@link #integrate}.
+     * @param floatsPerPoint    Float values per point. XYZ format = 3, XYZC format = 4.
+     */
+    public OccupancyMap(float voxelSize, int maxPointsPerFrame, int floatsPerPoint) {
+        mVoxelSize = voxelSize;
+        mInverseVoxelSize = 1f / voxelSize;
+        mFrameVoxels = new LongIntHashMap(maxPointsPerFrame * 2);
+        mScratch = new float[CHUNK_POINTS * floatsPerPoint];
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    /**
+     * Rays longer than this are cut short when clearing free space.
+     */
+    public void setMaxRayLength(float maxRayLength) {
+        mMaxRayLength = maxRayLength;
+    }
+
+    /**
+     * Cast a free space ray for one point out of {@code stride}. Zero disables free space updates.
+     */
+    public void setFreeSpaceStride(int stride) {
+        mFreeSpaceStride = stride;
+    }
+
+    /**
+     * Fuse a depth frame into the map.
+     *
+     * @param points         Points in the depth camera frame, read from index zero and rewound
+     *                       afterwards.
+     * @param numPoints      Number of points to integrate.
+     * @param worldTdepth    Column major 4x4 transform from the depth camera to the world frame,
+     *                       as returned in {@code TangoMatrixTransformData.matrix}.
+     */
+    public void integrate(FloatBuffer points, int numPoints, float[] worldTdepth) {
+        mFrame++;
+        mBlocksTouched = 0;
+        mVoxelsUpdated = 0;
+        mFrameVoxels.clear();
+
+        final float[] m = worldTdepth;
+        final float[] scratch = mScratch;
+        final int stride = scratch.length / CHUNK_POINTS;
+        final float inverseVoxelSize = mInverseVoxelSize;
+        final float ox = m[12];
+        final float oy = m[13];
+        final float oz = m[14];
+
+        // Hits first, so the free space rays below cannot clear a voxel observed in this frame.
+        points.rewind();
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            int end = chunk * stride;
+            for (int i = 0; i < end; i += stride) {
+                float x = scratch[i];
+                float y = scratch[i + 1];
+                float z = scratch[i + 2];
+                float wx = m[0] * x + m[4] * y + m[8] * z + ox;
+                float wy = m[1] * x + m[5] * y + m[9] * z + oy;
+                float wz = m[2] * x + m[6] * y + m[10] * z + oz;
+                int vx = VoxelGridFilter.floor(wx * inverseVoxelSize);
+                int vy = VoxelGridFilter.floor(wy * inverseVoxelSize);
+                int vz = VoxelGridFilter.floor(wz * inverseVoxelSize);
+                if (mFrameVoxels.putIfAbsent(VoxelGridFilter.voxelKey(vx, vy, vz), FRAME_HIT)
+                        == LongIntHashMap.NO_VALUE) {
+                    updateVoxel(vx, vy, vz, LOG_ODDS_HIT, true);
+                }
+            }
+            remaining -= chunk;
+        }
+
+        if (mFreeSpaceStride > 0) {
+            int raysStride = mFreeSpaceStride * stride;
+            for (int first = 0; first < numPoints * stride; first += raysStride) {
+                float x = points.get(first);
+                float y = points.get(first + 1);
+                float z = points.get(first + 2);
+                castFreeSpaceRay(ox, oy, oz,
+                        m[0] * x + m[4] * y + m[8] * z + ox,
+                        m[1] * x + m[5] * y + m[9] * z + oy,
+                        m[2] * x + m[6] * y + m[10] * z + oz);
+            }
+        }
+        points.rewind();
+    }
+
+    /**
+     * Walk the voxels between the sensor and a point (3D DDA), lowering their occupancy.
+     * The voxel holding the point itself is left alone.
+     */
+    private void castFreeSpaceRay(float ox, float oy, float oz, float px, float py, float pz) {
+        float dx = px - ox;
+        float dy = py - oy;
+        float dz = pz - oz;
+        float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (length < mVoxelSize) {
+            return;
+        }
+        float inverseVoxelSize = mInverseVoxelSize;
+        int endX = VoxelGridFilter.floor(px * inverseVoxelSize);
+        int endY = VoxelGridFilter.floor(py * inverseVoxelSize);
+        int endZ = VoxelGridFilter.floor(pz * inverseVoxelSize);
+        if (length > mMaxRayLength) {
+            float scale = mMaxRayLength / length;
+            dx *= scale;
+            dy *= scale;
+            dz *= scale;
+            endX = VoxelGridFilter.floor((ox + dx) * inverseVoxelSize);
+            endY = VoxelGridFilter.floor((oy + dy) * inverseVoxelSize);
+            endZ = VoxelGridFilter.floor((oz + dz) * inverseVoxelSize);
+        }
+
+        int x = VoxelGridFilter.floor(ox * inverseVoxelSize);
+        int y = VoxelGridFilter.floor(oy * inverseVoxelSize);
+        int z = VoxelGridFilter.floor(oz * inverseVoxelSize);
+        int stepX = dx > 0 ? 1 : -1;
+        int stepY = dy > 0 ? 1 : -1;
+        int stepZ = dz > 0 ? 1 : -1;
+        // Ray parameter t runs from 0 at the sensor to 1 at the end point.
+        float tDeltaX = dx != 0 ? Math.abs(mVoxelSize / dx) : Float.POSITIVE_INFINITY;
+        float tDeltaY = dy != 0 ? Math.abs(mVoxelSize / dy) : Float.POSITIVE_INFINITY;
+        float tDeltaZ = dz != 0 ? Math.abs(mVoxelSize / dz) : Float.POSITIVE_INFINITY;
+        float tMaxX = dx != 0 ? ((x + (stepX > 0 ? 1 : 0)) * mVoxelSize - ox) / dx
+                : Float.POSITIVE_INFINITY;
+        float tMaxY = dy != 0 ? ((y + (stepY > 0 ? 1 : 0)) * mVoxelSize - oy) / dy
+                : Float.POSITIVE_INFINITY;
+        float tMaxZ = dz != 0 ? ((z + (stepZ > 0 ? 1 : 0)) * mVoxelSize - oz) / dz
+                : Float.POSITIVE_INFINITY;
+
+        int maxSteps = Math.abs(endX - x) + Math.abs(endY - y) + Math.abs(endZ - z);
+        for (int step = 0; step < maxSteps; step++) {
+            if (x == endX && y == endY && z == endZ) {
+                break;
+            }
+            if (mFrameVoxels.putIfAbsent(VoxelGridFilter.voxelKey(x, y, z), FRAME_MISS)
+                    == LongIntHashMap.NO_VALUE) {
+                updateVoxel(x, y, z, LOG_ODDS_MISS, false);
+            }
+            if (tMaxX < tMaxY && tMaxX < tMaxZ) {
+                x += stepX;
+                tMaxX += tDeltaX;
+            } else if (tMaxY < tMaxZ) {
+                y += stepY;
+                tMaxY += tDeltaY;
+            } else {
+                z += stepZ;
+                tMaxZ += tDeltaZ;
+            }
+        }
+    }
+
+    private void updateVoxel(int vx, int vy, int vz, int delta, boolean createBlock) {
+        int block = findBlock(vx >> BLOCK_BITS, vy >> BLOCK_BITS, vz >> BLOCK_BITS, createBlock);
+        if (block == LongIntHashMap.NO_VALUE) {
+            return;
+        }
+        if (mBlockFrames[block] != mFrame) {
+            mBlockFrames[block] = mFrame;
+            mBlocksTouched++;
+        }
+        byte[] voxels = mBlocks[block];
+        int index = localIndex(vx, vy, vz);
+        int value = voxels[index] + delta;
+        voxels[index] = (byte) Math.max(LOG_ODDS_MIN, Math.min(value, LOG_ODDS_MAX));
+        mVoxelsUpdated++;
+    }
+
+    private static int localIndex(int vx, int vy, int vz) {
+        return ((vx & LOCAL_MASK) << (2 * BLOCK_BITS)) | ((vy & LOCAL_MASK) << BLOCK_BITS)
+                | (vz & LOCAL_MASK);
+    }
+
+    private int findBlock(int bx, int by, int bz, boolean create) {
+        long key = VoxelGridFilter.voxelKey(bx, by, bz);
+        // Consecutive lookups mostly hit the same block.
+        if (key == mLastBlockKey) {
+            return mLastBlock;
+        }
+        int block = mBlockIndex.get(key);
+        if (block == LongIntHashMap.NO_VALUE) {
+            if (!create) {
+                return LongIntHashMap.NO_VALUE;
+            }
+            block = addBlock();
+            mBlockIndex.put(key, block);
+            mColumns.putIfAbsent(VoxelGridFilter.voxelKey(bx, 0, bz), block);
+        }
+        mLastBlockKey = key;
+        mLastBlock = block;
+        return block;
+    }
+
+    private int addBlock() {
+        if (mBlockCount == mBlocks.length) {
+            byte[][] blocks = new byte[mBlocks.length * 2][];
+            System.arraycopy(mBlocks, 0, blocks, 0, mBlockCount);
+            mBlocks = blocks;
+            int[] frames = new int[mBlocks.length];
+            System.arraycopy(mBlockFrames, 0, frames, 0, mBlockCount);
+            mBlockFrames = frames;
+        }
+        mBlocks[mBlockCount] = new byte[VOXELS_PER_BLOCK];
+        return mBlockCount++;
+    }
+
+    /**
+     * @return Occupancy log-odds of the voxel holding a world position, or zero if it was never
+     * observed.
+     */
+    public float getLogOdds(float x, float y, float z) {
+        int vx = VoxelGridFilter.floor(x * mInverseVoxelSize);
+        int vy = VoxelGridFilter.floor(y * mInverseVoxelSize);
+        int vz = VoxelGridFilter.floor(z * mInverseVoxelSize);
+        int block = mBlockIndex.get(VoxelGridFilter.voxelKey(
+                vx >> BLOCK_BITS, vy >> BLOCK_BITS, vz >> BLOCK_BITS));
+        if (block == LongIntHashMap.NO_VALUE) {
+            return 0;
+        }
+        return mBlocks[block][localIndex(vx, vy, vz)] / LOG_ODDS_SCALE;
+    }
+
+    /**
+     * @return True if the voxel holding a world position is more likely occupied than free.
+     */
+    public boolean isOccupied(float x, float y, float z) {
+        return getLogOdds(x, y, z) > 0;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * @return Number of blocks updated by the last call to {@link #integrate}.
+     */
+    public int getBlocksTouchedLastFrame() {
+        return mBlocksTouched;
+    }
+
+    /**
+     * @return Number of voxel updates made by the last call to {@link #integrate}.
+     */
+    public int getVoxelsUpdatedLastFrame() {
+        return mVoxelsUpdated;
+    }
+
+    /**
+     * @return Approximate heap memory used by the arrays of the map, in bytes: the voxel blocks,
+     * the tables including the per-frame one, and the scratch buffer, with their array headers.
+     * Fields of fixed size are not counted.
+     */
+    public long getMemoryBytes() {
+        final int header = LongIntHashMap.ARRAY_HEADER_BYTES;
+        long voxels = (long) mBlockCount * (header + VOXELS_PER_BLOCK);
+        // Block references and frame stamps, 4 bytes each.
+        long blocks = 2L * header + (long) (mBlocks.length + mBlockFrames.length) * 4;
+        long tables = mBlockIndex.getMemoryBytes() + mColumns.getMemoryBytes()
+                + mFrameVoxels.getMemoryBytes();
+        long scratch = header + (long) mScratch.length * 4;
+        return voxels + blocks + tables + scratch;
+    }
+
+    /**
+     * @return Ground area covered by the map seen from above (the world XZ plane), in square
+     * meters, counted in whole block columns.
+     */
+    public float getFootprintArea() {
+        float blockEdge = BLOCK_SIZE * mVoxelSize;
+        return mColumns.size() * blockEdge * blockEdge;
+    }
+
+    /**
+     * @return Memory used per square meter of footprint, in bytes, or zero for an empty map.
+     */
+    public float getMemoryBytesPerSquareMeter() {
+        float area = getFootprintArea();
+        return area == 0 ? 0 : getMemoryBytes() / area;
+    }
+}
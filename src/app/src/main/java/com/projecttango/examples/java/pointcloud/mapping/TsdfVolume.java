@@ -0,0 +1,411 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.mapping;
+
+import com.projecttango.examples.java.pointcloud.processing.LongIntHashMap;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Sparse truncated signed distance field of the observed surfaces, fused across depth frames.
+ * <p/>
+ * The volume is made of blocks of 8x8x8 voxels, created the first time a surface is observed in
+ * them and found through a {@link LongIntHashMap} keyed by block coordinates. Each voxel stores
+ * the weighted mean of its distance to the surface along the sensor rays, normalized by the
+ * truncation distance: positive in front of the surface, negative behind it. Only voxels within
+ * the truncation distance of a point are updated, so the cost of {@link #integrate} depends on
+ * the frame size and not on the size of the volume.
+ * <p/>
+ * Blocks whose surface may have changed are queued as dirty so only they are meshed again, see
+ * {@link #takeDirtyBlocks}. Not thread safe.
+ */
+public class TsdfVolume {
+    public static final int BLOCK_BITS = 3;
+    public static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    public static final int VOXELS_PER_BLOCK = BLOCK_SIZE * BLOCK_SIZE * BLOCK_SIZE;
+    private static final int LOCAL_MASK = BLOCK_SIZE - 1;
+
+    // Voxel weights stop growing here, so surfaces that moved are eventually overwritten.
+    public static final float DEFAULT_MAX_WEIGHT = 32f;
+
+    private static final int CHUNK_POINTS = 1024;
+    private static final int INITIAL_BLOCK_CAPACITY = 256;
+
+    private final float mVoxelSize;
+    private final float mInverseVoxelSize;
+    private final float mTruncation;
+    private final int mMaxBlocks;
+    private float mMaxWeight = DEFAULT_MAX_WEIGHT;
+
+    private final LongIntHashMap mBlockIndex = new LongIntHashMap(INITIAL_BLOCK_CAPACITY);
+    private float[][] mDistances = new float[INITIAL_BLOCK_CAPACITY][];
+    private float[][] mWeights = new float[INITIAL_BLOCK_CAPACITY][];
+    // Block coordinates, three per block.
+    private int[] mBlockCoordinates = new int[INITIAL_BLOCK_CAPACITY * 3];
+    private int[] mBlockFrames = new int[INITIAL_BLOCK_CAPACITY];
+    private boolean[] mDirty = new boolean[INITIAL_BLOCK_CAPACITY];
+    private int[] mDirtyBlocks = new int[INITIAL_BLOCK_CAPACITY];
+    private int mDirtyCount;
+    private int mBlockCount;
+
+    private final float[] mScratch;
+
+    private int mFrame;
+    private int mBlocksTouched;
+    private int mVoxelsUpdated;
+    private long mLastBlockKey = Long.MIN_VALUE;
+    private int mLastBlock = LongIntHashMap.NO_VALUE;
+
+    /**
+     * @param voxelSize         Edge length of a voxel in meters.
+     * @param truncation        Distance from the surface beyond which voxels are not updated, in
+     *                          meters. A few voxels is enough to absorb the sensor noise.
+     * @param maxBlocks         Most blocks created; surfaces observed once the volume is full are
+     *                          left out.
+     * @param floatsPerPoint    Float values per point. XYZ format = 3, XYZC format = 4.
+     */
+    public TsdfVolume(float voxelSize, float truncation, int maxBlocks, int floatsPerPoint) {
+        if (!(truncation >= voxelSize)) {
+            throw new IllegalArgumentException(
+                    "truncation must be at least one voxel: " + truncation);
+        }
+        mVoxelSize = voxelSize;
+        mInverseVoxelSize = 1f / voxelSize;
+        mTruncation = truncation;
+        mMaxBlocks = maxBlocks;
+        mScratch = new float[CHUNK_POINTS * floatsPerPoint];
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    public float getTruncation() {
+        return mTruncation;
+    }
+
+    public int getMaxBlocks() {
+        return mMaxBlocks;
+    }
+
+    /**
+     * Sets the weight at which voxels stop giving more weight to their history than to a new
+     * frame.
+     */
+    public void setMaxWeight(float maxWeight) {
+        mMaxWeight = maxWeight;
+    }
+
+    /**
+     * Fuse a depth frame into the volume. Every point updates the voxels its sensor ray crosses
+     * within the truncation distance in front of and behind it.
+     *
+     * @param points      Points in the depth camera frame, read from index zero and rewound
+     *                    afterwards.
+     * @param numPoints   Number of points to integrate.
+     * @param worldTdepth Column major 4x4 transform from the depth camera to the world frame.
+     */
+    public void integrate(FloatBuffer points, int numPoints, float[] worldTdepth) {
+        mFrame++;
+        mBlocksTouched = 0;
+        mVoxelsUpdated = 0;
+
+        final float[] m = worldTdepth;
+        final float[] scratch = mScratch;
+        final int stride = scratch.length / CHUNK_POINTS;
+        final float ox = m[12];
+        final float oy = m[13];
+        final float oz = m[14];
+        final float truncation = mTruncation;
+
+        points.rewind();
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            int end = chunk * stride;
+            for (int i = 0; i < end; i += stride) {
+                float x = scratch[i];
+                float y = scratch[i + 1];
+                float z = scratch[i + 2];
+                float dx = m[0] * x + m[4] * y + m[8] * z;
+                float dy = m[1] * x + m[5] * y + m[9] * z;
+                float dz = m[2] * x + m[6] * y + m[10] * z;
+                float depth = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+                if (depth <= truncation) {
+                    continue;
+                }
+                float inverseDepth = 1f / depth;
+                integrateRay(ox, oy, oz, dx * inverseDepth, dy * inverseDepth, dz * inverseDepth,
+                        depth);
+            }
+            remaining -= chunk;
+        }
+        points.rewind();
+    }
+
+    /**
+     * Walk the voxels a sensor ray crosses within the truncation distance of its end point (3D
+     * DDA), so each of them is updated exactly once, with its signed distance to the surface
+     * measured from the voxel center along the ray.
+     */
+    private void integrateRay(float ox, float oy, float oz, float dx, float dy, float dz,
+                              float depth) {
+        final float voxelSize = mVoxelSize;
+        final float inverseVoxelSize = mInverseVoxelSize;
+        final float inverseTruncation = 1f / mTruncation;
+        final float half = 0.5f * voxelSize;
+        float start = depth - mTruncation;
+        float length = 2 * mTruncation;
+        float sx = ox + dx * start;
+        float sy = oy + dy * start;
+        float sz = oz + dz * start;
+        int x = VoxelGridFilter.floor(sx * inverseVoxelSize);
+        int y = VoxelGridFilter.floor(sy * inverseVoxelSize);
+        int z = VoxelGridFilter.floor(sz * inverseVoxelSize);
+        int stepX = dx > 0 ? 1 : -1;
+        int stepY = dy > 0 ? 1 : -1;
+        int stepZ = dz > 0 ? 1 : -1;
+        // Ray parameter t runs from 0 at the start of the band to its length at the end.
+        float tDeltaX = dx != 0 ? Math.abs(voxelSize / dx) : Float.POSITIVE_INFINITY;
+        float tDeltaY = dy != 0 ? Math.abs(voxelSize / dy) : Float.POSITIVE_INFINITY;
+        float tDeltaZ = dz != 0 ? Math.abs(voxelSize / dz) : Float.POSITIVE_INFINITY;
+        float tMaxX = dx != 0 ? ((x + (stepX > 0 ? 1 : 0)) * voxelSize - sx) / dx
+                : Float.POSITIVE_INFINITY;
+        float tMaxY = dy != 0 ? ((y + (stepY > 0 ? 1 : 0)) * voxelSize - sy) / dy
+                : Float.POSITIVE_INFINITY;
+        float tMaxZ = dz != 0 ? ((z + (stepZ > 0 ? 1 : 0)) * voxelSize - sz) / dz
+                : Float.POSITIVE_INFINITY;
+
+        float t = 0;
+        while (t <= length) {
+            float along = (x * voxelSize + half - ox) * dx + (y * voxelSize + half - oy) * dy
+                    + (z * voxelSize + half - oz) * dz;
+            float distance = (depth - along) * inverseTruncation;
+            // Further behind the surface than the truncation, nothing is known about a voxel.
+            if (distance >= -1f) {
+                updateVoxel(x, y, z, Math.min(distance, 1f));
+            }
+            if (tMaxX < tMaxY && tMaxX < tMaxZ) {
+                t = tMaxX;
+                x += stepX;
+                tMaxX += tDeltaX;
+            } else if (tMaxY < tMaxZ) {
+                t = tMaxY;
+                y += stepY;
+                tMaxY += tDeltaY;
+            } else {
+                t = tMaxZ;
+                z += stepZ;
+                tMaxZ += tDeltaZ;
+            }
+        }
+    }
+
+    private void updateVoxel(int vx, int vy, int vz, float distance) {
+        int block = findBlock(vx >> BLOCK_BITS, vy >> BLOCK_BITS, vz >> BLOCK_BITS, true);
+        if (block == LongIntHashMap.NO_VALUE) {
+            return;
+        }
+        if (mBlockFrames[block] != mFrame) {
+            mBlockFrames[block] = mFrame;
+            mBlocksTouched++;
+            markTouched(block);
+        }
+        int index = localIndex(vx, vy, vz);
+        float[] distances = mDistances[block];
+        float[] weights = mWeights[block];
+        float weight = weights[index];
+        distances[index] += (distance - distances[index]) / (weight + 1f);
+        weights[index] = Math.min(weight + 1f, mMaxWeight);
+        mVoxelsUpdated++;
+    }
+
+    /**
+     * Queue a touched block for meshing, with the neighbors below it on each axis: their boundary
+     * cells reach into this block.
+     */
+    private void markTouched(int block) {
+        int bx = mBlockCoordinates[block * 3];
+        int by = mBlockCoordinates[block * 3 + 1];
+        int bz = mBlockCoordinates[block * 3 + 2];
+        for (int neighbor = 0; neighbor < 8; neighbor++) {
+            int other = neighbor == 0 ? block : mBlockIndex.get(VoxelGridFilter.voxelKey(
+                    bx - (neighbor & 1), by - ((neighbor >> 1) & 1), bz - (neighbor >> 2)));
+            if (other != LongIntHashMap.NO_VALUE) {
+                markDirty(other);
+            }
+        }
+    }
+
+    /**
+     * Queue a block for meshing, for instance again after its mesh was lost.
+     */
+    public void markDirty(int block) {
+        if (!mDirty[block]) {
+            mDirty[block] = true;
+            mDirtyBlocks[mDirtyCount++] = block;
+        }
+    }
+
+    /**
+     * Take blocks out of the queue of blocks to mesh, oldest first.
+     *
+     * @return The number of blocks written to {@code blocks}.
+     */
+    public int takeDirtyBlocks(int[] blocks, int maxBlocks) {
+        int count = Math.min(Math.min(maxBlocks, blocks.length), mDirtyCount);
+        for (int i = 0; i < count; i++) {
+            blocks[i] = mDirtyBlocks[i];
+            mDirty[blocks[i]] = false;
+        }
+        mDirtyCount -= count;
+        System.arraycopy(mDirtyBlocks, count, mDirtyBlocks, 0, mDirtyCount);
+        return count;
+    }
+
+    public int getDirtyBlockCount() {
+        return mDirtyCount;
+    }
+
+    private static int localIndex(int vx, int vy, int vz) {
+        return ((vx & LOCAL_MASK) << (2 * BLOCK_BITS)) | ((vy & LOCAL_MASK) << BLOCK_BITS)
+                | (vz & LOCAL_MASK);
+    }
+
+    /**
+     * @return The block at block coordinates, or {@link LongIntHashMap#NO_VALUE}.
+     */
+    public int findBlock(int bx, int by, int bz) {
+        return mBlockIndex.get(VoxelGridFilter.voxelKey(bx, by, bz));
+    }
+
+    private int findBlock(int bx, int by, int bz, boolean create) {
+        long key = VoxelGridFilter.voxelKey(bx, by, bz);
+        // Consecutive samples mostly hit the same block.
+        if (key == mLastBlockKey) {
+            return mLastBlock;
+        }
+        int block = mBlockIndex.get(key);
+        if (block == LongIntHashMap.NO_VALUE) {
+            if (!create || mBlockCount == mMaxBlocks) {
+                return LongIntHashMap.NO_VALUE;
+            }
+            block = addBlock(bx, by, bz);
+            mBlockIndex.put(key, block);
+        }
+        mLastBlockKey = key;
+        mLastBlock = block;
+        return block;
+    }
+
+    private int addBlock(int bx, int by, int bz) {
+        if (mBlockCount == mDistances.length) {
+            int capacity = Math.min(mDistances.length * 2, mMaxBlocks);
+            float[][] distances = new float[capacity][];
+            System.arraycopy(mDistances, 0, distances, 0, mBlockCount);
+            mDistances = distances;
+            float[][] weights = new float[capacity][];
+            System.arraycopy(mWeights, 0, weights, 0, mBlockCount);
+            mWeights = weights;
+            int[] coordinates = new int[capacity * 3];
+            System.arraycopy(mBlockCoordinates, 0, coordinates, 0, mBlockCount * 3);
+            mBlockCoordinates = coordinates;
+            int[] frames = new int[capacity];
+            System.arraycopy(mBlockFrames, 0, frames, 0, mBlockCount);
+            mBlockFrames = frames;
+            boolean[] dirty = new boolean[capacity];
+            System.arraycopy(mDirty, 0, dirty, 0, mBlockCount);
+            mDirty = dirty;
+            int[] dirtyBlocks = new int[capacity];
+            System.arraycopy(mDirtyBlocks, 0, dirtyBlocks, 0, mDirtyCount);
+            mDirtyBlocks = dirtyBlocks;
+        }
+        mDistances[mBlockCount] = new float[VOXELS_PER_BLOCK];
+        mWeights[mBlockCount] = new float[VOXELS_PER_BLOCK];
+        mBlockCoordinates[mBlockCount * 3] = bx;
+        mBlockCoordinates[mBlockCount * 3 + 1] = by;
+        mBlockCoordinates[mBlockCount * 3 + 2] = bz;
+        return mBlockCount++;
+    }
+
+    /**
+     * @return Normalized signed distances of the voxels of a block, indexed by
+     * {@code (x << 2 * BLOCK_BITS) | (y << BLOCK_BITS) | z} in block local coordinates.
+     */
+    float[] getDistances(int block) {
+        return mDistances[block];
+    }
+
+    /**
+     * @return Weights of the voxels of a block, zero for voxels never observed.
+     */
+    float[] getWeights(int block) {
+        return mWeights[block];
+    }
+
+    /**
+     * @param axis 0, 1 or 2 for X, Y or Z.
+     * @return A block coordinate, in blocks.
+     */
+    public int getBlockCoordinate(int block, int axis) {
+        return mBlockCoordinates[block * 3 + axis];
+    }
+
+    /**
+     * @return Normalized signed distance of the voxel holding a world position, or 1 (free) if it
+     * was never observed.
+     */
+    public float getDistance(float x, float y, float z) {
+        int vx = VoxelGridFilter.floor(x * mInverseVoxelSize);
+        int vy = VoxelGridFilter.floor(y * mInverseVoxelSize);
+        int vz = VoxelGridFilter.floor(z * mInverseVoxelSize);
+        int block = findBlock(vx >> BLOCK_BITS, vy >> BLOCK_BITS, vz >> BLOCK_BITS);
+        if (block == LongIntHashMap.NO_VALUE || mWeights[block][localIndex(vx, vy, vz)] == 0) {
+            return 1f;
+        }
+        return mDistances[block][localIndex(vx, vy, vz)];
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * @return Number of blocks updated by the last call to {@link #integrate}.
+     */
+    public int getBlocksTouchedLastFrame() {
+        return mBlocksTouched;
+    }
+
+    /**
+     * @return Number of voxel updates made by the last call to {@link #integrate}.
+     */
+    public int getVoxelsUpdatedLastFrame() {
+        return mVoxelsUpdated;
+    }
+
+    /**
+     * @return Approximate heap memory used by the volume, in bytes.
+     */
+    public long getMemoryBytes() {
+        long voxels = (long) mBlockCount * VOXELS_PER_BLOCK * (4 + 4);
+        long bookkeeping = (long) mDistances.length * (4 + 4 + 12 + 4 + 1 + 4)
+                + (long) mBlockIndex.capacity() * (8 + 4 + 4);
+        return voxels + bookkeeping;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decides when to speak obstacle alerts, on a thread of its own so neither the sensor callback
+ * nor the analysis thread ever calls into text to speech.
+ * <p/>
+ * The analysis reports the obstacle state of every frame, including frames without an obstacle.
+ * Reports are coalesced: only the newest one is looked at. An alert is raised once its severity
+ * has been seen in {@link #RAISE_FRAMES} frames in a row, or immediately for
+ * {@link #SEVERITY_URGENT}, and is only lowered after {@link #CLEAR_FRAMES} frames in a row
+ * below it, so an obstacle at the edge of a threshold doesn't make the alert flicker. Frames are
+ * counted per severity whatever the direction. At the active severity the alert only moves to a
+ * new direction once that direction has been seen in {@link #RAISE_FRAMES} frames in a row, so
+ * an obstacle between two directions doesn't make it alternate.
+ * <p/>
+ * The same alert is repeated at most once per repeat interval, and a different alert is not
+ * spoken within the minimum gap of the last one. An alert never interrupts speech unless it is
+ * more severe than what is being spoken. The latency from the capture of the frame that raised an
+ * alert to the moment it is handed to the speaker is recorded in a {@link LatencyHistogram}.
+ * {@link #report} must always be called from the same thread.
+ */
+public class AlertScheduler {
+    /**
+     * Speech output, called on the scheduler thread only.
+     */
+    public interface Speaker {
+        /**
+         * @param interrupt True to cut off the alert being spoken, false to speak after it.
+         */
+        void speak(int severity, int direction, boolean interrupt);
+
+        boolean isSpeaking();
+    }
+
+    public static final int SEVERITY_NONE = 0;
+    // Obstacle within arm's length.
+    public static final int SEVERITY_NOTICE = 1;
+    public static final int SEVERITY_WARNING = 2;
+    public static final int SEVERITY_URGENT = 3;
+
+    public static final int RAISE_FRAMES = 2;
+    public static final int CLEAR_FRAMES = 5;
+    public static final long DEFAULT_REPEAT_INTERVAL_MILLIS = 5000;
+    public static final long DEFAULT_MIN_GAP_MILLIS = 1000;
+    // How often the speaker is checked while an alert waits for it to finish.
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final class Report {
+        double mTimestamp;
+        int mSeverity;
+        int mDirection;
+    }
+
+    private final String mName;
+    private final Speaker mSpeaker;
+    private final Clock mClock;
+    private final LatestFrameExchanger<Report> mExchanger;
+    private final LatencyHistogram mLatency;
+
+    private volatile long mRepeatIntervalNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_REPEAT_INTERVAL_MILLIS);
+    private volatile long mMinGapNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_GAP_MILLIS);
+    private volatile boolean mRunning;
+    private volatile Thread mThread;
+    private volatile long mAlertsSpoken;
+
+    // Scheduler thread state.
+    private int mActiveSeverity = SEVERITY_NONE;
+    private int mActiveDirection = -1;
+    private double mActiveTimestamp;
+    // Severity waiting to become active, and for how many frames in a row.
+    private int mPendingSeverity = SEVERITY_NONE;
+    private int mPendingFrames;
+    // Direction the active alert may move to, and for how many frames in a row.
+    private int mMoveDirection = -1;
+    private int mMoveFrames;
+    private boolean mSpokenSinceRaised;
+    private int mSpokenSeverity = SEVERITY_NONE;
+    private int mSpokenDirection = -1;
+    private long mSpokenAtNanos;
+    private boolean mHasSpoken;
+
+    public AlertScheduler(String name, Speaker speaker, Clock clock) {
+        this(name, speaker, clock, new LatencyHistogram());
+    }
+
+    /**
+     * @param latency Receives the latency of every alert spoken, for instance the alert stage of
+     *                a {@link LatencyTracker}.
+     */
+    public AlertScheduler(String name, Speaker speaker, Clock clock, LatencyHistogram latency) {
+        mName = name;
+        mSpeaker = speaker;
+        mClock = clock;
+        mLatency = latency;
+        mExchanger = new LatestFrameExchanger<Report>(new Report(), new Report(), new Report());
+    }
+
+    /**
+     * Start the scheduler thread. Has no effect if it is already running.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, mName);
+        mThread.start();
+    }
+
+    /**
+     * Stop the scheduler thread and wait for it to finish. The speaker is not called afterwards.
+     */
+    public synchronized void stop() {
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Report the obstacle state of a frame. Never blocks.
+     *
+     * @param timestamp Capture time of the frame in seconds, in the time base of the clock.
+     * @param severity  One of the SEVERITY constants.
+     * @param direction Direction of the obstacle, passed on to the speaker. Ignored without an
+     *                  obstacle.
+     */
+    public void report(double timestamp, int severity, int direction) {
+        Report report = mExchanger.getWriteBuffer();
+        report.mTimestamp = timestamp;
+        report.mSeverity = severity;
+        report.mDirection = severity == SEVERITY_NONE ? -1 : direction;
+        mExchanger.publish();
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void setRepeatInterval(long millis) {
+        mRepeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public void setMinGap(long millis) {
+        mMinGapNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private void runLoop() {
+        while (mRunning) {
+            Report report = mExchanger.poll();
+            if (report != null) {
+                update(report.mTimestamp, report.mSeverity, report.mDirection);
+            }
+            if (mActiveSeverity != SEVERITY_NONE) {
+                trySpeak();
+                // Keep checking while the alert may still have to be spoken or repeated.
+                LockSupport.parkNanos(this, POLL_INTERVAL_NANOS);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Apply a report to the alert state. Scheduler thread only; package private so the policy can
+     * be driven without a thread.
+     */
+    void update(double timestamp, int severity, int direction) {
+        if (severity == mPendingSeverity) {
+            mPendingFrames++;
+        } else {
+            mPendingSeverity = severity;
+            mPendingFrames = 1;
+        }
+
+        boolean raise = severity > mActiveSeverity
+                && (mPendingFrames >= RAISE_FRAMES || severity == SEVERITY_URGENT);
+        // A lower severity, including no obstacle, takes over only once it has held for a while.
+        boolean lower = severity < mActiveSeverity && mPendingFrames >= CLEAR_FRAMES;
+        if (raise || lower) {
+            mActiveSeverity = severity;
+            mActiveDirection = direction;
+            mActiveTimestamp = timestamp;
+            mSpokenSinceRaised = false;
+            mMoveFrames = 0;
+        } else if (severity != mActiveSeverity || severity == SEVERITY_NONE) {
+            mMoveFrames = 0;
+        } else if (direction == mActiveDirection) {
+            mMoveFrames = 0;
+            if (mSpokenSinceRaised) {
+                // Repeats report the latency of the frame that triggered them.
+                mActiveTimestamp = timestamp;
+            }
+        } else {
+            // At the current severity the obstacle can move without a new alert being raised.
+            if (direction == mMoveDirection) {
+                mMoveFrames++;
+            } else {
+                mMoveDirection = direction;
+                mMoveFrames = 1;
+            }
+            if (mMoveFrames >= RAISE_FRAMES) {
+                mActiveDirection = direction;
+                mActiveTimestamp = timestamp;
+                mSpokenSinceRaised = false;
+                mMoveFrames = 0;
+            }
+        }
+    }
+
+    /**
+     * Speak the active alert if the rate limits and the speaker allow it. Scheduler thread only.
+     */
+    void trySpeak() {
+        if (mActiveSeverity == SEVERITY_NONE) {
+            return;
+        }
+        long now = mClock.nanoTime();
+        boolean interrupt = false;
+        if (mSpeaker.isSpeaking()) {
+            if (mActiveSeverity <= mSpokenSeverity) {
+                return;
+            }
+            // Pre-empt a less severe alert right away.
+            interrupt = true;
+        } else if (mHasSpoken) {
+            boolean repeat = mActiveSeverity == mSpokenSeverity
+                    && mActiveDirection == mSpokenDirection;
+            long wait = repeat ? mRepeatIntervalNanos : mMinGapNanos;
+            if (repeat && !mSpokenSinceRaised) {
+                // Raised again after being cleared: don't wait for the repeat interval.
+                wait = mMinGapNanos;
+            }
+            if (now - mSpokenAtNanos < wait) {
+                return;
+            }
+        }
+        mSpeaker.speak(mActiveSeverity, mActiveDirection, interrupt);
+        mLatency.record(now - (long) (mActiveTimestamp * NANOS_PER_SECOND));
+        mHasSpoken = true;
+        mSpokenSinceRaised = true;
+        mSpokenSeverity = mActiveSeverity;
+        mSpokenDirection = mActiveDirection;
+        mSpokenAtNanos = now;
+        mAlertsSpoken++;
+    }
+
+    /**
+     * @return Severity of the alert currently raised. Meant for the scheduler thread and tests.
+     */
+    int getActiveSeverity() {
+        return mActiveSeverity;
+    }
+
+    /**
+     * @return Latencies from frame capture to speech for the alerts spoken so far.
+     */
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    public long getAlertsSpoken() {
+        return mAlertsSpoken;
+    }
+
+    public long getReportsCoalesced() {
+        return mExchanger.getDroppedCount();
+    }
+}
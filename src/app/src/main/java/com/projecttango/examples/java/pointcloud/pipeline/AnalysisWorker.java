@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs point cloud analysis on a dedicated thread so the Tango callback thread only has to copy
+ * the frame and return.
+ * <p/>
+ * Frames are handed over through a {@link LatestFrameExchanger}: if analysis is slower than the
+ * depth sensor, intermediate frames are dropped and the worker always picks up the newest one.
+ * {@link #publish} must always be called from the same thread.
+ */
+public class AnalysisWorker {
+    /**
+     * Analysis step run on the worker thread for each frame.
+     */
+    public interface FrameProcessor {
+        /**
+         * The frame and its point buffer are only valid until this method returns.
+         */
+        void process(PointCloudFrame frame);
+    }
+
+    private final String mName;
+    private final FrameProcessor mProcessor;
+    private final LatestFrameExchanger<PointCloudFrame> mExchanger;
+    private final AtomicLong mProcessed = new AtomicLong();
+
+    private volatile boolean mRunning;
+    private volatile Thread mThread;
+
+    public AnalysisWorker(String name, int maxPoints, int floatsPerPoint,
+                          FrameProcessor processor) {
+        mName = name;
+        mProcessor = processor;
+        mExchanger = new LatestFrameExchanger<PointCloudFrame>(
+                new PointCloudFrame(maxPoints, floatsPerPoint),
+                new PointCloudFrame(maxPoints, floatsPerPoint),
+                new PointCloudFrame(maxPoints, floatsPerPoint));
+    }
+
+    /**
+     * Start the worker thread. Has no effect if it is already running.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, mName);
+        mThread.start();
+    }
+
+    /**
+     * Stop the worker thread and wait for the frame in progress to finish.
+     */
+    public synchronized void stop() {
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        mThread = null;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copy a frame for analysis and return immediately. Never blocks.
+     *
+     * @param points Points buffer, read from index zero and rewound afterwards.
+     */
+    public void publish(double timestamp, int numPoints, FloatBuffer points) {
+        mExchanger.getWriteBuffer().set(timestamp, numPoints, points);
+        mExchanger.publish();
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void runLoop() {
+        while (mRunning) {
+            PointCloudFrame frame = mExchanger.poll();
+            if (frame == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            mProcessor.process(frame);
+            mProcessed.incrementAndGet();
+        }
+    }
+
+    public long getFramesPublished() {
+        return mExchanger.getPublishedCount();
+    }
+
+    public long getFramesProcessed() {
+        return mProcessed.get();
+    }
+
+    /**
+     * @return Number of frames overwritten by a newer frame before the worker picked them up.
+     */
+    public long getFramesDropped() {
+        return mExchanger.getDroppedCount();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free connection state of a service used from several threads.
+ * <p/>
+ * Users bracket each use of the service with {@link #tryEnter()} and {@link #exit()}. Entering
+ * never blocks: it simply fails unless the service is connected, so a render loop skips the frame
+ * instead of waiting on a connect or disconnect. {@link #beginDisconnect()} waits for a connection
+ * in progress to finish, stops new users from entering and waits for the ones already inside to
+ * leave, so the service can then be torn down safely. It waits parked: the connecting thread and
+ * the last user to leave wake it up.
+ * <p/>
+ * The state and the number of users inside are packed into a single atomic integer.
+ */
+public class ConnectionGate {
+    public static final int DISCONNECTED = 0;
+    public static final int CONNECTING = 1;
+    public static final int CONNECTED = 2;
+    public static final int DISCONNECTING = 3;
+
+    private static final int STATE_MASK = 0x3;
+    // Each user inside adds one unit above the state bits.
+    private static final int ONE_USER = 0x4;
+
+    private final AtomicInteger mState = new AtomicInteger(DISCONNECTED);
+    // Thread parked in beginDisconnect, published before it reads the state so that whoever
+    // changes the state next sees it.
+    private volatile Thread mDisconnectingThread;
+
+    /**
+     * @return One of {@link #DISCONNECTED}, {@link #CONNECTING}, {@link #CONNECTED} or
+     * {@link #DISCONNECTING}.
+     */
+    public int getState() {
+        return mState.get() & STATE_MASK;
+    }
+
+    public boolean isConnected() {
+        return getState() == CONNECTED;
+    }
+
+    /**
+     * @return Number of users currently between {@link #tryEnter()} and {@link #exit()}.
+     */
+    public int getUsers() {
+        return mState.get() >>> 2;
+    }
+
+    /**
+     * Start connecting.
+     *
+     * @return False if the gate was not disconnected, in which case the caller must not connect.
+     */
+    public boolean beginConnect() {
+        return mState.compareAndSet(DISCONNECTED, CONNECTING);
+    }
+
+    /**
+     * Finish a connection started with {@link #beginConnect()}.
+     *
+     * @param success Whether the service is now connected.
+     */
+    public void endConnect(boolean success) {
+        if (!mState.compareAndSet(CONNECTING, success ? CONNECTED : DISCONNECTED)) {
+            throw new IllegalStateException("Not connecting: " + getState());
+        }
+        unparkDisconnectingThread();
+    }
+
+    /**
+     * Enter the gate to use the service. Never blocks.
+     *
+     * @return True if the service is connected and will stay so until {@link #exit()} is called,
+     * false if the caller must not use it.
+     */
+    public boolean tryEnter() {
+        while (true) {
+            int state = mState.get();
+            if ((state & STATE_MASK) != CONNECTED) {
+                return false;
+            }
+            if (mState.compareAndSet(state, state + ONE_USER)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Leave the gate after a successful {@link #tryEnter()}.
+     */
+    public void exit() {
+        int state = mState.addAndGet(-ONE_USER);
+        if (state == DISCONNECTING) {
+            // The last user left during a disconnect.
+            unparkDisconnectingThread();
+        }
+    }
+
+    private void unparkDisconnectingThread() {
+        Thread thread = mDisconnectingThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Wait for a connection in progress to finish, then stop new users from entering and wait for
+     * the users inside to leave. Must be called from one thread at a time, which is neither a
+     * user of the gate nor a thread the connecting thread or a user inside may be waiting on.
+     *
+     * @return True if the service was connected and the caller must now tear it down and call
+     * {@link #endDisconnect()}, false if it was not connected.
+     */
+    public boolean beginDisconnect() {
+        mDisconnectingThread = Thread.currentThread();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                int state = mState.get();
+                int connectionState = state & STATE_MASK;
+                if (connectionState == CONNECTING) {
+                    // Woken up by endConnect.
+                    LockSupport.park(this);
+                    interrupted |= Thread.interrupted();
+                } else if (connectionState != CONNECTED) {
+                    return false;
+                } else if (mState.compareAndSet(state, (state & ~STATE_MASK) | DISCONNECTING)) {
+                    break;
+                }
+            }
+            while (mState.get() != DISCONNECTING) {
+                // Woken up by the last user to exit.
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+            }
+            return true;
+        } finally {
+            mDisconnectingThread = null;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Finish a disconnection started with {@link #beginDisconnect()}.
+     */
+    public void endDisconnect() {
+        if (!mState.compareAndSet(DISCONNECTING, DISCONNECTED)) {
+            throw new IllegalStateException("Not disconnecting: " + getState());
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+/**
+ * Source of depth camera poses, so pipeline stages do not depend on the Tango support library.
+ */
+public interface DepthPoseProvider {
+    /**
+     * Look up the pose of the depth camera at a given time.
+     *
+     * @param timestamp   Tango timestamp in seconds.
+     * @param worldTdepth Receives the column major 4x4 transform from the depth camera to the
+     *                    OpenGL world frame.
+     * @return True if a valid pose was written.
+     */
+    boolean getDepthPose(double timestamp, float[] worldTdepth);
+}
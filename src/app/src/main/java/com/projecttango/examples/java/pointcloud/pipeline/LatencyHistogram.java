@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with buckets growing exponentially, four per power of two, so any
+ * recorded value is known within 25% from a microsecond up to days. The maximum is kept exactly.
+ * <p/>
+ * Values are recorded without locking or allocating and can be read from any thread while
+ * being recorded. A snapshot read concurrently with recording may miss the latest values.
+ */
+public class LatencyHistogram {
+    // Two bits of sub-bucket resolution below the highest set bit.
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param nanos Latency in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        mCounts.incrementAndGet(bucketOf(nanos / NANOS_PER_MICRO));
+        long max = mMax.get();
+        while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+            max = mMax.get();
+        }
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The smallest value in microseconds that falls in a bucket.
+     */
+    static long bucketLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int highestBit = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (highestBit - SUB_BUCKET_BITS);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param quantile Between zero and one, for instance 0.99 for the 99th percentile.
+     * @return Upper bound in nanoseconds of the bucket holding the quantile, capped at the
+     * maximum, or zero if nothing was recorded.
+     */
+    public long getQuantileNanos(double quantile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundNanos(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    /**
+     * @return Largest value recorded in nanoseconds, or zero if nothing was recorded.
+     */
+    public long getMaxNanos() {
+        return mMax.get();
+    }
+
+    private static long upperBoundNanos(int bucket) {
+        if (bucket + 1 >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        return bucketLowerBound(bucket + 1) * NANOS_PER_MICRO;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mMax.set(0);
+    }
+}
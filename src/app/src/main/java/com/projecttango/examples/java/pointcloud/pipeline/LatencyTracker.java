@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * End to end latency of the depth pipeline: for each stage, the time from the capture of a frame
+ * to the moment the stage was done with it.
+ * <p/>
+ * Each stage has its own {@link LatencyHistogram}, so stamping a frame is lock-free, allocation
+ * free and safe from any thread. Reading the histograms, for the overlay or a dump, may run
+ * concurrently with stamping.
+ */
+public class LatencyTracker {
+    // The Tango callback received the frame.
+    public static final int STAGE_CALLBACK = 0;
+    // The obstacle analysis finished.
+    public static final int STAGE_ANALYZED = 1;
+    // The frame was downsampled and colored for rendering.
+    public static final int STAGE_PREPARED = 2;
+    // The frame was uploaded to the GPU.
+    public static final int STAGE_UPLOADED = 3;
+    // The first frame showing it was drawn.
+    public static final int STAGE_DRAWN = 4;
+    // An alert raised by the frame was handed to text to speech.
+    public static final int STAGE_ALERTED = 5;
+    public static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "callback", "analyzed", "prepared", "uploaded", "drawn", "alerted"
+    };
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final Clock mClock;
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGE_COUNT];
+
+    public LatencyTracker(Clock clock) {
+        mClock = clock;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record that a stage is done with a frame, now.
+     *
+     * @param timestamp Capture time of the frame in seconds, in the time base of the clock.
+     */
+    public void stamp(int stage, double timestamp) {
+        mHistograms[stage].record(mClock.nanoTime() - (long) (timestamp * NANOS_PER_SECOND));
+    }
+
+    public LatencyHistogram getHistogram(int stage) {
+        return mHistograms[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void clear() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.clear();
+        }
+    }
+
+    /**
+     * Append one line per stage with its p50, p99 and max latencies in milliseconds.
+     */
+    public void format(StringBuilder out) {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            out.append(String.format(Locale.US, "%-9s p50 %6.1f  p99 %6.1f  max %6.1f ms  n=%d\n",
+                    STAGE_NAMES[i],
+                    histogram.getQuantileNanos(0.5) / NANOS_PER_MILLI,
+                    histogram.getQuantileNanos(0.99) / NANOS_PER_MILLI,
+                    histogram.getMaxNanos() / NANOS_PER_MILLI,
+                    histogram.getCount()));
+        }
+    }
+
+    /**
+     * Write the summary of every stage as tab separated values, with a header line.
+     */
+    public void dump(Writer writer) throws IOException {
+        writer.write("stage\tcount\tp50_ms\tp90_ms\tp99_ms\tmax_ms\n");
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            writer.write(String.format(Locale.US, "%s\t%d\t%.3f\t%.3f\t%.3f\t%.3f\n",
+                    STAGE_NAMES[i], histogram.getCount(),
+                    histogram.getQuantileNanos(0.5) / NANOS_PER_MILLI,
+                    histogram.getQuantileNanos(0.9) / NANOS_PER_MILLI,
+                    histogram.getQuantileNanos(0.99) / NANOS_PER_MILLI,
+                    histogram.getMaxNanos() / NANOS_PER_MILLI));
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-slot exchanger between one producer and one consumer thread, where only the
+ * most recently published item matters.
+ * <p/>
+ * This is a triple buffer: the producer fills its back buffer and swaps it with the shared middle
+ * slot, the consumer swaps its front buffer with the middle slot when a new item is available.
+ * Neither side ever blocks or allocates. If the producer publishes twice before the consumer
+ * polls, the older item is overwritten and counted as dropped.
+ */
+public class LatestFrameExchanger<T> {
+    // The middle slot state packs the buffer index with a flag marking unconsumed data.
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    private final Object[] mBuffers;
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    // Only touched by the producer thread.
+    private int mBack = 0;
+    // Only touched by the consumer thread.
+    private int mFront = 2;
+
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    public LatestFrameExchanger(T first, T second, T third) {
+        mBuffers = new Object[] {first, second, third};
+    }
+
+    /**
+     * @return The buffer the producer should fill before calling {@link #publish()}.
+     * Producer thread only.
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) mBuffers[mBack];
+    }
+
+    /**
+     * Make the write buffer visible to the consumer and take a new write buffer.
+     * Producer thread only.
+     *
+     * @return True if an item the consumer had not yet taken was dropped.
+     */
+    public boolean publish() {
+        int previous = mMiddle.getAndSet(mBack | FRESH);
+        mBack = previous & INDEX_MASK;
+        mPublished.incrementAndGet();
+        if ((previous & FRESH) != 0) {
+            mDropped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if an item was published since the last {@link #poll()}.
+     */
+    public boolean hasFresh() {
+        return (mMiddle.get() & FRESH) != 0;
+    }
+
+    /**
+     * Take the latest published item. The returned buffer stays owned by the consumer until the
+     * next call to this method. Consumer thread only.
+     *
+     * @return The latest item, or null if nothing new was published since the last call.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        if ((mMiddle.get() & FRESH) == 0) {
+            return null;
+        }
+        // Only the producer can change the slot in between, and it always leaves it fresh.
+        int previous = mMiddle.getAndSet(mFront);
+        mFront = previous & INDEX_MASK;
+        return (T) mBuffers[mFront];
+    }
+
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trades quality for time when the pipeline can't keep up with the depth sensor, and gives it
+ * back once there is headroom again.
+ * <p/>
+ * The time spent processing each frame is compared to a budget and smoothed with an exponential
+ * moving average. The governor moves one degradation level up after {@link #RAISE_FRAMES} frames
+ * in a row over budget, and one level down after {@link #LOWER_FRAMES} frames in a row well under
+ * it, with a cool down after each change so the effect of a level is measured before deciding
+ * again. Raising is quick and lowering slow, so the levels don't oscillate around the budget.
+ * If the load is such that a level is over budget and the next one well under, every attempt at
+ * lowering is soon undone; each such failed attempt doubles the wait before the next one.
+ * <p/>
+ * Each level sets the quality levers, cheapest to lose first: how often the UI is updated, the
+ * voxel size of the downsampling, the number of points rendered and the share of frames analysed.
+ * Frame times must be reported from a single thread; the level and the levers can be read from
+ * any thread.
+ */
+public class LoadGovernor {
+    /**
+     * Notified on the reporting thread when the level changes.
+     */
+    public interface Listener {
+        void onLevelChanged(LoadGovernor governor, int level);
+    }
+
+    // Lever values by level, level zero being full quality.
+    private static final int[] ANALYSIS_STRIDE = {1, 1, 1, 2, 3};
+    private static final float[] VOXEL_SIZE_SCALE = {1f, 1f, 1.5f, 2f, 2.5f};
+    private static final float[] POINT_BUDGET_SCALE = {1f, 1f, 0.75f, 0.5f, 0.3f};
+    private static final int[] UI_INTERVAL_SCALE = {1, 3, 3, 5, 10};
+    public static final int MAX_LEVEL = ANALYSIS_STRIDE.length - 1;
+
+    // Smoothed load, as a fraction of the budget, above which the level goes up and below which
+    // it goes down.
+    public static final float RAISE_LOAD = 1.0f;
+    public static final float LOWER_LOAD = 0.6f;
+    public static final int RAISE_FRAMES = 3;
+    public static final int LOWER_FRAMES = 20;
+    public static final int MAX_LOWER_FRAMES = 640;
+    // Frames ignored after a level change while the average settles.
+    public static final int COOL_DOWN_FRAMES = 5;
+    private static final float SMOOTHING = 0.3f;
+
+    private final long mBudgetNanos;
+    private Listener mListener;
+
+    private volatile int mLevel;
+    private volatile float mLoad;
+    private int mFramesOver;
+    private int mFramesUnder;
+    private int mCoolDown;
+    // Frames under budget needed before lowering, grown after failed attempts.
+    private int mLowerFrames = LOWER_FRAMES;
+    // Level left by the last lowering and frames since, to tell whether it held.
+    private int mLoweredFrom = -1;
+    private int mFramesSinceLowered;
+    private boolean mHasLoad;
+    private long mLevelChanges;
+
+    /**
+     * @param budgetMillis Processing time allowed per frame.
+     */
+    public LoadGovernor(long budgetMillis) {
+        if (budgetMillis <= 0) {
+            throw new IllegalArgumentException("budget must be positive: " + budgetMillis);
+        }
+        mBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Report the time spent processing a frame, at the level in effect for that frame.
+     *
+     * @return The degradation level for the next frames.
+     */
+    public int onFrameProcessed(long nanos) {
+        float load = (float) nanos / mBudgetNanos;
+        float smoothed = mHasLoad ? mLoad + SMOOTHING * (load - mLoad) : load;
+        mHasLoad = true;
+        mLoad = smoothed;
+
+        if (mLoweredFrom >= 0 && ++mFramesSinceLowered > LOWER_FRAMES) {
+            // The lower level held: later attempts may be quick again.
+            mLoweredFrom = -1;
+            mLowerFrames = LOWER_FRAMES;
+        }
+        if (mCoolDown > 0) {
+            mCoolDown--;
+            return mLevel;
+        }
+        mFramesOver = smoothed > RAISE_LOAD ? mFramesOver + 1 : 0;
+        mFramesUnder = smoothed < LOWER_LOAD ? mFramesUnder + 1 : 0;
+        if (mFramesOver >= RAISE_FRAMES && mLevel < MAX_LEVEL) {
+            if (mLevel + 1 == mLoweredFrom) {
+                mLowerFrames = Math.min(mLowerFrames * 2, MAX_LOWER_FRAMES);
+            }
+            mLoweredFrom = -1;
+            setLevel(mLevel + 1);
+        } else if (mFramesUnder >= mLowerFrames && mLevel > 0) {
+            mLoweredFrom = mLevel;
+            mFramesSinceLowered = 0;
+            setLevel(mLevel - 1);
+        }
+        return mLevel;
+    }
+
+    private void setLevel(int level) {
+        mLevel = level;
+        mFramesOver = 0;
+        mFramesUnder = 0;
+        mCoolDown = COOL_DOWN_FRAMES;
+        mLevelChanges++;
+        if (mListener != null) {
+            mListener.onLevelChanged(this, level);
+        }
+    }
+
+    /**
+     * @return The current degradation level, from zero for full quality to {@link #MAX_LEVEL}.
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return Smoothed processing time as a fraction of the budget.
+     */
+    public float getLoad() {
+        return mLoad;
+    }
+
+    public long getBudgetNanos() {
+        return mBudgetNanos;
+    }
+
+    /**
+     * @return Number of level changes so far, to spot oscillation.
+     */
+    public long getLevelChanges() {
+        return mLevelChanges;
+    }
+
+    /**
+     * @return Only every n-th depth frame should be analysed.
+     */
+    public int getAnalysisStride() {
+        return ANALYSIS_STRIDE[mLevel];
+    }
+
+    /**
+     * @return Factor applied to the nominal voxel sizes.
+     */
+    public float getVoxelSizeScale() {
+        return VOXEL_SIZE_SCALE[mLevel];
+    }
+
+    /**
+     * @return Factor applied to the nominal number of points rendered.
+     */
+    public float getPointBudgetScale() {
+        return POINT_BUDGET_SCALE[mLevel];
+    }
+
+    /**
+     * @return Factor applied to the nominal interval between UI updates.
+     */
+    public int getUiIntervalScale() {
+        return UI_INTERVAL_SCALE[mLevel];
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+/**
+ * Estimates the velocity of the device from its recent positions, so obstacle alerts can tell a
+ * wall the user walks toward from one they stand beside.
+ * <p/>
+ * Positions are kept in a fixed ring of samples. The velocity is the displacement between the
+ * newest sample and the newest one at least a window older, divided by the time between them,
+ * which smooths out the jitter of single poses. The older end of the window only moves forward,
+ * so each update takes constant time. Positions may be in any fixed frame; velocities are in the
+ * same frame.
+ * <p/>
+ * Updated from the pose callback thread and read from the analysis thread; both sides hold the
+ * lock only to copy a few values.
+ */
+public class MotionEstimator {
+    // Long enough to average out pose jitter, short enough to follow the user stopping.
+    public static final double DEFAULT_WINDOW_SECONDS = 0.3;
+    // History is dropped after a longer pause, and velocities are stale after it.
+    public static final double DEFAULT_MAX_GAP_SECONDS = 0.5;
+    // Samples closer together than a window divided by this replace the newest one, so the ring
+    // always spans the window whatever the pose rate.
+    static final int HISTORY_SIZE = 64;
+    private static final int SAMPLES_PER_WINDOW = HISTORY_SIZE / 2;
+
+    private final double mWindow;
+    private final double mMaxGap;
+    private final double mMinSpacing;
+    private final double[] mTimes = new double[HISTORY_SIZE];
+    private final double[] mX = new double[HISTORY_SIZE];
+    private final double[] mY = new double[HISTORY_SIZE];
+    private final double[] mZ = new double[HISTORY_SIZE];
+    // Newest sample, oldest sample kept, and the sample the window starts at.
+    private int mHead = -1;
+    private int mOldest;
+    private int mWindowStart;
+
+    public MotionEstimator() {
+        this(DEFAULT_WINDOW_SECONDS, DEFAULT_MAX_GAP_SECONDS);
+    }
+
+    public MotionEstimator(double windowSeconds, double maxGapSeconds) {
+        if (!(windowSeconds > 0) || !(maxGapSeconds > 0)) {
+            throw new IllegalArgumentException("Window and gap must be positive");
+        }
+        mWindow = windowSeconds;
+        mMaxGap = maxGapSeconds;
+        mMinSpacing = windowSeconds / SAMPLES_PER_WINDOW;
+    }
+
+    /**
+     * Adds the position of the device at a time. Positions out of order or after a long pause
+     * start a new history.
+     */
+    public synchronized void update(double timestamp, double x, double y, double z) {
+        if (mHead >= 0) {
+            double last = mTimes[mHead];
+            if (!(timestamp > last) || timestamp - last > mMaxGap) {
+                mHead = -1;
+            }
+        }
+        if (mHead < 0) {
+            mHead = 0;
+            mOldest = 0;
+            mWindowStart = 0;
+        } else if (mHead != mOldest && mHead != mWindowStart
+                && timestamp - mTimes[(mHead + HISTORY_SIZE - 1) % HISTORY_SIZE] < mMinSpacing) {
+            // Too close to the previous sample: replace the newest one.
+        } else {
+            mHead = (mHead + 1) % HISTORY_SIZE;
+            if (mHead == mOldest) {
+                // The ring is full: drop the oldest sample, moving the window start if needed.
+                if (mWindowStart == mOldest) {
+                    mWindowStart = (mWindowStart + 1) % HISTORY_SIZE;
+                }
+                mOldest = (mOldest + 1) % HISTORY_SIZE;
+            }
+        }
+        mTimes[mHead] = timestamp;
+        mX[mHead] = x;
+        mY[mHead] = y;
+        mZ[mHead] = z;
+        // Move the window start to the newest sample that is still at least a window old.
+        while (mWindowStart != mHead) {
+            int next = (mWindowStart + 1) % HISTORY_SIZE;
+            if (timestamp - mTimes[next] < mWindow) {
+                break;
+            }
+            mWindowStart = next;
+        }
+    }
+
+    /**
+     * Forgets the history, for instance when tracking is lost.
+     */
+    public synchronized void reset() {
+        mHead = -1;
+    }
+
+    /**
+     * Gets the velocity of the device around a time.
+     *
+     * @param timestamp Time the velocity is needed at. The estimate is stale if the newest
+     *                  position is more than the maximum gap older.
+     * @param velocity  Receives the velocity in meters per second, in the frame of the positions.
+     * @return False if there is no recent history spanning at least half the window.
+     */
+    public synchronized boolean getVelocity(double timestamp, float[] velocity) {
+        if (mHead < 0) {
+            return false;
+        }
+        double end = mTimes[mHead];
+        double dt = end - mTimes[mWindowStart];
+        if (timestamp - end > mMaxGap || dt < 0.5 * mWindow) {
+            return false;
+        }
+        velocity[0] = (float) ((mX[mHead] - mX[mWindowStart]) / dt);
+        velocity[1] = (float) ((mY[mHead] - mY[mWindowStart]) / dt);
+        velocity[2] = (float) ((mZ[mHead] - mZ[mWindowStart]) / dt);
+        return true;
+    }
+}
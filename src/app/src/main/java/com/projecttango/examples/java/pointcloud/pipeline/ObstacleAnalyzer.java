@@ -0,0 +1,453 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import com.projecttango.examples.java.pointcloud.mapping.OccupancyMap;
+import com.projecttango.examples.java.pointcloud.processing.GroundPlaneEstimator;
+import com.projecttango.examples.java.pointcloud.processing.ParallelChunks;
+import com.projecttango.examples.java.pointcloud.processing.PointCloudStats;
+import com.projecttango.examples.java.pointcloud.processing.PointCompactor;
+import com.projecttango.examples.java.pointcloud.processing.PointGridIndex;
+import com.projecttango.examples.java.pointcloud.processing.PointStatisticsKernel;
+import com.projecttango.examples.java.pointcloud.processing.SectorHistogram;
+import com.projecttango.examples.java.pointcloud.processing.TemporalVoxelFilter;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * The per-frame obstacle analysis: downsampling, cloud statistics, floor detection, temporal
+ * denoising, the direction histogram used for alerts and fusion into the occupancy map.
+ * <p/>
+ * The same analyzer runs on live frames from the analysis worker and on recorded frames, so it
+ * must not depend on Android or Tango. Results stay valid until the next call to
+ * {@link #process}. Not thread safe.
+ */
+public class ObstacleAnalyzer implements AnalysisWorker.FrameProcessor {
+    /**
+     * Notified on the analysis thread after each frame.
+     */
+    public interface Listener {
+        void onFrameAnalyzed(ObstacleAnalyzer analyzer, PointCloudFrame frame);
+    }
+
+    public static final float MIN_TRACKING_METERS = 0.50f;
+    public static final float ARM_LENGTH_METERS = 1.42f;
+    public static final float MAX_TRACKING_METERS = 5f;
+    // Points with a lower confidence are left out of the analysis and the rendering.
+    public static final float MIN_POINT_CONFIDENCE = 0.3f;
+
+    // Approximate field of view of the depth camera, split into sectors to tell the direction
+    // of an obstacle.
+    public static final float DEPTH_HORIZONTAL_FOV_DEGREES = 60f;
+    public static final float DEPTH_VERTICAL_FOV_DEGREES = 45f;
+    // Downsampled points needed within arm's length before a sector counts as an obstacle.
+    public static final int MIN_OBSTACLE_POINTS = 3;
+    // Obstacles closer than these distances raise more severe alerts.
+    public static final float WARNING_METERS = 1.0f;
+    public static final float URGENT_METERS = 0.7f;
+    // Box straight ahead of the camera the user would walk into, in the depth camera frame.
+    // Only obstacles in it raise warnings; others are just noticed.
+    public static final float CORRIDOR_HALF_WIDTH_METERS = 0.3f;
+    public static final float CORRIDOR_HALF_HEIGHT_METERS = 0.5f;
+    // Once the motion of the device is known, alerts are raised on the time left before walking
+    // into the corridor obstacle rather than on its distance.
+    public static final float WARNING_SECONDS = 2.0f;
+    public static final float URGENT_SECONDS = 1.0f;
+    // Slower approaches, such as swaying while standing, don't count as moving toward it.
+    public static final float MIN_CLOSING_SPEED = 0.1f;
+    // Cells of the spatial index the corridor is looked up in.
+    public static final float INDEX_CELL_SIZE_METERS = 0.1f;
+
+    public static final float DEFAULT_VOXEL_SIZE_METERS = 0.03f;
+    public static final float OCCUPANCY_VOXEL_SIZE_METERS = 0.05f;
+    // World voxels tracked across frames to drop transient speckle before looking for obstacles.
+    public static final float TEMPORAL_VOXEL_SIZE_METERS =
+            TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS;
+    public static final int MAX_TEMPORAL_VOXELS = 1 << 16;
+    // Fixed so floor detection is reproducible on recordings.
+    public static final long FLOOR_RANSAC_SEED = 0x5eedL;
+    // Weight of the newest frame in the smoothed floor height.
+    public static final float FLOOR_HEIGHT_SMOOTHING = 0.2f;
+
+    private final VoxelGridFilter mVoxelFilter;
+    private final PointStatisticsKernel mStatsKernel =
+            new PointStatisticsKernel(VoxelGridFilter.OUTPUT_FLOATS_PER_POINT);
+    private final PointCloudStats mStats = new PointCloudStats();
+    private final GroundPlaneEstimator mFloorEstimator;
+    // Downsampled points without the floor, which the obstacle alerts are based on.
+    private final FloatBuffer mObstaclePoints;
+    private final TemporalVoxelFilter mTemporalFilter;
+    private final SectorHistogram mSectorHistogram;
+    private final PointGridIndex mObstacleIndex;
+    private final int[] mCorridorIndices = new int[MIN_OBSTACLE_POINTS];
+    private final float[] mCorridorDistances = new float[MIN_OBSTACLE_POINTS];
+    private final OccupancyMap mOccupancyMap;
+
+    private final float[] mDepthPose = new float[16];
+    private DepthPoseProvider mDepthPoseProvider;
+    private MotionEstimator mMotionEstimator;
+    private final float[] mVelocity = new float[3];
+    private Listener mListener;
+
+    private long mProcessNanos;
+    private int mNumVoxels;
+    private int mNumObstaclePoints;
+    private float mFloorHeight = Float.NaN;
+    private int mObstacleSector = -1;
+    private float mObstacleDistance = Float.POSITIVE_INFINITY;
+    private float mCorridorDistance = Float.POSITIVE_INFINITY;
+    private int mCorridorSector = -1;
+    private float mClosingSpeed = Float.NaN;
+    private float mTimeToCollision = Float.POSITIVE_INFINITY;
+    private int mObstacleSeverity = AlertScheduler.SEVERITY_NONE;
+    private int mAlertSector = -1;
+
+    /**
+     * @param maxPoints      Maximum number of points per frame.
+     * @param floatsPerPoint Float values per input point. XYZ format = 3, XYZC format = 4.
+     * @param sectors        Number of azimuth sectors for obstacle directions.
+     */
+    public ObstacleAnalyzer(int maxPoints, int floatsPerPoint, int sectors) {
+        mVoxelFilter = new VoxelGridFilter(maxPoints, floatsPerPoint, DEFAULT_VOXEL_SIZE_METERS);
+        mFloorEstimator = new GroundPlaneEstimator(VoxelGridFilter.OUTPUT_FLOATS_PER_POINT,
+                GroundPlaneEstimator.DEFAULT_MAX_SAMPLES, FLOOR_RANSAC_SEED);
+        mObstaclePoints = ByteBuffer.allocateDirect(
+                maxPoints * VoxelGridFilter.OUTPUT_FLOATS_PER_POINT * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mTemporalFilter = new TemporalVoxelFilter(maxPoints,
+                VoxelGridFilter.OUTPUT_FLOATS_PER_POINT, TEMPORAL_VOXEL_SIZE_METERS,
+                MAX_TEMPORAL_VOXELS);
+        mSectorHistogram = new SectorHistogram(VoxelGridFilter.OUTPUT_FLOATS_PER_POINT,
+                sectors, DEPTH_HORIZONTAL_FOV_DEGREES, 1, DEPTH_VERTICAL_FOV_DEGREES);
+        mSectorHistogram.setDepthRange(MIN_TRACKING_METERS, MAX_TRACKING_METERS);
+        mSectorHistogram.setAlertDistance(ARM_LENGTH_METERS);
+        mObstacleIndex = new PointGridIndex(maxPoints, VoxelGridFilter.OUTPUT_FLOATS_PER_POINT,
+                INDEX_CELL_SIZE_METERS, 2 * maxPoints);
+        mOccupancyMap = new OccupancyMap(OCCUPANCY_VOXEL_SIZE_METERS, maxPoints,
+                VoxelGridFilter.OUTPUT_FLOATS_PER_POINT);
+    }
+
+    /**
+     * @return A compactor with the thresholds depth frames are filtered with before reaching the
+     * analysis, live or replayed.
+     */
+    public static PointCompactor createPointCompactor(int maxPoints) {
+        return new PointCompactor(maxPoints, MIN_POINT_CONFIDENCE, MIN_TRACKING_METERS,
+                MAX_TRACKING_METERS);
+    }
+
+    /**
+     * Used to look up the depth camera pose of frames that don't carry one. Without a pose,
+     * frames are not fused into the occupancy map.
+     */
+    public void setDepthPoseProvider(DepthPoseProvider depthPoseProvider) {
+        mDepthPoseProvider = depthPoseProvider;
+    }
+
+    /**
+     * Used to find how fast the device moves toward obstacles, in the OpenGL world frame of the
+     * depth poses. Without it, alerts are raised on distance only.
+     */
+    public void setMotionEstimator(MotionEstimator motionEstimator) {
+        mMotionEstimator = motionEstimator;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Splits downsampling and statistics of large frames across the threads of
+     * {@code parallel}, or runs them on the analysis thread only if null. Must be called before
+     * the first frame is processed.
+     */
+    public void setParallel(ParallelChunks parallel) {
+        mVoxelFilter.setParallel(parallel);
+        mStatsKernel.setParallel(parallel, mVoxelFilter.getMaxPoints());
+    }
+
+    /**
+     * Sets the voxel size used to downsample the following frames. Analysis thread only, for
+     * instance from the listener.
+     */
+    public void setVoxelSize(float voxelSize) {
+        mVoxelFilter.setVoxelSize(voxelSize);
+    }
+
+    public float getVoxelSize() {
+        return mVoxelFilter.getVoxelSize();
+    }
+
+    @Override
+    public void process(PointCloudFrame frame) {
+        long start = System.nanoTime();
+        // Analyse the downsampled cloud: one centroid per voxel is enough for obstacle detection
+        // and weights surfaces evenly regardless of how densely they were sampled.
+        mNumVoxels = mVoxelFilter.filter(frame.getPoints(), frame.getNumPoints());
+        mStatsKernel.compute(mVoxelFilter.getOutput(), mNumVoxels, mStats);
+
+        if (!frame.hasDepthPose() && mDepthPoseProvider != null
+                && mDepthPoseProvider.getDepthPose(frame.getTimestamp(), mDepthPose)) {
+            frame.setDepthPose(mDepthPose);
+        }
+
+        // Looking down at the floor should not raise an alert, so the floor is found and removed
+        // before looking for obstacles.
+        findFloor(frame);
+        mNumObstaclePoints = mFloorEstimator.removeFloor(mVoxelFilter.getOutput(), mNumVoxels,
+                mObstaclePoints);
+        // Noise at range comes and goes between frames while real obstacles stay put in the
+        // world, so only keep points seen in the same place over the last frames. Without a
+        // pose, frames can't be lined up and are used as they are.
+        if (frame.hasDepthPose()) {
+            mNumObstaclePoints = mTemporalFilter.filter(mObstaclePoints, mNumObstaclePoints,
+                    frame.getDepthPose(), mObstaclePoints);
+        }
+
+        // Look for the closest direction with enough support within arm's length rather than
+        // relying on the mean depth, which a far wall easily drowns out.
+        mSectorHistogram.compute(mObstaclePoints, mNumObstaclePoints);
+        int bin = mSectorHistogram.findNearestObstacle(MIN_OBSTACLE_POINTS);
+        mObstacleSector = bin < 0 ? -1 : mSectorHistogram.getAzimuthIndex(bin);
+        mObstacleDistance = bin < 0
+                ? Float.POSITIVE_INFINITY : mSectorHistogram.getNearestDepth(bin);
+        findCorridorObstacle();
+        findTimeToCollision(frame);
+        gradeObstacle();
+
+        if (frame.hasDepthPose()) {
+            mOccupancyMap.integrate(mVoxelFilter.getOutput(), mNumVoxels, frame.getDepthPose());
+        }
+
+        mProcessNanos = System.nanoTime() - start;
+        if (mListener != null) {
+            mListener.onFrameAnalyzed(this, frame);
+        }
+    }
+
+    /**
+     * Finds the distance to the obstacle in the walking corridor, as the distance of the farthest
+     * of the {@link #MIN_OBSTACLE_POINTS} points nearest to the camera so a stray point doesn't
+     * count.
+     */
+    private void findCorridorObstacle() {
+        mObstacleIndex.build(mObstaclePoints, mNumObstaclePoints);
+        int found = mObstacleIndex.nearestInBox(
+                -CORRIDOR_HALF_WIDTH_METERS, -CORRIDOR_HALF_HEIGHT_METERS, MIN_TRACKING_METERS,
+                CORRIDOR_HALF_WIDTH_METERS, CORRIDOR_HALF_HEIGHT_METERS, ARM_LENGTH_METERS,
+                0, 0, 0, MIN_OBSTACLE_POINTS, mCorridorIndices, mCorridorDistances);
+        if (found < MIN_OBSTACLE_POINTS) {
+            mCorridorDistance = Float.POSITIVE_INFINITY;
+            mCorridorSector = -1;
+            return;
+        }
+        mCorridorDistance = mCorridorDistances[MIN_OBSTACLE_POINTS - 1];
+        int point = mCorridorIndices[MIN_OBSTACLE_POINTS - 1]
+                * VoxelGridFilter.OUTPUT_FLOATS_PER_POINT;
+        mCorridorSector = mSectorHistogram.getAzimuthIndex(mObstaclePoints.get(point),
+                mObstaclePoints.get(point + 2));
+    }
+
+    private void findTimeToCollision(PointCloudFrame frame) {
+        mClosingSpeed = Float.NaN;
+        mTimeToCollision = Float.POSITIVE_INFINITY;
+        if (mMotionEstimator == null || !frame.hasDepthPose()
+                || !mMotionEstimator.getVelocity(frame.getTimestamp(), mVelocity)) {
+            return;
+        }
+        // The corridor lies along the optical axis, the third column of the depth pose.
+        float[] worldTdepth = frame.getDepthPose();
+        mClosingSpeed = mVelocity[0] * worldTdepth[8] + mVelocity[1] * worldTdepth[9]
+                + mVelocity[2] * worldTdepth[10];
+        if (mClosingSpeed > MIN_CLOSING_SPEED) {
+            mTimeToCollision = mCorridorDistance / mClosingSpeed;
+        }
+    }
+
+    /**
+     * Grades the corridor obstacle on its time to collision, or its distance if the motion is
+     * unknown, and reports the direction of whichever obstacle set the severity: the corridor
+     * obstacle for warnings, the nearest one within arm's length for notices.
+     */
+    private void gradeObstacle() {
+        int severity = AlertScheduler.SEVERITY_NONE;
+        if (!Float.isNaN(mClosingSpeed)) {
+            if (mTimeToCollision < URGENT_SECONDS) {
+                severity = AlertScheduler.SEVERITY_URGENT;
+            } else if (mTimeToCollision < WARNING_SECONDS) {
+                severity = AlertScheduler.SEVERITY_WARNING;
+            }
+        } else if (mCorridorDistance < URGENT_METERS) {
+            severity = AlertScheduler.SEVERITY_URGENT;
+        } else if (mCorridorDistance < WARNING_METERS) {
+            severity = AlertScheduler.SEVERITY_WARNING;
+        }
+        if (severity != AlertScheduler.SEVERITY_NONE) {
+            mObstacleSeverity = severity;
+            mAlertSector = mCorridorSector;
+        } else if (mObstacleSector >= 0) {
+            mObstacleSeverity = AlertScheduler.SEVERITY_NOTICE;
+            mAlertSector = mObstacleSector;
+        } else {
+            mObstacleSeverity = AlertScheduler.SEVERITY_NONE;
+            mAlertSector = -1;
+        }
+    }
+
+    private void findFloor(PointCloudFrame frame) {
+        float[] worldTdepth = frame.hasDepthPose() ? frame.getDepthPose() : null;
+        if (worldTdepth != null) {
+            // World up (0, 1, 0) in the depth camera frame: the second row of the rotation.
+            mFloorEstimator.setUpDirection(worldTdepth[1], worldTdepth[5], worldTdepth[9]);
+        }
+        if (!mFloorEstimator.estimate(mVoxelFilter.getOutput(), mNumVoxels)
+                || worldTdepth == null) {
+            return;
+        }
+        float nx = mFloorEstimator.getNormalX();
+        float ny = mFloorEstimator.getNormalY();
+        float nz = mFloorEstimator.getNormalZ();
+        // Vertical component of the plane normal in the world frame, which is at least the
+        // cosine of the maximum tilt.
+        float worldNormalY = worldTdepth[1] * nx + worldTdepth[5] * ny + worldTdepth[9] * nz;
+        // The estimator only accepts planes well below the camera, so a ceiling or a table top
+        // under the device never pulls this height up.
+        float height = worldTdepth[13] - mFloorEstimator.getOffset() / worldNormalY;
+        mFloorHeight = Float.isNaN(mFloorHeight)
+                ? height : mFloorHeight + FLOOR_HEIGHT_SMOOTHING * (height - mFloorHeight);
+    }
+
+    /**
+     * @return Time spent analysing the last frame, not counting the listener.
+     */
+    public long getProcessNanos() {
+        return mProcessNanos;
+    }
+
+    /**
+     * @return Statistics of the downsampled cloud.
+     */
+    public PointCloudStats getStats() {
+        return mStats;
+    }
+
+    public int getNumVoxels() {
+        return mNumVoxels;
+    }
+
+    public GroundPlaneEstimator getFloorEstimator() {
+        return mFloorEstimator;
+    }
+
+    /**
+     * @return Number of downsampled points left after removing the floor and, in frames with a
+     * pose, the points that are not stable across frames.
+     */
+    public int getNumObstaclePoints() {
+        return mNumObstaclePoints;
+    }
+
+    /**
+     * @return The filter keeping the obstacle points that are stable across frames.
+     */
+    public TemporalVoxelFilter getTemporalFilter() {
+        return mTemporalFilter;
+    }
+
+    /**
+     * @return Smoothed height of the floor below the depth camera in the OpenGL world frame, or
+     * NaN if it has not been found in a frame with a pose yet.
+     */
+    public float getFloorHeight() {
+        return mFloorHeight;
+    }
+
+    public SectorHistogram getSectorHistogram() {
+        return mSectorHistogram;
+    }
+
+    /**
+     * @return Azimuth sector of the nearest obstacle within arm's length, from left to right,
+     * or -1 if there is none.
+     */
+    public int getObstacleSector() {
+        return mObstacleSector;
+    }
+
+    /**
+     * @return Depth of the nearest obstacle within arm's length, or positive infinity if there is
+     * none.
+     */
+    public float getObstacleDistance() {
+        return mObstacleDistance;
+    }
+
+    /**
+     * @return Distance from the camera to the nearest obstacle in the walking corridor ahead,
+     * or positive infinity if there is none within arm's length.
+     */
+    public float getCorridorDistance() {
+        return mCorridorDistance;
+    }
+
+    /**
+     * @return Speed of the device along the optical axis of the depth camera, positive toward
+     * the corridor, or NaN if its motion is unknown.
+     */
+    public float getClosingSpeed() {
+        return mClosingSpeed;
+    }
+
+    /**
+     * @return Time before reaching the corridor obstacle at the current closing speed, or
+     * positive infinity if there is none or the device isn't moving toward it.
+     */
+    public float getTimeToCollision() {
+        return mTimeToCollision;
+    }
+
+    /**
+     * @return The index of the last frame's points without the floor.
+     */
+    public PointGridIndex getObstacleIndex() {
+        return mObstacleIndex;
+    }
+
+    /**
+     * @return Severity of the obstacle to alert about, one of the {@link AlertScheduler} SEVERITY
+     * constants. Only the obstacle in the walking corridor raises warnings, and only if the
+     * device moves toward it when its motion is known; other obstacles are just noticed.
+     */
+    public int getObstacleSeverity() {
+        return mObstacleSeverity;
+    }
+
+    /**
+     * @return Azimuth sector of the obstacle {@link #getObstacleSeverity} was graded on, which
+     * for warnings is the corridor obstacle and may differ from {@link #getObstacleSector}, or
+     * -1 if there is none.
+     */
+    public int getAlertSector() {
+        return mAlertSector;
+    }
+
+    public OccupancyMap getOccupancyMap() {
+        return mOccupancyMap;
+    }
+}
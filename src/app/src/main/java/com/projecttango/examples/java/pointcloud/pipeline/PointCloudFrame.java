@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * One depth frame as seen by the analysis pipeline, optionally with the pose of the depth camera
+ * at the frame timestamp.
+ * <p/>
+ * A frame either owns its point storage, a direct buffer allocated once so frames can be recycled
+ * between threads without producing garbage, or is a view on points stored elsewhere, such as a
+ * memory mapped recording.
+ */
+public class PointCloudFrame {
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final int mMaxPoints;
+    private final int mFloatsPerPoint;
+    private final FloatBuffer mStorage;
+    private FloatBuffer mPoints;
+
+    private double mTimestamp;
+    private int mNumPoints;
+
+    private final float[] mDepthPose = new float[16];
+    private boolean mHasDepthPose;
+
+    /**
+     * Create a frame owning storage for up to {@code maxPoints} points.
+     */
+    public PointCloudFrame(int maxPoints, int floatsPerPoint) {
+        mMaxPoints = maxPoints;
+        mFloatsPerPoint = floatsPerPoint;
+        mStorage = ByteBuffer.allocateDirect(maxPoints * floatsPerPoint * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mPoints = mStorage;
+    }
+
+    /**
+     * Create a frame without storage, only usable through {@link #setView}.
+     */
+    public PointCloudFrame(int floatsPerPoint) {
+        mMaxPoints = 0;
+        mFloatsPerPoint = floatsPerPoint;
+        mStorage = null;
+    }
+
+    /**
+     * Copy the first {@code numPoints} points of {@code points} into this frame. The source buffer
+     * is read from index zero and rewound afterwards.
+     */
+    public void set(double timestamp, int numPoints, FloatBuffer points) {
+        if (mStorage == null || numPoints > mMaxPoints) {
+            throw new RuntimeException(
+                    String.format("numPoints = %d exceeds maximum number of points = %d",
+                            numPoints, mMaxPoints));
+        }
+        mTimestamp = timestamp;
+        mNumPoints = numPoints;
+        mHasDepthPose = false;
+        mPoints = mStorage;
+
+        int sourceLimit = points.limit();
+        points.rewind();
+        points.limit(numPoints * mFloatsPerPoint);
+        mPoints.clear();
+        mPoints.put(points);
+        mPoints.flip();
+        points.limit(sourceLimit);
+        points.rewind();
+    }
+
+    /**
+     * Point this frame at points stored elsewhere, without copying them. The buffer must hold
+     * {@code numPoints} points starting at index zero and stay valid while the frame is in use.
+     */
+    public void setView(double timestamp, int numPoints, FloatBuffer points) {
+        mTimestamp = timestamp;
+        mNumPoints = numPoints;
+        mHasDepthPose = false;
+        mPoints = points;
+    }
+
+    /**
+     * Copy the pose of the depth camera at the frame timestamp.
+     *
+     * @param worldTdepth Column major 4x4 transform from the depth camera to the world frame.
+     */
+    public void setDepthPose(float[] worldTdepth) {
+        System.arraycopy(worldTdepth, 0, mDepthPose, 0, 16);
+        mHasDepthPose = true;
+    }
+
+    public void clearDepthPose() {
+        mHasDepthPose = false;
+    }
+
+    public boolean hasDepthPose() {
+        return mHasDepthPose;
+    }
+
+    /**
+     * @return The depth camera pose, only meaningful if {@link #hasDepthPose()}.
+     */
+    public float[] getDepthPose() {
+        return mDepthPose;
+    }
+
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getNumPoints() {
+        return mNumPoints;
+    }
+
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+
+    public int getFloatsPerPoint() {
+        return mFloatsPerPoint;
+    }
+
+    /**
+     * @return The points of this frame, starting at index zero.
+     */
+    public FloatBuffer getPoints() {
+        return mPoints;
+    }
+}
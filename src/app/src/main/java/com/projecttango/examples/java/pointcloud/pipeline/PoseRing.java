@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Ring of the most recent timestamped poses, written by the pose callback thread and read by any
+ * number of other threads without locking or allocating.
+ * <p/>
+ * Each slot starts with a sequence number, odd while the slot is written and even once it is
+ * complete, derived from the number of the pose in it. A reader copies a slot and checks that
+ * the sequence number was complete and unchanged around the copy, and starts over if the writer
+ * lapped it. The values are stored as raw double bits in an {@link AtomicLongArray} so the copy
+ * is ordered against the sequence number checks without memory fences, which Android lacks.
+ * <p/>
+ * {@link #getPoseAt} interpolates between the two poses around a time, linearly for the
+ * translation and spherically for the rotation, and {@link #getLatestPose} takes the newest pose
+ * in constant time.
+ */
+public class PoseRing {
+    // Number of times a read starts over after being lapped by the writer before giving up.
+    private static final int MAX_READ_ATTEMPTS = 4;
+    // Below this angle between two rotations, linear interpolation is as accurate as spherical.
+    private static final double SLERP_THRESHOLD = 0.9995;
+    // Sequence number, timestamp, translation XYZ and rotation XYZW of each slot.
+    private static final int FIELDS = 9;
+
+    /**
+     * A pose, with the same layout as {@code TangoPoseData}: translation in meters and rotation
+     * as an XYZW quaternion.
+     */
+    public static class Pose {
+        public double timestamp;
+        public final double[] translation = new double[3];
+        public final double[] rotation = new double[4];
+
+        /**
+         * Write the pose as a column major 4x4 transform.
+         */
+        public void toMatrix(float[] matrix) {
+            toMatrix(translation, rotation, matrix);
+        }
+
+        /**
+         * Write a translation and an XYZW rotation as a column major 4x4 transform.
+         */
+        public static void toMatrix(double[] translation, double[] rotation, float[] matrix) {
+            double x = rotation[0];
+            double y = rotation[1];
+            double z = rotation[2];
+            double w = rotation[3];
+            matrix[0] = (float) (1 - 2 * (y * y + z * z));
+            matrix[1] = (float) (2 * (x * y + z * w));
+            matrix[2] = (float) (2 * (x * z - y * w));
+            matrix[3] = 0;
+            matrix[4] = (float) (2 * (x * y - z * w));
+            matrix[5] = (float) (1 - 2 * (x * x + z * z));
+            matrix[6] = (float) (2 * (y * z + x * w));
+            matrix[7] = 0;
+            matrix[8] = (float) (2 * (x * z + y * w));
+            matrix[9] = (float) (2 * (y * z - x * w));
+            matrix[10] = (float) (1 - 2 * (x * x + y * y));
+            matrix[11] = 0;
+            matrix[12] = (float) translation[0];
+            matrix[13] = (float) translation[1];
+            matrix[14] = (float) translation[2];
+            matrix[15] = 1;
+        }
+    }
+
+    private final int mCapacity;
+    private final double mMaxStaleness;
+    private final AtomicLongArray mSlots;
+    // Number of poses published; the newest one is this minus one.
+    private final AtomicLong mPublished = new AtomicLong();
+    // Writer thread only.
+    private long mNextPose;
+    private double mLastTimestamp = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param capacity     Number of poses kept. The oldest one may be in the middle of being
+     *                     replaced, so lookups reach back {@code capacity - 1} poses.
+     * @param maxStaleness How much later than the newest pose a lookup may be and still get it.
+     */
+    public PoseRing(int capacity, double maxStaleness) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2: " + capacity);
+        }
+        mCapacity = capacity;
+        mMaxStaleness = maxStaleness;
+        mSlots = new AtomicLongArray(capacity * FIELDS);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Adds a pose. Writer thread only.
+     *
+     * @param translation Translation in meters.
+     * @param rotation    Rotation as an XYZW quaternion.
+     * @return False if the pose was dropped for not being newer than the last one.
+     */
+    public boolean publish(double timestamp, double[] translation, double[] rotation) {
+        if (!(timestamp > mLastTimestamp)) {
+            return false;
+        }
+        mLastTimestamp = timestamp;
+        long pose = mNextPose++;
+        int base = (int) (pose % mCapacity) * FIELDS;
+        AtomicLongArray slots = mSlots;
+        slots.set(base, 2 * pose + 1);
+        slots.set(base + 1, Double.doubleToRawLongBits(timestamp));
+        slots.set(base + 2, Double.doubleToRawLongBits(translation[0]));
+        slots.set(base + 3, Double.doubleToRawLongBits(translation[1]));
+        slots.set(base + 4, Double.doubleToRawLongBits(translation[2]));
+        slots.set(base + 5, Double.doubleToRawLongBits(rotation[0]));
+        slots.set(base + 6, Double.doubleToRawLongBits(rotation[1]));
+        slots.set(base + 7, Double.doubleToRawLongBits(rotation[2]));
+        slots.set(base + 8, Double.doubleToRawLongBits(rotation[3]));
+        slots.set(base, 2 * pose + 2);
+        mPublished.set(pose + 1);
+        return true;
+    }
+
+    /**
+     * @return Number of poses published so far.
+     */
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    /**
+     * Gets the newest pose.
+     *
+     * @return False if no pose was published yet.
+     */
+    public boolean getLatestPose(Pose out) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long published = mPublished.get();
+            if (published == 0) {
+                return false;
+            }
+            if (read(published - 1, out)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the pose at a time, interpolated between the poses before and after it. A time later
+     * than the newest pose by at most the maximum staleness gets the newest pose.
+     *
+     * @param out Receives the pose, with its timestamp set to the requested time.
+     * @return False if the time is not covered by the poses in the ring.
+     */
+    public boolean getPoseAt(double timestamp, Pose out) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long published = mPublished.get();
+            if (published == 0) {
+                return false;
+            }
+            long newest = published - 1;
+            long oldest = Math.max(0, published - mCapacity + 1);
+            double newestTime = readTimestamp(newest);
+            if (Double.isNaN(newestTime)) {
+                continue;
+            }
+            if (timestamp >= newestTime) {
+                if (timestamp - newestTime > mMaxStaleness) {
+                    return false;
+                }
+                if (read(newest, out)) {
+                    out.timestamp = timestamp;
+                    return true;
+                }
+                continue;
+            }
+            double oldestTime = readTimestamp(oldest);
+            if (Double.isNaN(oldestTime)) {
+                continue;
+            }
+            if (timestamp < oldestTime) {
+                return false;
+            }
+            // Binary search for the poses around the time: time(low) <= timestamp < time(high).
+            long low = oldest;
+            long high = newest;
+            boolean lapped = false;
+            while (high - low > 1) {
+                long middle = (low + high) >>> 1;
+                double middleTime = readTimestamp(middle);
+                if (Double.isNaN(middleTime)) {
+                    lapped = true;
+                    break;
+                }
+                if (middleTime <= timestamp) {
+                    low = middle;
+                } else {
+                    high = middle;
+                }
+            }
+            if (!lapped && read(low, out) && interpolate(high, timestamp, out)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long sequenceOf(long pose) {
+        return 2 * pose + 2;
+    }
+
+    /**
+     * @return The timestamp of a pose, or NaN if it was replaced.
+     */
+    private double readTimestamp(long pose) {
+        int base = (int) (pose % mCapacity) * FIELDS;
+        long sequence = sequenceOf(pose);
+        if (mSlots.get(base) != sequence) {
+            return Double.NaN;
+        }
+        double timestamp = Double.longBitsToDouble(mSlots.get(base + 1));
+        return mSlots.get(base) == sequence ? timestamp : Double.NaN;
+    }
+
+    /**
+     * Copy a pose, returning false if it was replaced.
+     */
+    private boolean read(long pose, Pose out) {
+        int base = (int) (pose % mCapacity) * FIELDS;
+        long sequence = sequenceOf(pose);
+        AtomicLongArray slots = mSlots;
+        if (slots.get(base) != sequence) {
+            return false;
+        }
+        out.timestamp = Double.longBitsToDouble(slots.get(base + 1));
+        out.translation[0] = Double.longBitsToDouble(slots.get(base + 2));
+        out.translation[1] = Double.longBitsToDouble(slots.get(base + 3));
+        out.translation[2] = Double.longBitsToDouble(slots.get(base + 4));
+        out.rotation[0] = Double.longBitsToDouble(slots.get(base + 5));
+        out.rotation[1] = Double.longBitsToDouble(slots.get(base + 6));
+        out.rotation[2] = Double.longBitsToDouble(slots.get(base + 7));
+        out.rotation[3] = Double.longBitsToDouble(slots.get(base + 8));
+        return slots.get(base) == sequence;
+    }
+
+    /**
+     * Interpolate from the pose in {@code out} toward a later pose of the ring, returning false
+     * if that pose was replaced.
+     */
+    private boolean interpolate(long pose, double timestamp, Pose out) {
+        int base = (int) (pose % mCapacity) * FIELDS;
+        long sequence = sequenceOf(pose);
+        AtomicLongArray slots = mSlots;
+        if (slots.get(base) != sequence) {
+            return false;
+        }
+        double t1 = Double.longBitsToDouble(slots.get(base + 1));
+        double x1 = Double.longBitsToDouble(slots.get(base + 2));
+        double y1 = Double.longBitsToDouble(slots.get(base + 3));
+        double z1 = Double.longBitsToDouble(slots.get(base + 4));
+        double qx1 = Double.longBitsToDouble(slots.get(base + 5));
+        double qy1 = Double.longBitsToDouble(slots.get(base + 6));
+        double qz1 = Double.longBitsToDouble(slots.get(base + 7));
+        double qw1 = Double.longBitsToDouble(slots.get(base + 8));
+        if (slots.get(base) != sequence) {
+            return false;
+        }
+
+        double f = (timestamp - out.timestamp) / (t1 - out.timestamp);
+        double[] t = out.translation;
+        t[0] += f * (x1 - t[0]);
+        t[1] += f * (y1 - t[1]);
+        t[2] += f * (z1 - t[2]);
+
+        double[] q = out.rotation;
+        double dot = q[0] * qx1 + q[1] * qy1 + q[2] * qz1 + q[3] * qw1;
+        // q and -q are the same rotation: take the shorter way around.
+        if (dot < 0) {
+            dot = -dot;
+            qx1 = -qx1;
+            qy1 = -qy1;
+            qz1 = -qz1;
+            qw1 = -qw1;
+        }
+        double w0;
+        double w1;
+        if (dot > SLERP_THRESHOLD) {
+            w0 = 1 - f;
+            w1 = f;
+        } else {
+            double angle = Math.acos(dot);
+            double inverseSin = 1 / Math.sin(angle);
+            w0 = Math.sin((1 - f) * angle) * inverseSin;
+            w1 = Math.sin(f * angle) * inverseSin;
+        }
+        double qx = w0 * q[0] + w1 * qx1;
+        double qy = w0 * q[1] + w1 * qy1;
+        double qz = w0 * q[2] + w1 * qz1;
+        double qw = w0 * q[3] + w1 * qw1;
+        double inverseNorm = 1 / Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+        q[0] = qx * inverseNorm;
+        q[1] = qy * inverseNorm;
+        q[2] = qz * inverseNorm;
+        q[3] = qw * inverseNorm;
+        out.timestamp = timestamp;
+        return true;
+    }
+}
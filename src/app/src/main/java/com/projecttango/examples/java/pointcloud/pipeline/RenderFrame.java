@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import com.projecttango.examples.java.pointcloud.processing.DepthColorMap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A point cloud ready to be uploaded for rendering: XYZC vertices and their packed RGBA colors in
+ * direct buffers, prepared by {@link RenderFramePreparer}.
+ */
+public class RenderFrame {
+    public static final int FLOATS_PER_POINT = 4;
+
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final int mMaxPoints;
+    private final FloatBuffer mVertices;
+    private final ByteBuffer mColors;
+    private final IntBuffer mPackedColors;
+
+    private double mTimestamp;
+    private int mNumPoints;
+    private long mPrepareNanos;
+
+    public RenderFrame(int maxPoints) {
+        mMaxPoints = maxPoints;
+        mVertices = ByteBuffer.allocateDirect(maxPoints * FLOATS_PER_POINT * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mColors = ByteBuffer.allocateDirect(maxPoints * DepthColorMap.BYTES_PER_PACKED_COLOR)
+                .order(ByteOrder.nativeOrder());
+        mPackedColors = mColors.asIntBuffer();
+    }
+
+    void set(double timestamp, int numPoints, long prepareNanos) {
+        mTimestamp = timestamp;
+        mNumPoints = numPoints;
+        mPrepareNanos = prepareNanos;
+    }
+
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getNumPoints() {
+        return mNumPoints;
+    }
+
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+
+    /**
+     * @return Vertices in XYZC format.
+     */
+    public FloatBuffer getVertices() {
+        return mVertices;
+    }
+
+    /**
+     * @return One RGBA color per vertex, four unsigned bytes each.
+     */
+    public ByteBuffer getColors() {
+        return mColors;
+    }
+
+    IntBuffer getPackedColors() {
+        return mPackedColors;
+    }
+
+    /**
+     * @return Time spent downsampling and coloring this frame.
+     */
+    public long getPrepareNanos() {
+        return mPrepareNanos;
+    }
+}
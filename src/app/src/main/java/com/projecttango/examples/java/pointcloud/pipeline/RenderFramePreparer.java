@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import com.projecttango.examples.java.pointcloud.processing.DepthColorMap;
+import com.projecttango.examples.java.pointcloud.processing.ParallelChunks;
+import com.projecttango.examples.java.pointcloud.processing.TemporalVoxelFilter;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Prepares point clouds for rendering away from the OpenGL thread. Run by an
+ * {@link AnalysisWorker}, it downsamples and colors each frame into a {@link RenderFrame} and
+ * hands it to the rendering thread through a {@link LatestFrameExchanger}, so the rendering
+ * thread only has to pick up the newest frame and upload it.
+ * <p/>
+ * Once a {@link DepthPoseProvider} is set, points that are not stable across frames are left out
+ * too, so transient speckle is not uploaded and drawn.
+ */
+public class RenderFramePreparer implements AnalysisWorker.FrameProcessor {
+    private final VoxelGridFilter mVoxelFilter;
+    private final DepthColorMap mColorMap;
+    private final LatestFrameExchanger<RenderFrame> mExchanger;
+    private final TemporalVoxelFilter mTemporalFilter;
+    private final float[] mDepthPose = new float[16];
+    private DepthPoseProvider mDepthPoseProvider;
+
+    private volatile float mVoxelSize;
+    private volatile long mLastPrepareNanos;
+
+    /**
+     * @param maxPoints Maximum number of points per frame. Input points must be in XYZC format.
+     * @param colorMap  Colors the points, only used from the worker thread.
+     * @param voxelSize Edge length of the voxels used to thin out the cloud, zero to keep every
+     *                  point.
+     */
+    public RenderFramePreparer(int maxPoints, DepthColorMap colorMap, float voxelSize) {
+        mVoxelFilter = new VoxelGridFilter(maxPoints, RenderFrame.FLOATS_PER_POINT,
+                voxelSize > 0 ? voxelSize : ObstacleAnalyzer.DEFAULT_VOXEL_SIZE_METERS);
+        mColorMap = colorMap;
+        mExchanger = new LatestFrameExchanger<RenderFrame>(new RenderFrame(maxPoints),
+                new RenderFrame(maxPoints), new RenderFrame(maxPoints));
+        mTemporalFilter = new TemporalVoxelFilter(maxPoints, RenderFrame.FLOATS_PER_POINT,
+                ObstacleAnalyzer.TEMPORAL_VOXEL_SIZE_METERS, ObstacleAnalyzer.MAX_TEMPORAL_VOXELS);
+        mVoxelSize = voxelSize;
+    }
+
+    /**
+     * Used to line frames up in the world so points that are not stable across frames can be
+     * left out. Without it, or for frames without a pose, every point is rendered. Must be called
+     * before the first frame is processed.
+     */
+    public void setDepthPoseProvider(DepthPoseProvider depthPoseProvider) {
+        mDepthPoseProvider = depthPoseProvider;
+    }
+
+    /**
+     * Sets the voxel size used to downsample the following frames. Zero keeps every point.
+     * May be called from any thread.
+     */
+    public void setVoxelSize(float voxelSize) {
+        mVoxelSize = voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    /**
+     * Splits downsampling and coloring of large frames across the threads of {@code parallel},
+     * or runs them on the worker thread only if null. Must be called before the first frame is
+     * processed.
+     */
+    public void setParallel(ParallelChunks parallel) {
+        mVoxelFilter.setParallel(parallel);
+        mColorMap.setParallel(parallel);
+    }
+
+    @Override
+    public void process(PointCloudFrame frame) {
+        if (frame.getFloatsPerPoint() != RenderFrame.FLOATS_PER_POINT) {
+            throw new IllegalArgumentException("Render frames need XYZC points");
+        }
+        long start = System.nanoTime();
+        RenderFrame out = mExchanger.getWriteBuffer();
+        FloatBuffer vertices = out.getVertices();
+        int numPoints;
+        float voxelSize = mVoxelSize;
+        if (voxelSize > 0) {
+            mVoxelFilter.setVoxelSize(voxelSize);
+            numPoints = mVoxelFilter.filter(frame.getPoints(), frame.getNumPoints(), vertices);
+        } else {
+            FloatBuffer points = frame.getPoints();
+            numPoints = frame.getNumPoints();
+            int sourceLimit = points.limit();
+            points.rewind();
+            points.limit(numPoints * RenderFrame.FLOATS_PER_POINT);
+            vertices.clear();
+            vertices.put(points);
+            vertices.flip();
+            points.limit(sourceLimit);
+            points.rewind();
+        }
+        if (mDepthPoseProvider != null
+                && mDepthPoseProvider.getDepthPose(frame.getTimestamp(), mDepthPose)) {
+            numPoints = mTemporalFilter.filter(vertices, numPoints, mDepthPose, vertices);
+        }
+        mColorMap.fill(vertices, numPoints, out.getPackedColors());
+        long prepareNanos = System.nanoTime() - start;
+        out.set(frame.getTimestamp(), numPoints, prepareNanos);
+        mExchanger.publish();
+        mLastPrepareNanos = prepareNanos;
+    }
+
+    /**
+     * Take the newest prepared frame. The frame stays valid until the next call.
+     * Rendering thread only.
+     *
+     * @return The newest frame, or null if none was prepared since the last call.
+     */
+    public RenderFrame poll() {
+        return mExchanger.poll();
+    }
+
+    /**
+     * @return Time spent preparing the last frame. May be called from any thread.
+     */
+    public long getLastPrepareNanos() {
+        return mLastPrepareNanos;
+    }
+
+    public long getFramesPrepared() {
+        return mExchanger.getPublishedCount();
+    }
+
+    /**
+     * @return Number of prepared frames replaced by a newer one before being rendered.
+     */
+    public long getFramesDropped() {
+        return mExchanger.getDroppedCount();
+    }
+}
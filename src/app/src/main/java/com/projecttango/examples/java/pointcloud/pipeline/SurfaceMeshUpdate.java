@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import com.projecttango.examples.java.pointcloud.mapping.MarchingCubes;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Triangle meshes of the volume blocks re-meshed since the last update, ready to be uploaded:
+ * XYZ vertices and their packed RGBA colors in direct buffers, prepared by
+ * {@link SurfaceReconstructor}. The mesh of each block replaces the one uploaded before for the
+ * same block; a block with no vertices left has no surface anymore.
+ */
+public class SurfaceMeshUpdate {
+    public static final int FLOATS_PER_VERTEX = MarchingCubes.FLOATS_PER_VERTEX;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BYTES_PER_PACKED_COLOR = 4;
+
+    private final int mMaxVertices;
+    private final FloatBuffer mVertices;
+    private final ByteBuffer mColors;
+    private final IntBuffer mPackedColors;
+    private final int[] mBlocks;
+    private final int[] mFirstVertices;
+    private final int[] mVertexCounts;
+
+    private double mTimestamp;
+    private int mBlockCount;
+    private int mVertexCount;
+    private long mMeshNanos;
+
+    /**
+     * @param maxBlocks   Most blocks in one update.
+     * @param maxVertices Most vertices for all the blocks together, at least
+     *                    {@link MarchingCubes#getMaxVerticesPerBlock()} so any block fits.
+     */
+    public SurfaceMeshUpdate(int maxBlocks, int maxVertices) {
+        if (maxVertices < MarchingCubes.getMaxVerticesPerBlock()) {
+            throw new IllegalArgumentException("Room needed for at least one full block");
+        }
+        mMaxVertices = maxVertices;
+        mVertices = ByteBuffer.allocateDirect(maxVertices * FLOATS_PER_VERTEX * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mColors = ByteBuffer.allocateDirect(maxVertices * BYTES_PER_PACKED_COLOR)
+                .order(ByteOrder.nativeOrder());
+        mPackedColors = mColors.asIntBuffer();
+        mBlocks = new int[maxBlocks];
+        mFirstVertices = new int[maxBlocks];
+        mVertexCounts = new int[maxBlocks];
+    }
+
+    void clear(double timestamp) {
+        mTimestamp = timestamp;
+        mBlockCount = 0;
+        mVertexCount = 0;
+    }
+
+    /**
+     * Append the mesh of one block.
+     *
+     * @return False, leaving the update unchanged, if there is no room left for it.
+     */
+    boolean add(int block, float[] vertices, int[] colors, int vertexCount) {
+        if (mBlockCount == mBlocks.length || mVertexCount + vertexCount > mMaxVertices) {
+            return false;
+        }
+        mVertices.position(mVertexCount * FLOATS_PER_VERTEX);
+        mVertices.put(vertices, 0, vertexCount * FLOATS_PER_VERTEX);
+        mPackedColors.position(mVertexCount);
+        mPackedColors.put(colors, 0, vertexCount);
+        mBlocks[mBlockCount] = block;
+        mFirstVertices[mBlockCount] = mVertexCount;
+        mVertexCounts[mBlockCount] = vertexCount;
+        mBlockCount++;
+        mVertexCount += vertexCount;
+        return true;
+    }
+
+    void setMeshNanos(long meshNanos) {
+        mMeshNanos = meshNanos;
+    }
+
+    /**
+     * @return Timestamp of the depth frame integrated last before meshing.
+     */
+    public double getTimestamp() {
+        return mTimestamp;
+    }
+
+    public int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * @return Volume block id of the {@code i}-th mesh, below the volume's maximum block count.
+     */
+    public int getBlock(int i) {
+        return mBlocks[i];
+    }
+
+    public int getFirstVertex(int i) {
+        return mFirstVertices[i];
+    }
+
+    public int getVertexCount(int i) {
+        return mVertexCounts[i];
+    }
+
+    /**
+     * @return Vertices of all the blocks together.
+     */
+    public int getTotalVertexCount() {
+        return mVertexCount;
+    }
+
+    /**
+     * @return Vertices in XYZ format in the world frame, three per triangle.
+     */
+    public FloatBuffer getVertices() {
+        return mVertices;
+    }
+
+    /**
+     * @return One RGBA color per vertex, four unsigned bytes each.
+     */
+    public ByteBuffer getColors() {
+        return mColors;
+    }
+
+    /**
+     * @return Time spent integrating the last frame and meshing the blocks of this update.
+     */
+    public long getMeshNanos() {
+        return mMeshNanos;
+    }
+}
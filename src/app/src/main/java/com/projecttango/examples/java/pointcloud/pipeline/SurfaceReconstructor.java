@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import com.projecttango.examples.java.pointcloud.mapping.MarchingCubes;
+import com.projecttango.examples.java.pointcloud.mapping.TsdfVolume;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+/**
+ * Reconstructs surfaces from depth frames away from the OpenGL thread. Run by an
+ * {@link AnalysisWorker}, it fuses each posed frame into a {@link TsdfVolume}, re-meshes only
+ * the blocks that frame touched with {@link MarchingCubes} and hands the meshes to the rendering
+ * thread through a {@link LatestFrameExchanger}.
+ * <p/>
+ * Meshes not yet rendered when a newer update replaces them are not lost: their blocks are
+ * queued again and re-meshed with the next frame.
+ */
+public class SurfaceReconstructor implements AnalysisWorker.FrameProcessor {
+    public static final float DEFAULT_VOXEL_SIZE_METERS = 0.04f;
+    public static final float DEFAULT_TRUNCATION_METERS = 0.12f;
+    public static final int DEFAULT_MAX_BLOCKS = 4096;
+    // Blocks meshed per frame at most, the rest waits for the following frames.
+    public static final int MAX_BLOCKS_PER_UPDATE = 64;
+    // Vertices per update, enough for the typical blocks of a frame, which hold a single surface.
+    static final int MAX_UPDATE_VERTICES = 8 * MarchingCubes.getMaxVerticesPerBlock();
+
+    private final VoxelGridFilter mVoxelFilter;
+    private final TsdfVolume mVolume;
+    private final MarchingCubes mMesher = new MarchingCubes();
+    private final LatestFrameExchanger<SurfaceMeshUpdate> mExchanger;
+    private final int[] mBlocks = new int[MAX_BLOCKS_PER_UPDATE];
+    private final float[] mDepthPose = new float[16];
+    private DepthPoseProvider mDepthPoseProvider;
+
+    private volatile long mLastMeshNanos;
+    private volatile int mLastBlocksMeshed;
+
+    public SurfaceReconstructor(int maxPoints, int floatsPerPoint) {
+        this(maxPoints, floatsPerPoint, DEFAULT_VOXEL_SIZE_METERS, DEFAULT_TRUNCATION_METERS,
+                DEFAULT_MAX_BLOCKS);
+    }
+
+    /**
+     * @param maxPoints      Maximum number of points per frame.
+     * @param floatsPerPoint Floats per input point, XYZ first.
+     * @param voxelSize      Edge length of the volume voxels, which frames are downsampled to
+     *                       before being fused.
+     * @param truncation     Distance around each surface over which the volume is updated.
+     * @param maxBlocks      Most volume blocks kept, see {@link TsdfVolume}.
+     */
+    public SurfaceReconstructor(int maxPoints, int floatsPerPoint, float voxelSize,
+                                float truncation, int maxBlocks) {
+        mVoxelFilter = new VoxelGridFilter(maxPoints, floatsPerPoint, voxelSize);
+        mVolume = new TsdfVolume(voxelSize, truncation, maxBlocks,
+                VoxelGridFilter.OUTPUT_FLOATS_PER_POINT);
+        mExchanger = new LatestFrameExchanger<SurfaceMeshUpdate>(
+                new SurfaceMeshUpdate(MAX_BLOCKS_PER_UPDATE, MAX_UPDATE_VERTICES),
+                new SurfaceMeshUpdate(MAX_BLOCKS_PER_UPDATE, MAX_UPDATE_VERTICES),
+                new SurfaceMeshUpdate(MAX_BLOCKS_PER_UPDATE, MAX_UPDATE_VERTICES));
+    }
+
+    /**
+     * Used for frames published without a pose; frames without either are skipped. Must be
+     * called before the first frame is processed.
+     */
+    public void setDepthPoseProvider(DepthPoseProvider depthPoseProvider) {
+        mDepthPoseProvider = depthPoseProvider;
+    }
+
+    @Override
+    public void process(PointCloudFrame frame) {
+        float[] worldTdepth;
+        if (frame.hasDepthPose()) {
+            worldTdepth = frame.getDepthPose();
+        } else if (mDepthPoseProvider != null
+                && mDepthPoseProvider.getDepthPose(frame.getTimestamp(), mDepthPose)) {
+            worldTdepth = mDepthPose;
+        } else {
+            return;
+        }
+        long start = System.nanoTime();
+        // One point per voxel is all the volume can resolve, and fusing the centroid of each
+        // voxel instead of every raw point divides the integration work several times over.
+        int numPoints = mVoxelFilter.filter(frame.getPoints(), frame.getNumPoints());
+        mVolume.integrate(mVoxelFilter.getOutput(), numPoints, worldTdepth);
+        mesh(frame.getTimestamp(), start);
+    }
+
+    private void mesh(double timestamp, long start) {
+        int numBlocks = mVolume.takeDirtyBlocks(mBlocks, MAX_BLOCKS_PER_UPDATE);
+        if (numBlocks == 0) {
+            return;
+        }
+        SurfaceMeshUpdate update = mExchanger.getWriteBuffer();
+        update.clear(timestamp);
+        for (int i = 0; i < numBlocks; i++) {
+            int vertexCount = mMesher.meshBlock(mVolume, mBlocks[i]);
+            if (!update.add(mBlocks[i], mMesher.getVertices(), mMesher.getColors(),
+                    vertexCount)) {
+                // Out of room: the blocks left over go with the next update.
+                for (int j = i; j < numBlocks; j++) {
+                    mVolume.markDirty(mBlocks[j]);
+                }
+                break;
+            }
+        }
+        long meshNanos = System.nanoTime() - start;
+        update.setMeshNanos(meshNanos);
+        if (mExchanger.publish()) {
+            // The update that was replaced is our write buffer again; its blocks were never
+            // rendered so they are meshed again.
+            SurfaceMeshUpdate dropped = mExchanger.getWriteBuffer();
+            for (int i = 0; i < dropped.getBlockCount(); i++) {
+                mVolume.markDirty(dropped.getBlock(i));
+            }
+        }
+        mLastMeshNanos = meshNanos;
+        mLastBlocksMeshed = update.getBlockCount();
+    }
+
+    /**
+     * Take the newest mesh update. The update stays valid until the next call.
+     * Rendering thread only.
+     *
+     * @return The newest update, or null if there is none since the last call.
+     */
+    public SurfaceMeshUpdate poll() {
+        return mExchanger.poll();
+    }
+
+    /**
+     * @return The volume, only to be used from the worker thread.
+     */
+    public TsdfVolume getVolume() {
+        return mVolume;
+    }
+
+    public int getMaxBlocks() {
+        return mVolume.getMaxBlocks();
+    }
+
+    /**
+     * @return Time spent fusing and meshing the last frame. May be called from any thread.
+     */
+    public long getLastMeshNanos() {
+        return mLastMeshNanos;
+    }
+
+    /**
+     * @return Number of blocks meshed for the last update. May be called from any thread.
+     */
+    public int getLastBlocksMeshed() {
+        return mLastBlocksMeshed;
+    }
+
+    /**
+     * @return Number of updates replaced by a newer one before being rendered.
+     */
+    public long getUpdatesDropped() {
+        return mExchanger.getDroppedCount();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Colors points by depth using a palette of ARGB colors spread evenly between zero and a maximum
+ * depth. The palette is converted once into RGBA lookup tables, both as normalized floats and as
+ * packed bytes ready for a {@code GL_UNSIGNED_BYTE} vertex attribute, so filling colors is a
+ * table lookup per point with no per frame allocation.
+ * Instances are not thread safe, but filling packed colors can be split across the threads of a
+ * {@link ParallelChunks}, see {@link #setParallel}.
+ */
+public class DepthColorMap {
+    public static final int BYTES_PER_PACKED_COLOR = 4;
+    public static final int FLOATS_PER_COLOR = 4;
+
+    // Number of points read from the buffer per bulk read.
+    private static final int CHUNK_POINTS = 1024;
+
+    private final float mMaxDepth;
+    private final int mPaletteSize;
+    private final int mFloatsPerPoint;
+    // RGBA bytes of each palette color as stored in memory, read as a native order int.
+    private final int[] mPackedRgba;
+    private final float[] mRgba;
+    private final float[] mScratch;
+    private final int[] mPackedScratch = new int[CHUNK_POINTS];
+
+    private ParallelChunks mParallel;
+    private float[][] mWorkerScratch;
+    private int[][] mWorkerPackedScratch;
+    private FloatBuffer mTaskPoints;
+    private IntBuffer mTaskColors;
+    private final ParallelChunks.ChunkTask mFillTask = new ParallelChunks.ChunkTask() {
+        @Override
+        public void processChunk(int worker, int chunk, int first, int count) {
+            FloatBuffer points = mParallel.view(worker, mTaskPoints);
+            IntBuffer colors = mParallel.view(worker, mTaskColors);
+            points.position(first * mFloatsPerPoint);
+            colors.position(first);
+            fillPacked(points, count, colors, mWorkerScratch[worker],
+                    mWorkerPackedScratch[worker]);
+        }
+    };
+
+    /**
+     * @param argbPalette    Colors as ARGB ints, as returned by {@code Color.HSVToColor}.
+     *                       The first color is used at zero depth, the last up to the max depth.
+     * @param maxDepth       Depth mapped past the end of the palette. Farther points get the
+     *                       last color.
+     * @param floatsPerPoint Float values per point. XYZ format = 3, XYZC format = 4.
+     */
+    public DepthColorMap(int[] argbPalette, float maxDepth, int floatsPerPoint) {
+        if (argbPalette.length == 0) {
+            throw new IllegalArgumentException("Palette must not be empty");
+        }
+        mMaxDepth = maxDepth;
+        mPaletteSize = argbPalette.length;
+        mFloatsPerPoint = floatsPerPoint;
+        mScratch = new float[CHUNK_POINTS * floatsPerPoint];
+
+        boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+        mPackedRgba = new int[mPaletteSize];
+        mRgba = new float[mPaletteSize * FLOATS_PER_COLOR];
+        for (int i = 0; i < mPaletteSize; i++) {
+            int color = argbPalette[i];
+            int a = color >>> 24;
+            int r = (color >> 16) & 0xff;
+            int g = (color >> 8) & 0xff;
+            int b = color & 0xff;
+            mPackedRgba[i] = littleEndian
+                    ? (a << 24) | (b << 16) | (g << 8) | r
+                    : (r << 24) | (g << 16) | (b << 8) | a;
+            mRgba[i * FLOATS_PER_COLOR] = r / 255f;
+            mRgba[i * FLOATS_PER_COLOR + 1] = g / 255f;
+            mRgba[i * FLOATS_PER_COLOR + 2] = b / 255f;
+            mRgba[i * FLOATS_PER_COLOR + 3] = a / 255f;
+        }
+    }
+
+    /**
+     * Split filling packed colors across the threads of {@code parallel}, or fill them on the
+     * calling thread only if null. Every point is colored on its own, so the result is the same.
+     */
+    public void setParallel(ParallelChunks parallel) {
+        if (parallel == null) {
+            mParallel = null;
+            mWorkerScratch = null;
+            mWorkerPackedScratch = null;
+            return;
+        }
+        mWorkerScratch = new float[parallel.getThreads()][CHUNK_POINTS * mFloatsPerPoint];
+        mWorkerPackedScratch = new int[parallel.getThreads()][CHUNK_POINTS];
+        mParallel = parallel;
+    }
+
+    public int getPaletteSize() {
+        return mPaletteSize;
+    }
+
+    public float getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return Palette index used for a depth, clamped to the palette.
+     */
+    public int colorIndex(float depth) {
+        // Same arithmetic as the original per point float computation, so the index is
+        // identical for every depth including the ones right on a palette boundary.
+        int index = (int) (depth / mMaxDepth * mPaletteSize);
+        if (index >= mPaletteSize) {
+            return mPaletteSize - 1;
+        } else if (index < 0) {
+            return 0;
+        }
+        return index;
+    }
+
+    /**
+     * Write one packed RGBA color per point, starting at index zero of {@code colors}.
+     *
+     * @param points Points buffer, read from index zero and rewound afterwards.
+     * @param colors Native order int view of the byte buffer uploaded to the GPU.
+     */
+    public void fill(FloatBuffer points, int numPoints, IntBuffer colors) {
+        if (colors.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("Color buffer must use the native byte order");
+        }
+        ParallelChunks parallel = mParallel;
+        if (parallel != null) {
+            mTaskPoints = points;
+            mTaskColors = colors;
+            parallel.forEachChunk(numPoints, mFillTask);
+            mTaskPoints = null;
+            mTaskColors = null;
+            colors.clear();
+            colors.position(numPoints);
+        } else {
+            points.rewind();
+            colors.clear();
+            fillPacked(points, numPoints, colors, mScratch, mPackedScratch);
+        }
+        points.rewind();
+        colors.flip();
+    }
+
+    private void fillPacked(FloatBuffer points, int numPoints, IntBuffer colors, float[] scratch,
+                            int[] packedScratch) {
+        final int[] packedRgba = mPackedRgba;
+        final int stride = mFloatsPerPoint;
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            for (int i = 0; i < chunk; i++) {
+                packedScratch[i] = packedRgba[colorIndex(scratch[i * stride + 2])];
+            }
+            colors.put(packedScratch, 0, chunk);
+            remaining -= chunk;
+        }
+    }
+
+    /**
+     * Write four normalized RGBA floats per point into {@code colors}, starting at index zero.
+     *
+     * @param points Points buffer, read from index zero and rewound afterwards.
+     */
+    public void fill(FloatBuffer points, int numPoints, float[] colors) {
+        final float[] scratch = mScratch;
+        final float[] rgba = mRgba;
+        final int stride = mFloatsPerPoint;
+        points.rewind();
+        int out = 0;
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            for (int i = 0; i < chunk; i++) {
+                int c = colorIndex(scratch[i * stride + 2]) * FLOATS_PER_COLOR;
+                colors[out] = rgba[c];
+                colors[out + 1] = rgba[c + 1];
+                colors[out + 2] = rgba[c + 2];
+                colors[out + 3] = rgba[c + 3];
+                out += FLOATS_PER_COLOR;
+            }
+            remaining -= chunk;
+        }
+        points.rewind();
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Finds the floor in a point cloud with RANSAC, so floor returns can be told apart from obstacles.
+ * <p/>
+ * The plane is fitted to a fixed size subsample of the cloud, which bounds the cost of a frame
+ * regardless of the number of points. Only planes within a maximum tilt of the expected up
+ * direction are considered, and only planes at least a minimum height below the camera, at the
+ * origin of the points: a ceiling, or a table top right under the device, is never taken for
+ * the floor however many points it has. The plane found in the previous frame is scored first,
+ * so on steady footage a good hypothesis is known from the start and the adaptive iteration
+ * count drops to a handful of samples. Candidate planes stop being scored as soon as they can no
+ * longer beat the best one. The winning plane is refined by a least squares fit to its inliers.
+ * <p/>
+ * Planes are stored as a unit normal N pointing up and an offset D, with {@code N.P + D} the
+ * signed height of a point P above the plane. Random sampling uses a fixed seed so results are
+ * reproducible. Nothing is allocated after construction. Not thread safe.
+ */
+public class GroundPlaneEstimator {
+    public static final int DEFAULT_MAX_SAMPLES = 2048;
+    public static final int DEFAULT_MAX_ITERATIONS = 200;
+    public static final float DEFAULT_INLIER_DISTANCE_METERS = 0.04f;
+    public static final float DEFAULT_MAX_TILT_DEGREES = 20f;
+    public static final float DEFAULT_MIN_CAMERA_HEIGHT_METERS = 0.3f;
+    // Fraction of the subsample that must lie on the plane for it to count as the floor.
+    public static final float DEFAULT_MIN_INLIER_FRACTION = 0.1f;
+    // Probability of having drawn at least one all inlier sample when stopping early.
+    private static final double CONFIDENCE = 0.99;
+    private static final int MIN_INLIERS = 30;
+    // When the previous plane still fits, only this fraction of the iterations is spent looking
+    // for a better one.
+    private static final int WARM_START_ITERATION_DIVISOR = 8;
+    private static final int CHUNK_POINTS = 1024;
+
+    private final int mFloatsPerPoint;
+    private final int mMaxSamples;
+    private final float[] mSamples;
+    private final float[] mScratch;
+    private final Random mRandom;
+
+    private float mUpX = 0;
+    private float mUpY = -1;
+    private float mUpZ = 0;
+    private int mMaxIterations = DEFAULT_MAX_ITERATIONS;
+    private float mInlierDistance = DEFAULT_INLIER_DISTANCE_METERS;
+    private float mMinCosTilt = (float) Math.cos(Math.toRadians(DEFAULT_MAX_TILT_DEGREES));
+    private float mMinInlierFraction = DEFAULT_MIN_INLIER_FRACTION;
+    private float mMinCameraHeight = DEFAULT_MIN_CAMERA_HEIGHT_METERS;
+
+    private int mSampleCount;
+    private int mIterations;
+    private boolean mWarmStarted;
+
+    // Plane found in the last frame, if any.
+    private boolean mHasPlane;
+    private float mNormalX;
+    private float mNormalY;
+    private float mNormalZ;
+    private float mOffset;
+    private int mInlierCount;
+
+    // Plane used to warm start the next frame. Kept across frames where no plane is found.
+    private boolean mHasPrior;
+    private float mPriorX;
+    private float mPriorY;
+    private float mPriorZ;
+    private float mPriorOffset;
+
+    /**
+     * @param floatsPerPoint Float values per point. XYZ format = 3, XYZC format = 4.
+     * @param maxSamples     Number of points the plane is fitted to.
+     * @param seed           Seed of the random sampling.
+     */
+    public GroundPlaneEstimator(int floatsPerPoint, int maxSamples, long seed) {
+        if (floatsPerPoint < 3) {
+            throw new IllegalArgumentException("floatsPerPoint must be at least 3");
+        }
+        if (maxSamples < 3) {
+            throw new IllegalArgumentException("maxSamples must be at least 3");
+        }
+        mFloatsPerPoint = floatsPerPoint;
+        mMaxSamples = maxSamples;
+        mSamples = new float[maxSamples * 3];
+        mScratch = new float[CHUNK_POINTS * floatsPerPoint];
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Sets the expected up direction in the frame of the points. The default, (0, -1, 0), is up
+     * for the depth camera of a device held upright.
+     */
+    public void setUpDirection(float x, float y, float z) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (!(length > 0)) {
+            throw new IllegalArgumentException("Up direction must not be zero");
+        }
+        mUpX = x / length;
+        mUpY = y / length;
+        mUpZ = z / length;
+    }
+
+    /**
+     * Planes tilted further than this from the up direction are rejected.
+     */
+    public void setMaxTiltDegrees(float degrees) {
+        mMinCosTilt = (float) Math.cos(Math.toRadians(degrees));
+    }
+
+    /**
+     * Planes less than this height below the camera, the origin of the points, are rejected.
+     */
+    public void setMinCameraHeight(float meters) {
+        mMinCameraHeight = meters;
+    }
+
+    /**
+     * Points closer to the plane than this distance are inliers, and floor points.
+     */
+    public void setInlierDistance(float meters) {
+        mInlierDistance = meters;
+    }
+
+    public float getInlierDistance() {
+        return mInlierDistance;
+    }
+
+    /**
+     * Upper bound on the number of hypotheses scored per frame.
+     */
+    public void setMaxIterations(int maxIterations) {
+        mMaxIterations = maxIterations;
+    }
+
+    public void setMinInlierFraction(float fraction) {
+        mMinInlierFraction = fraction;
+    }
+
+    /**
+     * Forget the previous plane, so the next frame starts from random hypotheses only.
+     */
+    public void reset() {
+        mHasPlane = false;
+        mHasPrior = false;
+    }
+
+    /**
+     * Look for the floor in the first {@code numPoints} points of a buffer. The buffer is read
+     * from index zero and rewound afterwards.
+     *
+     * @return True if a plane was found.
+     */
+    public boolean estimate(FloatBuffer points, int numPoints) {
+        subsample(points, numPoints);
+        final float[] samples = mSamples;
+        final int count = mSampleCount;
+
+        mHasPlane = false;
+        mIterations = 0;
+        mWarmStarted = false;
+        int bestInliers = 0;
+        float bestX = 0;
+        float bestY = 0;
+        float bestZ = 0;
+        float bestD = 0;
+
+        int maxIterations = count < 3 ? 0 : mMaxIterations;
+        if (mHasPrior && mPriorOffset >= mMinCameraHeight) {
+            bestInliers = countInliers(mPriorX, mPriorY, mPriorZ, mPriorOffset, 0);
+            bestX = mPriorX;
+            bestY = mPriorY;
+            bestZ = mPriorZ;
+            bestD = mPriorOffset;
+            mWarmStarted = isSupported(bestInliers, count);
+            if (mWarmStarted) {
+                maxIterations /= WARM_START_ITERATION_DIVISOR;
+            }
+        }
+
+        int needed = adaptiveIterations(bestInliers, count, maxIterations);
+        while (mIterations < needed) {
+            mIterations++;
+            int a = mRandom.nextInt(count) * 3;
+            int b = mRandom.nextInt(count) * 3;
+            int c = mRandom.nextInt(count) * 3;
+            float abX = samples[b] - samples[a];
+            float abY = samples[b + 1] - samples[a + 1];
+            float abZ = samples[b + 2] - samples[a + 2];
+            float acX = samples[c] - samples[a];
+            float acY = samples[c + 1] - samples[a + 1];
+            float acZ = samples[c + 2] - samples[a + 2];
+            float nx = abY * acZ - abZ * acY;
+            float ny = abZ * acX - abX * acZ;
+            float nz = abX * acY - abY * acX;
+            float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length < 1e-6f) {
+                // Repeated or collinear points.
+                continue;
+            }
+            float inverseLength = 1f / length;
+            nx *= inverseLength;
+            ny *= inverseLength;
+            nz *= inverseLength;
+            float cosTilt = nx * mUpX + ny * mUpY + nz * mUpZ;
+            if (cosTilt < 0) {
+                nx = -nx;
+                ny = -ny;
+                nz = -nz;
+                cosTilt = -cosTilt;
+            }
+            if (cosTilt < mMinCosTilt) {
+                continue;
+            }
+            // Height of the camera above the plane.
+            float d = -(nx * samples[a] + ny * samples[a + 1] + nz * samples[a + 2]);
+            if (d < mMinCameraHeight) {
+                continue;
+            }
+            int inliers = countInliers(nx, ny, nz, d, bestInliers);
+            if (inliers > bestInliers) {
+                bestInliers = inliers;
+                bestX = nx;
+                bestY = ny;
+                bestZ = nz;
+                bestD = d;
+                needed = adaptiveIterations(bestInliers, count, maxIterations);
+            }
+        }
+
+        if (!isSupported(bestInliers, count)) {
+            return false;
+        }
+        mHasPlane = true;
+        mNormalX = bestX;
+        mNormalY = bestY;
+        mNormalZ = bestZ;
+        mOffset = bestD;
+        refine();
+        mInlierCount = countInliers(mNormalX, mNormalY, mNormalZ, mOffset, 0);
+
+        mHasPrior = true;
+        mPriorX = mNormalX;
+        mPriorY = mNormalY;
+        mPriorZ = mNormalZ;
+        mPriorOffset = mOffset;
+        return true;
+    }
+
+    private boolean isSupported(int inliers, int count) {
+        return inliers >= MIN_INLIERS && inliers >= mMinInlierFraction * count;
+    }
+
+    /**
+     * Number of random hypotheses needed to draw an all inlier sample with {@link #CONFIDENCE},
+     * given the best inlier ratio so far.
+     */
+    private static int adaptiveIterations(int inliers, int count, int maxIterations) {
+        if (inliers == 0) {
+            return maxIterations;
+        }
+        double ratio = (double) inliers / count;
+        double allInliers = ratio * ratio * ratio;
+        if (allInliers >= 1) {
+            return 0;
+        }
+        double iterations = Math.log(1 - CONFIDENCE) / Math.log(1 - allInliers);
+        return (int) Math.min(maxIterations, Math.ceil(iterations));
+    }
+
+    /**
+     * Copy up to {@code mMaxSamples} evenly spaced points into the sample array.
+     */
+    private void subsample(FloatBuffer points, int numPoints) {
+        final int stride = mFloatsPerPoint;
+        final float[] scratch = mScratch;
+        final float[] samples = mSamples;
+        // Fixed point step so the samples spread over the whole cloud.
+        long step = numPoints <= mMaxSamples ? 1L << 16 : ((long) numPoints << 16) / mMaxSamples;
+        long next = 0;
+        int count = 0;
+        points.rewind();
+        int first = 0;
+        while (first < numPoints && count < mMaxSamples) {
+            int chunk = Math.min(numPoints - first, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            int end = first + chunk;
+            int index = (int) (next >> 16);
+            while (index < end && count < mMaxSamples) {
+                int i = (index - first) * stride;
+                samples[count * 3] = scratch[i];
+                samples[count * 3 + 1] = scratch[i + 1];
+                samples[count * 3 + 2] = scratch[i + 2];
+                count++;
+                next += step;
+                index = (int) (next >> 16);
+            }
+            first = end;
+        }
+        points.rewind();
+        mSampleCount = count;
+    }
+
+    /**
+     * Count the samples within the inlier distance of a plane. Stops early and returns a lower
+     * count once the plane cannot get more than {@code toBeat} inliers.
+     */
+    private int countInliers(float nx, float ny, float nz, float d, int toBeat) {
+        final float[] samples = mSamples;
+        final float threshold = mInlierDistance;
+        final int count = mSampleCount;
+        int inliers = 0;
+        for (int s = 0; s < count; s++) {
+            int i = s * 3;
+            float distance = nx * samples[i] + ny * samples[i + 1] + nz * samples[i + 2] + d;
+            if (distance <= threshold && distance >= -threshold) {
+                inliers++;
+            } else if (inliers + count - s - 1 <= toBeat) {
+                break;
+            }
+        }
+        return inliers;
+    }
+
+    /**
+     * Replace the plane by the least squares fit to its inliers, unless that fit is degenerate or
+     * too tilted.
+     */
+    private void refine() {
+        final float[] samples = mSamples;
+        final float threshold = mInlierDistance;
+        double sumX = 0;
+        double sumY = 0;
+        double sumZ = 0;
+        int n = 0;
+        for (int s = 0; s < mSampleCount; s++) {
+            int i = s * 3;
+            float distance = mNormalX * samples[i] + mNormalY * samples[i + 1]
+                    + mNormalZ * samples[i + 2] + mOffset;
+            if (distance <= threshold && distance >= -threshold) {
+                sumX += samples[i];
+                sumY += samples[i + 1];
+                sumZ += samples[i + 2];
+                n++;
+            }
+        }
+        if (n < 3) {
+            return;
+        }
+        double cx = sumX / n;
+        double cy = sumY / n;
+        double cz = sumZ / n;
+        double xx = 0;
+        double xy = 0;
+        double xz = 0;
+        double yy = 0;
+        double yz = 0;
+        double zz = 0;
+        for (int s = 0; s < mSampleCount; s++) {
+            int i = s * 3;
+            float distance = mNormalX * samples[i] + mNormalY * samples[i + 1]
+                    + mNormalZ * samples[i + 2] + mOffset;
+            if (distance <= threshold && distance >= -threshold) {
+                double x = samples[i] - cx;
+                double y = samples[i + 1] - cy;
+                double z = samples[i + 2] - cz;
+                xx += x * x;
+                xy += x * y;
+                xz += x * z;
+                yy += y * y;
+                yz += y * z;
+                zz += z * z;
+            }
+        }
+        // The normal is the direction of least variance. Solve for it along the axis whose
+        // component is best conditioned.
+        double detX = yy * zz - yz * yz;
+        double detY = xx * zz - xz * xz;
+        double detZ = xx * yy - xy * xy;
+        double nx;
+        double ny;
+        double nz;
+        if (detX >= detY && detX >= detZ) {
+            nx = detX;
+            ny = xz * yz - xy * zz;
+            nz = xy * yz - xz * yy;
+        } else if (detY >= detZ) {
+            nx = xz * yz - xy * zz;
+            ny = detY;
+            nz = xy * xz - yz * xx;
+        } else {
+            nx = xy * yz - xz * yy;
+            ny = xy * xz - yz * xx;
+            nz = detZ;
+        }
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (!(length > 0)) {
+            return;
+        }
+        nx /= length;
+        ny /= length;
+        nz /= length;
+        double cosTilt = nx * mUpX + ny * mUpY + nz * mUpZ;
+        if (cosTilt < 0) {
+            nx = -nx;
+            ny = -ny;
+            nz = -nz;
+            cosTilt = -cosTilt;
+        }
+        if (cosTilt < mMinCosTilt) {
+            return;
+        }
+        mNormalX = (float) nx;
+        mNormalY = (float) ny;
+        mNormalZ = (float) nz;
+        mOffset = (float) -(nx * cx + ny * cy + nz * cz);
+    }
+
+    /**
+     * Copy the points of a buffer that are not on the floor to {@code output}. If no plane was
+     * found, every point is copied.
+     *
+     * @param points Points buffer, read from index zero and rewound afterwards.
+     * @param output Receives the remaining points in the same format from index zero, and is
+     *               flipped. Must have room for as many points as the input.
+     * @return The number of points written to {@code output}.
+     */
+    public int removeFloor(FloatBuffer points, int numPoints, FloatBuffer output) {
+        final int stride = mFloatsPerPoint;
+        final float[] scratch = mScratch;
+        final boolean hasPlane = mHasPlane;
+        final float nx = mNormalX;
+        final float ny = mNormalY;
+        final float nz = mNormalZ;
+        final float d = mOffset;
+        final float threshold = mInlierDistance;
+        int kept = 0;
+        points.rewind();
+        output.clear();
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            // Compact the chunk in place, then write it out in one bulk put.
+            int out = 0;
+            int end = chunk * stride;
+            for (int i = 0; i < end; i += stride) {
+                if (hasPlane) {
+                    float distance =
+                            nx * scratch[i] + ny * scratch[i + 1] + nz * scratch[i + 2] + d;
+                    if (distance <= threshold && distance >= -threshold) {
+                        continue;
+                    }
+                }
+                if (out != i) {
+                    System.arraycopy(scratch, i, scratch, out, stride);
+                }
+                out += stride;
+            }
+            output.put(scratch, 0, out);
+            kept += out / stride;
+            remaining -= chunk;
+        }
+        points.rewind();
+        output.flip();
+        return kept;
+    }
+
+    /**
+     * @return True if the point lies on the floor found in the last frame.
+     */
+    public boolean isFloor(float x, float y, float z) {
+        if (!mHasPlane) {
+            return false;
+        }
+        float distance = getHeight(x, y, z);
+        return distance <= mInlierDistance && distance >= -mInlierDistance;
+    }
+
+    /**
+     * @return Signed distance of a point above the plane found in the last frame.
+     */
+    public float getHeight(float x, float y, float z) {
+        return mNormalX * x + mNormalY * y + mNormalZ * z + mOffset;
+    }
+
+    public boolean hasPlane() {
+        return mHasPlane;
+    }
+
+    public float getNormalX() {
+        return mNormalX;
+    }
+
+    public float getNormalY() {
+        return mNormalY;
+    }
+
+    public float getNormalZ() {
+        return mNormalZ;
+    }
+
+    /**
+     * @return Offset D of the plane, so that N.P + D is zero on the plane.
+     */
+    public float getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * @return Number of samples within the inlier distance of the plane.
+     */
+    public int getInlierCount() {
+        return mInlierCount;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return Number of random hypotheses scored in the last frame.
+     */
+    public int getIterations() {
+        return mIterations;
+    }
+
+    /**
+     * @return True if the previous frame's plane still fitted the last frame, so fewer
+     * hypotheses were needed.
+     */
+    public boolean wasWarmStarted() {
+        return mWarmStarted;
+    }
+}
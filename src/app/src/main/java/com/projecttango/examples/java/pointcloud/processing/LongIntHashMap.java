@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive long keys to int values, using linear probing.
+ * <p/>
+ * Entries are stamped with a generation number so {@link #clear()} is O(1), which makes it cheap
+ * to reuse one map for every frame. The table only grows when the load factor is exceeded; once it
+ * has reached the working size of a scene no more memory is allocated.
+ * Not thread safe.
+ */
+public class LongIntHashMap {
+    /** Returned by lookups when the key is not present. */
+    public static final int NO_VALUE = -1;
+    /** Object header and length of an array, rounded up to 8 bytes as on ART and 64 bit JVMs. */
+    public static final int ARRAY_HEADER_BYTES = 16;
+
+    private static final float MAX_LOAD_FACTOR = 0.5f;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int[] mGenerations;
+    private int mGeneration = 1;
+    private int mMask;
+    private int mSize;
+    private int mResizeThreshold;
+
+    /**
+     * @param expectedSize Number of entries the map should hold without growing.
+     */
+    public LongIntHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int minCapacity = (int) Math.ceil(Math.max(expectedSize, 1) / MAX_LOAD_FACTOR);
+        int capacity = Integer.highestOneBit(minCapacity);
+        return capacity < minCapacity ? capacity << 1 : capacity;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mGenerations = new int[capacity];
+        mMask = capacity - 1;
+        mResizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+    }
+
+    /**
+     * Spread the key bits over the whole hash (MurmurHash3 64 bit finalizer).
+     */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mKeys.length;
+    }
+
+    /**
+     * @return Approximate heap memory used by the key, value and generation arrays, in bytes.
+     */
+    public long getMemoryBytes() {
+        return 3L * ARRAY_HEADER_BYTES + (long) mKeys.length * (8 + 4 + 4);
+    }
+
+    /**
+     * Remove all entries without touching the table memory.
+     */
+    public void clear() {
+        mSize = 0;
+        mGeneration++;
+        if (mGeneration == 0) {
+            // The stamp wrapped around; stale entries could look current again.
+            Arrays.fill(mGenerations, 0);
+            mGeneration = 1;
+        }
+    }
+
+    /**
+     * @return The value stored for the key, or {@link #NO_VALUE}.
+     */
+    public int get(long key) {
+        int slot = hash(key) & mMask;
+        while (mGenerations[slot] == mGeneration) {
+            if (mKeys[slot] == key) {
+                return mValues[slot];
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NO_VALUE;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * Store a value for the key, replacing any previous one.
+     */
+    public void put(long key, int value) {
+        int slot = findSlot(key);
+        if (mGenerations[slot] == mGeneration) {
+            mValues[slot] = value;
+        } else {
+            insertAt(slot, key, value);
+        }
+    }
+
+    /**
+     * Store a value for the key unless one is already present.
+     *
+     * @return The value already stored for the key, or {@link #NO_VALUE} if {@code value} was
+     * inserted.
+     */
+    public int putIfAbsent(long key, int value) {
+        int slot = findSlot(key);
+        if (mGenerations[slot] == mGeneration) {
+            return mValues[slot];
+        }
+        insertAt(slot, key, value);
+        return NO_VALUE;
+    }
+
+    private int findSlot(long key) {
+        int slot = hash(key) & mMask;
+        while (mGenerations[slot] == mGeneration && mKeys[slot] != key) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    private void insertAt(int slot, long key, int value) {
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mGenerations[slot] = mGeneration;
+        if (++mSize > mResizeThreshold) {
+            rehash(mKeys.length << 1);
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        int[] oldGenerations = mGenerations;
+        int oldGeneration = mGeneration;
+        allocate(newCapacity);
+        mGeneration = 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldGenerations[i] == oldGeneration) {
+                int slot = findSlot(oldKeys[i]);
+                mKeys[slot] = oldKeys[i];
+                mValues[slot] = oldValues[i];
+                mGenerations[slot] = mGeneration;
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parallel for over the points of a buffer, run on a small set of dedicated threads.
+ * <p/>
+ * The points are split into chunks of a fixed number of points, so chunk boundaries depend only
+ * on the number of points and never on the number of threads. Kernels reduce each chunk into its
+ * own partial result and merge the partials in chunk order, which gives the same result with one
+ * thread or four. Below a size threshold every chunk is run on the calling thread, in order.
+ * <p/>
+ * The calling thread works on chunks too, as worker zero. Idle workers are parked, and a call
+ * allocates nothing: buffers are read through per worker views, cached while the same buffers
+ * keep being passed in. {@link #forEachChunk} must not be called from several threads at once.
+ * Fork/join pools would fit but need API level 21.
+ */
+public class ParallelChunks {
+    // 64KB of XYZC floats, small enough to stay in the L2 cache of a core.
+    public static final int DEFAULT_CHUNK_POINTS = 4096;
+    // Below this many points, waking the workers costs more than it saves.
+    public static final int DEFAULT_SEQUENTIAL_THRESHOLD = 4 * DEFAULT_CHUNK_POINTS;
+    // Number of buffers each worker keeps a view of, enough for the triple buffered input and
+    // output frames of a stage.
+    private static final int VIEW_CACHE_SIZE = 8;
+
+    /**
+     * Work on one chunk, called on any worker thread.
+     */
+    public interface ChunkTask {
+        /**
+         * @param worker Index of the worker thread, from zero to the number of threads minus one,
+         *               for per worker scratch storage.
+         * @param chunk  Index of the chunk, for per chunk partial results.
+         * @param first  Index of the first point of the chunk.
+         * @param count  Number of points in the chunk.
+         */
+        void processChunk(int worker, int chunk, int first, int count);
+    }
+
+    private final String mName;
+    private final int mThreads;
+    private final int mChunkPoints;
+    private final int mSequentialThreshold;
+    private final Thread[] mWorkers;
+
+    // Chunks of the current call are claimed by incrementing the low half of the cursor, the high
+    // half being the generation of the call so late workers can't claim chunks of the next one.
+    private final AtomicLong mCursor = new AtomicLong();
+    private final AtomicInteger mPending = new AtomicInteger();
+    private volatile int mGeneration;
+    private volatile boolean mRunning = true;
+    private ChunkTask mTask;
+    private int mNumPoints;
+    private int mChunkCount;
+    private Thread mCaller;
+    private volatile Throwable mFailure;
+
+    private final FloatBuffer[][] mFloatViews;
+    private final FloatBuffer[][] mFloatSources;
+    private final IntBuffer[][] mIntViews;
+    private final IntBuffer[][] mIntSources;
+    private final int[] mFloatNext;
+    private final int[] mIntNext;
+
+    /**
+     * @param threads Number of threads working on a call, counting the calling thread.
+     */
+    public ParallelChunks(String name, int threads, int chunkPoints, int sequentialThreshold) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        if (chunkPoints < 1) {
+            throw new IllegalArgumentException("chunkPoints must be at least 1: " + chunkPoints);
+        }
+        mName = name;
+        mThreads = threads;
+        mChunkPoints = chunkPoints;
+        mSequentialThreshold = sequentialThreshold;
+        mFloatViews = new FloatBuffer[threads][VIEW_CACHE_SIZE];
+        mFloatSources = new FloatBuffer[threads][VIEW_CACHE_SIZE];
+        mIntViews = new IntBuffer[threads][VIEW_CACHE_SIZE];
+        mIntSources = new IntBuffer[threads][VIEW_CACHE_SIZE];
+        mFloatNext = new int[threads];
+        mIntNext = new int[threads];
+
+        mWorkers = new Thread[threads - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            final int worker = i + 1;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerLoop(worker);
+                }
+            }, name + "-" + worker);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    public ParallelChunks(String name, int threads) {
+        this(name, threads, DEFAULT_CHUNK_POINTS, DEFAULT_SEQUENTIAL_THRESHOLD);
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    public int getChunkPoints() {
+        return mChunkPoints;
+    }
+
+    public int getChunkCount(int numPoints) {
+        return (numPoints + mChunkPoints - 1) / mChunkPoints;
+    }
+
+    /**
+     * Run a task on every chunk of {@code numPoints} points and wait for all of them to finish.
+     * Exceptions thrown by the task are rethrown on the calling thread.
+     */
+    public void forEachChunk(int numPoints, ChunkTask task) {
+        int chunkCount = getChunkCount(numPoints);
+        if (mThreads == 1 || numPoints < mSequentialThreshold || chunkCount == 1) {
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                int first = chunk * mChunkPoints;
+                task.processChunk(0, chunk, first, Math.min(mChunkPoints, numPoints - first));
+            }
+            return;
+        }
+        if (!mRunning) {
+            throw new IllegalStateException(mName + " is shut down");
+        }
+        // A late worker of the last call may still be about to claim a chunk with its generation.
+        // Exhaust the cursor before the fields change, so such a claim either happened before,
+        // and saw the old fields, or fails. getAndSet rather than set orders that claim before
+        // the writes below.
+        mCursor.getAndSet((long) mGeneration << 32 | Integer.MAX_VALUE);
+        mTask = task;
+        mNumPoints = numPoints;
+        mChunkCount = chunkCount;
+        mCaller = Thread.currentThread();
+        mFailure = null;
+        mPending.set(chunkCount);
+        int generation = mGeneration + 1;
+        mCursor.set((long) generation << 32);
+        // Publishes the fields above to the workers.
+        mGeneration = generation;
+        for (Thread worker : mWorkers) {
+            LockSupport.unpark(worker);
+        }
+        runChunks(0, generation);
+        while (mPending.get() != 0) {
+            LockSupport.park(this);
+        }
+        mTask = null;
+        Throwable failure = mFailure;
+        if (failure != null) {
+            mFailure = null;
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private void workerLoop(int worker) {
+        int seen = 0;
+        while (mRunning) {
+            int generation = mGeneration;
+            if (generation == seen) {
+                LockSupport.park(this);
+                continue;
+            }
+            seen = generation;
+            runChunks(worker, generation);
+        }
+    }
+
+    private void runChunks(int worker, int generation) {
+        // Read before claiming: a successful claim then guarantees these belong to generation.
+        ChunkTask task = mTask;
+        int numPoints = mNumPoints;
+        int chunkCount = mChunkCount;
+        while (true) {
+            long cursor = mCursor.get();
+            int chunk = (int) cursor;
+            if ((int) (cursor >>> 32) != generation || chunk >= chunkCount) {
+                return;
+            }
+            if (!mCursor.compareAndSet(cursor, cursor + 1)) {
+                continue;
+            }
+            int first = chunk * mChunkPoints;
+            try {
+                task.processChunk(worker, chunk, first,
+                        Math.min(mChunkPoints, numPoints - first));
+            } catch (Throwable t) {
+                mFailure = t;
+            }
+            if (mPending.decrementAndGet() == 0 && worker != 0) {
+                LockSupport.unpark(mCaller);
+            }
+        }
+    }
+
+    /**
+     * @return A view of {@code source} owned by {@code worker}, whose position and limit the
+     * worker may change freely. The view is reused as long as the same source is passed in.
+     */
+    public FloatBuffer view(int worker, FloatBuffer source) {
+        FloatBuffer[] sources = mFloatSources[worker];
+        for (int i = 0; i < VIEW_CACHE_SIZE; i++) {
+            if (sources[i] == source) {
+                FloatBuffer view = mFloatViews[worker][i];
+                view.clear();
+                return view;
+            }
+        }
+        int slot = mFloatNext[worker];
+        mFloatNext[worker] = (slot + 1) % VIEW_CACHE_SIZE;
+        sources[slot] = source;
+        FloatBuffer view = source.duplicate();
+        mFloatViews[worker][slot] = view;
+        view.clear();
+        return view;
+    }
+
+    /**
+     * @return A view of {@code source} owned by {@code worker}, like {@link #view(int,
+     * FloatBuffer)}.
+     */
+    public IntBuffer view(int worker, IntBuffer source) {
+        IntBuffer[] sources = mIntSources[worker];
+        for (int i = 0; i < VIEW_CACHE_SIZE; i++) {
+            if (sources[i] == source) {
+                IntBuffer view = mIntViews[worker][i];
+                view.clear();
+                return view;
+            }
+        }
+        int slot = mIntNext[worker];
+        mIntNext[worker] = (slot + 1) % VIEW_CACHE_SIZE;
+        sources[slot] = source;
+        IntBuffer view = source.duplicate();
+        mIntViews[worker][slot] = view;
+        view.clear();
+        return view;
+    }
+
+    /**
+     * Stop the worker threads. Later calls run sequentially only if below the threshold, and fail
+     * otherwise.
+     */
+    public void shutdown() {
+        mRunning = false;
+        for (Thread worker : mWorkers) {
+            LockSupport.unpark(worker);
+        }
+    }
+}
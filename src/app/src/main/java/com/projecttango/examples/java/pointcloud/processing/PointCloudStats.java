@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+/**
+ * Summary statistics of a single point cloud frame, filled in by {@link PointStatisticsKernel}.
+ * Instances are owned by the caller and meant to be reused from frame to frame.
+ * When the cloud is empty every value is zero.
+ */
+public class PointCloudStats {
+    int mCount;
+
+    double mSumX;
+    double mSumY;
+    double mSumZ;
+    float mMinX;
+    float mMinY;
+    float mMinZ;
+    float mMaxX;
+    float mMaxY;
+    float mMaxZ;
+
+    // Confidence weighted sums, using the C channel of XYZC points.
+    double mSumC;
+    double mSumCX;
+    double mSumCY;
+    double mSumCZ;
+
+    /**
+     * Reset all statistics to the empty cloud state.
+     */
+    public void clear() {
+        mCount = 0;
+        mSumX = mSumY = mSumZ = 0;
+        mMinX = mMinY = mMinZ = 0;
+        mMaxX = mMaxY = mMaxZ = 0;
+        mSumC = mSumCX = mSumCY = mSumCZ = 0;
+    }
+
+    /**
+     * Copy all values from another instance.
+     */
+    public void set(PointCloudStats other) {
+        mCount = other.mCount;
+        mSumX = other.mSumX;
+        mSumY = other.mSumY;
+        mSumZ = other.mSumZ;
+        mMinX = other.mMinX;
+        mMinY = other.mMinY;
+        mMinZ = other.mMinZ;
+        mMaxX = other.mMaxX;
+        mMaxY = other.mMaxY;
+        mMaxZ = other.mMaxZ;
+        mSumC = other.mSumC;
+        mSumCX = other.mSumCX;
+        mSumCY = other.mSumCY;
+        mSumCZ = other.mSumCZ;
+    }
+
+    /**
+     * Merge the statistics of another range of points into this one. Merging the partial results
+     * of consecutive ranges in order gives the same result whatever thread computed them.
+     */
+    public void add(PointCloudStats other) {
+        if (other.mCount == 0) {
+            return;
+        }
+        if (mCount == 0) {
+            set(other);
+            return;
+        }
+        mCount += other.mCount;
+        mSumX += other.mSumX;
+        mSumY += other.mSumY;
+        mSumZ += other.mSumZ;
+        mMinX = Math.min(mMinX, other.mMinX);
+        mMinY = Math.min(mMinY, other.mMinY);
+        mMinZ = Math.min(mMinZ, other.mMinZ);
+        mMaxX = Math.max(mMaxX, other.mMaxX);
+        mMaxY = Math.max(mMaxY, other.mMaxY);
+        mMaxZ = Math.max(mMaxZ, other.mMaxZ);
+        mSumC += other.mSumC;
+        mSumCX += other.mSumCX;
+        mSumCY += other.mSumCY;
+        mSumCZ += other.mSumCZ;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public double getMeanX() {
+        return mCount == 0 ? 0 : mSumX / mCount;
+    }
+
+    public double getMeanY() {
+        return mCount == 0 ? 0 : mSumY / mCount;
+    }
+
+    public double getMeanZ() {
+        return mCount == 0 ? 0 : mSumZ / mCount;
+    }
+
+    public float getMinX() {
+        return mMinX;
+    }
+
+    public float getMinY() {
+        return mMinY;
+    }
+
+    public float getMinZ() {
+        return mMinZ;
+    }
+
+    public float getMaxX() {
+        return mMaxX;
+    }
+
+    public float getMaxY() {
+        return mMaxY;
+    }
+
+    public float getMaxZ() {
+        return mMaxZ;
+    }
+
+    /**
+     * @return Sum of the confidence values of all points.
+     */
+    public double getConfidenceSum() {
+        return mSumC;
+    }
+
+    /**
+     * @return Confidence weighted mean of X, or zero if the total confidence is zero.
+     */
+    public double getWeightedMeanX() {
+        return mSumC == 0 ? 0 : mSumCX / mSumC;
+    }
+
+    /**
+     * @return Confidence weighted mean of Y, or zero if the total confidence is zero.
+     */
+    public double getWeightedMeanY() {
+        return mSumC == 0 ? 0 : mSumCY / mSumC;
+    }
+
+    /**
+     * @return Confidence weighted mean of Z, or zero if the total confidence is zero.
+     */
+    public double getWeightedMeanZ() {
+        return mSumC == 0 ? 0 : mSumCZ / mSumC;
+    }
+
+    @Override
+    public String toString() {
+        return "PointCloudStats{count=" + mCount
+                + ", mean=(" + getMeanX() + ", " + getMeanY() + ", " + getMeanZ() + ")"
+                + ", min=(" + mMinX + ", " + mMinY + ", " + mMinZ + ")"
+                + ", max=(" + mMaxX + ", " + mMaxY + ", " + mMaxZ + ")"
+                + ", confidenceSum=" + mSumC + "}";
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Drops low confidence and out of range points of an XYZC cloud, writing the remaining points
+ * densely into a reusable direct buffer.
+ * <p/>
+ * Each point is copied to the next output slot unconditionally and the slot is only kept if the
+ * point passes, so the loop has no data dependent branch for the JIT to mispredict on speckle.
+ * Counts of kept and dropped points are kept per frame and in total. Not thread safe, except for
+ * the getters which may be called from any thread.
+ */
+public class PointCompactor {
+    public static final int FLOATS_PER_POINT = 4;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int CHUNK_POINTS = 1024;
+
+    private final int mMaxPoints;
+    private final FloatBuffer mOutput;
+    private final float[] mScratch = new float[CHUNK_POINTS * FLOATS_PER_POINT];
+    private final float[] mKept = new float[CHUNK_POINTS * FLOATS_PER_POINT];
+
+    private float mMinConfidence;
+    private float mMinDepth;
+    private float mMaxDepth;
+
+    private volatile int mInputCount;
+    private volatile int mKeptCount;
+    private volatile long mTotalInput;
+    private volatile long mTotalKept;
+
+    /**
+     * @param maxPoints     Maximum number of points per cloud.
+     * @param minConfidence Points with a lower C value are dropped.
+     * @param minDepth      Points closer along Z are dropped.
+     * @param maxDepth      Points farther along Z are dropped.
+     */
+    public PointCompactor(int maxPoints, float minConfidence, float minDepth, float maxDepth) {
+        mMaxPoints = maxPoints;
+        mOutput = ByteBuffer.allocateDirect(maxPoints * FLOATS_PER_POINT * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        setMinConfidence(minConfidence);
+        setDepthRange(minDepth, maxDepth);
+    }
+
+    public void setMinConfidence(float minConfidence) {
+        mMinConfidence = minConfidence;
+    }
+
+    public float getMinConfidence() {
+        return mMinConfidence;
+    }
+
+    public void setDepthRange(float minDepth, float maxDepth) {
+        if (!(minDepth <= maxDepth)) {
+            throw new IllegalArgumentException(
+                    "Empty depth range: " + minDepth + " to " + maxDepth);
+        }
+        mMinDepth = minDepth;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Compact the first {@code numPoints} points of a buffer into the compactor's own buffer.
+     * The input is read from index zero and rewound afterwards.
+     *
+     * @return The number of points kept.
+     */
+    public int compact(FloatBuffer points, int numPoints) {
+        return compact(points, numPoints, mOutput);
+    }
+
+    /**
+     * Compact into a caller supplied buffer instead of the compactor's own.
+     *
+     * @param output Receives the kept points in XYZC format from index zero, and is flipped.
+     *               Must have room for as many points as the input.
+     * @return The number of points kept.
+     */
+    public int compact(FloatBuffer points, int numPoints, FloatBuffer output) {
+        if (numPoints > mMaxPoints) {
+            throw new IllegalArgumentException(
+                    String.format("numPoints = %d exceeds maximum number of points = %d",
+                            numPoints, mMaxPoints));
+        }
+        final float[] scratch = mScratch;
+        final float[] kept = mKept;
+        final float minConfidence = mMinConfidence;
+        final float minDepth = mMinDepth;
+        final float maxDepth = mMaxDepth;
+        points.rewind();
+        output.clear();
+        int totalKept = 0;
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * FLOATS_PER_POINT);
+            int end = chunk * FLOATS_PER_POINT;
+            int out = 0;
+            for (int i = 0; i < end; i += FLOATS_PER_POINT) {
+                float z = scratch[i + 2];
+                float c = scratch[i + 3];
+                kept[out] = scratch[i];
+                kept[out + 1] = scratch[i + 1];
+                kept[out + 2] = z;
+                kept[out + 3] = c;
+                // Non short-circuit ands so the test compiles to conditional moves. NaN depths
+                // fail every comparison and are dropped.
+                boolean keep = (c >= minConfidence) & (z >= minDepth) & (z <= maxDepth);
+                out += keep ? FLOATS_PER_POINT : 0;
+            }
+            output.put(kept, 0, out);
+            totalKept += out / FLOATS_PER_POINT;
+            remaining -= chunk;
+        }
+        points.rewind();
+        output.flip();
+
+        mInputCount = numPoints;
+        mKeptCount = totalKept;
+        mTotalInput += numPoints;
+        mTotalKept += totalKept;
+        return totalKept;
+    }
+
+    /**
+     * @return The points kept from the last cloud compacted without an output buffer, positioned
+     * at zero. The buffer is reused by the next call to {@link #compact}.
+     */
+    public FloatBuffer getOutput() {
+        return mOutput;
+    }
+
+    public int getInputCount() {
+        return mInputCount;
+    }
+
+    public int getKeptCount() {
+        return mKeptCount;
+    }
+
+    public int getDroppedCount() {
+        return mInputCount - mKeptCount;
+    }
+
+    public long getTotalInput() {
+        return mTotalInput;
+    }
+
+    public long getTotalKept() {
+        return mTotalKept;
+    }
+
+    /**
+     * @return Fraction of all points compacted so far that were kept, or one before any.
+     */
+    public float getKeptRatio() {
+        long totalInput = mTotalInput;
+        return totalInput == 0 ? 1f : (float) mTotalKept / totalInput;
+    }
+}
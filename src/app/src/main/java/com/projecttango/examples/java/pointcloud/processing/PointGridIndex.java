@@ -0,0 +1,459 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the points of one frame, answering box counts and nearest point queries
+ * without scanning every point.
+ * <p/>
+ * {@link #build} sorts the points by cell with a counting sort in O(n): the cell of every point
+ * is counted, the counts are turned into cell offsets, and the XYZ of each point is copied to its
+ * cell's range of a flat array, next to its index in the input buffer. Cells are ordered X first,
+ * so a row of cells along X is one contiguous range. Queries only visit the cells overlapping
+ * the box, or the shells of cells around the query point until no closer point can be found.
+ * <p/>
+ * The grid covers the bounding box of the frame. If that needs more cells than the grid was
+ * created with, the cells are made larger for that frame. All storage is allocated up front.
+ * Not thread safe.
+ */
+public class PointGridIndex {
+    private static final int CHUNK_POINTS = 1024;
+
+    private final int mMaxPoints;
+    private final int mFloatsPerPoint;
+    private final int mMaxCells;
+    private final float mMinCellSize;
+    private final float[] mScratch;
+    // XYZ of the points in input order, then sorted by cell.
+    private final float[] mXyz;
+    private final float[] mSortedXyz;
+    private final int[] mSortedIndex;
+    private final int[] mPointCell;
+    // Index in the sorted arrays of the first point of each cell, plus the number of points.
+    private final int[] mCellStart;
+
+    private int mNumPoints;
+    private float mCellSize;
+    private float mInverseCellSize;
+    private float mOriginX;
+    private float mOriginY;
+    private float mOriginZ;
+    private int mCellsX;
+    private int mCellsY;
+    private int mCellsZ;
+
+    /**
+     * @param maxPoints      Maximum number of points per frame.
+     * @param floatsPerPoint Float values per point. XYZ format = 3, XYZC format = 4.
+     * @param cellSize       Edge length of the cells in meters, when the frame fits in
+     *                       {@code maxCells} of them.
+     * @param maxCells       Maximum number of cells.
+     */
+    public PointGridIndex(int maxPoints, int floatsPerPoint, float cellSize, int maxCells) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("cellSize must be positive: " + cellSize);
+        }
+        if (maxCells < 1) {
+            throw new IllegalArgumentException("maxCells must be at least 1: " + maxCells);
+        }
+        mMaxPoints = maxPoints;
+        mFloatsPerPoint = floatsPerPoint;
+        mMaxCells = maxCells;
+        mMinCellSize = cellSize;
+        mScratch = new float[CHUNK_POINTS * floatsPerPoint];
+        mXyz = new float[maxPoints * 3];
+        mSortedXyz = new float[maxPoints * 3];
+        mSortedIndex = new int[maxPoints];
+        mPointCell = new int[maxPoints];
+        mCellStart = new int[maxCells + 1];
+    }
+
+    /**
+     * Index the first {@code numPoints} points of a buffer. The buffer is read from index zero
+     * and rewound afterwards; the index keeps its own copy of the coordinates.
+     */
+    public void build(FloatBuffer points, int numPoints) {
+        if (numPoints > mMaxPoints) {
+            throw new IllegalArgumentException(
+                    String.format("numPoints = %d exceeds maximum number of points = %d",
+                            numPoints, mMaxPoints));
+        }
+        mNumPoints = numPoints;
+        final float[] xyz = mXyz;
+        final float[] scratch = mScratch;
+        final int stride = mFloatsPerPoint;
+
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+        float maxZ = Float.NEGATIVE_INFINITY;
+        points.rewind();
+        int out = 0;
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            int end = chunk * stride;
+            for (int i = 0; i < end; i += stride) {
+                float x = scratch[i];
+                float y = scratch[i + 1];
+                float z = scratch[i + 2];
+                xyz[out++] = x;
+                xyz[out++] = y;
+                xyz[out++] = z;
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                minZ = Math.min(minZ, z);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+                maxZ = Math.max(maxZ, z);
+            }
+            remaining -= chunk;
+        }
+        points.rewind();
+        if (numPoints == 0) {
+            minX = minY = minZ = maxX = maxY = maxZ = 0;
+        }
+        layOutCells(minX, minY, minZ, maxX, maxY, maxZ);
+
+        // Count the points of each cell, then turn the counts into the end of each cell's range
+        // and fill the ranges backwards, which keeps the points of a cell in input order.
+        final int[] cellStart = mCellStart;
+        final int[] pointCell = mPointCell;
+        final int cells = mCellsX * mCellsY * mCellsZ;
+        Arrays.fill(cellStart, 0, cells + 1, 0);
+        for (int p = 0; p < numPoints; p++) {
+            int o = p * 3;
+            int cell = cellOf(xyz[o], xyz[o + 1], xyz[o + 2]);
+            pointCell[p] = cell;
+            cellStart[cell]++;
+        }
+        int sum = 0;
+        for (int c = 0; c < cells; c++) {
+            sum += cellStart[c];
+            cellStart[c] = sum;
+        }
+        cellStart[cells] = numPoints;
+        final float[] sortedXyz = mSortedXyz;
+        final int[] sortedIndex = mSortedIndex;
+        for (int p = numPoints - 1; p >= 0; p--) {
+            int s = --cellStart[pointCell[p]];
+            sortedIndex[s] = p;
+            sortedXyz[s * 3] = xyz[p * 3];
+            sortedXyz[s * 3 + 1] = xyz[p * 3 + 1];
+            sortedXyz[s * 3 + 2] = xyz[p * 3 + 2];
+        }
+    }
+
+    private void layOutCells(float minX, float minY, float minZ,
+                             float maxX, float maxY, float maxZ) {
+        float sizeX = maxX - minX;
+        float sizeY = maxY - minY;
+        float sizeZ = maxZ - minZ;
+        float cellSize = mMinCellSize;
+        // Grow the cells until the frame fits, starting from the volume ratio.
+        double cells = cellCount(sizeX, sizeY, sizeZ, cellSize);
+        if (cells > mMaxCells) {
+            cellSize *= (float) Math.cbrt(cells / mMaxCells);
+            while (cellCount(sizeX, sizeY, sizeZ, cellSize) > mMaxCells) {
+                cellSize *= 1.05f;
+            }
+        }
+        mCellSize = cellSize;
+        mInverseCellSize = 1f / cellSize;
+        mOriginX = minX;
+        mOriginY = minY;
+        mOriginZ = minZ;
+        mCellsX = (int) (sizeX * mInverseCellSize) + 1;
+        mCellsY = (int) (sizeY * mInverseCellSize) + 1;
+        mCellsZ = (int) (sizeZ * mInverseCellSize) + 1;
+    }
+
+    private static double cellCount(float sizeX, float sizeY, float sizeZ, float cellSize) {
+        float inverse = 1f / cellSize;
+        return ((double) (int) (sizeX * inverse) + 1) * ((int) (sizeY * inverse) + 1)
+                * ((int) (sizeZ * inverse) + 1);
+    }
+
+    private int cellOf(float x, float y, float z) {
+        int ix = Math.min((int) ((x - mOriginX) * mInverseCellSize), mCellsX - 1);
+        int iy = Math.min((int) ((y - mOriginY) * mInverseCellSize), mCellsY - 1);
+        int iz = Math.min((int) ((z - mOriginZ) * mInverseCellSize), mCellsZ - 1);
+        return (iz * mCellsY + iy) * mCellsX + ix;
+    }
+
+    /**
+     * @return Cell coordinate of a position along one axis, clamped to the grid.
+     */
+    private int clampCell(float value, float origin, int cells) {
+        float cell = (value - origin) * mInverseCellSize;
+        if (!(cell >= 0)) {
+            return 0;
+        }
+        return cell >= cells ? cells - 1 : (int) cell;
+    }
+
+    /**
+     * @return Number of points inside the box, bounds included.
+     */
+    public int countInBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        if (mNumPoints == 0 || !overlapsGrid(minX, minY, minZ, maxX, maxY, maxZ)) {
+            return 0;
+        }
+        final int x0 = clampCell(minX, mOriginX, mCellsX);
+        final int x1 = clampCell(maxX, mOriginX, mCellsX);
+        final int y0 = clampCell(minY, mOriginY, mCellsY);
+        final int y1 = clampCell(maxY, mOriginY, mCellsY);
+        final int z0 = clampCell(minZ, mOriginZ, mCellsZ);
+        final int z1 = clampCell(maxZ, mOriginZ, mCellsZ);
+        final int[] cellStart = mCellStart;
+        final float[] xyz = mSortedXyz;
+        int count = 0;
+        for (int iz = z0; iz <= z1; iz++) {
+            boolean insideZ = iz > z0 && iz < z1;
+            for (int iy = y0; iy <= y1; iy++) {
+                boolean insideYz = insideZ && iy > y0 && iy < y1;
+                int row = (iz * mCellsY + iy) * mCellsX;
+                if (insideYz && x1 - x0 >= 2) {
+                    // Cells strictly inside the box range are counted without looking at them.
+                    count += cellStart[row + x1] - cellStart[row + x0 + 1];
+                    count += countCell(row + x0, minX, minY, minZ, maxX, maxY, maxZ);
+                    count += countCell(row + x1, minX, minY, minZ, maxX, maxY, maxZ);
+                    continue;
+                }
+                // A row of cells is one contiguous range of points.
+                int end = cellStart[row + x1 + 1];
+                for (int s = cellStart[row + x0]; s < end; s++) {
+                    int o = s * 3;
+                    if (inBox(xyz[o], xyz[o + 1], xyz[o + 2],
+                            minX, minY, minZ, maxX, maxY, maxZ)) {
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private int countCell(int cell, float minX, float minY, float minZ,
+                          float maxX, float maxY, float maxZ) {
+        final float[] xyz = mSortedXyz;
+        int count = 0;
+        int end = mCellStart[cell + 1];
+        for (int s = mCellStart[cell]; s < end; s++) {
+            int o = s * 3;
+            if (inBox(xyz[o], xyz[o + 1], xyz[o + 2], minX, minY, minZ, maxX, maxY, maxZ)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean inBox(float x, float y, float z, float minX, float minY, float minZ,
+                                 float maxX, float maxY, float maxZ) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    private boolean overlapsGrid(float minX, float minY, float minZ,
+                                 float maxX, float maxY, float maxZ) {
+        float extent = mCellSize;
+        return maxX >= mOriginX && minX <= mOriginX + mCellsX * extent
+                && maxY >= mOriginY && minY <= mOriginY + mCellsY * extent
+                && maxZ >= mOriginZ && minZ <= mOriginZ + mCellsZ * extent
+                && minX <= maxX && minY <= maxY && minZ <= maxZ;
+    }
+
+    /**
+     * Find the {@code k} points nearest to a position.
+     *
+     * @param indices   Receives the indices in the input buffer of the points found, nearest
+     *                  first. Must have room for {@code k} values.
+     * @param distances Receives the matching distances. Must have room for {@code k} values.
+     * @return Number of points found, {@code k} unless the frame has fewer points.
+     */
+    public int nearest(float x, float y, float z, int k, int[] indices, float[] distances) {
+        return search(x, y, z, k, indices, distances, false, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Find the {@code k} points inside a box nearest to a position, for instance the points
+     * nearest to the camera in the corridor ahead.
+     *
+     * @return Number of points found, fewer than {@code k} if the box holds fewer points.
+     * @see #nearest
+     */
+    public int nearestInBox(float minX, float minY, float minZ, float maxX, float maxY,
+                            float maxZ, float x, float y, float z, int k, int[] indices,
+                            float[] distances) {
+        return search(x, y, z, k, indices, distances, true,
+                minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    private int search(float x, float y, float z, int k, int[] indices, float[] distances,
+                       boolean boxed, float minX, float minY, float minZ,
+                       float maxX, float maxY, float maxZ) {
+        if (k <= 0 || mNumPoints == 0
+                || (boxed && !overlapsGrid(minX, minY, minZ, maxX, maxY, maxZ))) {
+            return 0;
+        }
+        // Range of cells searched: the whole grid, or the cells overlapping the box.
+        int x0 = 0;
+        int y0 = 0;
+        int z0 = 0;
+        int x1 = mCellsX - 1;
+        int y1 = mCellsY - 1;
+        int z1 = mCellsZ - 1;
+        if (boxed) {
+            x0 = clampCell(minX, mOriginX, mCellsX);
+            x1 = clampCell(maxX, mOriginX, mCellsX);
+            y0 = clampCell(minY, mOriginY, mCellsY);
+            y1 = clampCell(maxY, mOriginY, mCellsY);
+            z0 = clampCell(minZ, mOriginZ, mCellsZ);
+            z1 = clampCell(maxZ, mOriginZ, mCellsZ);
+        }
+        int cx = Math.min(Math.max(clampCell(x, mOriginX, mCellsX), x0), x1);
+        int cy = Math.min(Math.max(clampCell(y, mOriginY, mCellsY), y0), y1);
+        int cz = Math.min(Math.max(clampCell(z, mOriginZ, mCellsZ), z0), z1);
+        int maxRing = Math.max(Math.max(Math.max(cx - x0, x1 - cx), Math.max(cy - y0, y1 - cy)),
+                Math.max(cz - z0, z1 - cz));
+
+        // Distances are kept squared, sorted, until the search is over.
+        int found = 0;
+        for (int ring = 0; ring <= maxRing; ring++) {
+            if (found == k) {
+                // Any point of this ring or beyond is at least ring - 1 cells away.
+                float bound = (ring - 1) * mCellSize;
+                if (bound > 0 && bound * bound >= distances[k - 1]) {
+                    break;
+                }
+            }
+            int zFrom = Math.max(cz - ring, z0);
+            int zTo = Math.min(cz + ring, z1);
+            int yFrom = Math.max(cy - ring, y0);
+            int yTo = Math.min(cy + ring, y1);
+            for (int iz = zFrom; iz <= zTo; iz++) {
+                boolean zEdge = iz == cz - ring || iz == cz + ring;
+                for (int iy = yFrom; iy <= yTo; iy++) {
+                    boolean edge = zEdge || iy == cy - ring || iy == cy + ring;
+                    int row = (iz * mCellsY + iy) * mCellsX;
+                    if (edge) {
+                        int from = Math.max(cx - ring, x0);
+                        int to = Math.min(cx + ring, x1);
+                        for (int ix = from; ix <= to; ix++) {
+                            found = searchCell(row + ix, ix, iy, iz, x, y, z, k, indices,
+                                    distances, found, boxed, minX, minY, minZ, maxX, maxY, maxZ);
+                        }
+                    } else {
+                        if (cx - ring >= x0) {
+                            found = searchCell(row + cx - ring, cx - ring, iy, iz, x, y, z, k,
+                                    indices, distances, found, boxed,
+                                    minX, minY, minZ, maxX, maxY, maxZ);
+                        }
+                        if (ring > 0 && cx + ring <= x1) {
+                            found = searchCell(row + cx + ring, cx + ring, iy, iz, x, y, z, k,
+                                    indices, distances, found, boxed,
+                                    minX, minY, minZ, maxX, maxY, maxZ);
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < found; i++) {
+            distances[i] = (float) Math.sqrt(distances[i]);
+        }
+        return found;
+    }
+
+    private int searchCell(int cell, int ix, int iy, int iz, float x, float y, float z, int k,
+                           int[] indices, float[] distances, int found, boolean boxed,
+                           float minX, float minY, float minZ,
+                           float maxX, float maxY, float maxZ) {
+        int start = mCellStart[cell];
+        int end = mCellStart[cell + 1];
+        if (start == end) {
+            return found;
+        }
+        if (found == k && cellDistanceSquared(ix, iy, iz, x, y, z) >= distances[k - 1]) {
+            return found;
+        }
+        final float[] xyz = mSortedXyz;
+        for (int s = start; s < end; s++) {
+            int o = s * 3;
+            float px = xyz[o];
+            float py = xyz[o + 1];
+            float pz = xyz[o + 2];
+            if (boxed && !inBox(px, py, pz, minX, minY, minZ, maxX, maxY, maxZ)) {
+                continue;
+            }
+            float dx = px - x;
+            float dy = py - y;
+            float dz = pz - z;
+            float d = dx * dx + dy * dy + dz * dz;
+            if (found == k && d >= distances[k - 1]) {
+                continue;
+            }
+            // Insert into the sorted list, dropping the farthest point once it is full.
+            int i = found == k ? k - 1 : found++;
+            while (i > 0 && distances[i - 1] > d) {
+                distances[i] = distances[i - 1];
+                indices[i] = indices[i - 1];
+                i--;
+            }
+            distances[i] = d;
+            indices[i] = mSortedIndex[s];
+        }
+        return found;
+    }
+
+    /**
+     * @return Squared distance from a position to the nearest point of a cell.
+     */
+    private float cellDistanceSquared(int ix, int iy, int iz, float x, float y, float z) {
+        float dx = axisDistance(x, mOriginX + ix * mCellSize);
+        float dy = axisDistance(y, mOriginY + iy * mCellSize);
+        float dz = axisDistance(z, mOriginZ + iz * mCellSize);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private float axisDistance(float value, float cellMin) {
+        if (value < cellMin) {
+            return cellMin - value;
+        }
+        float cellMax = cellMin + mCellSize;
+        return value > cellMax ? value - cellMax : 0;
+    }
+
+    public int getNumPoints() {
+        return mNumPoints;
+    }
+
+    /**
+     * @return Edge length of the cells of the last frame, larger than requested if the frame
+     * didn't fit in the maximum number of cells.
+     */
+    public float getCellSize() {
+        return mCellSize;
+    }
+
+    public int getCellCount() {
+        return mCellsX * mCellsY * mCellsZ;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Computes {@link PointCloudStats} for a point cloud buffer in a single pass.
+ * The buffer is read in bulk, one chunk at a time, into a scratch array owned by the kernel so
+ * no memory is allocated per frame. Sums are accumulated in double precision.
+ * Instances are not thread safe; use one kernel per thread. Large clouds can be split across the
+ * threads of a {@link ParallelChunks}, see {@link #setParallel}.
+ */
+public class PointStatisticsKernel {
+    // Number of points copied out of the buffer per bulk read. 16KB of XYZC floats.
+    public static final int CHUNK_POINTS = 1024;
+
+    private final int mFloatsPerPoint;
+    private final float[] mScratch;
+
+    private ParallelChunks mParallel;
+    private float[][] mWorkerScratch;
+    // Statistics of each chunk, merged in chunk order.
+    private PointCloudStats[] mPartials;
+    private FloatBuffer mTaskPoints;
+    private final ParallelChunks.ChunkTask mChunkTask = new ParallelChunks.ChunkTask() {
+        @Override
+        public void processChunk(int worker, int chunk, int first, int count) {
+            FloatBuffer points = mParallel.view(worker, mTaskPoints);
+            points.position(first * mFloatsPerPoint);
+            PointCloudStats partial = mPartials[chunk];
+            partial.clear();
+            accumulateBuffer(points, mWorkerScratch[worker], 0, count, partial);
+        }
+    };
+
+    /**
+     * @param floatsPerPoint Float values per point in the buffer. XYZ format = 3, XYZC format = 4.
+     *                       Points without a C channel are given a confidence of one.
+     */
+    public PointStatisticsKernel(int floatsPerPoint) {
+        if (floatsPerPoint < 3) {
+            throw new IllegalArgumentException("floatsPerPoint must be at least 3");
+        }
+        mFloatsPerPoint = floatsPerPoint;
+        mScratch = new float[CHUNK_POINTS * floatsPerPoint];
+    }
+
+    public int getFloatsPerPoint() {
+        return mFloatsPerPoint;
+    }
+
+    /**
+     * Split {@link #compute} across the threads of {@code parallel}, or run it on the calling
+     * thread only if null. Sums are then accumulated per chunk and merged in chunk order, so the
+     * result doesn't depend on the number of threads but may differ from the sequential one in
+     * the last bits.
+     *
+     * @param maxPoints Maximum number of points passed to {@link #compute}.
+     */
+    public void setParallel(ParallelChunks parallel, int maxPoints) {
+        if (parallel == null) {
+            mParallel = null;
+            mWorkerScratch = null;
+            mPartials = null;
+            return;
+        }
+        mWorkerScratch = new float[parallel.getThreads()][CHUNK_POINTS * mFloatsPerPoint];
+        mPartials = new PointCloudStats[parallel.getChunkCount(maxPoints)];
+        for (int i = 0; i < mPartials.length; i++) {
+            mPartials[i] = new PointCloudStats();
+        }
+        mParallel = parallel;
+    }
+
+    /**
+     * Calculate the statistics of the first {@code numPoints} points of a buffer.
+     * The buffer is read from index zero and rewound afterwards.
+     *
+     * @param pointBuffer Points in XYZ or XYZC format, as configured in the constructor.
+     * @param numPoints   Number of points to include.
+     * @param out         Receives the result.
+     */
+    public void compute(FloatBuffer pointBuffer, int numPoints, PointCloudStats out) {
+        out.clear();
+        if (numPoints <= 0) {
+            return;
+        }
+        ParallelChunks parallel = mParallel;
+        if (parallel != null) {
+            if (parallel.getChunkCount(numPoints) > mPartials.length) {
+                throw new IllegalArgumentException("numPoints exceeds the parallel maximum: "
+                        + numPoints);
+            }
+            mTaskPoints = pointBuffer;
+            parallel.forEachChunk(numPoints, mChunkTask);
+            mTaskPoints = null;
+            int chunks = parallel.getChunkCount(numPoints);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                out.add(mPartials[chunk]);
+            }
+            pointBuffer.rewind();
+            return;
+        }
+        pointBuffer.rewind();
+        accumulateBuffer(pointBuffer, mScratch, 0, numPoints, out);
+        pointBuffer.rewind();
+    }
+
+    /**
+     * Accumulate {@code numPoints} points read relative to the current buffer position into
+     * {@code out}, without clearing it first. This allows several ranges to be merged.
+     */
+    public void accumulate(FloatBuffer pointBuffer, int numPoints, PointCloudStats out) {
+        if (numPoints > 0) {
+            accumulateBuffer(pointBuffer, mScratch, out.mCount, numPoints, out);
+        }
+    }
+
+    /**
+     * Accumulate points already copied into a float array, starting at point {@code first}.
+     */
+    public void accumulate(float[] points, int first, int numPoints, PointCloudStats out) {
+        if (numPoints <= 0) {
+            return;
+        }
+        if (out.mCount == 0) {
+            seedBounds(points, first * mFloatsPerPoint, out);
+        }
+        accumulateArray(points, first * mFloatsPerPoint, numPoints, out);
+    }
+
+    private void accumulateBuffer(FloatBuffer pointBuffer, float[] scratch, int countBefore,
+                                  int numPoints, PointCloudStats out) {
+        int stride = mFloatsPerPoint;
+        int remaining = numPoints;
+        boolean first = countBefore == 0;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            pointBuffer.get(scratch, 0, chunk * stride);
+            if (first) {
+                seedBounds(scratch, 0, out);
+                first = false;
+            }
+            accumulateArray(scratch, 0, chunk, out);
+            remaining -= chunk;
+        }
+    }
+
+    private static void seedBounds(float[] points, int offset, PointCloudStats out) {
+        out.mMinX = out.mMaxX = points[offset];
+        out.mMinY = out.mMaxY = points[offset + 1];
+        out.mMinZ = out.mMaxZ = points[offset + 2];
+    }
+
+    private void accumulateArray(float[] points, int offset, int numPoints, PointCloudStats out) {
+        final int stride = mFloatsPerPoint;
+        final boolean hasConfidence = stride >= 4;
+
+        // Work on locals so the JIT can keep everything in registers.
+        double sumX = 0;
+        double sumY = 0;
+        double sumZ = 0;
+        double sumC = 0;
+        double sumCX = 0;
+        double sumCY = 0;
+        double sumCZ = 0;
+        float minX = out.mMinX;
+        float minY = out.mMinY;
+        float minZ = out.mMinZ;
+        float maxX = out.mMaxX;
+        float maxY = out.mMaxY;
+        float maxZ = out.mMaxZ;
+
+        int end = offset + numPoints * stride;
+        for (int i = offset; i < end; i += stride) {
+            float x = points[i];
+            float y = points[i + 1];
+            float z = points[i + 2];
+            float c = hasConfidence ? points[i + 3] : 1f;
+            sumX += x;
+            sumY += y;
+            sumZ += z;
+            sumC += c;
+            sumCX += c * x;
+            sumCY += c * y;
+            sumCZ += c * z;
+            if (x < minX) {
+                minX = x;
+            } else if (x > maxX) {
+                maxX = x;
+            }
+            if (y < minY) {
+                minY = y;
+            } else if (y > maxY) {
+                maxY = y;
+            }
+            if (z < minZ) {
+                minZ = z;
+            } else if (z > maxZ) {
+                maxZ = z;
+            }
+        }
+
+        out.mCount += numPoints;
+        out.mSumX += sumX;
+        out.mSumY += sumY;
+        out.mSumZ += sumZ;
+        out.mSumC += sumC;
+        out.mSumCX += sumCX;
+        out.mSumCY += sumCY;
+        out.mSumCZ += sumCZ;
+        out.mMinX = minX;
+        out.mMinY = minY;
+        out.mMinZ = minZ;
+        out.mMaxX = maxX;
+        out.mMaxY = maxY;
+        out.mMaxZ = maxZ;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Bins the points of a depth frame by direction and keeps, for each direction, the nearest depth
+ * and how many points are closer than the alert distance.
+ * <p/>
+ * Points are expected in the depth camera frame: X to the right, Y down and Z along the optical
+ * axis. The horizontal field of view is split in equal azimuth sectors and, optionally, the
+ * vertical field of view in equal elevation rows. Bins are indexed
+ * {@code elevation * azimuthBins + azimuth}, with azimuth zero at the far left and elevation
+ * zero at the top.
+ * <p/>
+ * Directions are looked up through tables of the tangent of the angle, so the per point cost is
+ * one division, shared by both tangents, and two array reads. Nothing is allocated after
+ * construction. Not thread safe.
+ */
+public class SectorHistogram {
+    private static final int CHUNK_POINTS = 1024;
+    // Resolution of the tangent to bin lookup tables.
+    private static final int LUT_SIZE = 2048;
+
+    private final int mFloatsPerPoint;
+    private final int mAzimuthBins;
+    private final int mElevationBins;
+    private final float mHorizontalFov;
+    private final float mVerticalFov;
+
+    private final float mMaxTanAzimuth;
+    private final float mMaxTanElevation;
+    private final float mAzimuthLutScale;
+    private final float mElevationLutScale;
+    private final byte[] mAzimuthLut = new byte[LUT_SIZE];
+    private final byte[] mElevationLut = new byte[LUT_SIZE];
+
+    private final float[] mScratch;
+    private final int[] mCounts;
+    private final int[] mNearCounts;
+    private final float[] mNearestDepths;
+
+    private float mMinDepth = 0.2f;
+    private float mMaxDepth = 8f;
+    private float mAlertDistance = 1.42f;
+    private int mBinnedPoints;
+
+    /**
+     * @param floatsPerPoint  Float values per point. XYZ format = 3, XYZC format = 4.
+     * @param azimuthBins     Number of horizontal sectors, at most 127.
+     * @param horizontalFov   Horizontal field of view covered by the sectors, in degrees.
+     * @param elevationBins   Number of vertical rows, at most 127. Use 1 to ignore elevation.
+     * @param verticalFov     Vertical field of view covered by the rows, in degrees.
+     */
+    public SectorHistogram(int floatsPerPoint, int azimuthBins, float horizontalFov,
+                           int elevationBins, float verticalFov) {
+        if (azimuthBins < 1 || azimuthBins > Byte.MAX_VALUE
+                || elevationBins < 1 || elevationBins > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Bin counts must be between 1 and 127");
+        }
+        if (!(horizontalFov > 0 && horizontalFov < 180 && verticalFov > 0 && verticalFov < 180)) {
+            throw new IllegalArgumentException("Field of view must be between 0 and 180 degrees");
+        }
+        mFloatsPerPoint = floatsPerPoint;
+        mAzimuthBins = azimuthBins;
+        mElevationBins = elevationBins;
+        mHorizontalFov = horizontalFov;
+        mVerticalFov = verticalFov;
+
+        mMaxTanAzimuth = (float) Math.tan(Math.toRadians(horizontalFov / 2));
+        mMaxTanElevation = (float) Math.tan(Math.toRadians(verticalFov / 2));
+        mAzimuthLutScale = LUT_SIZE / (2 * mMaxTanAzimuth);
+        mElevationLutScale = LUT_SIZE / (2 * mMaxTanElevation);
+        fillLut(mAzimuthLut, mMaxTanAzimuth, horizontalFov, azimuthBins);
+        fillLut(mElevationLut, mMaxTanElevation, verticalFov, elevationBins);
+
+        mScratch = new float[CHUNK_POINTS * floatsPerPoint];
+        int bins = azimuthBins * elevationBins;
+        mCounts = new int[bins];
+        mNearCounts = new int[bins];
+        mNearestDepths = new float[bins];
+        clear();
+    }
+
+    /**
+     * Map each cell of tangent values to the equal-angle bin containing the cell center.
+     */
+    private static void fillLut(byte[] lut, float maxTan, float fov, int bins) {
+        double halfFov = Math.toRadians(fov / 2);
+        double binWidth = 2 * halfFov / bins;
+        for (int i = 0; i < lut.length; i++) {
+            double tan = ((i + 0.5) / lut.length * 2 - 1) * maxTan;
+            int bin = (int) ((Math.atan(tan) + halfFov) / binWidth);
+            lut[i] = (byte) Math.max(0, Math.min(bin, bins - 1));
+        }
+    }
+
+    /**
+     * Only points with a depth in [minDepth, maxDepth] are binned.
+     */
+    public void setDepthRange(float minDepth, float maxDepth) {
+        mMinDepth = minDepth;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Points closer than this distance are counted in {@link #getNearCount(int)}.
+     */
+    public void setAlertDistance(float alertDistance) {
+        mAlertDistance = alertDistance;
+    }
+
+    public void clear() {
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mNearCounts, 0);
+        Arrays.fill(mNearestDepths, Float.POSITIVE_INFINITY);
+        mBinnedPoints = 0;
+    }
+
+    /**
+     * Bin the first {@code numPoints} points of a buffer, replacing the previous contents.
+     * The buffer is read from index zero and rewound afterwards.
+     */
+    public void compute(FloatBuffer points, int numPoints) {
+        clear();
+        final int stride = mFloatsPerPoint;
+        final float[] scratch = mScratch;
+        points.rewind();
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            add(scratch, chunk);
+            remaining -= chunk;
+        }
+        points.rewind();
+    }
+
+    private void add(float[] points, int numPoints) {
+        final int stride = mFloatsPerPoint;
+        final int azimuthBins = mAzimuthBins;
+        final float minDepth = mMinDepth;
+        final float maxDepth = mMaxDepth;
+        final float alertDistance = mAlertDistance;
+        final float maxTanAzimuth = mMaxTanAzimuth;
+        final float maxTanElevation = mMaxTanElevation;
+        final float azimuthScale = mAzimuthLutScale;
+        final float elevationScale = mElevationLutScale;
+        final boolean useElevation = mElevationBins > 1;
+
+        int binned = 0;
+        int end = numPoints * stride;
+        for (int i = 0; i < end; i += stride) {
+            float z = points[i + 2];
+            if (z < minDepth || z > maxDepth) {
+                continue;
+            }
+            float inverseZ = 1f / z;
+            // Shift by the maximum tangent so cells outside the field of view become negative or
+            // too large and fail the range check. The check is made before the cast, which
+            // would truncate cells just left of the field of view to zero, and is written so
+            // NaN coordinates fail it too.
+            float azimuthCell = (points[i] * inverseZ + maxTanAzimuth) * azimuthScale;
+            if (!(azimuthCell >= 0 && azimuthCell < LUT_SIZE)) {
+                continue;
+            }
+            int bin = mAzimuthLut[(int) azimuthCell];
+            if (useElevation) {
+                float elevationCell =
+                        (points[i + 1] * inverseZ + maxTanElevation) * elevationScale;
+                if (!(elevationCell >= 0 && elevationCell < LUT_SIZE)) {
+                    continue;
+                }
+                bin += mElevationLut[(int) elevationCell] * azimuthBins;
+            }
+            mCounts[bin]++;
+            if (z < mNearestDepths[bin]) {
+                mNearestDepths[bin] = z;
+            }
+            if (z <= alertDistance) {
+                mNearCounts[bin]++;
+            }
+            binned++;
+        }
+        mBinnedPoints += binned;
+    }
+
+    public int getBinCount() {
+        return mCounts.length;
+    }
+
+    public int getAzimuthBins() {
+        return mAzimuthBins;
+    }
+
+    public int getElevationBins() {
+        return mElevationBins;
+    }
+
+    public int getAzimuthIndex(int bin) {
+        return bin % mAzimuthBins;
+    }
+
+    public int getElevationIndex(int bin) {
+        return bin / mAzimuthBins;
+    }
+
+    /**
+     * @return Azimuth sector of a position in the camera frame, clamped to the field of view, or
+     * -1 if it is not in front of the camera.
+     */
+    public int getAzimuthIndex(float x, float z) {
+        if (!(z > 0)) {
+            return -1;
+        }
+        float azimuthCell = (x / z + mMaxTanAzimuth) * mAzimuthLutScale;
+        if (!(azimuthCell >= 0)) {
+            return mAzimuthLut[0];
+        }
+        return azimuthCell < LUT_SIZE ? mAzimuthLut[(int) azimuthCell] : mAzimuthLut[LUT_SIZE - 1];
+    }
+
+    /**
+     * @return Azimuth of the bin center in degrees, negative to the left.
+     */
+    public float getAzimuthDegrees(int bin) {
+        return ((getAzimuthIndex(bin) + 0.5f) / mAzimuthBins - 0.5f) * mHorizontalFov;
+    }
+
+    /**
+     * @return Elevation of the bin center in degrees, negative above the optical axis.
+     */
+    public float getElevationDegrees(int bin) {
+        return ((getElevationIndex(bin) + 0.5f) / mElevationBins - 0.5f) * mVerticalFov;
+    }
+
+    public int getPointCount(int bin) {
+        return mCounts[bin];
+    }
+
+    /**
+     * @return Number of points in the bin closer than the alert distance.
+     */
+    public int getNearCount(int bin) {
+        return mNearCounts[bin];
+    }
+
+    /**
+     * @return Smallest depth seen in the bin, or positive infinity if the bin is empty.
+     */
+    public float getNearestDepth(int bin) {
+        return mNearestDepths[bin];
+    }
+
+    /**
+     * @return Number of points that fell in the depth range and field of view.
+     */
+    public int getBinnedPoints() {
+        return mBinnedPoints;
+    }
+
+    /**
+     * Find the bin holding the closest obstacle, ignoring bins with fewer than
+     * {@code minNearCount} points within the alert distance so isolated speckle is not reported.
+     *
+     * @return The bin index, or -1 if no bin qualifies.
+     */
+    public int findNearestObstacle(int minNearCount) {
+        int best = -1;
+        float bestDepth = Float.POSITIVE_INFINITY;
+        for (int bin = 0; bin < mCounts.length; bin++) {
+            if (mNearCounts[bin] >= minNearCount && mNearestDepths[bin] < bestDepth) {
+                bestDepth = mNearestDepths[bin];
+                best = bin;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Removes transient depth noise by tracking world voxels across frames. Each voxel keeps a hit
+ * count and the running mean and variance of the points that fell in it, all decayed by a fixed
+ * factor per frame, so voxels fade out when they stop being observed. Only points whose voxel
+ * has been hit in enough recent frames and whose spread stays small are emitted, in their
+ * original frame and format.
+ * <p/>
+ * Voxels are found through a {@link LongIntHashMap}, so a frame costs O(points). All storage is
+ * allocated up front for a fixed number of voxels; when it is full the voxels not observed for
+ * the longest are evicted, and the points of new voxels are dropped from a frame that needs more
+ * voxels than there are. Not thread safe.
+ */
+public class TemporalVoxelFilter {
+    public static final float DEFAULT_VOXEL_SIZE_METERS = 0.05f;
+    // Weight left to the history of a voxel after each frame.
+    public static final float DEFAULT_DECAY = 0.5f;
+    // Decayed frame hits needed before a voxel is emitted. With the default decay, a new surface
+    // reaches 1 + 0.5 = 1.5 on its second consecutive frame and passes, while a voxel hit every
+    // other frame converges to 1 / (1 - 0.5^2) = 1.33 and never does.
+    public static final float DEFAULT_MIN_HITS = 1.45f;
+    // Voxels not observed for this many frames are forgotten.
+    public static final int DEFAULT_MAX_AGE_FRAMES = 30;
+
+    // Share of the voxels an eviction frees at least, so evictions stay rare.
+    private static final int EVICTION_DIVISOR = 4;
+
+    // Layout of the statistics of a voxel: decayed frame hits, decayed point weight, mean and
+    // decayed sum of squared distances to the mean over all three axes. Padded to 32 bytes.
+    private static final int STATE_FLOATS = 8;
+    private static final int HITS = 0;
+    private static final int WEIGHT = 1;
+    private static final int MEAN = 2;
+    private static final int SQUARES = 5;
+
+    private final int mMaxPoints;
+    private final int mFloatsPerPoint;
+    private final int mMaxVoxels;
+    private final LongIntHashMap mVoxelIndex;
+    private final float[] mPoints;
+    // Voxel of every point of the current frame, or NO_VALUE if it could not be tracked.
+    private final int[] mPointVoxels;
+    // New index of every voxel while the table is compacted.
+    private final int[] mRemap;
+
+    // Per voxel state, indexed by the value stored in mVoxelIndex. The statistics of a voxel are
+    // interleaved so updating it touches a single cache line.
+    private final long[] mKeys;
+    private final int[] mLastFrames;
+    private final float[] mState;
+    private int mVoxelCount;
+
+    private final float mInverseVoxelSize;
+    private final float mMaxVariance;
+    private final float mDecay;
+    private float mMinHits = DEFAULT_MIN_HITS;
+    private int mMaxAge = DEFAULT_MAX_AGE_FRAMES;
+    private float[] mDecayPowers;
+    private int[] mAgeCounts;
+
+    private int mFrame;
+    private int mInputCount;
+    private int mOutputCount;
+    private long mEvictedCount;
+    private long mEvictionCount;
+    // Last frame in which an eviction freed nothing, so its remaining new voxels are dropped.
+    private int mFullFrame = -1;
+
+    /**
+     * @param maxPoints      Maximum number of points per frame.
+     * @param floatsPerPoint Float values per point. XYZ format = 3, XYZC format = 4.
+     * @param voxelSize      Edge length of the world voxels in meters.
+     * @param maxVoxels      Most voxels tracked at once.
+     */
+    public TemporalVoxelFilter(int maxPoints, int floatsPerPoint, float voxelSize,
+                               int maxVoxels) {
+        this(maxPoints, floatsPerPoint, voxelSize, maxVoxels, DEFAULT_DECAY, voxelSize);
+    }
+
+    /**
+     * @param decay     Weight left to the history of a voxel after each frame, in (0, 1).
+     * @param maxStdDev Largest root mean square distance of the points of a voxel to their mean
+     *                  for the voxel to be emitted, in meters.
+     */
+    public TemporalVoxelFilter(int maxPoints, int floatsPerPoint, float voxelSize,
+                               int maxVoxels, float decay, float maxStdDev) {
+        if (!(voxelSize > 0)) {
+            throw new IllegalArgumentException("voxelSize must be positive: " + voxelSize);
+        }
+        if (!(decay > 0 && decay < 1)) {
+            throw new IllegalArgumentException("decay must be in (0, 1): " + decay);
+        }
+        mMaxPoints = maxPoints;
+        mFloatsPerPoint = floatsPerPoint;
+        mMaxVoxels = maxVoxels;
+        mVoxelIndex = new LongIntHashMap(maxVoxels);
+        mPoints = new float[maxPoints * floatsPerPoint];
+        mPointVoxels = new int[maxPoints];
+        mRemap = new int[maxVoxels];
+        mKeys = new long[maxVoxels];
+        mLastFrames = new int[maxVoxels];
+        mState = new float[maxVoxels * STATE_FLOATS];
+        mInverseVoxelSize = 1f / voxelSize;
+        mMaxVariance = maxStdDev * maxStdDev;
+        mDecay = decay;
+        setMaxAge(DEFAULT_MAX_AGE_FRAMES);
+    }
+
+    /**
+     * Sets the decayed number of frames a voxel must have been hit in before its points are
+     * emitted. One emits every point of the first frame.
+     */
+    public void setMinHits(float minHits) {
+        mMinHits = minHits;
+    }
+
+    public float getMinHits() {
+        return mMinHits;
+    }
+
+    /**
+     * Sets the number of frames after which a voxel that was not observed is forgotten.
+     */
+    public void setMaxAge(int maxAgeFrames) {
+        if (maxAgeFrames < 1) {
+            throw new IllegalArgumentException("maxAgeFrames must be positive: " + maxAgeFrames);
+        }
+        mMaxAge = maxAgeFrames;
+        mDecayPowers = new float[maxAgeFrames + 1];
+        mDecayPowers[0] = 1f;
+        for (int i = 1; i <= maxAgeFrames; i++) {
+            mDecayPowers[i] = mDecayPowers[i - 1] * mDecay;
+        }
+        mAgeCounts = new int[maxAgeFrames + 2];
+    }
+
+    public int getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * Forget all voxels, for instance when the world frame of the poses changes.
+     */
+    public void reset() {
+        mVoxelIndex.clear();
+        mVoxelCount = 0;
+    }
+
+    /**
+     * Update the voxels with a frame and keep its stable points. The input buffer is read from
+     * index zero and rewound afterwards.
+     *
+     * @param worldTdepth Column major transform from the frame of the points to the world frame
+     *                    the voxels are tracked in.
+     * @param output      Receives the stable points from index zero, in the input format, and is
+     *                    flipped. May be the input buffer.
+     * @return The number of points written to {@code output}.
+     */
+    public int filter(FloatBuffer points, int numPoints, float[] worldTdepth,
+                      FloatBuffer output) {
+        if (numPoints > mMaxPoints) {
+            throw new RuntimeException(
+                    String.format("numPoints = %d exceeds maximum number of points = %d",
+                            numPoints, mMaxPoints));
+        }
+        mInputCount = numPoints;
+        mFrame++;
+        final int stride = mFloatsPerPoint;
+        final float[] input = mPoints;
+        points.rewind();
+        points.get(input, 0, numPoints * stride);
+        points.rewind();
+
+        final float[] m = worldTdepth;
+        final float inverseVoxelSize = mInverseVoxelSize;
+        final int[] pointVoxels = mPointVoxels;
+        final float[] state = mState;
+        for (int p = 0, i = 0; p < numPoints; p++, i += stride) {
+            float px = input[i];
+            float py = input[i + 1];
+            float pz = input[i + 2];
+            float x = m[0] * px + m[4] * py + m[8] * pz + m[12];
+            float y = m[1] * px + m[5] * py + m[9] * pz + m[13];
+            float z = m[2] * px + m[6] * py + m[10] * pz + m[14];
+            long key = VoxelGridFilter.voxelKey(VoxelGridFilter.floor(x * inverseVoxelSize),
+                    VoxelGridFilter.floor(y * inverseVoxelSize),
+                    VoxelGridFilter.floor(z * inverseVoxelSize));
+            int voxel = observe(key);
+            pointVoxels[p] = voxel;
+            if (voxel == LongIntHashMap.NO_VALUE) {
+                continue;
+            }
+            // Welford's update, with the older points already down-weighted by observe().
+            int o = voxel * STATE_FLOATS;
+            float weight = state[o + WEIGHT] + 1f;
+            state[o + WEIGHT] = weight;
+            float inverseWeight = 1f / weight;
+            float dx = x - state[o + MEAN];
+            float dy = y - state[o + MEAN + 1];
+            float dz = z - state[o + MEAN + 2];
+            float mx = state[o + MEAN] + dx * inverseWeight;
+            float my = state[o + MEAN + 1] + dy * inverseWeight;
+            float mz = state[o + MEAN + 2] + dz * inverseWeight;
+            state[o + MEAN] = mx;
+            state[o + MEAN + 1] = my;
+            state[o + MEAN + 2] = mz;
+            state[o + SQUARES] += dx * (x - mx) + dy * (y - my) + dz * (z - mz);
+        }
+
+        // Second pass, so every point of a voxel sees the statistics of the whole frame.
+        final float minHits = mMinHits;
+        final float maxVariance = mMaxVariance;
+        output.clear();
+        int kept = 0;
+        for (int p = 0, i = 0; p < numPoints; p++, i += stride) {
+            int voxel = pointVoxels[p];
+            if (voxel == LongIntHashMap.NO_VALUE) {
+                continue;
+            }
+            int o = voxel * STATE_FLOATS;
+            if (state[o + HITS] >= minHits
+                    && state[o + SQUARES] <= maxVariance * state[o + WEIGHT]) {
+                output.put(input, i, stride);
+                kept++;
+            }
+        }
+        output.flip();
+        mOutputCount = kept;
+        return kept;
+    }
+
+    /**
+     * Find or create the voxel of a key and bring its decayed statistics up to the current frame,
+     * counting one hit the first time it is seen in the frame.
+     *
+     * @return The voxel, or {@link LongIntHashMap#NO_VALUE} if every voxel is in use by the
+     * current frame.
+     */
+    private int observe(long key) {
+        int voxel;
+        if (mVoxelCount == mMaxVoxels) {
+            // Look up before inserting, so the index never holds more keys than it was sized for
+            // and never grows.
+            voxel = mVoxelIndex.get(key);
+            if (voxel == LongIntHashMap.NO_VALUE) {
+                // Every voxel is in use by this frame once an eviction frees nothing, so don't
+                // rebuild the table again for each of its new voxels.
+                if (mFullFrame == mFrame || evict() == 0) {
+                    mFullFrame = mFrame;
+                    return LongIntHashMap.NO_VALUE;
+                }
+                mVoxelIndex.put(key, mVoxelCount);
+            }
+        } else {
+            voxel = mVoxelIndex.putIfAbsent(key, mVoxelCount);
+        }
+        if (voxel == LongIntHashMap.NO_VALUE) {
+            voxel = mVoxelCount++;
+            mKeys[voxel] = key;
+            clearVoxel(voxel);
+            return voxel;
+        }
+        int age = mFrame - mLastFrames[voxel];
+        if (age == 0) {
+            return voxel;
+        }
+        if (age > mMaxAge) {
+            // Forgotten but not evicted yet: start over.
+            clearVoxel(voxel);
+            return voxel;
+        }
+        float decay = mDecayPowers[age];
+        int o = voxel * STATE_FLOATS;
+        mState[o + HITS] = mState[o + HITS] * decay + 1f;
+        mState[o + WEIGHT] *= decay;
+        mState[o + SQUARES] *= decay;
+        mLastFrames[voxel] = mFrame;
+        return voxel;
+    }
+
+    private void clearVoxel(int voxel) {
+        mLastFrames[voxel] = mFrame;
+        int o = voxel * STATE_FLOATS;
+        mState[o + HITS] = 1f;
+        mState[o + WEIGHT] = 0f;
+        mState[o + MEAN] = 0f;
+        mState[o + MEAN + 1] = 0f;
+        mState[o + MEAN + 2] = 0f;
+        mState[o + SQUARES] = 0f;
+    }
+
+    /**
+     * Drop every voxel older than the maximum age, and if that frees too few, the oldest ones
+     * until at least a quarter of the table is free. Voxels seen in the current frame are kept.
+     * Survivors are moved to the front of the arrays and the index is rebuilt, which costs
+     * O(maxVoxels) but only happens once per quarter table of new voxels.
+     *
+     * @return The number of voxels evicted.
+     */
+    private int evict() {
+        final int[] ageCounts = mAgeCounts;
+        final int overAge = mMaxAge + 1;
+        for (int i = 0; i < ageCounts.length; i++) {
+            ageCounts[i] = 0;
+        }
+        for (int v = 0; v < mVoxelCount; v++) {
+            ageCounts[Math.min(mFrame - mLastFrames[v], overAge)]++;
+        }
+        // Keep voxels up to the oldest age that still leaves enough free room.
+        int target = mMaxVoxels - Math.max(1, mMaxVoxels / EVICTION_DIVISOR);
+        int keepAge = 0;
+        int kept = ageCounts[0];
+        while (keepAge < mMaxAge && kept + ageCounts[keepAge + 1] <= target) {
+            keepAge++;
+            kept += ageCounts[keepAge];
+        }
+
+        mVoxelIndex.clear();
+        final int[] remap = mRemap;
+        int count = 0;
+        for (int v = 0; v < mVoxelCount; v++) {
+            if (mFrame - mLastFrames[v] > keepAge) {
+                remap[v] = LongIntHashMap.NO_VALUE;
+                continue;
+            }
+            if (count != v) {
+                mKeys[count] = mKeys[v];
+                mLastFrames[count] = mLastFrames[v];
+                System.arraycopy(mState, v * STATE_FLOATS, mState, count * STATE_FLOATS,
+                        STATE_FLOATS);
+            }
+            remap[v] = count;
+            mVoxelIndex.put(mKeys[count], count);
+            count++;
+        }
+        // Points already processed in this frame refer to their voxel by index. They all point
+        // to voxels seen in this frame, which are kept; later entries are overwritten anyway.
+        final int[] pointVoxels = mPointVoxels;
+        for (int p = 0; p < mInputCount; p++) {
+            int voxel = pointVoxels[p];
+            if (voxel != LongIntHashMap.NO_VALUE) {
+                pointVoxels[p] = remap[voxel];
+            }
+        }
+        int evicted = mVoxelCount - count;
+        mVoxelCount = count;
+        mEvictedCount += evicted;
+        mEvictionCount++;
+        return evicted;
+    }
+
+    /**
+     * @return Points in the last frame.
+     */
+    public int getInputCount() {
+        return mInputCount;
+    }
+
+    /**
+     * @return Stable points emitted from the last frame.
+     */
+    public int getOutputCount() {
+        return mOutputCount;
+    }
+
+    /**
+     * @return Share of the points of the last frame that were emitted.
+     */
+    public float getKeptRatio() {
+        return mInputCount == 0 ? 1f : (float) mOutputCount / mInputCount;
+    }
+
+    /**
+     * @return Voxels currently tracked.
+     */
+    public int getVoxelCount() {
+        return mVoxelCount;
+    }
+
+    public int getMaxVoxels() {
+        return mMaxVoxels;
+    }
+
+    /**
+     * @return Voxels dropped to make room since the filter was created.
+     */
+    public long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * @return Times the table was compacted to make room since the filter was created.
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Downsamples a point cloud by replacing all the points falling in the same cubic voxel with their
+ * centroid. The output is in XYZC format, where C is the mean confidence of the merged points.
+ * <p/>
+ * All storage, including the voxel hash map and the direct output buffer, is allocated up front
+ * and reused for every frame. Not thread safe, but the voxel coordinates of large clouds can be
+ * computed on the threads of a {@link ParallelChunks}, see {@link #setParallel}.
+ */
+public class VoxelGridFilter {
+    /** Output points are always in XYZC format. */
+    public static final int OUTPUT_FLOATS_PER_POINT = 4;
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int CHUNK_POINTS = 1024;
+
+    // Voxel coordinates are packed into a long key using 21 bits per axis.
+    private static final int KEY_BITS = 21;
+    private static final int KEY_OFFSET = 1 << (KEY_BITS - 1);
+    private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+    private final int mMaxPoints;
+    private final int mInputFloatsPerPoint;
+    private final LongIntHashMap mVoxelIndex;
+    private final float[] mScratch;
+    // Per voxel XYZC sums, turned into centroids in place at the end of the frame.
+    private final float[] mCentroids;
+    private final int[] mCounts;
+    private final FloatBuffer mOutput;
+
+    private float mVoxelSize;
+    private float mInverseVoxelSize;
+    private int mInputCount;
+    private int mOutputCount;
+
+    private ParallelChunks mParallel;
+    private float[][] mWorkerScratch;
+    // Voxel key of every input point, computed in parallel before the points are merged.
+    private long[] mKeys;
+    private FloatBuffer mTaskPoints;
+    private final ParallelChunks.ChunkTask mKeyTask = new ParallelChunks.ChunkTask() {
+        @Override
+        public void processChunk(int worker, int chunk, int first, int count) {
+            FloatBuffer points = mParallel.view(worker, mTaskPoints);
+            points.position(first * mInputFloatsPerPoint);
+            computeKeys(points, first, count, mWorkerScratch[worker]);
+        }
+    };
+
+    /**
+     * @param maxPoints          Maximum number of points per input cloud.
+     * @param inputFloatsPerPoint Float values per input point. XYZ format = 3, XYZC format = 4.
+     * @param voxelSize          Edge length of a voxel in meters.
+     */
+    public VoxelGridFilter(int maxPoints, int inputFloatsPerPoint, float voxelSize) {
+        mMaxPoints = maxPoints;
+        mInputFloatsPerPoint = inputFloatsPerPoint;
+        mVoxelIndex = new LongIntHashMap(maxPoints);
+        mScratch = new float[CHUNK_POINTS * inputFloatsPerPoint];
+        mCentroids = new float[maxPoints * OUTPUT_FLOATS_PER_POINT];
+        mCounts = new int[maxPoints];
+        mOutput = ByteBuffer.allocateDirect(
+                maxPoints * OUTPUT_FLOATS_PER_POINT * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        setVoxelSize(voxelSize);
+    }
+
+    public void setVoxelSize(float voxelSize) {
+        if (!(voxelSize > 0)) {
+            throw new IllegalArgumentException("voxelSize must be positive: " + voxelSize);
+        }
+        mVoxelSize = voxelSize;
+        mInverseVoxelSize = 1f / voxelSize;
+    }
+
+    public float getVoxelSize() {
+        return mVoxelSize;
+    }
+
+    /**
+     * Compute the voxel of every point on the threads of {@code parallel}, or filter on the
+     * calling thread only if null. Points are still merged into their voxels in input order on
+     * the calling thread, so the output is the same whatever the number of threads.
+     */
+    public void setParallel(ParallelChunks parallel) {
+        if (parallel == null) {
+            mParallel = null;
+            mWorkerScratch = null;
+            mKeys = null;
+            return;
+        }
+        mWorkerScratch = new float[parallel.getThreads()][CHUNK_POINTS * mInputFloatsPerPoint];
+        mKeys = new long[mMaxPoints];
+        mParallel = parallel;
+    }
+
+    /**
+     * Pack integer voxel coordinates into a single key. Each coordinate must fit in 21 bits
+     * signed, which at 1cm voxels covers more than 10km in each direction.
+     */
+    public static long voxelKey(int ix, int iy, int iz) {
+        return ((ix + KEY_OFFSET) & KEY_MASK) << (2 * KEY_BITS)
+                | ((iy + KEY_OFFSET) & KEY_MASK) << KEY_BITS
+                | ((iz + KEY_OFFSET) & KEY_MASK);
+    }
+
+    /**
+     * Round towards negative infinity. Cheaper than {@link Math#floor(double)} for the value range
+     * of voxel coordinates.
+     */
+    public static int floor(float value) {
+        int i = (int) value;
+        return value < i ? i - 1 : i;
+    }
+
+    /**
+     * Downsample the first {@code numPoints} points of a buffer. The buffer is read from index
+     * zero and rewound afterwards.
+     *
+     * @return The number of points in the output buffer.
+     */
+    public int filter(FloatBuffer points, int numPoints) {
+        return filter(points, numPoints, mOutput);
+    }
+
+    /**
+     * Downsample the first {@code numPoints} points of a buffer into a caller supplied output
+     * buffer instead of the filter's own.
+     *
+     * @param output Receives the centroids in XYZC format from index zero, and is flipped.
+     *               Must have room for as many points as the input.
+     * @return The number of points written to {@code output}.
+     */
+    public int filter(FloatBuffer points, int numPoints, FloatBuffer output) {
+        if (numPoints > mMaxPoints) {
+            throw new RuntimeException(
+                    String.format("numPoints = %d exceeds maximum number of points = %d",
+                            numPoints, mMaxPoints));
+        }
+        mVoxelIndex.clear();
+        mInputCount = numPoints;
+        mOutputCount = 0;
+
+        final int stride = mInputFloatsPerPoint;
+        final boolean hasConfidence = stride >= 4;
+        final float inverseVoxelSize = mInverseVoxelSize;
+        final float[] scratch = mScratch;
+        final float[] centroids = mCentroids;
+        final int[] counts = mCounts;
+
+        final ParallelChunks parallel = mParallel;
+        final long[] keys = mKeys;
+        if (parallel != null) {
+            mTaskPoints = points;
+            parallel.forEachChunk(numPoints, mKeyTask);
+            mTaskPoints = null;
+        }
+
+        points.rewind();
+        int remaining = numPoints;
+        int next = 0;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            int end = chunk * stride;
+            for (int i = 0; i < end; i += stride) {
+                float x = scratch[i];
+                float y = scratch[i + 1];
+                float z = scratch[i + 2];
+                long key = parallel != null ? keys[next++]
+                        : voxelKey(floor(x * inverseVoxelSize), floor(y * inverseVoxelSize),
+                        floor(z * inverseVoxelSize));
+                int voxel = mVoxelIndex.putIfAbsent(key, mOutputCount);
+                float c = hasConfidence ? scratch[i + 3] : 1f;
+                if (voxel == LongIntHashMap.NO_VALUE) {
+                    voxel = mOutputCount++;
+                    int o = voxel * OUTPUT_FLOATS_PER_POINT;
+                    centroids[o] = x;
+                    centroids[o + 1] = y;
+                    centroids[o + 2] = z;
+                    centroids[o + 3] = c;
+                    counts[voxel] = 1;
+                } else {
+                    int o = voxel * OUTPUT_FLOATS_PER_POINT;
+                    centroids[o] += x;
+                    centroids[o + 1] += y;
+                    centroids[o + 2] += z;
+                    centroids[o + 3] += c;
+                    counts[voxel]++;
+                }
+            }
+            remaining -= chunk;
+        }
+        points.rewind();
+
+        for (int v = 0; v < mOutputCount; v++) {
+            float inverseCount = 1f / counts[v];
+            int o = v * OUTPUT_FLOATS_PER_POINT;
+            centroids[o] *= inverseCount;
+            centroids[o + 1] *= inverseCount;
+            centroids[o + 2] *= inverseCount;
+            centroids[o + 3] *= inverseCount;
+        }
+        output.clear();
+        output.put(centroids, 0, mOutputCount * OUTPUT_FLOATS_PER_POINT);
+        output.flip();
+        return mOutputCount;
+    }
+
+    private void computeKeys(FloatBuffer points, int first, int numPoints, float[] scratch) {
+        final int stride = mInputFloatsPerPoint;
+        final float inverseVoxelSize = mInverseVoxelSize;
+        final long[] keys = mKeys;
+        int next = first;
+        int remaining = numPoints;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHUNK_POINTS);
+            points.get(scratch, 0, chunk * stride);
+            int end = chunk * stride;
+            for (int i = 0; i < end; i += stride) {
+                keys[next++] = voxelKey(floor(scratch[i] * inverseVoxelSize),
+                        floor(scratch[i + 1] * inverseVoxelSize),
+                        floor(scratch[i + 2] * inverseVoxelSize));
+            }
+            remaining -= chunk;
+        }
+    }
+
+    /**
+     * @return The centroids of the last frame filtered without an output buffer, in XYZC format,
+     * positioned at zero. The buffer is reused by the next call to {@link #filter}.
+     */
+    public FloatBuffer getOutput() {
+        return mOutput;
+    }
+
+    public int getOutputCount() {
+        return mOutputCount;
+    }
+
+    public int getInputCount() {
+        return mInputCount;
+    }
+
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+}
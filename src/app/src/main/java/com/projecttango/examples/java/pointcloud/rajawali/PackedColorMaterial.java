@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.rajawali;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.materials.Material;
+
+/**
+ * A vertex colored material accepting colors stored as {@code GL_UNSIGNED_BYTE} RGBA.
+ * Rajawali binds the vertex color attribute with the type of the color buffer but never
+ * normalizes it, which would turn byte colors into values up to 255; this rebinds it normalized.
+ */
+public class PackedColorMaterial extends Material {
+    // Name of the vertex color attribute in the shaders generated by Rajawali.
+    private static final String VERTEX_COLOR_ATTRIBUTE = "aVertexColor";
+
+    private final int[] mCurrentProgram = new int[1];
+    private int mProgram;
+    private int mVertexColorAttribute = -1;
+
+    public PackedColorMaterial() {
+        super();
+        useVertexColors(true);
+    }
+
+    @Override
+    public void setVertexColors(BufferInfo colorBufferInfo) {
+        super.setVertexColors(colorBufferInfo);
+        if (colorBufferInfo.type == GLES20.GL_FLOAT) {
+            return;
+        }
+        // The program is current here; it only changes when the shaders are rebuilt.
+        GLES20.glGetIntegerv(GLES20.GL_CURRENT_PROGRAM, mCurrentProgram, 0);
+        if (mCurrentProgram[0] != mProgram) {
+            mProgram = mCurrentProgram[0];
+            mVertexColorAttribute = GLES20.glGetAttribLocation(mProgram, VERTEX_COLOR_ATTRIBUTE);
+        }
+        if (mVertexColorAttribute >= 0) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, colorBufferInfo.bufferHandle);
+            GLES20.glVertexAttribPointer(mVertexColorAttribute, 4, colorBufferInfo.type, true,
+                    colorBufferInfo.stride, colorBufferInfo.offset);
+        }
+    }
+}
@@ -17,45 +17,82 @@ package com.projecttango.examples.java.pointcloud.rajawali;
 
 import android.graphics.Color;
 
-import org.rajawali3d.materials.Material;
+import com.projecttango.examples.java.pointcloud.pipeline.RenderFrame;
+import com.projecttango.examples.java.pointcloud.processing.DepthColorMap;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 
 /**
  * Renders a point cloud using colors to indicate distance to the depth sensor.
  * Coloring is based on the light spectrum: closest points are in red, farthest in violet.
+ * Colors are uploaded as RGBA bytes looked up from a precomputed palette, streamed through
+ * rotating buffers.
  */
 public class PointCloud extends Points {
     // Maximum depth range used to calculate coloring (min = 0)
     public static final float CLOUD_MAX_Z = 5;
 
-    private float[] mColorArray;
-    private final int[] mPalette;
     public static final int PALETTE_SIZE = 360;
     public static final float HUE_BEGIN = 0;
     public static final float HUE_END = 320;
+    // Number of vertex and color buffer pairs rotated through when uploading.
+    public static final int STREAM_BUFFERS = 3;
+
+    // Only allocated when coloring on the rendering thread through updateCloud(int, FloatBuffer).
+    private DepthColorMap mColorMap;
+    private ByteBuffer mColorBuffer;
+    private IntBuffer mPackedColors;
 
     public PointCloud(int maxPoints, int floatsPerPoint) {
-        super(maxPoints, floatsPerPoint, true);
-        mPalette = createPalette();
-        mColorArray = new float[maxPoints * 4];
-        Material m = new Material();
-        m.useVertexColors(true);
-        setMaterial(m);
+        this(maxPoints, floatsPerPoint, STREAM_BUFFERS);
+    }
+
+    /**
+     * @param streamBuffers Number of vertex and color buffer pairs rotated through when uploading.
+     */
+    public PointCloud(int maxPoints, int floatsPerPoint, int streamBuffers) {
+        super(maxPoints, floatsPerPoint, false);
+        initStreaming(streamBuffers);
+        setMaterial(new PackedColorMaterial());
     }
 
     /**
      * Update the points and colors in the point cloud.
      */
     public void updateCloud(int pointCount, FloatBuffer pointBuffer) {
-        calculateColors(pointCount, pointBuffer);
-        updatePoints(pointCount, pointBuffer, mColorArray);
+        if (mColorMap == null) {
+            mColorMap = createColorMap(mFloatsPerPoint);
+            mColorBuffer = ByteBuffer.allocateDirect(
+                    getMaxNumberOfVertices() * DepthColorMap.BYTES_PER_PACKED_COLOR)
+                    .order(ByteOrder.nativeOrder());
+            mPackedColors = mColorBuffer.asIntBuffer();
+        }
+        mColorMap.fill(pointBuffer, pointCount, mPackedColors);
+        updatePoints(pointCount, pointBuffer, mColorBuffer);
+    }
+
+    /**
+     * Update the points and colors from a frame already colored off the rendering thread with a
+     * color map from {@link #createColorMap(int)}.
+     */
+    public void updateCloud(RenderFrame frame) {
+        updatePoints(frame.getNumPoints(), frame.getVertices(), frame.getColors());
+    }
+
+    /**
+     * Create the color map used to color point clouds by depth.
+     */
+    public static DepthColorMap createColorMap(int floatsPerPoint) {
+        return new DepthColorMap(createPalette(), CLOUD_MAX_Z, floatsPerPoint);
     }
 
     /**
      * Pre-calculate a palette to be used to translate between point distance and RGB color.
      */
-    private int[] createPalette() {
+    private static int[] createPalette() {
         int[] palette = new int[PALETTE_SIZE];
         float[] hsv = new float[3];
         hsv[1] = hsv[2] = 1;
@@ -65,28 +102,4 @@ public class PointCloud extends Points {
         }
         return palette;
     }
-
-    /**
-     * Calculate the right color for each point in the point cloud.
-     */
-    private void calculateColors(int pointCount, FloatBuffer pointCloudBuffer) {
-        float[] points = new float[pointCount * 4];
-        pointCloudBuffer.rewind();
-        pointCloudBuffer.get(points);
-        pointCloudBuffer.rewind();
-
-        int color;
-        int colorIndex;
-        float z;
-        for (int i = 0; i < pointCount; i++) {
-            z = points[i * mFloatsPerPoint + 2];
-            colorIndex = (int) Math.min(z / CLOUD_MAX_Z * mPalette.length, mPalette.length - 1);
-            colorIndex = Math.max(colorIndex, 0);
-            color = mPalette[colorIndex];
-            mColorArray[i * 4] = Color.red(color) / 255f;
-            mColorArray[i * 4 + 1] = Color.green(color) / 255f;
-            mColorArray[i * 4 + 2] = Color.blue(color) / 255f;
-            mColorArray[i * 4 + 3] = Color.alpha(color) / 255f;
-        }
-    }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.rajawali;
+
+import com.projecttango.examples.java.pointcloud.pipeline.RenderFrame;
+
+import org.rajawali3d.Object3D;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+/**
+ * Renders the last few point clouds together, each placed with the pose it was captured at.
+ * <p/>
+ * Every cloud is uploaded once into a slot of a fixed pool of {@link PointCloud} objects, with
+ * the newest cloud replacing the oldest, and older clouds are never uploaded again. To keep the
+ * rendering cost flat however many clouds are kept, clouds other than the newest can be drawn
+ * decimated, and the oldest clouds are hidden once the total number of points drawn would exceed
+ * a point budget.
+ */
+public class PointCloudRing extends Object3D {
+    private final PointCloud[] mSlots;
+    private int mNewest = -1;
+    private int mFilled;
+
+    private int mPointBudget;
+    private int mOlderDecimation = 1;
+
+    private int mVisibleClouds;
+    private int mDrawnPoints;
+    // Written by the OpenGL thread only, read by the overlay on the analysis thread.
+    private volatile long mUploadNanosTotal;
+    private volatile long mUploadCount;
+
+    /**
+     * @param clouds            Number of clouds kept.
+     * @param maxPointsPerCloud Maximum number of points of a single cloud.
+     * @param pointBudget       Maximum number of points drawn over all clouds. The newest cloud
+     *                          is always drawn in full.
+     */
+    public PointCloudRing(int clouds, int maxPointsPerCloud, int floatsPerPoint,
+                          int pointBudget) {
+        super();
+        mSlots = new PointCloud[clouds];
+        for (int i = 0; i < clouds; i++) {
+            // A single buffer pair per slot is enough: a slot is only rewritten once every other
+            // slot has been drawn with a newer cloud, and the upload orphans its storage anyway.
+            mSlots[i] = new PointCloud(maxPointsPerCloud, floatsPerPoint, 1);
+            mSlots[i].setVisible(false);
+            addChild(mSlots[i]);
+        }
+        mPointBudget = pointBudget;
+    }
+
+    /**
+     * Add a cloud prepared for rendering in place of the oldest one.
+     * NOTE: This needs to be called from the OpenGL rendering thread.
+     *
+     * @param position    Position of the depth camera when the cloud was captured.
+     * @param orientation Orientation of the depth camera, in Rajawali's convention.
+     */
+    public void addCloud(RenderFrame frame, Vector3 position, Quaternion orientation) {
+        mNewest = (mNewest + 1) % mSlots.length;
+        if (mFilled < mSlots.length) {
+            mFilled++;
+        }
+        PointCloud slot = mSlots[mNewest];
+        slot.updateCloud(frame);
+        slot.setPosition(position);
+        slot.setOrientation(orientation);
+        mUploadNanosTotal += slot.getLastUploadNanos();
+        mUploadCount++;
+        applyBudget();
+    }
+
+    /**
+     * Sets the maximum number of points drawn over all clouds.
+     */
+    public void setPointBudget(int pointBudget) {
+        mPointBudget = pointBudget;
+        applyBudget();
+    }
+
+    public int getPointBudget() {
+        return mPointBudget;
+    }
+
+    /**
+     * Draw only every {@code decimation}-th point of clouds other than the newest.
+     */
+    public void setOlderDecimation(int decimation) {
+        if (decimation < 1) {
+            throw new IllegalArgumentException("decimation must be at least 1: " + decimation);
+        }
+        mOlderDecimation = decimation;
+        applyBudget();
+    }
+
+    public int getOlderDecimation() {
+        return mOlderDecimation;
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return Number of clouds drawn within the point budget.
+     */
+    public int getVisibleClouds() {
+        return mVisibleClouds;
+    }
+
+    /**
+     * @return Number of points drawn over all visible clouds.
+     */
+    public int getDrawnPointCount() {
+        return mDrawnPoints;
+    }
+
+    /**
+     * @return Mean time spent uploading a cloud, zero before the first one.
+     */
+    public long getAverageUploadNanos() {
+        return mUploadCount == 0 ? 0 : mUploadNanosTotal / mUploadCount;
+    }
+
+    private void applyBudget() {
+        int drawn = 0;
+        int visible = 0;
+        boolean overBudget = false;
+        for (int age = 0; age < mFilled; age++) {
+            PointCloud slot = mSlots[(mNewest - age + mSlots.length) % mSlots.length];
+            slot.setDecimation(age == 0 ? 1 : mOlderDecimation);
+            int points = slot.getDrawnPointCount();
+            // Evict oldest first: once a cloud doesn't fit, no older one is drawn either.
+            overBudget |= age > 0 && drawn + points > mPointBudget;
+            slot.setVisible(!overBudget);
+            if (!overBudget) {
+                drawn += points;
+                visible++;
+            }
+        }
+        mDrawnPoints = drawn;
+        mVisibleClouds = visible;
+    }
+}
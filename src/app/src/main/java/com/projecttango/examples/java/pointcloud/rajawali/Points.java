@@ -18,8 +18,11 @@ package com.projecttango.examples.java.pointcloud.rajawali;
 import android.opengl.GLES10;
 import android.opengl.GLES20;
 
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.Geometry3D;
 import org.rajawali3d.Object3D;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 
 /**
@@ -34,6 +37,22 @@ public class Points extends Object3D {
     protected int mFloatsPerPoint = 3;
     // Float values per color = 4 (RGBA).
     protected int mFloatsPerColor = 4;
+    // Bytes per packed color = 4 (RGBA as normalized unsigned bytes).
+    protected int mBytesPerPackedColor = 4;
+
+    // Vertex and color buffer pairs rotated through in streaming mode, so that a frame is never
+    // written into the buffer the GPU may still be drawing the previous frame from.
+    private BufferInfo[] mStreamVertexBuffers;
+    private BufferInfo[] mStreamColorBuffers;
+    private int mStreamIndex;
+
+    // Points in the packed color buffers, of which only every mDecimation-th one is drawn.
+    private int mPackedPointCount;
+    private int mDecimation = 1;
+
+    private long mLastUploadNanos;
+    private long mUploadNanosTotal;
+    private long mUploadCount;
 
     public Points(int numberOfPoints, int floatsPerPoint, boolean isCreateColors) {
         super();
@@ -42,6 +61,10 @@ public class Points extends Object3D {
         init(true, isCreateColors);
     }
 
+    public int getMaxNumberOfVertices() {
+        return mMaxNumberOfVertices;
+    }
+
     // Initialize the buffers for Points primitive.
     // Since only vertex, index and color buffers are used,
     // we only initialize them using setData call.
@@ -88,6 +111,157 @@ public class Points extends Object3D {
                 pointCount * mFloatsPerColor);
     }
 
+    /**
+     * Replace the float color buffer with one of RGBA unsigned bytes, a quarter of the size.
+     * Only valid with a {@link PackedColorMaterial}, and with colors then updated through
+     * {@link #updatePoints(int, FloatBuffer, ByteBuffer)}.
+     *
+     * @param colors Direct buffer with room for the maximum number of points.
+     */
+    protected void initPackedColors(ByteBuffer colors) {
+        BufferInfo colorBufferInfo = new BufferInfo();
+        mGeometry.createBuffer(colorBufferInfo, Geometry3D.BufferType.BYTE_BUFFER, colors,
+                GLES20.GL_ARRAY_BUFFER, GLES20.GL_DYNAMIC_DRAW);
+        colorBufferInfo.type = GLES20.GL_UNSIGNED_BYTE;
+        mGeometry.setColorBufferInfo(colorBufferInfo);
+    }
+
+    /**
+     * Switch to streaming uploads through {@code bufferCount} rotating pairs of vertex and packed
+     * RGBA color buffers. Each upload respecifies the whole storage of the next pair (buffer
+     * orphaning), so the driver never has to wait for the GPU to release a buffer in use.
+     * Colors are then updated through {@link #updatePoints(int, FloatBuffer, ByteBuffer)} and
+     * require a {@link PackedColorMaterial}.
+     */
+    protected void initStreaming(int bufferCount) {
+        mStreamVertexBuffers = new BufferInfo[bufferCount];
+        mStreamColorBuffers = new BufferInfo[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            BufferInfo vertexBufferInfo;
+            if (i == 0) {
+                // Reuse the vertex buffer created by init().
+                vertexBufferInfo = mGeometry.getVertexBufferInfo();
+            } else {
+                vertexBufferInfo = new BufferInfo();
+                mGeometry.createBuffer(vertexBufferInfo, Geometry3D.BufferType.FLOAT_BUFFER, null,
+                        GLES20.GL_ARRAY_BUFFER, GLES20.GL_STREAM_DRAW);
+                vertexBufferInfo.stride = mFloatsPerPoint * BYTES_PER_FLOAT;
+            }
+            vertexBufferInfo.usage = GLES20.GL_STREAM_DRAW;
+            mStreamVertexBuffers[i] = vertexBufferInfo;
+
+            BufferInfo colorBufferInfo = new BufferInfo();
+            mGeometry.createBuffer(colorBufferInfo, Geometry3D.BufferType.BYTE_BUFFER, null,
+                    GLES20.GL_ARRAY_BUFFER, GLES20.GL_STREAM_DRAW);
+            colorBufferInfo.type = GLES20.GL_UNSIGNED_BYTE;
+            mStreamColorBuffers[i] = colorBufferInfo;
+        }
+        mStreamIndex = 0;
+        mGeometry.setColorBufferInfo(mStreamColorBuffers[0]);
+    }
+
+    /**
+     * Update the geometry of the points based on the provided points float buffer and corresponding
+     * packed RGBA colors, after {@link #initPackedColors(ByteBuffer)} or
+     * {@link #initStreaming(int)}.
+     */
+    public void updatePoints(int pointCount, FloatBuffer points, ByteBuffer colors) {
+        if (pointCount > mMaxNumberOfVertices) {
+            throw new RuntimeException(
+                    String.format("pointClount = %d exceeds maximum number of points = %d",
+                            pointCount, mMaxNumberOfVertices));
+        }
+        long start = System.nanoTime();
+        mPackedPointCount = pointCount;
+        if (mStreamVertexBuffers != null) {
+            mStreamIndex = (mStreamIndex + 1) % mStreamVertexBuffers.length;
+            BufferInfo vertexBufferInfo = mStreamVertexBuffers[mStreamIndex];
+            BufferInfo colorBufferInfo = mStreamColorBuffers[mStreamIndex];
+            // Resizing to the frame size makes Rajawali call glBufferData, orphaning the storage.
+            mGeometry.changeBufferData(vertexBufferInfo, points, 0, pointCount * mFloatsPerPoint,
+                    true);
+            mGeometry.changeBufferData(colorBufferInfo, colors, 0,
+                    pointCount * mBytesPerPackedColor, true);
+            mGeometry.setVertexBufferInfo(vertexBufferInfo);
+            mGeometry.setColorBufferInfo(colorBufferInfo);
+        } else {
+            mGeometry.setVertices(points);
+            mGeometry.changeBufferData(mGeometry.getVertexBufferInfo(), mGeometry.getVertices(), 0,
+                    pointCount * mFloatsPerPoint);
+            mGeometry.changeBufferData(mGeometry.getColorBufferInfo(), colors, 0,
+                    pointCount * mBytesPerPackedColor);
+        }
+        applyDecimation();
+        mLastUploadNanos = System.nanoTime() - start;
+        mUploadNanosTotal += mLastUploadNanos;
+        mUploadCount++;
+    }
+
+    /**
+     * Draw only every {@code decimation}-th point of the packed color points already uploaded,
+     * without uploading them again. The vertex attribute strides are widened so the points drawn
+     * still cover the whole cloud.
+     *
+     * @param decimation One to draw every point.
+     */
+    public void setDecimation(int decimation) {
+        if (decimation < 1) {
+            throw new IllegalArgumentException("decimation must be at least 1: " + decimation);
+        }
+        mDecimation = decimation;
+        applyDecimation();
+    }
+
+    public int getDecimation() {
+        return mDecimation;
+    }
+
+    /**
+     * @return Number of points drawn after decimation.
+     */
+    public int getDrawnPointCount() {
+        return (mPackedPointCount + mDecimation - 1) / mDecimation;
+    }
+
+    private void applyDecimation() {
+        mGeometry.getVertexBufferInfo().stride = mFloatsPerPoint * BYTES_PER_FLOAT * mDecimation;
+        mGeometry.getColorBufferInfo().stride = mBytesPerPackedColor * mDecimation;
+        mGeometry.setNumIndices(getDrawnPointCount());
+    }
+
+    /**
+     * @return Time spent on the rendering thread uploading the last packed color frame.
+     */
+    public long getLastUploadNanos() {
+        return mLastUploadNanos;
+    }
+
+    /**
+     * @return Mean time spent uploading packed color frames, zero before the first one.
+     */
+    public long getAverageUploadNanos() {
+        return mUploadCount == 0 ? 0 : mUploadNanosTotal / mUploadCount;
+    }
+
+    @Override
+    public void destroy() {
+        if (mStreamVertexBuffers != null) {
+            // The geometry only deletes the buffers currently attached to it.
+            int[] handles = new int[1];
+            for (int i = 0; i < mStreamVertexBuffers.length; i++) {
+                if (i != mStreamIndex) {
+                    handles[0] = mStreamVertexBuffers[i].bufferHandle;
+                    GLES20.glDeleteBuffers(1, handles, 0);
+                    handles[0] = mStreamColorBuffers[i].bufferHandle;
+                    GLES20.glDeleteBuffers(1, handles, 0);
+                }
+            }
+            mStreamVertexBuffers = null;
+            mStreamColorBuffers = null;
+        }
+        super.destroy();
+    }
+
     @Override
     public void preRender() {
         super.preRender();
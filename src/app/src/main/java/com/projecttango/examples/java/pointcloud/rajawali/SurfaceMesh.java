@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.rajawali;
+
+import android.opengl.GLES20;
+
+import org.rajawali3d.BufferInfo;
+import org.rajawali3d.Geometry3D;
+import org.rajawali3d.Object3D;
+
+import com.projecttango.examples.java.pointcloud.mapping.MarchingCubes;
+import com.projecttango.examples.java.pointcloud.pipeline.SurfaceMeshUpdate;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Reconstructed surfaces drawn as one child object per volume block, so that updating the mesh
+ * of a block only uploads that block again. Vertices are in the OpenGL world frame and colors
+ * are packed RGBA with the shading already applied.
+ * <p/>
+ * Every block draws its triangles in vertex order, so all of them share a single index buffer.
+ */
+public class SurfaceMesh extends Object3D {
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final int BYTES_PER_PACKED_COLOR = 4;
+
+    private final Object3D[] mBlocks;
+    private final int[] mVertexCounts;
+    private final PackedColorMaterial mMaterial = new PackedColorMaterial();
+    private final BufferInfo mIndexBufferInfo = new BufferInfo();
+    // A block is copied here first since Rajawali uploads buffers from their start.
+    private final FloatBuffer mStagingVertices;
+    private final ByteBuffer mStagingColors;
+
+    private int mVertexCount;
+    // Written by the OpenGL thread only, read by the overlay on the analysis thread.
+    private volatile long mUploadNanosTotal;
+    private volatile long mUploadCount;
+
+    /**
+     * @param maxBlocks Maximum number of blocks of the reconstructed volume.
+     */
+    public SurfaceMesh(int maxBlocks) {
+        super();
+        isContainer(true);
+        mBlocks = new Object3D[maxBlocks];
+        mVertexCounts = new int[maxBlocks];
+        int maxVertices = MarchingCubes.getMaxVerticesPerBlock();
+        ShortBuffer indices = ByteBuffer.allocateDirect(maxVertices * 2)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+        for (int i = 0; i < maxVertices; i++) {
+            indices.put((short) i);
+        }
+        indices.rewind();
+        mGeometry.createBuffer(mIndexBufferInfo, Geometry3D.BufferType.SHORT_BUFFER, indices,
+                GLES20.GL_ELEMENT_ARRAY_BUFFER, GLES20.GL_STATIC_DRAW);
+        mStagingVertices = ByteBuffer.allocateDirect(
+                maxVertices * MarchingCubes.FLOATS_PER_VERTEX * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        mStagingColors = ByteBuffer.allocateDirect(maxVertices * BYTES_PER_PACKED_COLOR)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Replace the meshes of the blocks in {@code update}.
+     * NOTE: This needs to be called from the OpenGL rendering thread.
+     */
+    public void update(SurfaceMeshUpdate update) {
+        long start = System.nanoTime();
+        FloatBuffer vertices = update.getVertices();
+        ByteBuffer colors = update.getColors();
+        for (int i = 0; i < update.getBlockCount(); i++) {
+            int id = update.getBlock(i);
+            int first = update.getFirstVertex(i);
+            int count = update.getVertexCount(i);
+            Object3D block = mBlocks[id];
+            if (block == null) {
+                if (count == 0) {
+                    continue;
+                }
+                block = createBlock();
+                mBlocks[id] = block;
+            }
+            mVertexCount += count - mVertexCounts[id];
+            mVertexCounts[id] = count;
+            block.setVisible(count > 0);
+            if (count == 0) {
+                continue;
+            }
+
+            vertices.limit((first + count) * MarchingCubes.FLOATS_PER_VERTEX);
+            vertices.position(first * MarchingCubes.FLOATS_PER_VERTEX);
+            mStagingVertices.clear();
+            mStagingVertices.put(vertices);
+            vertices.clear();
+            colors.limit((first + count) * BYTES_PER_PACKED_COLOR);
+            colors.position(first * BYTES_PER_PACKED_COLOR);
+            mStagingColors.clear();
+            mStagingColors.put(colors);
+            colors.clear();
+
+            Geometry3D geometry = block.getGeometry();
+            // Resizing to the mesh size makes Rajawali call glBufferData, orphaning the storage.
+            geometry.changeBufferData(geometry.getVertexBufferInfo(), mStagingVertices, 0,
+                    count * MarchingCubes.FLOATS_PER_VERTEX, true);
+            geometry.changeBufferData(geometry.getColorBufferInfo(), mStagingColors, 0,
+                    count * BYTES_PER_PACKED_COLOR, true);
+            geometry.setNumIndices(count);
+        }
+        mUploadNanosTotal += System.nanoTime() - start;
+        mUploadCount++;
+    }
+
+    private Object3D createBlock() {
+        Object3D block = new Object3D();
+        Geometry3D geometry = block.getGeometry();
+        BufferInfo vertexBufferInfo = new BufferInfo();
+        geometry.createBuffer(vertexBufferInfo, Geometry3D.BufferType.FLOAT_BUFFER, null,
+                GLES20.GL_ARRAY_BUFFER, GLES20.GL_DYNAMIC_DRAW);
+        vertexBufferInfo.stride = MarchingCubes.FLOATS_PER_VERTEX * BYTES_PER_FLOAT;
+        geometry.setVertexBufferInfo(vertexBufferInfo);
+        BufferInfo colorBufferInfo = new BufferInfo();
+        geometry.createBuffer(colorBufferInfo, Geometry3D.BufferType.BYTE_BUFFER, null,
+                GLES20.GL_ARRAY_BUFFER, GLES20.GL_DYNAMIC_DRAW);
+        colorBufferInfo.type = GLES20.GL_UNSIGNED_BYTE;
+        geometry.setColorBufferInfo(colorBufferInfo);
+        geometry.setIndexBufferInfo(mIndexBufferInfo);
+        block.isContainer(false);
+        block.setMaterial(mMaterial);
+        addChild(block);
+        return block;
+    }
+
+    /**
+     * @return Number of vertices drawn for all the blocks, three per triangle.
+     */
+    public int getVertexCount() {
+        return mVertexCount;
+    }
+
+    /**
+     * @return Mean time spent uploading an update, zero before the first one.
+     */
+    public long getAverageUploadNanos() {
+        return mUploadCount == 0 ? 0 : mUploadNanosTotal / mUploadCount;
+    }
+
+    @Override
+    public void destroy() {
+        // The index buffer is shared, so it is deleted once here rather than by every block.
+        BufferInfo none = new BufferInfo();
+        for (Object3D block : mBlocks) {
+            if (block != null) {
+                block.getGeometry().setIndexBufferInfo(none);
+            }
+        }
+        GLES20.glDeleteBuffers(1, new int[] {mIndexBufferInfo.bufferHandle}, 0);
+        super.destroy();
+    }
+}
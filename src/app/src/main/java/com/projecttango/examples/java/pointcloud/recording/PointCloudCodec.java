@@ -0,0 +1,295 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.recording;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Compact lossy encoding of depth frames as delivered by Tango, XYZ or XYZC, about a fifth of
+ * the size of the raw floats.
+ * <p/>
+ * Positions are rounded to the millimeter and stored as 16 bit offsets from the center of the
+ * frame bounding box, so they must lie within 32.767 m of it, which the depth sensor range
+ * guarantees. Confidences are rounded to 8 bits. Each value is then stored as the difference
+ * with the previous point: in the sensor scan order neighbouring points are close, so the
+ * differences are small. They are zigzag and varint coded into one byte stream per component,
+ * and each stream is entropy coded by a {@link RansByteCoder}.
+ * <p/>
+ * Encoded frame layout, multi-byte values in the byte order of the buffer:
+ * <pre>
+ *   int    number of points
+ *   int    frame origin, X, Y and Z in millimeters
+ *   stream X, Y and Z position differences, then confidence differences if present
+ * </pre>
+ * Allocates nothing once created. Not thread safe; use one codec per thread.
+ */
+public class PointCloudCodec {
+    public static final float POSITION_STEP_METERS = 0.001f;
+    public static final float CONFIDENCE_STEP = 1f / 255;
+
+    private static final float STEPS_PER_METER = 1000f;
+    private static final int MAX_OFFSET = Short.MAX_VALUE;
+    private static final int HEADER_BYTES = 4 * 4;
+    // A zigzag coded difference of two 16 bit offsets takes up to 17 bits, so 3 varint bytes.
+    private static final int MAX_VARINT_BYTES = 3;
+    private static final int CHUNK_POINTS = 1024;
+
+    private final int mMaxPoints;
+    private final int mFloatsPerPoint;
+    private final int mStreamCount;
+    private final byte[][] mStreams;
+    private final int[] mStreamLengths;
+    private final RansByteCoder mEntropyCoder;
+    private final float[] mChunk;
+
+    /**
+     * @param floatsPerPoint XYZ format = 3, XYZC format = 4.
+     */
+    public PointCloudCodec(int maxPoints, int floatsPerPoint) {
+        if (floatsPerPoint != 3 && floatsPerPoint != 4) {
+            throw new IllegalArgumentException("Only XYZ and XYZC points can be encoded");
+        }
+        mMaxPoints = maxPoints;
+        mFloatsPerPoint = floatsPerPoint;
+        mStreamCount = floatsPerPoint;
+        mStreams = new byte[mStreamCount][];
+        mStreamLengths = new int[mStreamCount];
+        for (int i = 0; i < 3; i++) {
+            mStreams[i] = new byte[maxPoints * MAX_VARINT_BYTES];
+        }
+        if (floatsPerPoint == 4) {
+            mStreams[3] = new byte[maxPoints];
+        }
+        mEntropyCoder = new RansByteCoder(maxPoints * MAX_VARINT_BYTES);
+        mChunk = new float[CHUNK_POINTS * floatsPerPoint];
+    }
+
+    /**
+     * @return Bytes needed in the worst case to encode a frame of {@code maxPoints} points.
+     */
+    public static int getMaxEncodedBytes(int maxPoints, int floatsPerPoint) {
+        int bytes = HEADER_BYTES + 3 * RansByteCoder.getMaxEncodedBytes(
+                maxPoints * MAX_VARINT_BYTES);
+        if (floatsPerPoint == 4) {
+            bytes += RansByteCoder.getMaxEncodedBytes(maxPoints);
+        }
+        return bytes;
+    }
+
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+
+    public int getFloatsPerPoint() {
+        return mFloatsPerPoint;
+    }
+
+    /**
+     * Encode a frame at the position of {@code out}, which is advanced past it.
+     *
+     * @param points Points buffer, read from index zero and rewound afterwards.
+     * @param out    Needs room for {@link #getMaxEncodedBytes} bytes.
+     * @return Number of bytes written.
+     */
+    public int encode(FloatBuffer points, int numPoints, ByteBuffer out) {
+        if (numPoints > mMaxPoints) {
+            throw new IllegalArgumentException("Too many points: " + numPoints);
+        }
+        int start = out.position();
+        final int floatsPerPoint = mFloatsPerPoint;
+        final float[] chunk = mChunk;
+
+        // The origin is the center of the bounding box, so any frame less than 65 m across fits.
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        points.rewind();
+        for (int first = 0; first < numPoints; first += CHUNK_POINTS) {
+            int count = Math.min(CHUNK_POINTS, numPoints - first);
+            points.get(chunk, 0, count * floatsPerPoint);
+            for (int i = 0, p = 0; i < count; i++, p += floatsPerPoint) {
+                float x = chunk[p];
+                float y = chunk[p + 1];
+                float z = chunk[p + 2];
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+                minZ = Math.min(minZ, z);
+                maxZ = Math.max(maxZ, z);
+            }
+        }
+        int originX = numPoints == 0 ? 0 : Math.round((minX + maxX) * 0.5f * STEPS_PER_METER);
+        int originY = numPoints == 0 ? 0 : Math.round((minY + maxY) * 0.5f * STEPS_PER_METER);
+        int originZ = numPoints == 0 ? 0 : Math.round((minZ + maxZ) * 0.5f * STEPS_PER_METER);
+
+        final byte[] streamX = mStreams[0];
+        final byte[] streamY = mStreams[1];
+        final byte[] streamZ = mStreams[2];
+        final byte[] streamC = mStreams[floatsPerPoint == 4 ? 3 : 0];
+        int lengthX = 0;
+        int lengthY = 0;
+        int lengthZ = 0;
+        int previousX = 0;
+        int previousY = 0;
+        int previousZ = 0;
+        int previousC = 0;
+        points.rewind();
+        for (int first = 0; first < numPoints; first += CHUNK_POINTS) {
+            int count = Math.min(CHUNK_POINTS, numPoints - first);
+            points.get(chunk, 0, count * floatsPerPoint);
+            for (int i = 0, p = 0; i < count; i++, p += floatsPerPoint) {
+                int x = quantize(chunk[p], originX);
+                int y = quantize(chunk[p + 1], originY);
+                int z = quantize(chunk[p + 2], originZ);
+                lengthX = putVarint(streamX, lengthX, zigzag(x - previousX));
+                lengthY = putVarint(streamY, lengthY, zigzag(y - previousY));
+                lengthZ = putVarint(streamZ, lengthZ, zigzag(z - previousZ));
+                previousX = x;
+                previousY = y;
+                previousZ = z;
+                if (floatsPerPoint == 4) {
+                    int c = Math.round(chunk[p + 3] * 255f);
+                    c = c < 0 ? 0 : (c > 255 ? 255 : c);
+                    // Differences wrap around on 8 bits.
+                    streamC[first + i] = (byte) (c - previousC);
+                    previousC = c;
+                }
+            }
+        }
+        points.rewind();
+        mStreamLengths[0] = lengthX;
+        mStreamLengths[1] = lengthY;
+        mStreamLengths[2] = lengthZ;
+        if (floatsPerPoint == 4) {
+            mStreamLengths[3] = numPoints;
+        }
+
+        out.putInt(numPoints);
+        out.putInt(originX);
+        out.putInt(originY);
+        out.putInt(originZ);
+        for (int i = 0; i < mStreamCount; i++) {
+            mEntropyCoder.encode(mStreams[i], mStreamLengths[i], out);
+        }
+        return out.position() - start;
+    }
+
+    private static int quantize(float value, int origin) {
+        int offset = Math.round(value * STEPS_PER_METER) - origin;
+        return offset < -MAX_OFFSET ? -MAX_OFFSET : (offset > MAX_OFFSET ? MAX_OFFSET : offset);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int putVarint(byte[] stream, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            stream[position++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        stream[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Decode a frame from the position of {@code in}, which is advanced past it.
+     *
+     * @param points Receives the points from index zero, and is rewound afterwards.
+     * @return Number of points decoded.
+     * @throws IllegalArgumentException If the frame is corrupt or has too many points.
+     */
+    public int decode(ByteBuffer in, FloatBuffer points) {
+        int numPoints = in.getInt();
+        if (numPoints < 0 || numPoints > mMaxPoints) {
+            throw new IllegalArgumentException("Corrupt point count " + numPoints);
+        }
+        float originX = in.getInt() * POSITION_STEP_METERS;
+        float originY = in.getInt() * POSITION_STEP_METERS;
+        float originZ = in.getInt() * POSITION_STEP_METERS;
+        for (int i = 0; i < mStreamCount; i++) {
+            mStreamLengths[i] = mEntropyCoder.decode(in, mStreams[i]);
+        }
+        final int floatsPerPoint = mFloatsPerPoint;
+        if (floatsPerPoint == 4 && mStreamLengths[3] != numPoints) {
+            throw new IllegalArgumentException("Corrupt confidence stream");
+        }
+
+        final float[] chunk = mChunk;
+        final byte[] streamX = mStreams[0];
+        final byte[] streamY = mStreams[1];
+        final byte[] streamZ = mStreams[2];
+        final byte[] streamC = mStreams[floatsPerPoint == 4 ? 3 : 0];
+        int positionX = 0;
+        int positionY = 0;
+        int positionZ = 0;
+        int x = 0;
+        int y = 0;
+        int z = 0;
+        int c = 0;
+        points.clear();
+        for (int first = 0; first < numPoints; first += CHUNK_POINTS) {
+            int count = Math.min(CHUNK_POINTS, numPoints - first);
+            for (int i = 0, p = 0; i < count; i++, p += floatsPerPoint) {
+                // Varints are inlined: reading three of them is most of the decoding time.
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = streamX[positionX++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                x += (value >>> 1) ^ -(value & 1);
+                value = 0;
+                shift = 0;
+                do {
+                    b = streamY[positionY++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                y += (value >>> 1) ^ -(value & 1);
+                value = 0;
+                shift = 0;
+                do {
+                    b = streamZ[positionZ++];
+                    value |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                z += (value >>> 1) ^ -(value & 1);
+                chunk[p] = originX + x * POSITION_STEP_METERS;
+                chunk[p + 1] = originY + y * POSITION_STEP_METERS;
+                chunk[p + 2] = originZ + z * POSITION_STEP_METERS;
+                if (floatsPerPoint == 4) {
+                    c = (c + streamC[first + i]) & 0xff;
+                    chunk[p + 3] = c * CONFIDENCE_STEP;
+                }
+            }
+            points.put(chunk, 0, count * floatsPerPoint);
+        }
+        if (positionX != mStreamLengths[0] || positionY != mStreamLengths[1]
+                || positionZ != mStreamLengths[2]) {
+            throw new IllegalArgumentException("Corrupt position streams");
+        }
+        points.rewind();
+        return numPoints;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.recording;
+
+import com.projecttango.examples.java.pointcloud.pipeline.DepthPoseProvider;
+import com.projecttango.examples.java.pointcloud.pipeline.PointCloudFrame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes depth frames and their depth camera poses to a recording file, in the format described
+ * by {@link RecordingFormat}.
+ * <p/>
+ * {@link #record} only copies the frame into one of a few preallocated slots and returns; a
+ * writer thread looks up the pose and writes the frame. If the writer falls behind and no slot is
+ * free, the frame is dropped and counted rather than blocking the caller.
+ * <p/>
+ * Quantized recordings store frames encoded by a {@link PointCloudCodec}, about five times
+ * smaller than the raw floats, at the cost of millimeter precision.
+ */
+public class PointCloudRecorder {
+    private static final int FRAME_SLOTS = 4;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private final File mFile;
+    private final int mFloatsPerPoint;
+    private final DepthPoseProvider mDepthPoseProvider;
+
+    private final ArrayBlockingQueue<PointCloudFrame> mFreeSlots =
+            new ArrayBlockingQueue<PointCloudFrame>(FRAME_SLOTS);
+    private final ArrayBlockingQueue<PointCloudFrame> mPendingSlots =
+            new ArrayBlockingQueue<PointCloudFrame>(FRAME_SLOTS + 1);
+    // Queued after the last frame to stop the writer thread.
+    private final PointCloudFrame mEndOfRecording;
+
+    private final AtomicLong mRecorded = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    // Only used by the writer thread once started.
+    private final FileOutputStream mOutput;
+    private final FileChannel mChannel;
+    private final ByteBuffer mRecordBuffer;
+    private final FloatBuffer mRecordPoints;
+    private final PointCloudCodec mCodec;
+    private final float[] mDepthPose = new float[16];
+    private long[] mFrameOffsets = new long[INITIAL_INDEX_CAPACITY];
+    private int mFrameCount;
+    private long mFileOffset;
+    private IOException mWriteError;
+
+    private Thread mWriterThread;
+    private volatile boolean mClosed;
+
+    /**
+     * Create a recording file of raw frames and write its header.
+     *
+     * @param depthPoseProvider Used on the writer thread to look up the pose of each frame,
+     *                          may be null.
+     */
+    public PointCloudRecorder(File file, int maxPoints, int floatsPerPoint,
+                              DepthPoseProvider depthPoseProvider) throws IOException {
+        this(file, maxPoints, floatsPerPoint, depthPoseProvider, false);
+    }
+
+    /**
+     * Create the recording file and write its header.
+     *
+     * @param depthPoseProvider Used on the writer thread to look up the pose of each frame,
+     *                          may be null.
+     * @param quantized         Whether frames are encoded by a {@link PointCloudCodec}, which
+     *                          needs XYZ or XYZC points.
+     */
+    public PointCloudRecorder(File file, int maxPoints, int floatsPerPoint,
+                              DepthPoseProvider depthPoseProvider, boolean quantized)
+            throws IOException {
+        mFile = file;
+        mFloatsPerPoint = floatsPerPoint;
+        mDepthPoseProvider = depthPoseProvider;
+        for (int i = 0; i < FRAME_SLOTS; i++) {
+            mFreeSlots.add(new PointCloudFrame(maxPoints, floatsPerPoint));
+        }
+        mEndOfRecording = new PointCloudFrame(floatsPerPoint);
+
+        mCodec = quantized ? new PointCloudCodec(maxPoints, floatsPerPoint) : null;
+        int maxPointBytes = quantized
+                ? PointCloudCodec.getMaxEncodedBytes(maxPoints, floatsPerPoint)
+                : maxPoints * floatsPerPoint * RecordingFormat.BYTES_PER_FLOAT;
+        mRecordBuffer = ByteBuffer.allocateDirect(RecordingFormat.FRAME_HEADER_BYTES
+                + RecordingFormat.padded(maxPointBytes))
+                .order(RecordingFormat.BYTE_ORDER);
+        mRecordBuffer.position(RecordingFormat.FRAME_HEADER_BYTES);
+        mRecordPoints = mRecordBuffer.slice().order(RecordingFormat.BYTE_ORDER).asFloatBuffer();
+        mRecordBuffer.clear();
+
+        mOutput = new FileOutputStream(file);
+        mChannel = mOutput.getChannel();
+        try {
+            mRecordBuffer.putInt(RecordingFormat.FILE_MAGIC);
+            mRecordBuffer.putInt(RecordingFormat.VERSION);
+            mRecordBuffer.putInt(floatsPerPoint);
+            mRecordBuffer.putInt(quantized ? RecordingFormat.FLAG_QUANTIZED : 0);
+            mRecordBuffer.flip();
+            writeFully(mRecordBuffer);
+        } catch (IOException e) {
+            mOutput.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        if (mWriterThread != null) {
+            return;
+        }
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "PointCloudRecorder");
+        mWriterThread.start();
+    }
+
+    /**
+     * Queue a frame for writing. Never blocks; the frame is dropped if the writer is behind.
+     *
+     * @param points Points buffer, read from index zero and rewound afterwards.
+     * @return True if the frame was queued.
+     */
+    public boolean record(double timestamp, int numPoints, FloatBuffer points) {
+        if (mClosed) {
+            return false;
+        }
+        PointCloudFrame slot = mFreeSlots.poll();
+        if (slot == null) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        slot.set(timestamp, numPoints, points);
+        mPendingSlots.offer(slot);
+        return true;
+    }
+
+    /**
+     * Write the frames still queued, then the index, and close the file.
+     *
+     * @throws IOException If any write failed during the recording.
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mWriterThread != null) {
+            mPendingSlots.offer(mEndOfRecording);
+            boolean interrupted = false;
+            while (mWriterThread.isAlive()) {
+                try {
+                    mWriterThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (mWriteError == null) {
+                writeIndex();
+            }
+        } catch (IOException e) {
+            mWriteError = e;
+        } finally {
+            mOutput.close();
+        }
+        if (mWriteError != null) {
+            throw mWriteError;
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            PointCloudFrame frame;
+            try {
+                frame = mPendingSlots.take();
+            } catch (InterruptedException e) {
+                // Only close() stops the writer.
+                continue;
+            }
+            if (frame == mEndOfRecording) {
+                return;
+            }
+            if (mWriteError == null) {
+                try {
+                    writeFrame(frame);
+                    mRecorded.incrementAndGet();
+                } catch (IOException e) {
+                    mWriteError = e;
+                }
+            }
+            mFreeSlots.offer(frame);
+        }
+    }
+
+    private void writeFrame(PointCloudFrame frame) throws IOException {
+        boolean hasPose = mDepthPoseProvider != null
+                && mDepthPoseProvider.getDepthPose(frame.getTimestamp(), mDepthPose);
+        int numFloats = frame.getNumPoints() * mFloatsPerPoint;
+        FloatBuffer points = frame.getPoints();
+        ByteBuffer record = mRecordBuffer;
+
+        int pointBytes;
+        if (mCodec != null) {
+            record.clear();
+            record.position(RecordingFormat.FRAME_HEADER_BYTES);
+            pointBytes = mCodec.encode(points, frame.getNumPoints(), record);
+        } else {
+            points.rewind();
+            points.limit(numFloats);
+            mRecordPoints.clear();
+            mRecordPoints.put(points);
+            points.rewind();
+            pointBytes = numFloats * RecordingFormat.BYTES_PER_FLOAT;
+        }
+        // Padding bytes are left as they are; readers skip them.
+        int recordBytes = RecordingFormat.FRAME_HEADER_BYTES + RecordingFormat.padded(pointBytes);
+
+        record.clear();
+        record.putInt(RecordingFormat.RECORD_FRAME);
+        record.putInt(frame.getNumPoints());
+        record.putDouble(frame.getTimestamp());
+        record.putInt(hasPose ? 1 : 0);
+        record.putInt(pointBytes);
+        for (int i = 0; i < 16; i++) {
+            record.putFloat(hasPose ? mDepthPose[i] : 0f);
+        }
+
+        record.position(0);
+        record.limit(recordBytes);
+        if (mFrameCount == mFrameOffsets.length) {
+            long[] offsets = new long[mFrameOffsets.length * 2];
+            System.arraycopy(mFrameOffsets, 0, offsets, 0, mFrameCount);
+            mFrameOffsets = offsets;
+        }
+        mFrameOffsets[mFrameCount] = mFileOffset;
+        writeFully(record);
+        mFrameCount++;
+    }
+
+    private void writeIndex() throws IOException {
+        long indexOffset = mFileOffset;
+        ByteBuffer index = ByteBuffer.allocate(RecordingFormat.INDEX_HEADER_BYTES
+                + mFrameCount * 8 + RecordingFormat.TRAILER_BYTES)
+                .order(RecordingFormat.BYTE_ORDER);
+        index.putInt(RecordingFormat.RECORD_INDEX);
+        index.putInt(mFrameCount);
+        for (int i = 0; i < mFrameCount; i++) {
+            index.putLong(mFrameOffsets[i]);
+        }
+        index.putLong(indexOffset);
+        index.putInt(RecordingFormat.TRAILER_MAGIC);
+        index.putInt(0);
+        index.flip();
+        writeFully(index);
+        mChannel.force(false);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mFileOffset += mChannel.write(buffer);
+        }
+    }
+
+    /**
+     * @return Number of frames written so far.
+     */
+    public long getFramesRecorded() {
+        return mRecorded.get();
+    }
+
+    /**
+     * @return Number of frames dropped because the writer thread was behind.
+     */
+    public long getFramesDropped() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.recording;
+
+import com.projecttango.examples.java.pointcloud.pipeline.AnalysisWorker;
+import com.projecttango.examples.java.pointcloud.pipeline.PointCloudFrame;
+import com.projecttango.examples.java.pointcloud.processing.PointCompactor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a recording written by {@link PointCloudRecorder}.
+ * <p/>
+ * The file is memory mapped and every frame is served as a {@link FloatBuffer} view on the
+ * mapping, so replaying copies no point data. The views are created when the file is opened;
+ * reading frames afterwards allocates nothing. Frames of quantized recordings are decoded instead
+ * into a buffer reused for every frame.
+ * <p/>
+ * Recordings keep every point. Live frames are compacted before they reach the pipeline, so
+ * replays meant to reproduce it should set the same {@link PointCompactor}.
+ */
+public class PointCloudReplay implements Closeable {
+    // Largest region mapped at once. Regions always start on a frame boundary.
+    private static final long MAX_MAPPING_BYTES = 1L << 30;
+    // Start of a frame header, enough to find the size of the record.
+    private static final int RECORD_SIZE_BYTES = 24;
+
+    private final RandomAccessFile mFile;
+    private final long mMaxMappingBytes;
+    private final int mVersion;
+    private final boolean mQuantized;
+    private final int mFloatsPerPoint;
+    private final int mFrameCount;
+    private final double[] mTimestamps;
+    private final int[] mNumPoints;
+    private final boolean[] mHasPose;
+    private final float[][] mDepthPoses;
+    private final FloatBuffer[] mPoints;
+    private final ByteBuffer[] mEncodedPoints;
+    private int mMaxPoints;
+    private PointCloudCodec mCodec;
+    private FloatBuffer mDecodedPoints;
+    private PointCompactor mCompactor;
+
+    /**
+     * Open and index a recording.
+     */
+    public PointCloudReplay(File file) throws IOException {
+        this(file, MAX_MAPPING_BYTES);
+    }
+
+    /**
+     * @param maxMappingBytes Largest region mapped at once, lowered by tests to split small
+     *                        recordings.
+     */
+    PointCloudReplay(File file, long maxMappingBytes) throws IOException {
+        mMaxMappingBytes = maxMappingBytes;
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(RecordingFormat.FILE_HEADER_BYTES)
+                    .order(RecordingFormat.BYTE_ORDER);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != RecordingFormat.FILE_MAGIC) {
+                throw new IOException("Not a point cloud recording: " + file);
+            }
+            mVersion = header.getInt(4);
+            if (mVersion < RecordingFormat.FIRST_VERSION || mVersion > RecordingFormat.VERSION) {
+                throw new IOException("Unsupported recording version " + mVersion);
+            }
+            mFloatsPerPoint = header.getInt(8);
+            mQuantized = (header.getInt(12) & RecordingFormat.FLAG_QUANTIZED) != 0;
+
+            long[] offsets = readIndex(channel);
+            if (offsets == null) {
+                offsets = scanFrames(channel);
+            }
+            mFrameCount = offsets.length;
+            mTimestamps = new double[mFrameCount];
+            mNumPoints = new int[mFrameCount];
+            mHasPose = new boolean[mFrameCount];
+            mDepthPoses = new float[mFrameCount][16];
+            mPoints = new FloatBuffer[mFrameCount];
+            mEncodedPoints = new ByteBuffer[mFrameCount];
+            mapFrames(channel, offsets);
+            if (mQuantized) {
+                mCodec = new PointCloudCodec(mMaxPoints, mFloatsPerPoint);
+                mDecodedPoints = ByteBuffer.allocateDirect(
+                        mMaxPoints * mFloatsPerPoint * RecordingFormat.BYTES_PER_FLOAT)
+                        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of recording");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * @return Frame offsets from the index, or null if the file has no valid trailer.
+     */
+    private static long[] readIndex(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < RecordingFormat.FILE_HEADER_BYTES + RecordingFormat.TRAILER_BYTES) {
+            return null;
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(RecordingFormat.TRAILER_BYTES)
+                .order(RecordingFormat.BYTE_ORDER);
+        readFully(channel, trailer, size - RecordingFormat.TRAILER_BYTES);
+        long indexOffset = trailer.getLong(0);
+        if (trailer.getInt(8) != RecordingFormat.TRAILER_MAGIC
+                || indexOffset < RecordingFormat.FILE_HEADER_BYTES || indexOffset >= size) {
+            return null;
+        }
+        ByteBuffer indexHeader = ByteBuffer.allocate(RecordingFormat.INDEX_HEADER_BYTES)
+                .order(RecordingFormat.BYTE_ORDER);
+        readFully(channel, indexHeader, indexOffset);
+        if (indexHeader.getInt(0) != RecordingFormat.RECORD_INDEX) {
+            return null;
+        }
+        int frameCount = indexHeader.getInt(4);
+        ByteBuffer index = ByteBuffer.allocate(frameCount * 8).order(RecordingFormat.BYTE_ORDER);
+        readFully(channel, index, indexOffset + RecordingFormat.INDEX_HEADER_BYTES);
+        long[] offsets = new long[frameCount];
+        index.asLongBuffer().get(offsets);
+        return offsets;
+    }
+
+    /**
+     * Rebuild the frame offsets of a recording that was not closed properly. A truncated last
+     * frame is ignored.
+     */
+    private long[] scanFrames(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long[] offsets = new long[64];
+        int count = 0;
+        long offset = RecordingFormat.FILE_HEADER_BYTES;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE_BYTES)
+                .order(RecordingFormat.BYTE_ORDER);
+        while (offset + RecordingFormat.FRAME_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, offset);
+            if (header.getInt(0) != RecordingFormat.RECORD_FRAME) {
+                break;
+            }
+            long next = offset + frameBytes(header, 0);
+            if (next > size) {
+                break;
+            }
+            if (count == offsets.length) {
+                long[] grown = new long[offsets.length * 2];
+                System.arraycopy(offsets, 0, grown, 0, count);
+                offsets = grown;
+            }
+            offsets[count++] = offset;
+            offset = next;
+        }
+        long[] result = new long[count];
+        System.arraycopy(offsets, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @return Size of the frame record whose header starts at {@code base}.
+     */
+    private long frameBytes(ByteBuffer header, int base) {
+        int pointBytes = pointBytes(header, base);
+        if (mVersion != RecordingFormat.FIRST_VERSION) {
+            pointBytes = RecordingFormat.padded(pointBytes);
+        }
+        return RecordingFormat.FRAME_HEADER_BYTES + pointBytes;
+    }
+
+    private int pointBytes(ByteBuffer header, int base) {
+        if (mVersion == RecordingFormat.FIRST_VERSION) {
+            return header.getInt(base + 4) * mFloatsPerPoint * RecordingFormat.BYTES_PER_FLOAT;
+        }
+        return header.getInt(base + 20);
+    }
+
+    /**
+     * Map the frames in regions of up to {@link #mMaxMappingBytes} and create a view per frame.
+     */
+    private void mapFrames(FileChannel channel, long[] offsets) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_SIZE_BYTES)
+                .order(RecordingFormat.BYTE_ORDER);
+        int first = 0;
+        while (first < offsets.length) {
+            long regionStart = offsets[first];
+            int last = first;
+            long regionEnd = regionStart;
+            while (last < offsets.length) {
+                header.clear();
+                readFully(channel, header, offsets[last]);
+                long end = offsets[last] + frameBytes(header, 0);
+                if (end - regionStart > mMaxMappingBytes && last > first) {
+                    break;
+                }
+                regionEnd = end;
+                last++;
+            }
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                    regionEnd - regionStart);
+            region.order(RecordingFormat.BYTE_ORDER);
+            for (int i = first; i < last; i++) {
+                int base = (int) (offsets[i] - regionStart);
+                int numPoints = region.getInt(base + 4);
+                mNumPoints[i] = numPoints;
+                mTimestamps[i] = region.getDouble(base + 8);
+                mHasPose[i] = region.getInt(base + 16) != 0;
+                for (int j = 0; j < 16; j++) {
+                    mDepthPoses[i][j] = region.getFloat(base + 24 + j * 4);
+                }
+                region.position(base + RecordingFormat.FRAME_HEADER_BYTES);
+                region.limit(base + RecordingFormat.FRAME_HEADER_BYTES
+                        + pointBytes(region, base));
+                if (mQuantized) {
+                    mEncodedPoints[i] = region.slice().order(RecordingFormat.BYTE_ORDER);
+                } else {
+                    mPoints[i] = region.slice().order(RecordingFormat.BYTE_ORDER).asFloatBuffer();
+                }
+                region.clear();
+                mMaxPoints = Math.max(mMaxPoints, numPoints);
+            }
+            first = last;
+        }
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return Whether frames were recorded encoded by a {@link PointCloudCodec}.
+     */
+    public boolean isQuantized() {
+        return mQuantized;
+    }
+
+    public int getFloatsPerPoint() {
+        return mFloatsPerPoint;
+    }
+
+    /**
+     * @return Largest number of points in any frame.
+     */
+    public int getMaxPoints() {
+        return mMaxPoints;
+    }
+
+    /**
+     * Compact frames as they are read, as the live frames are, or pass null to read every
+     * recorded point. Only XYZC recordings can be compacted.
+     *
+     * @param compactor Must take as many points as {@link #getMaxPoints()}.
+     */
+    public void setCompactor(PointCompactor compactor) {
+        if (compactor != null && mFloatsPerPoint != PointCompactor.FLOATS_PER_POINT) {
+            throw new IllegalArgumentException(
+                    "Only XYZC recordings can be compacted, not " + mFloatsPerPoint + " floats");
+        }
+        mCompactor = compactor;
+    }
+
+    public double getTimestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    /**
+     * Point a frame at a recorded frame, including its depth pose if one was recorded.
+     * The frame shares the memory mapping; no point data is copied. For quantized recordings the
+     * frame shares the decoding buffer instead, and with a compactor set the compactor output,
+     * so it is only valid until the next frame is read.
+     */
+    public void readFrame(int index, PointCloudFrame frame) {
+        FloatBuffer points;
+        if (mQuantized) {
+            ByteBuffer encoded = mEncodedPoints[index];
+            encoded.rewind();
+            mCodec.decode(encoded, mDecodedPoints);
+            points = mDecodedPoints;
+        } else {
+            points = mPoints[index];
+            points.rewind();
+        }
+        int numPoints = mNumPoints[index];
+        if (mCompactor != null) {
+            numPoints = mCompactor.compact(points, numPoints);
+            points = mCompactor.getOutput();
+        }
+        frame.setView(mTimestamps[index], numPoints, points);
+        if (mHasPose[index]) {
+            frame.setDepthPose(mDepthPoses[index]);
+        }
+    }
+
+    /**
+     * Feed every frame to a processor on the calling thread, the same way the analysis worker
+     * does with live frames.
+     *
+     * @param realTime If true, wait between frames to reproduce the recorded frame rate,
+     *                 otherwise run as fast as possible.
+     */
+    public void play(AnalysisWorker.FrameProcessor processor, boolean realTime)
+            throws InterruptedException {
+        PointCloudFrame frame = new PointCloudFrame(mFloatsPerPoint);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < mFrameCount; i++) {
+            if (realTime) {
+                long due = startNanos + (long) ((mTimestamps[i] - mTimestamps[0]) * 1e9);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            readFrame(i, frame);
+            processor.process(frame);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
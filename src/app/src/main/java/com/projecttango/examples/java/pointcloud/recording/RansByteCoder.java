@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.recording;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Order-0 entropy coder for byte streams, using range asymmetric numeral systems (rANS) with
+ * symbol frequencies counted per stream and sent ahead of it. Streams that would not shrink are
+ * stored as they are.
+ * <p/>
+ * Encoded stream layout, multi-byte values in the byte order of the buffer:
+ * <pre>
+ *   byte   MODE_RAW or MODE_RANS
+ *   int    number of symbols
+ * MODE_RAW:
+ *   byte   symbols
+ * MODE_RANS:
+ *   byte   number of distinct symbols - 1
+ *   byte   symbol, short frequency, for each distinct symbol
+ *   int    number of payload bytes
+ *   byte   payload
+ * </pre>
+ * Allocates nothing once created. Not thread safe.
+ */
+final class RansByteCoder {
+    private static final int MODE_RAW = 0;
+    private static final int MODE_RANS = 1;
+
+    // Frequencies are scaled to sum to 1 << SCALE_BITS.
+    private static final int SCALE_BITS = 12;
+    private static final int TOTAL = 1 << SCALE_BITS;
+    private static final int MASK = TOTAL - 1;
+    // Lower bound of the normalized coder state, which is renormalized a byte at a time.
+    private static final int STATE_LOW = 1 << 23;
+
+    private final int[] mCounts = new int[256];
+    private final int[] mFreqs = new int[256];
+    private final int[] mStarts = new int[256];
+    private final byte[] mSlotSymbols = new byte[TOTAL];
+    private final byte[] mScratch;
+    private int mSymbolCount;
+
+    /**
+     * @param maxLength Longest stream to encode or decode.
+     */
+    RansByteCoder(int maxLength) {
+        // A symbol costs at most SCALE_BITS bits, plus the final state.
+        mScratch = new byte[2 * maxLength + 16];
+    }
+
+    /**
+     * @return Bytes needed in the worst case to encode a stream of {@code length} symbols.
+     */
+    static int getMaxEncodedBytes(int length) {
+        return 1 + 4 + length;
+    }
+
+    /**
+     * Encode {@code symbols[0, length)} at the position of {@code out}, which is advanced past
+     * the stream.
+     */
+    void encode(byte[] symbols, int length, ByteBuffer out) {
+        if (length > 0) {
+            countFrequencies(symbols, length);
+            int payloadStart = encodeRans(symbols, length);
+            int payloadBytes = mScratch.length - payloadStart;
+            if (1 + 3 * mSymbolCount + 4 + payloadBytes < length) {
+                out.put((byte) MODE_RANS);
+                out.putInt(length);
+                out.put((byte) (mSymbolCount - 1));
+                for (int s = 0; s < 256; s++) {
+                    if (mFreqs[s] != 0) {
+                        out.put((byte) s);
+                        out.putShort((short) mFreqs[s]);
+                    }
+                }
+                out.putInt(payloadBytes);
+                out.put(mScratch, payloadStart, payloadBytes);
+                return;
+            }
+        }
+        out.put((byte) MODE_RAW);
+        out.putInt(length);
+        out.put(symbols, 0, length);
+    }
+
+    private void countFrequencies(byte[] symbols, int length) {
+        int[] counts = mCounts;
+        int[] freqs = mFreqs;
+        for (int s = 0; s < 256; s++) {
+            counts[s] = 0;
+        }
+        for (int i = 0; i < length; i++) {
+            counts[symbols[i] & 0xff]++;
+        }
+        // Scale the counts to TOTAL, keeping every symbol seen at least at 1, then hand the
+        // rounding error to the most frequent symbols.
+        int sum = 0;
+        int largest = 0;
+        mSymbolCount = 0;
+        for (int s = 0; s < 256; s++) {
+            int count = counts[s];
+            int freq = count == 0 ? 0 : Math.max(1, (int) ((long) count * TOTAL / length));
+            freqs[s] = freq;
+            sum += freq;
+            if (freq > freqs[largest]) {
+                largest = s;
+            }
+            if (count != 0) {
+                mSymbolCount++;
+            }
+        }
+        while (sum != TOTAL) {
+            if (sum < TOTAL) {
+                freqs[largest] += TOTAL - sum;
+                sum = TOTAL;
+            } else {
+                int s = largestFrequency();
+                int take = Math.min(sum - TOTAL, freqs[s] - 1);
+                freqs[s] -= take;
+                sum -= take;
+            }
+        }
+        int start = 0;
+        for (int s = 0; s < 256; s++) {
+            mStarts[s] = start;
+            start += freqs[s];
+        }
+    }
+
+    private int largestFrequency() {
+        int largest = 0;
+        for (int s = 1; s < 256; s++) {
+            if (mFreqs[s] > mFreqs[largest]) {
+                largest = s;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Encode the symbols backwards into the end of the scratch buffer, so the decoder reads them
+     * forwards.
+     *
+     * @return Index of the first payload byte in the scratch buffer.
+     */
+    private int encodeRans(byte[] symbols, int length) {
+        final byte[] out = mScratch;
+        final int[] freqs = mFreqs;
+        final int[] starts = mStarts;
+        int position = out.length;
+        long state = STATE_LOW;
+        for (int i = length - 1; i >= 0; i--) {
+            int s = symbols[i] & 0xff;
+            int freq = freqs[s];
+            long stateMax = ((long) (STATE_LOW >> SCALE_BITS) << 8) * freq;
+            while (state >= stateMax) {
+                out[--position] = (byte) state;
+                state >>>= 8;
+            }
+            state = ((state / freq) << SCALE_BITS) + (state % freq) + starts[s];
+        }
+        position -= 4;
+        out[position] = (byte) state;
+        out[position + 1] = (byte) (state >>> 8);
+        out[position + 2] = (byte) (state >>> 16);
+        out[position + 3] = (byte) (state >>> 24);
+        return position;
+    }
+
+    /**
+     * Decode a stream from the position of {@code in}, which is advanced past it.
+     *
+     * @return Number of symbols decoded into {@code symbols}.
+     * @throws IllegalArgumentException If the stream is corrupt or longer than expected.
+     */
+    int decode(ByteBuffer in, byte[] symbols) {
+        int mode = in.get();
+        int length = in.getInt();
+        if (length < 0 || length > symbols.length) {
+            throw new IllegalArgumentException("Corrupt stream length " + length);
+        }
+        if (mode == MODE_RAW) {
+            in.get(symbols, 0, length);
+            return length;
+        }
+        if (mode != MODE_RANS) {
+            throw new IllegalArgumentException("Unknown stream mode " + mode);
+        }
+        readFrequencies(in);
+        int payloadBytes = in.getInt();
+        if (payloadBytes < 4 || payloadBytes > mScratch.length) {
+            throw new IllegalArgumentException("Corrupt payload length " + payloadBytes);
+        }
+        in.get(mScratch, 0, payloadBytes);
+
+        final byte[] payload = mScratch;
+        final byte[] slotSymbols = mSlotSymbols;
+        final int[] freqs = mFreqs;
+        final int[] starts = mStarts;
+        int position = 4;
+        int state = (payload[0] & 0xff) | (payload[1] & 0xff) << 8 | (payload[2] & 0xff) << 16
+                | (payload[3] & 0xff) << 24;
+        for (int i = 0; i < length; i++) {
+            int slot = state & MASK;
+            int s = slotSymbols[slot] & 0xff;
+            symbols[i] = (byte) s;
+            state = freqs[s] * (state >>> SCALE_BITS) + slot - starts[s];
+            while (state < STATE_LOW && position < payloadBytes) {
+                state = (state << 8) | (payload[position++] & 0xff);
+            }
+        }
+        return length;
+    }
+
+    private void readFrequencies(ByteBuffer in) {
+        int[] freqs = mFreqs;
+        for (int s = 0; s < 256; s++) {
+            freqs[s] = 0;
+        }
+        int symbolCount = (in.get() & 0xff) + 1;
+        int sum = 0;
+        for (int i = 0; i < symbolCount; i++) {
+            int s = in.get() & 0xff;
+            int freq = in.getShort() & 0xffff;
+            freqs[s] = freq;
+            sum += freq;
+        }
+        if (sum != TOTAL) {
+            throw new IllegalArgumentException("Corrupt symbol frequencies");
+        }
+        int start = 0;
+        for (int s = 0; s < 256; s++) {
+            mStarts[s] = start;
+            for (int slot = start; slot < start + freqs[s]; slot++) {
+                mSlotSymbols[slot] = (byte) s;
+            }
+            start += freqs[s];
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.recording;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of point cloud recording files. All values are little endian.
+ * <pre>
+ * File header, 16 bytes:
+ *   int    FILE_MAGIC
+ *   int    VERSION
+ *   int    floats per point
+ *   int    flags, FLAG_QUANTIZED if frames are encoded by PointCloudCodec (version 2)
+ * Frame records, one per depth frame:
+ *   int    RECORD_FRAME
+ *   int    number of points
+ *   double timestamp, in seconds
+ *   int    1 if the depth pose is valid, 0 otherwise
+ *   int    number of point bytes (version 2)
+ *   float  depth pose, 16 values, column major OpenGL world from depth camera transform
+ *   float  points, number of points * floats per point values, or if FLAG_QUANTIZED:
+ *   byte   points encoded by PointCloudCodec, padded to a multiple of 8 bytes
+ * Index, written when the recording is closed:
+ *   int    RECORD_INDEX
+ *   int    number of frames
+ *   long   file offset of each frame record
+ * Trailer, 16 bytes:
+ *   long   file offset of the index
+ *   int    TRAILER_MAGIC
+ *   int    reserved
+ * </pre>
+ * Headers are multiples of 8 bytes so the point data of every frame stays aligned and can be
+ * viewed directly as floats. Version 1 files have no flags nor point byte counts, their reserved
+ * fields are zero. A file without trailer, for example after a crash, can still be
+ * read by walking the frame records from the start.
+ */
+final class RecordingFormat {
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    static final int FILE_MAGIC = 0x50554349; // "ICUP"
+    static final int TRAILER_MAGIC = 0x58444e49; // "INDX"
+    static final int VERSION = 2;
+    static final int FIRST_VERSION = 1;
+
+    static final int FLAG_QUANTIZED = 1;
+
+    static final int RECORD_FRAME = 1;
+    static final int RECORD_INDEX = 2;
+
+    static final int FILE_HEADER_BYTES = 16;
+    static final int FRAME_HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 16 * 4;
+    static final int INDEX_HEADER_BYTES = 8;
+    static final int TRAILER_BYTES = 16;
+
+    static final int BYTES_PER_FLOAT = 4;
+    static final int RECORD_ALIGNMENT = 8;
+
+    private RecordingFormat() {
+    }
+
+    /**
+     * @return {@code bytes} rounded up to keep the next record aligned.
+     */
+    static int padded(int bytes) {
+        return (bytes + RECORD_ALIGNMENT - 1) & -RECORD_ALIGNMENT;
+    }
+}
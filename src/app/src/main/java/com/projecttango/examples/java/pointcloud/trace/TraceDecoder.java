@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.trace;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Desktop tool printing trace files as tab separated text, one line per record:
+ * time in seconds, event name, argument and the two values.
+ * <p/>
+ * Usage: {@code java TraceDecoder file.trace...}. Files are printed in the order given; for a
+ * rotation, pass them by increasing index.
+ */
+public final class TraceDecoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String OVERFLOW_NAME = "overflow";
+
+    /**
+     * Receives the records of a trace file.
+     */
+    public interface Visitor {
+        void onRecord(long timeNanos, int event, String eventName, int arg, double value0,
+                      double value1);
+    }
+
+    private TraceDecoder() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceDecoder file.trace...");
+            System.exit(2);
+        }
+        final PrintStream out = System.out;
+        out.println("time_s\tevent\targ\tvalue0\tvalue1");
+        for (String path : args) {
+            decode(new File(path), new Visitor() {
+                @Override
+                public void onRecord(long timeNanos, int event, String eventName, int arg,
+                                     double value0, double value1) {
+                    out.println(String.format(Locale.US, "%.9f\t%s\t%d\t%s\t%s",
+                            timeNanos / 1e9, eventName, arg, value0, value1));
+                }
+            });
+        }
+    }
+
+    /**
+     * Read every record of a trace file. A record cut short at the end of the file, as left by a
+     * crash, is ignored.
+     *
+     * @return The number of records read.
+     */
+    public static long decode(File file, Visitor visitor) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(TraceFormat.BYTE_ORDER);
+            if (buffer.remaining() < TraceFormat.FILE_HEADER_BYTES
+                    || buffer.getInt() != TraceFormat.FILE_MAGIC) {
+                throw new IOException("Not a trace file: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != TraceFormat.VERSION) {
+                throw new IOException("Unsupported trace version " + version + ": " + file);
+            }
+            int recordBytes = buffer.getInt();
+            if (recordBytes != TraceFormat.RECORD_BYTES) {
+                throw new IOException("Unsupported record size " + recordBytes + ": " + file);
+            }
+            String[] names = new String[buffer.getInt()];
+            for (int i = 0; i < names.length; i++) {
+                byte[] name = new byte[buffer.getShort()];
+                buffer.get(name);
+                names[i] = new String(name, UTF_8);
+            }
+            buffer.position((buffer.position() + 7) & ~7);
+
+            long records = 0;
+            while (buffer.remaining() >= recordBytes) {
+                long time = buffer.getLong();
+                int event = buffer.getInt();
+                int arg = buffer.getInt();
+                double value0 = buffer.getDouble();
+                double value1 = buffer.getDouble();
+                String name;
+                if (event == TraceFormat.EVENT_OVERFLOW) {
+                    name = OVERFLOW_NAME;
+                } else if (event >= 0 && event < names.length) {
+                    name = names[event];
+                } else {
+                    name = Integer.toString(event);
+                }
+                visitor.onRecord(time, event, name, arg, value0, value1);
+                records++;
+            }
+            return records;
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.trace;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of trace files. All values are little endian.
+ * <pre>
+ * File header:
+ *   int    FILE_MAGIC
+ *   int    VERSION
+ *   int    RECORD_BYTES
+ *   int    number of event names
+ *   event names, each a short byte length followed by the UTF-8 bytes
+ *   zero padding up to a multiple of 8 bytes
+ * Records, RECORD_BYTES each:
+ *   long   time in nanoseconds, in the time base of the depth frame timestamps
+ *   int    event, an index into the event names, or EVENT_OVERFLOW
+ *   int    integer argument
+ *   double first value
+ *   double second value
+ * </pre>
+ * An {@link #EVENT_OVERFLOW} record carries in its argument the number of records dropped since
+ * the previous record because the ring was full. Every file starts with its own header, so each
+ * file of a rotation can be decoded on its own.
+ */
+final class TraceFormat {
+    static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    static final int FILE_MAGIC = 0x54494349; // "ICIT"
+    static final int VERSION = 1;
+
+    static final int FILE_HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 8 + 4 + 4 + 8 + 8;
+
+    static final int EVENT_OVERFLOW = -1;
+    static final String FILE_EXTENSION = ".trace";
+
+    private TraceFormat() {
+    }
+}
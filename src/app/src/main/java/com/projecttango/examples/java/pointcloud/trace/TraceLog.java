@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.trace;
+
+import com.projecttango.examples.java.pointcloud.pipeline.Clock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes fixed size trace records to rotating files in the format described by
+ * {@link TraceFormat}, for instrumenting the per-frame code without logging strings.
+ * <p/>
+ * {@link #trace} stores the record in a preallocated ring and returns: it never blocks, never
+ * allocates and may be called from any number of threads. The ring is a bounded multi-producer
+ * queue where each slot carries a sequence number telling whether it is free for a given lap, so
+ * producers only contend on one compare-and-set. If the ring is full the record is dropped and
+ * counted, and the writer thread notes the loss in the file.
+ * <p/>
+ * A writer thread drains the ring in batches every {@link #FLUSH_INTERVAL_MILLIS} and writes them
+ * through a {@link FileChannel}. Once a file reaches its maximum size the next one is started,
+ * and only the newest files are kept.
+ */
+public class TraceLog {
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_MAX_FILE_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 4;
+    public static final long FLUSH_INTERVAL_MILLIS = 100;
+
+    private static final int BATCH_RECORDS = 512;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mDirectory;
+    private final String mBaseName;
+    private final Clock mClock;
+    private final long mMaxFileBytes;
+    private final int mMaxFiles;
+    private final ByteBuffer mFileHeader;
+
+    // The ring. A slot is free for ticket t when its sequence is t, and holds the record of
+    // ticket t when its sequence is t + 1.
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final long[] mTimes;
+    private final int[] mEvents;
+    private final int[] mArgs;
+    private final double[] mValues0;
+    private final double[] mValues1;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mWritten = new AtomicLong();
+
+    // Only used by the writer thread once started.
+    private final ByteBuffer mBatch =
+            ByteBuffer.allocateDirect(BATCH_RECORDS * TraceFormat.RECORD_BYTES)
+                    .order(TraceFormat.BYTE_ORDER);
+    private long mHead;
+    private long mDroppedWritten;
+    private FileOutputStream mOutput;
+    private FileChannel mChannel;
+    private long mFileBytes;
+    private volatile int mFileIndex = -1;
+    private IOException mWriteError;
+
+    private Thread mWriterThread;
+    private volatile boolean mClosed;
+
+    /**
+     * Open the first trace file.
+     *
+     * @param directory  Directory the trace files are written to.
+     * @param baseName   Prefix of the file names, followed by the file index.
+     * @param eventNames Names of the events, indexed by the event passed to {@link #trace}.
+     * @param capacity   Number of records the ring holds, rounded up to a power of two.
+     */
+    public TraceLog(File directory, String baseName, String[] eventNames, Clock clock,
+                    int capacity, long maxFileBytes, int maxFiles) throws IOException {
+        if (capacity < 1 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^24: " + capacity);
+        }
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("maxFiles must be at least 1: " + maxFiles);
+        }
+        mDirectory = directory;
+        mBaseName = baseName;
+        mClock = clock;
+        mMaxFileBytes = maxFileBytes;
+        mMaxFiles = maxFiles;
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+        mTimes = new long[size];
+        mEvents = new int[size];
+        mArgs = new int[size];
+        mValues0 = new double[size];
+        mValues1 = new double[size];
+
+        mFileHeader = createFileHeader(eventNames);
+        openNextFile();
+    }
+
+    private static ByteBuffer createFileHeader(String[] eventNames) {
+        byte[][] names = new byte[eventNames.length][];
+        int bytes = TraceFormat.FILE_HEADER_BYTES;
+        for (int i = 0; i < eventNames.length; i++) {
+            names[i] = eventNames[i].getBytes(UTF_8);
+            if (names[i].length > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Event name too long: " + eventNames[i]);
+            }
+            bytes += 2 + names[i].length;
+        }
+        bytes = (bytes + 7) & ~7;
+        ByteBuffer header = ByteBuffer.allocate(bytes).order(TraceFormat.BYTE_ORDER);
+        header.putInt(TraceFormat.FILE_MAGIC);
+        header.putInt(TraceFormat.VERSION);
+        header.putInt(TraceFormat.RECORD_BYTES);
+        header.putInt(eventNames.length);
+        for (byte[] name : names) {
+            header.putShort((short) name.length);
+            header.put(name);
+        }
+        header.clear();
+        return header;
+    }
+
+    /**
+     * @return The file with the given index of this log.
+     */
+    public File getFile(int index) {
+        return new File(mDirectory, mBaseName + "-" + index + TraceFormat.FILE_EXTENSION);
+    }
+
+    /**
+     * Start the writer thread.
+     */
+    public synchronized void start() {
+        if (mWriterThread != null) {
+            return;
+        }
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "TraceLog");
+        mWriterThread.start();
+    }
+
+    /**
+     * Add a record, time stamped now. Never blocks or allocates.
+     *
+     * @return False if the ring was full and the record was dropped.
+     */
+    public boolean trace(int event, int arg, double value0, double value1) {
+        long time = mClock.nanoTime();
+        while (true) {
+            long ticket = mTail.get();
+            int slot = (int) ticket & mMask;
+            long sequence = mSequences.get(slot);
+            if (sequence == ticket) {
+                if (mTail.compareAndSet(ticket, ticket + 1)) {
+                    mTimes[slot] = time;
+                    mEvents[slot] = event;
+                    mArgs[slot] = arg;
+                    mValues0[slot] = value0;
+                    mValues1[slot] = value1;
+                    // Publish the record to the writer.
+                    mSequences.lazySet(slot, ticket + 1);
+                    return true;
+                }
+            } else if (sequence < ticket) {
+                // The writer has not drained this slot from the previous lap yet.
+                mDropped.incrementAndGet();
+                return false;
+            }
+            // Otherwise another producer took the ticket first: try the next one.
+        }
+    }
+
+    /**
+     * Write the records still in the ring and close the current file.
+     *
+     * @throws IOException If any write failed while tracing.
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mWriterThread != null) {
+            LockSupport.unpark(mWriterThread);
+            boolean interrupted = false;
+            while (mWriterThread.isAlive()) {
+                try {
+                    mWriterThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            drain();
+        }
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            if (mWriteError == null) {
+                mWriteError = e;
+            }
+        }
+        if (mWriteError != null) {
+            throw mWriteError;
+        }
+    }
+
+    private void writeLoop() {
+        long interval = TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS);
+        while (!mClosed) {
+            drain();
+            LockSupport.parkNanos(this, interval);
+        }
+        // Pick up what was traced before close().
+        drain();
+    }
+
+    /**
+     * Write every record published so far. Writer thread only.
+     */
+    private void drain() {
+        ByteBuffer batch = mBatch;
+        batch.clear();
+        long dropped = mDropped.get();
+        if (dropped != mDroppedWritten) {
+            putRecord(batch, mClock.nanoTime(), TraceFormat.EVENT_OVERFLOW,
+                    (int) Math.min(Integer.MAX_VALUE, dropped - mDroppedWritten), 0, 0);
+            mDroppedWritten = dropped;
+        }
+        int capacity = mMask + 1;
+        while (true) {
+            int slot = (int) mHead & mMask;
+            if (mSequences.get(slot) != mHead + 1) {
+                break;
+            }
+            putRecord(batch, mTimes[slot], mEvents[slot], mArgs[slot], mValues0[slot],
+                    mValues1[slot]);
+            // Free the slot for the next lap.
+            mSequences.lazySet(slot, mHead + capacity);
+            mHead++;
+            if (!batch.hasRemaining()) {
+                writeBatch();
+                batch.clear();
+            }
+        }
+        if (batch.position() > 0) {
+            writeBatch();
+        }
+    }
+
+    private static void putRecord(ByteBuffer batch, long time, int event, int arg, double value0,
+                                  double value1) {
+        batch.putLong(time);
+        batch.putInt(event);
+        batch.putInt(arg);
+        batch.putDouble(value0);
+        batch.putDouble(value1);
+    }
+
+    private void writeBatch() {
+        ByteBuffer batch = mBatch;
+        batch.flip();
+        int records = batch.remaining() / TraceFormat.RECORD_BYTES;
+        if (mWriteError != null) {
+            return;
+        }
+        try {
+            if (mFileBytes + batch.remaining() > mMaxFileBytes) {
+                openNextFile();
+            }
+            mFileBytes += writeFully(mChannel, batch);
+            mWritten.addAndGet(records);
+        } catch (IOException e) {
+            mWriteError = e;
+        }
+    }
+
+    private void openNextFile() throws IOException {
+        if (mOutput != null) {
+            mOutput.close();
+        }
+        mFileIndex++;
+        File oldest = getFile(mFileIndex - mMaxFiles);
+        if (mFileIndex >= mMaxFiles && oldest.exists() && !oldest.delete()) {
+            throw new IOException("Could not delete " + oldest);
+        }
+        mOutput = new FileOutputStream(getFile(mFileIndex));
+        mChannel = mOutput.getChannel();
+        mFileHeader.clear();
+        mFileBytes = writeFully(mChannel, mFileHeader);
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    /**
+     * @return Index of the file being written, starting at zero.
+     */
+    public int getCurrentFileIndex() {
+        return mFileIndex;
+    }
+
+    /**
+     * @return Number of records written to files so far, including overflow records.
+     */
+    public long getRecordsWritten() {
+        return mWritten.get();
+    }
+
+    /**
+     * @return Number of records dropped because the ring was full.
+     */
+    public long getRecordsDropped() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.rajawali3d.Object3D;
+import org.rajawali3d.cameras.Camera;
+import org.rajawali3d.math.Matrix4;
+import org.rajawali3d.math.Quaternion;
+import org.rajawali3d.math.vector.Vector3;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the per frame math of {@link PointCloudRajawaliRenderer} and {@link TouchViewHandler} on
+ * the Rajawali objects they update and checks it allocates nothing.
+ */
+public class RenderPathAllocationTest {
+    private static final int WARM_UP_FRAMES = 20000;
+    private static final int FRAMES = 1000;
+
+    private com.sun.management.ThreadMXBean mThreadBean;
+
+    private final float[] mOpenGlTdepth = new float[16];
+    private final double[] mRotation = new double[4];
+    private final double[] mTranslation = new double[3];
+    private final Vector3 mCloudPosition = new Vector3();
+    private final Quaternion mCloudOrientation = new Quaternion();
+    private final Vector3 mCameraPosition = new Vector3();
+    private final Quaternion mCameraOrientation = new Quaternion();
+    private final Object3D mCloud = new Object3D();
+    private final Object3D mFrustumAxes = new Object3D();
+    private final Camera mCamera = new Camera();
+    private TouchViewHandler mTouchViewHandler;
+
+    @Before
+    public void setUp() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        mThreadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+        mTouchViewHandler = new TouchViewHandler(null, mCamera);
+    }
+
+    /**
+     * One rendered frame: a new cloud and a new device pose, a yaw of {@code angle} around Y.
+     */
+    private void simulateFrame(int frame) {
+        double angle = frame * 0.01;
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        mOpenGlTdepth[0] = cos;
+        mOpenGlTdepth[2] = -sin;
+        mOpenGlTdepth[5] = 1;
+        mOpenGlTdepth[8] = sin;
+        mOpenGlTdepth[10] = cos;
+        mOpenGlTdepth[12] = frame * 0.001f;
+        mOpenGlTdepth[13] = 1.2f;
+        mOpenGlTdepth[14] = -frame * 0.002f;
+        mOpenGlTdepth[15] = 1;
+        PointCloudRajawaliRenderer.depthTransform(mOpenGlTdepth, mCloudPosition,
+                mCloudOrientation);
+        mCloud.setPosition(mCloudPosition);
+        mCloud.setOrientation(mCloudOrientation);
+
+        mRotation[0] = 0;
+        mRotation[1] = Math.sin(angle / 2);
+        mRotation[2] = 0;
+        mRotation[3] = Math.cos(angle / 2);
+        mTranslation[0] = frame * 0.001;
+        mTranslation[1] = 1.2;
+        mTranslation[2] = -frame * 0.002;
+        PointCloudRajawaliRenderer.cameraTransform(mRotation, mTranslation, mCameraPosition,
+                mCameraOrientation);
+        mFrustumAxes.setPosition(mCameraPosition);
+        mFrustumAxes.setOrientation(mCameraOrientation);
+        mTouchViewHandler.updateCamera(mCameraPosition, mCameraOrientation);
+        mTouchViewHandler.drag(3, -2);
+        // Rendering the scene computes the model matrices from the transforms.
+        mCloud.calculateModelMatrix(null);
+        mFrustumAxes.calculateModelMatrix(null);
+    }
+
+    private long allocatedBytes() {
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private void assertFramesAllocateNothing() {
+        for (int frame = 0; frame < WARM_UP_FRAMES; frame++) {
+            simulateFrame(frame);
+        }
+        // The measurement itself may allocate a little; take it as the baseline.
+        long before = allocatedBytes();
+        long overhead = allocatedBytes() - before;
+        before = allocatedBytes();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            simulateFrame(frame);
+        }
+        long allocated = allocatedBytes() - before - overhead;
+        assertEquals("Bytes allocated per " + FRAMES + " frames", 0, allocated);
+    }
+
+    @Test
+    public void firstPersonFramesAllocateNothing() {
+        mTouchViewHandler.setFirstPersonView();
+        assertFramesAllocateNothing();
+    }
+
+    @Test
+    public void topDownFramesAllocateNothing() {
+        mTouchViewHandler.setTopDownView();
+        assertFramesAllocateNothing();
+    }
+
+    @Test
+    public void thirdPersonFramesAllocateNothing() {
+        mTouchViewHandler.setThirdPersonView();
+        assertFramesAllocateNothing();
+    }
+
+    @Test
+    public void transformsMatchThePose() {
+        simulateFrame(100);
+        assertEquals(0.1, mCloudPosition.x, 1e-6);
+        assertEquals(1.2, mCloudPosition.y, 1e-6);
+        assertEquals(-0.2, mCloudPosition.z, 1e-6);
+        assertEquals(mCameraPosition.x, mCloudPosition.x, 1e-6);
+        assertEquals(mCameraPosition.z, mCloudPosition.z, 1e-6);
+        // Both are the same yaw, conjugated for Rajawali.
+        assertEquals(Math.cos(0.5), mCameraOrientation.w, 1e-9);
+        assertEquals(-Math.sin(0.5), mCameraOrientation.y, 1e-9);
+        assertEquals(1, Math.abs(mCameraOrientation.dot(mCloudOrientation)), 1e-6);
+    }
+
+    @Test
+    public void depthTransformMatchesRajawali() {
+        simulateFrame(123);
+        Matrix4 matrix = new Matrix4(mOpenGlTdepth);
+        Vector3 position = matrix.getTranslation();
+        Quaternion orientation = new Quaternion().fromMatrix(matrix).conjugate();
+        assertEquals(0, position.distanceTo(mCloudPosition), 1e-9);
+        assertEquals(orientation.w, mCloudOrientation.w, 1e-9);
+        assertEquals(orientation.x, mCloudOrientation.x, 1e-9);
+        assertEquals(orientation.y, mCloudOrientation.y, 1e-9);
+        assertEquals(orientation.z, mCloudOrientation.z, 1e-9);
+    }
+
+    @Test
+    public void topDownViewLooksDown() {
+        mTouchViewHandler.setTopDownView();
+        simulateFrame(0);
+        Camera expected = new Camera();
+        expected.setRotation(Vector3.Axis.X, 90);
+        assertEquals(1, Math.abs(expected.getOrientation().dot(mCamera.getOrientation())), 1e-9);
+    }
+}
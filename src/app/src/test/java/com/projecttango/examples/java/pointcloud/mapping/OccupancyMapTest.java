@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.mapping;
+
+import com.projecttango.examples.java.pointcloud.processing.LongIntHashMap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fuses hand placed points into an {@link OccupancyMap} and checks the log-odds of the voxels
+ * they hit and the rays they cast.
+ */
+public class OccupancyMapTest {
+    private static final float VOXEL_SIZE = 0.1f;
+    // Log-odds steps as stored, in units of 1/32.
+    private static final float HIT = 27 / 32f;
+    private static final float MISS = -13 / 32f;
+    private static final float[] IDENTITY = {1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1};
+
+    private final OccupancyMap mMap = new OccupancyMap(VOXEL_SIZE, 100, 3);
+
+    private static FloatBuffer points(float... xyz) {
+        FloatBuffer points = ByteBuffer.allocateDirect(Math.max(xyz.length, 3) * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        points.put(xyz);
+        points.rewind();
+        return points;
+    }
+
+    private void integrate(float... xyz) {
+        mMap.integrate(points(xyz), xyz.length / 3, IDENTITY);
+    }
+
+    @Test
+    public void hitsRaiseTheVoxelOfThePoint() {
+        mMap.setFreeSpaceStride(0);
+        integrate(0.05f, 0.05f, 1.05f);
+        assertEquals(HIT, mMap.getLogOdds(0.01f, 0.09f, 1.01f), 0);
+        assertTrue(mMap.isOccupied(0.05f, 0.05f, 1.05f));
+        // The neighbours are untouched.
+        assertEquals(0, mMap.getLogOdds(0.15f, 0.05f, 1.05f), 0);
+        assertEquals(0, mMap.getLogOdds(0.05f, 0.05f, 0.95f), 0);
+        // Several points in one voxel count once per frame.
+        integrate(0.02f, 0.02f, 1.02f, 0.08f, 0.08f, 1.08f);
+        assertEquals(2 * HIT, mMap.getLogOdds(0.05f, 0.05f, 1.05f), 0);
+    }
+
+    @Test
+    public void negativeCoordinatesUseTheirOwnVoxels() {
+        mMap.setFreeSpaceStride(0);
+        integrate(-0.01f, -0.01f, -0.01f);
+        assertEquals(HIT, mMap.getLogOdds(-0.09f, -0.09f, -0.09f), 0);
+        assertEquals(0, mMap.getLogOdds(0.01f, 0.01f, 0.01f), 0);
+        assertEquals(0, mMap.getLogOdds(-0.01f, 0.01f, -0.01f), 0);
+    }
+
+    @Test
+    public void raysLowerTheVoxelsBeforeThePoint() {
+        mMap.setFreeSpaceStride(0);
+        // Occupy a column of voxels along the Z axis, so their blocks exist.
+        integrate(0.05f, 0.05f, 0.55f, 0.05f, 0.05f, 1.05f, 0.05f, 0.05f, 1.55f);
+        mMap.setFreeSpaceStride(1);
+        integrate(0.05f, 0.05f, 1.95f);
+        assertEquals(HIT + MISS, mMap.getLogOdds(0.05f, 0.05f, 0.55f), 1e-6f);
+        assertEquals(HIT + MISS, mMap.getLogOdds(0.05f, 0.05f, 1.55f), 1e-6f);
+        assertEquals(MISS, mMap.getLogOdds(0.05f, 0.05f, 1.25f), 1e-6f);
+        // The voxel of the point itself is hit, not cleared.
+        assertEquals(HIT, mMap.getLogOdds(0.05f, 0.05f, 1.95f), 0);
+        // Voxels off the ray are untouched.
+        assertEquals(0, mMap.getLogOdds(0.15f, 0.05f, 1.25f), 0);
+    }
+
+    @Test
+    public void raysDoNotClearVoxelsHitInTheSameFrame() {
+        mMap.setFreeSpaceStride(1);
+        // The ray to the far point crosses the voxel of the near one.
+        integrate(0.05f, 0.05f, 0.95f, 0.05f, 0.05f, 1.55f);
+        assertEquals(HIT, mMap.getLogOdds(0.05f, 0.05f, 0.95f), 0);
+        assertEquals(HIT, mMap.getLogOdds(0.05f, 0.05f, 1.55f), 0);
+        assertEquals(MISS, mMap.getLogOdds(0.05f, 0.05f, 1.25f), 1e-6f);
+    }
+
+    @Test
+    public void freeSpaceNeverCreatesBlocks() {
+        mMap.setFreeSpaceStride(1);
+        // A ray 3 m long through blocks no point has landed in.
+        integrate(0.05f, 0.05f, 3.05f);
+        assertEquals(1, mMap.getBlockCount());
+        assertEquals(0, mMap.getLogOdds(0.05f, 0.05f, 0.55f), 0);
+    }
+
+    @Test
+    public void logOddsSaturate() {
+        mMap.setFreeSpaceStride(1);
+        for (int i = 0; i < 20; i++) {
+            integrate(0.05f, 0.05f, 1.05f);
+        }
+        assertEquals(3.5f, mMap.getLogOdds(0.05f, 0.05f, 1.05f), 1 / 32f);
+        assertEquals(-2f, mMap.getLogOdds(0.05f, 0.05f, 0.55f), 1 / 32f);
+    }
+
+    @Test
+    public void countsTheBlocksTouchedByEachFrame() {
+        mMap.setFreeSpaceStride(0);
+        float block = OccupancyMap.BLOCK_SIZE * VOXEL_SIZE;
+        // Three blocks, one of them below the origin, with two points in the first.
+        integrate(0.05f, 0.05f, 0.05f, 0.15f, 0.05f, 0.05f, block + 0.05f, 0.05f, 0.05f,
+                0.05f, -0.05f, 0.05f);
+        assertEquals(3, mMap.getBlocksTouchedLastFrame());
+        assertEquals(4, mMap.getVoxelsUpdatedLastFrame());
+        assertEquals(3, mMap.getBlockCount());
+        integrate(0.05f, 0.05f, 0.05f);
+        assertEquals(1, mMap.getBlocksTouchedLastFrame());
+        assertEquals(3, mMap.getBlockCount());
+        // The block below shares its column seen from above.
+        assertEquals(2 * block * block, mMap.getFootprintArea(), 1e-5f);
+    }
+
+    @Test
+    public void posesMovePointsIntoTheWorld() {
+        mMap.setFreeSpaceStride(0);
+        float[] worldTdepth = IDENTITY.clone();
+        worldTdepth[12] = 2;
+        worldTdepth[14] = -1;
+        mMap.integrate(points(0.05f, 0.05f, 1.05f), 1, worldTdepth);
+        assertTrue(mMap.isOccupied(2.05f, 0.05f, 0.05f));
+        assertFalse(mMap.isOccupied(0.05f, 0.05f, 1.05f));
+    }
+
+    @Test
+    public void memoryCountsTheFrameTableAndEveryBlock() {
+        OccupancyMap large = new OccupancyMap(VOXEL_SIZE, 100000, 3);
+        // The per-frame table holds two voxels per point at most half full, 16 bytes an entry.
+        assertTrue(large.getMemoryBytes() - mMap.getMemoryBytes() >= 2 * 2 * (100000 - 100) * 16L);
+
+        long empty = mMap.getMemoryBytes();
+        mMap.setFreeSpaceStride(0);
+        integrate(0.05f, 0.05f, 1.05f);
+        assertEquals(1, mMap.getBlockCount());
+        assertEquals(OccupancyMap.VOXELS_PER_BLOCK + LongIntHashMap.ARRAY_HEADER_BYTES,
+                mMap.getMemoryBytes() - empty);
+    }
+}
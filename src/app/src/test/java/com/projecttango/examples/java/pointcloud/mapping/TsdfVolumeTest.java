@@ -0,0 +1,202 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.mapping;
+
+import com.projecttango.examples.java.pointcloud.processing.LongIntHashMap;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fusion of a synthetic wall into {@link TsdfVolume}, and the meshing of it by
+ * {@link MarchingCubes}.
+ */
+public class TsdfVolumeTest {
+    private static final float VOXEL_SIZE = 0.02f;
+    private static final float TRUNCATION = 3 * VOXEL_SIZE;
+    // Off the voxel boundaries, so the surface crosses the middle of a voxel.
+    private static final float WALL_DEPTH = 1.033f;
+    private static final float[] IDENTITY = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1};
+
+    private static FloatBuffer points(float[] xyz) {
+        FloatBuffer points = ByteBuffer.allocateDirect(xyz.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        points.put(xyz);
+        points.rewind();
+        return points;
+    }
+
+    /**
+     * A wall facing the camera at {@link #WALL_DEPTH}, sampled every centimeter.
+     */
+    private static FloatBuffer wall(float halfWidth) {
+        int side = Math.round(2 * halfWidth / 0.01f) + 1;
+        float[] xyz = new float[side * side * 3];
+        for (int i = 0; i < side; i++) {
+            for (int j = 0; j < side; j++) {
+                int p = (i * side + j) * 3;
+                xyz[p] = -halfWidth + i * 0.01f;
+                xyz[p + 1] = -halfWidth + j * 0.01f;
+                xyz[p + 2] = WALL_DEPTH;
+            }
+        }
+        return points(xyz);
+    }
+
+    private static TsdfVolume newVolume() {
+        return new TsdfVolume(VOXEL_SIZE, TRUNCATION, 1000, 3);
+    }
+
+    @Test
+    public void distanceCrossesZeroAtTheWall() {
+        TsdfVolume volume = newVolume();
+        FloatBuffer wall = wall(0.2f);
+        for (int frame = 0; frame < 3; frame++) {
+            volume.integrate(wall, wall.capacity() / 3, IDENTITY);
+        }
+
+        // Walk the voxel centers of a column through the wall and interpolate the crossing.
+        float x = 0.5f * VOXEL_SIZE;
+        float y = 0.5f * VOXEL_SIZE;
+        float crossing = Float.NaN;
+        float previous = volume.getDistance(x, y, 0.5f * VOXEL_SIZE);
+        assertEquals("Voxels never observed read as free", 1f, previous, 0f);
+        for (int vz = 1; vz < 70; vz++) {
+            float z = (vz + 0.5f) * VOXEL_SIZE;
+            float distance = volume.getDistance(x, y, z);
+            assertTrue(distance >= -1f && distance <= 1f);
+            if (previous >= 0 && distance < 0) {
+                crossing = z - VOXEL_SIZE * distance / (distance - previous);
+            }
+            previous = distance;
+        }
+        assertEquals(WALL_DEPTH, crossing, 0.1f * VOXEL_SIZE);
+        assertTrue(volume.getDistance(x, y, WALL_DEPTH - VOXEL_SIZE) > 0);
+        assertTrue(volume.getDistance(x, y, WALL_DEPTH + VOXEL_SIZE) < 0);
+    }
+
+    @Test
+    public void touchedBlocksQueueTheirNeighborsBelow() {
+        TsdfVolume volume = newVolume();
+        // Single rays along Z at voxel X -1, 0 and 8: block X -1, 0 and 1 in the same Y-Z row.
+        volume.integrate(points(new float[] {
+                0.01f, 0.01f, WALL_DEPTH,
+                -0.01f, 0.01f, WALL_DEPTH,
+                0.175f, 0.01f, WALL_DEPTH}), 3, IDENTITY);
+        int bz = (int) (WALL_DEPTH / VOXEL_SIZE) / TsdfVolume.BLOCK_SIZE;
+        int below = volume.findBlock(-1, 0, bz);
+        int touched = volume.findBlock(0, 0, bz);
+        int above = volume.findBlock(1, 0, bz);
+        assertNotEquals(LongIntHashMap.NO_VALUE, below);
+        assertNotEquals(LongIntHashMap.NO_VALUE, touched);
+        assertNotEquals(LongIntHashMap.NO_VALUE, above);
+        assertEquals(3, volume.getBlockCount());
+        int[] blocks = new int[8];
+        assertEquals(3, volume.takeDirtyBlocks(blocks, blocks.length));
+        assertEquals(0, volume.getDirtyBlockCount());
+
+        volume.integrate(points(new float[] {0.01f, 0.01f, WALL_DEPTH}), 1, IDENTITY);
+        assertEquals(1, volume.getBlocksTouchedLastFrame());
+        int count = volume.takeDirtyBlocks(blocks, blocks.length);
+        Set<Integer> dirty = new HashSet<Integer>();
+        for (int i = 0; i < count; i++) {
+            dirty.add(blocks[i]);
+        }
+        assertEquals(2, count);
+        assertEquals(blocks[0], touched);
+        assertTrue("The block below samples the touched one", dirty.contains(below));
+    }
+
+    @Test
+    public void dirtyBlocksComeOutOldestFirstAndOnce() {
+        TsdfVolume volume = newVolume();
+        FloatBuffer wall = wall(0.2f);
+        volume.integrate(wall, wall.capacity() / 3, IDENTITY);
+        volume.integrate(wall, wall.capacity() / 3, IDENTITY);
+        int total = volume.getDirtyBlockCount();
+        assertTrue(total <= volume.getBlockCount());
+        int[] blocks = new int[total];
+        int first = volume.takeDirtyBlocks(blocks, 2);
+        assertEquals(2, first);
+        assertEquals(total - 2, volume.getDirtyBlockCount());
+        int rest = volume.takeDirtyBlocks(blocks, blocks.length);
+        assertEquals(total - 2, rest);
+        // Taken blocks can be queued again.
+        volume.markDirty(blocks[0]);
+        volume.markDirty(blocks[0]);
+        assertEquals(1, volume.getDirtyBlockCount());
+    }
+
+    @Test
+    public void meshOfAWallLiesOnTheWall() {
+        TsdfVolume volume = newVolume();
+        FloatBuffer wall = wall(0.2f);
+        for (int frame = 0; frame < 3; frame++) {
+            volume.integrate(wall, wall.capacity() / 3, IDENTITY);
+        }
+        MarchingCubes cubes = new MarchingCubes();
+        int[] blocks = new int[volume.getBlockCount()];
+        int count = volume.takeDirtyBlocks(blocks, blocks.length);
+        int vertices = 0;
+        float minX = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            int blockVertices = cubes.meshBlock(volume, blocks[i]);
+            assertTrue(blockVertices <= MarchingCubes.getMaxVerticesPerBlock());
+            assertEquals(0, blockVertices % 3);
+            float[] xyz = cubes.getVertices();
+            for (int v = 0; v < blockVertices; v++) {
+                int p = v * MarchingCubes.FLOATS_PER_VERTEX;
+                assertEquals("Vertex " + v, WALL_DEPTH, xyz[p + 2], 0.25f * VOXEL_SIZE);
+                minX = Math.min(minX, xyz[p]);
+                maxX = Math.max(maxX, xyz[p]);
+            }
+            vertices += blockVertices;
+        }
+        assertTrue(vertices > 0);
+        // The mesh spans the wall, but no cell with an unobserved corner is closed.
+        assertTrue(minX < -0.15f && maxX > 0.15f);
+        assertTrue(minX >= -0.2f - VOXEL_SIZE && maxX <= 0.2f + VOXEL_SIZE);
+    }
+
+    @Test
+    public void fullVolumeLeavesNewSurfacesOut() {
+        TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 2, 3);
+        FloatBuffer wall = wall(0.2f);
+        volume.integrate(wall, wall.capacity() / 3, IDENTITY);
+        assertEquals(2, volume.getBlockCount());
+        assertEquals(2, volume.getDirtyBlockCount());
+        assertTrue(volume.getVoxelsUpdatedLastFrame() > 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncationBelowOneVoxel() {
+        new TsdfVolume(VOXEL_SIZE, VOXEL_SIZE / 2, 10, 3);
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the {@link AlertScheduler} policy through {@link AlertScheduler#update} and
+ * {@link AlertScheduler#trySpeak} with a fake speaker and clock.
+ */
+public class AlertSchedulerTest {
+    private static final long MILLIS = 1000000L;
+    private static final int LEFT = 0;
+    private static final int AHEAD = 1;
+
+    private static class FakeClock implements Clock {
+        long mNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    private static class FakeSpeaker implements AlertScheduler.Speaker {
+        final List<int[]> mSpoken = new ArrayList<int[]>();
+        boolean mSpeaking;
+
+        @Override
+        public synchronized void speak(int severity, int direction, boolean interrupt) {
+            mSpoken.add(new int[] {severity, direction, interrupt ? 1 : 0});
+        }
+
+        @Override
+        public synchronized boolean isSpeaking() {
+            return mSpeaking;
+        }
+
+        synchronized int count() {
+            return mSpoken.size();
+        }
+
+        synchronized int[] last() {
+            return mSpoken.get(mSpoken.size() - 1);
+        }
+    }
+
+    private final FakeClock mClock = new FakeClock();
+    private final FakeSpeaker mSpeaker = new FakeSpeaker();
+    private AlertScheduler mScheduler;
+    private double mTimestamp;
+
+    @Before
+    public void setUp() {
+        mClock.mNanos = 10000 * MILLIS;
+        mTimestamp = 10;
+        mScheduler = new AlertScheduler("test", mSpeaker, mClock);
+    }
+
+    /**
+     * Report one frame captured now, then let the scheduler speak.
+     */
+    private void frame(int severity, int direction) {
+        mTimestamp = mClock.mNanos / 1e9;
+        mScheduler.update(mTimestamp, severity, severity == AlertScheduler.SEVERITY_NONE
+                ? -1 : direction);
+        mScheduler.trySpeak();
+    }
+
+    private void advance(long millis) {
+        mClock.mNanos += millis * MILLIS;
+    }
+
+    private void assertLastSpoken(int severity, int direction, boolean interrupt) {
+        int[] spoken = mSpeaker.last();
+        assertEquals(severity, spoken[0]);
+        assertEquals(direction, spoken[1]);
+        assertEquals(interrupt ? 1 : 0, spoken[2]);
+    }
+
+    @Test
+    public void raisedAfterRaiseFrames() {
+        for (int i = 1; i < AlertScheduler.RAISE_FRAMES; i++) {
+            frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+            assertEquals(AlertScheduler.SEVERITY_NONE, mScheduler.getActiveSeverity());
+        }
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        assertEquals(AlertScheduler.SEVERITY_WARNING, mScheduler.getActiveSeverity());
+        assertEquals(1, mSpeaker.count());
+        assertLastSpoken(AlertScheduler.SEVERITY_WARNING, LEFT, false);
+    }
+
+    @Test
+    public void singleFrameBlipIsIgnored() {
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        frame(AlertScheduler.SEVERITY_NONE, LEFT);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        frame(AlertScheduler.SEVERITY_NOTICE, LEFT);
+        assertEquals(AlertScheduler.SEVERITY_NONE, mScheduler.getActiveSeverity());
+        assertEquals(0, mSpeaker.count());
+    }
+
+    @Test
+    public void alternatingDirectionsStillRaiseAndLower() {
+        // An obstacle between two directions, seen in one or the other on every frame.
+        int[] directions = {LEFT, AHEAD};
+        for (int i = 0; i < AlertScheduler.RAISE_FRAMES; i++) {
+            frame(AlertScheduler.SEVERITY_WARNING, directions[i % 2]);
+        }
+        assertEquals(AlertScheduler.SEVERITY_WARNING, mScheduler.getActiveSeverity());
+        assertEquals(1, mSpeaker.count());
+        int raisedDirection = mSpeaker.last()[1];
+
+        // The alert doesn't follow it back and forth either.
+        for (int i = 0; i < 20; i++) {
+            advance(100);
+            frame(AlertScheduler.SEVERITY_WARNING, directions[i % 2]);
+        }
+        assertEquals(1, mSpeaker.count());
+
+        for (int i = 0; i < AlertScheduler.CLEAR_FRAMES; i++) {
+            advance(100);
+            frame(AlertScheduler.SEVERITY_NOTICE, directions[i % 2]);
+        }
+        assertEquals(AlertScheduler.SEVERITY_NOTICE, mScheduler.getActiveSeverity());
+        assertEquals(2, mSpeaker.count());
+        assertEquals(AlertScheduler.SEVERITY_WARNING, mSpeaker.mSpoken.get(0)[0]);
+        assertEquals(raisedDirection, mSpeaker.mSpoken.get(0)[1]);
+    }
+
+    @Test
+    public void movesOnceTheNewDirectionHolds() {
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        advance(AlertScheduler.DEFAULT_MIN_GAP_MILLIS);
+        for (int i = 1; i < AlertScheduler.RAISE_FRAMES; i++) {
+            frame(AlertScheduler.SEVERITY_WARNING, AHEAD);
+        }
+        assertEquals(1, mSpeaker.count());
+        frame(AlertScheduler.SEVERITY_WARNING, AHEAD);
+        assertEquals(2, mSpeaker.count());
+        assertLastSpoken(AlertScheduler.SEVERITY_WARNING, AHEAD, false);
+    }
+
+    @Test
+    public void urgentRaisedImmediately() {
+        frame(AlertScheduler.SEVERITY_URGENT, AHEAD);
+        assertEquals(AlertScheduler.SEVERITY_URGENT, mScheduler.getActiveSeverity());
+        assertLastSpoken(AlertScheduler.SEVERITY_URGENT, AHEAD, false);
+    }
+
+    @Test
+    public void clearedOnlyAfterClearFrames() {
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        for (int i = 1; i < AlertScheduler.CLEAR_FRAMES; i++) {
+            frame(AlertScheduler.SEVERITY_NONE, LEFT);
+            assertEquals(AlertScheduler.SEVERITY_WARNING, mScheduler.getActiveSeverity());
+        }
+        // A frame back at the threshold restarts the count.
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        for (int i = 1; i < AlertScheduler.CLEAR_FRAMES; i++) {
+            frame(AlertScheduler.SEVERITY_NONE, LEFT);
+        }
+        assertEquals(AlertScheduler.SEVERITY_WARNING, mScheduler.getActiveSeverity());
+        frame(AlertScheduler.SEVERITY_NONE, LEFT);
+        assertEquals(AlertScheduler.SEVERITY_NONE, mScheduler.getActiveSeverity());
+        assertEquals(1, mSpeaker.count());
+    }
+
+    @Test
+    public void loweredSeverityTakesOverAfterClearFrames() {
+        frame(AlertScheduler.SEVERITY_URGENT, AHEAD);
+        for (int i = 0; i < AlertScheduler.CLEAR_FRAMES; i++) {
+            advance(300);
+            frame(AlertScheduler.SEVERITY_NOTICE, AHEAD);
+        }
+        assertEquals(AlertScheduler.SEVERITY_NOTICE, mScheduler.getActiveSeverity());
+        assertEquals(2, mSpeaker.count());
+        assertLastSpoken(AlertScheduler.SEVERITY_NOTICE, AHEAD, false);
+    }
+
+    @Test
+    public void urgentPreemptsLessSevereSpeech() {
+        frame(AlertScheduler.SEVERITY_NOTICE, LEFT);
+        frame(AlertScheduler.SEVERITY_NOTICE, LEFT);
+        assertEquals(1, mSpeaker.count());
+        mSpeaker.mSpeaking = true;
+
+        advance(100);
+        frame(AlertScheduler.SEVERITY_URGENT, AHEAD);
+        assertEquals(2, mSpeaker.count());
+        assertLastSpoken(AlertScheduler.SEVERITY_URGENT, AHEAD, true);
+
+        // Nothing interrupts an alert at least as severe.
+        advance(100);
+        frame(AlertScheduler.SEVERITY_URGENT, LEFT);
+        frame(AlertScheduler.SEVERITY_URGENT, LEFT);
+        advance(10000);
+        mScheduler.trySpeak();
+        assertEquals(2, mSpeaker.count());
+
+        mSpeaker.mSpeaking = false;
+        mScheduler.trySpeak();
+        assertEquals(3, mSpeaker.count());
+        assertLastSpoken(AlertScheduler.SEVERITY_URGENT, LEFT, false);
+    }
+
+    @Test
+    public void waitsForSpeechOfTheSameSeverity() {
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        mSpeaker.mSpeaking = true;
+        advance(2000);
+        frame(AlertScheduler.SEVERITY_WARNING, AHEAD);
+        frame(AlertScheduler.SEVERITY_WARNING, AHEAD);
+        assertEquals(1, mSpeaker.count());
+        mSpeaker.mSpeaking = false;
+        mScheduler.trySpeak();
+        assertLastSpoken(AlertScheduler.SEVERITY_WARNING, AHEAD, false);
+    }
+
+    @Test
+    public void sameAlertRepeatedOncePerRepeatInterval() {
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        assertEquals(1, mSpeaker.count());
+        long repeat = AlertScheduler.DEFAULT_REPEAT_INTERVAL_MILLIS;
+        for (long elapsed = 100; elapsed < repeat; elapsed += 100) {
+            advance(100);
+            frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        }
+        assertEquals(1, mSpeaker.count());
+        advance(100);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        assertEquals(2, mSpeaker.count());
+        assertLastSpoken(AlertScheduler.SEVERITY_WARNING, LEFT, false);
+
+        mScheduler.setRepeatInterval(2000);
+        advance(1900);
+        mScheduler.trySpeak();
+        assertEquals(2, mSpeaker.count());
+        advance(100);
+        mScheduler.trySpeak();
+        assertEquals(3, mSpeaker.count());
+    }
+
+    @Test
+    public void differentAlertWaitsForMinGap() {
+        frame(AlertScheduler.SEVERITY_NOTICE, LEFT);
+        frame(AlertScheduler.SEVERITY_NOTICE, LEFT);
+        advance(100);
+        frame(AlertScheduler.SEVERITY_WARNING, AHEAD);
+        frame(AlertScheduler.SEVERITY_WARNING, AHEAD);
+        assertEquals(AlertScheduler.SEVERITY_WARNING, mScheduler.getActiveSeverity());
+        assertEquals(1, mSpeaker.count());
+        advance(AlertScheduler.DEFAULT_MIN_GAP_MILLIS - 200);
+        mScheduler.trySpeak();
+        assertEquals(1, mSpeaker.count());
+        advance(100);
+        mScheduler.trySpeak();
+        assertEquals(2, mSpeaker.count());
+        assertLastSpoken(AlertScheduler.SEVERITY_WARNING, AHEAD, false);
+    }
+
+    @Test
+    public void raisedAgainAfterClearWaitsOnlyForMinGap() {
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        for (int i = 0; i < AlertScheduler.CLEAR_FRAMES; i++) {
+            advance(100);
+            frame(AlertScheduler.SEVERITY_NONE, LEFT);
+        }
+        assertEquals(AlertScheduler.SEVERITY_NONE, mScheduler.getActiveSeverity());
+        advance(AlertScheduler.DEFAULT_MIN_GAP_MILLIS);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        frame(AlertScheduler.SEVERITY_WARNING, LEFT);
+        assertEquals(2, mSpeaker.count());
+    }
+
+    @Test
+    public void latencyFromCaptureToSpeech() {
+        mScheduler.update(10.0, AlertScheduler.SEVERITY_URGENT, AHEAD);
+        mClock.mNanos = 10250 * MILLIS;
+        mScheduler.trySpeak();
+        LatencyHistogram latency = mScheduler.getLatency();
+        assertEquals(1, latency.getCount());
+        assertEquals(250 * MILLIS, latency.getMaxNanos());
+
+        // A repeat is measured from the frame that triggered it.
+        mClock.mNanos = 15200 * MILLIS;
+        mScheduler.update(15.2, AlertScheduler.SEVERITY_URGENT, AHEAD);
+        mClock.mNanos = 15280 * MILLIS;
+        mScheduler.trySpeak();
+        assertEquals(2, latency.getCount());
+        assertEquals(250 * MILLIS, latency.getMaxNanos());
+        assertTrue(latency.getQuantileNanos(0.5) <= 100 * MILLIS);
+        assertEquals(2, mScheduler.getAlertsSpoken());
+    }
+
+    @Test
+    public void reportsSpokenOnTheSchedulerThread() throws InterruptedException {
+        mScheduler.start();
+        mScheduler.report(mClock.mNanos / 1e9, AlertScheduler.SEVERITY_URGENT, AHEAD);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mSpeaker.count() == 0) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        mScheduler.stop();
+        assertLastSpoken(AlertScheduler.SEVERITY_URGENT, AHEAD, false);
+
+        // Stopped: reports are not spoken.
+        mScheduler.report(mClock.mNanos / 1e9, AlertScheduler.SEVERITY_URGENT, LEFT);
+        advance(60000);
+        Thread.sleep(100);
+        assertEquals(1, mSpeaker.count());
+        assertFalse(mSpeaker.isSpeaking());
+    }
+}
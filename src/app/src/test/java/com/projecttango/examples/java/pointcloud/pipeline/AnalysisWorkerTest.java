@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives an {@link AnalysisWorker} with a fake depth frame producer. Every point of a frame holds
+ * the frame number, so a frame mixing two of them is seen as torn.
+ */
+public class AnalysisWorkerTest {
+    private static final int MAX_POINTS = 1000;
+    private static final int FLOATS_PER_POINT = 4;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final FloatBuffer mPoints = FloatBuffer.allocate(MAX_POINTS * FLOATS_PER_POINT);
+    private AnalysisWorker mWorker;
+
+    @After
+    public void tearDown() {
+        if (mWorker != null) {
+            mWorker.stop();
+        }
+    }
+
+    private void publishFrame(int frame) {
+        int numPoints = 1 + frame % MAX_POINTS;
+        for (int i = 0; i < numPoints * FLOATS_PER_POINT; i++) {
+            mPoints.put(i, frame);
+        }
+        mWorker.publish(frame, numPoints, mPoints);
+    }
+
+    /**
+     * Records the frames processed and checks none of them is torn.
+     */
+    private static class RecordingProcessor implements AnalysisWorker.FrameProcessor {
+        final List<Integer> mFrames = new ArrayList<Integer>();
+        volatile String mError;
+        volatile CountDownLatch mGate;
+        volatile CountDownLatch mStarted = new CountDownLatch(1);
+
+        @Override
+        public void process(PointCloudFrame frame) {
+            int number = (int) frame.getTimestamp();
+            FloatBuffer points = frame.getPoints();
+            if (frame.getNumPoints() != 1 + number % MAX_POINTS) {
+                mError = "Frame " + number + " has " + frame.getNumPoints() + " points";
+            }
+            for (int i = 0; i < frame.getNumPoints() * FLOATS_PER_POINT; i++) {
+                if (points.get(i) != number) {
+                    mError = "Frame " + number + " torn at " + i + ": " + points.get(i);
+                    break;
+                }
+            }
+            synchronized (mFrames) {
+                mFrames.add(number);
+            }
+            mStarted.countDown();
+            CountDownLatch gate = mGate;
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        int last() {
+            synchronized (mFrames) {
+                return mFrames.isEmpty() ? -1 : mFrames.get(mFrames.size() - 1);
+            }
+        }
+    }
+
+    private void awaitProcessed(long frames) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mWorker.getFramesProcessed() < frames) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void latestFrameWinsWhileBusy() throws InterruptedException {
+        RecordingProcessor processor = new RecordingProcessor();
+        processor.mGate = new CountDownLatch(1);
+        mWorker = new AnalysisWorker("test", MAX_POINTS, FLOATS_PER_POINT, processor);
+        mWorker.start();
+
+        publishFrame(1);
+        assertTrue(processor.mStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        // The worker is stuck on frame 1: frames 2 to 4 are replaced by frame 5.
+        for (int frame = 2; frame <= 5; frame++) {
+            publishFrame(frame);
+        }
+        processor.mGate.countDown();
+        awaitProcessed(2);
+        Thread.sleep(20);
+
+        assertNull(processor.mError);
+        assertEquals(2, mWorker.getFramesProcessed());
+        assertEquals(5, processor.last());
+        assertEquals(5, mWorker.getFramesPublished());
+        assertEquals(3, mWorker.getFramesDropped());
+    }
+
+    @Test
+    public void noTornFramesUnderRacingProducer() throws InterruptedException {
+        RecordingProcessor processor = new RecordingProcessor();
+        mWorker = new AnalysisWorker("test", MAX_POINTS, FLOATS_PER_POINT, processor);
+        mWorker.start();
+        int frames = 5000;
+        for (int frame = 1; frame <= frames; frame++) {
+            publishFrame(frame);
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (processor.last() != frames) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertNull(processor.mError);
+        assertEquals(frames, mWorker.getFramesPublished());
+        assertEquals(frames, mWorker.getFramesProcessed() + mWorker.getFramesDropped());
+        synchronized (processor.mFrames) {
+            int previous = 0;
+            for (int frame : processor.mFrames) {
+                assertTrue(frame > previous);
+                previous = frame;
+            }
+        }
+    }
+
+    @Test
+    public void stopAndRestart() throws InterruptedException {
+        RecordingProcessor processor = new RecordingProcessor();
+        mWorker = new AnalysisWorker("test", MAX_POINTS, FLOATS_PER_POINT, processor);
+        mWorker.start();
+        mWorker.start();
+        publishFrame(1);
+        awaitProcessed(1);
+
+        mWorker.stop();
+        mWorker.stop();
+        // Published while stopped, picked up once the worker runs again.
+        publishFrame(2);
+        Thread.sleep(20);
+        assertEquals(1, mWorker.getFramesProcessed());
+
+        mWorker.start();
+        awaitProcessed(2);
+        assertEquals(2, processor.last());
+        publishFrame(3);
+        awaitProcessed(3);
+        assertEquals(3, processor.last());
+        assertNull(processor.mError);
+        assertEquals(0, mWorker.getFramesDropped());
+    }
+}
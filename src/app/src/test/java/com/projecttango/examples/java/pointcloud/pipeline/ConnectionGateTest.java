@@ -0,0 +1,307 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link ConnectionGate} as the activity does: frame loops entering it while connects
+ * and disconnects race each other.
+ */
+public class ConnectionGateTest {
+    private static final long STRESS_MILLIS = 1000;
+
+    @Test
+    public void connectAndDisconnect() {
+        ConnectionGate gate = new ConnectionGate();
+        assertEquals(ConnectionGate.DISCONNECTED, gate.getState());
+        assertFalse(gate.tryEnter());
+        assertFalse(gate.beginDisconnect());
+
+        assertTrue(gate.beginConnect());
+        assertFalse(gate.beginConnect());
+        assertEquals(ConnectionGate.CONNECTING, gate.getState());
+        assertFalse(gate.tryEnter());
+        gate.endConnect(true);
+        assertTrue(gate.isConnected());
+
+        assertTrue(gate.tryEnter());
+        assertTrue(gate.tryEnter());
+        assertEquals(2, gate.getUsers());
+        gate.exit();
+        gate.exit();
+        assertEquals(0, gate.getUsers());
+
+        assertTrue(gate.beginDisconnect());
+        assertEquals(ConnectionGate.DISCONNECTING, gate.getState());
+        assertFalse(gate.tryEnter());
+        gate.endDisconnect();
+        assertEquals(ConnectionGate.DISCONNECTED, gate.getState());
+    }
+
+    @Test
+    public void failedConnectLeavesGateDisconnected() {
+        ConnectionGate gate = new ConnectionGate();
+        assertTrue(gate.beginConnect());
+        gate.endConnect(false);
+        assertEquals(ConnectionGate.DISCONNECTED, gate.getState());
+        assertTrue(gate.beginConnect());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endConnectWithoutBegin() {
+        new ConnectionGate().endConnect(true);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endDisconnectWithoutBegin() {
+        new ConnectionGate().endDisconnect();
+    }
+
+    @Test
+    public void disconnectWaitsForUsersInside() throws InterruptedException {
+        final ConnectionGate gate = new ConnectionGate();
+        gate.beginConnect();
+        gate.endConnect(true);
+        assertTrue(gate.tryEnter());
+        final AtomicBoolean disconnected = new AtomicBoolean();
+        Thread disconnector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                disconnected.set(gate.beginDisconnect());
+            }
+        });
+        disconnector.start();
+        awaitParked(disconnector);
+        assertEquals(ConnectionGate.DISCONNECTING, gate.getState());
+        assertFalse(gate.tryEnter());
+        gate.exit();
+        disconnector.join(5000);
+        assertFalse(disconnector.isAlive());
+        assertTrue(disconnected.get());
+    }
+
+    /**
+     * Waits until {@code thread} is parked, failing if it is still running after five seconds.
+     */
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue("Not parked: " + thread.getState(), System.currentTimeMillis() < end);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void disconnectParksUntilConnectionInProgressEnds() throws InterruptedException {
+        final ConnectionGate gate = new ConnectionGate();
+        assertTrue(gate.beginConnect());
+        final AtomicBoolean disconnected = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread disconnector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                disconnected.set(gate.beginDisconnect());
+            }
+        });
+        disconnector.start();
+        started.await();
+        // A slow connect must not keep the disconnecting thread spinning on a core.
+        awaitParked(disconnector);
+        assertEquals(ConnectionGate.CONNECTING, gate.getState());
+        gate.endConnect(true);
+        disconnector.join(5000);
+        assertFalse(disconnector.isAlive());
+        assertTrue(disconnected.get());
+        assertEquals(ConnectionGate.DISCONNECTING, gate.getState());
+    }
+
+    @Test
+    public void disconnectAfterFailedConnectionInProgress() throws InterruptedException {
+        final ConnectionGate gate = new ConnectionGate();
+        assertTrue(gate.beginConnect());
+        final AtomicBoolean disconnected = new AtomicBoolean(true);
+        Thread disconnector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                disconnected.set(gate.beginDisconnect());
+            }
+        });
+        disconnector.start();
+        awaitParked(disconnector);
+        gate.endConnect(false);
+        disconnector.join(5000);
+        assertFalse(disconnector.isAlive());
+        assertFalse(disconnected.get());
+        assertEquals(ConnectionGate.DISCONNECTED, gate.getState());
+    }
+
+    @Test
+    public void interruptIsKeptWhileWaiting() throws InterruptedException {
+        final ConnectionGate gate = new ConnectionGate();
+        gate.beginConnect();
+        gate.endConnect(true);
+        assertTrue(gate.tryEnter());
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread disconnector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                gate.beginDisconnect();
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        disconnector.start();
+        awaitParked(disconnector);
+        disconnector.interrupt();
+        // Still waiting for the user inside.
+        awaitParked(disconnector);
+        gate.exit();
+        disconnector.join(5000);
+        assertFalse(disconnector.isAlive());
+        assertTrue(interrupted.get());
+    }
+
+    /**
+     * Fake service that fails the test if used while torn down.
+     */
+    private static class FakeService {
+        private final AtomicBoolean mConnected = new AtomicBoolean();
+        final AtomicReference<String> mError = new AtomicReference<String>();
+        final AtomicLong mUses = new AtomicLong();
+
+        void connect() {
+            if (!mConnected.compareAndSet(false, true)) {
+                mError.compareAndSet(null, "Connected twice");
+            }
+        }
+
+        void disconnect() {
+            if (!mConnected.compareAndSet(true, false)) {
+                mError.compareAndSet(null, "Disconnected while not connected");
+            }
+        }
+
+        void use() {
+            if (!mConnected.get()) {
+                mError.compareAndSet(null, "Used while disconnected");
+            }
+            mUses.incrementAndGet();
+            // Stay inside for a while so disconnects regularly find users.
+            if (!mConnected.get()) {
+                mError.compareAndSet(null, "Disconnected during use");
+            }
+        }
+    }
+
+    /**
+     * Frame loops use the service through the gate while the lifecycle thread connects and
+     * disconnects it, as onResume and onStop would, and a second thread races it to connect, as
+     * the Tango service ready callback would.
+     */
+    @Test
+    public void stressConnectDisconnectAgainstFrameLoops() throws InterruptedException {
+        final ConnectionGate gate = new ConnectionGate();
+        final FakeService service = new FakeService();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong skippedFrames = new AtomicLong();
+        final AtomicLong cycles = new AtomicLong();
+        final AtomicLong racedConnects = new AtomicLong();
+
+        Runnable frameLoop = new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    if (gate.tryEnter()) {
+                        try {
+                            service.use();
+                        } finally {
+                            gate.exit();
+                        }
+                    } else {
+                        skippedFrames.incrementAndGet();
+                    }
+                }
+            }
+        };
+        Runnable connector = new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(3);
+                while (running.get()) {
+                    if (gate.beginConnect()) {
+                        service.connect();
+                        // Connections sometimes fail, and some take long enough for the
+                        // lifecycle thread to park.
+                        boolean success = random.nextInt(8) != 0;
+                        if (!success) {
+                            service.disconnect();
+                        } else if (random.nextInt(64) == 0) {
+                            LockSupport.parkNanos(100000);
+                        }
+                        gate.endConnect(success);
+                        racedConnects.incrementAndGet();
+                    }
+                    Thread.yield();
+                }
+            }
+        };
+        Thread[] threads = {
+                new Thread(frameLoop), new Thread(frameLoop), new Thread(frameLoop),
+                new Thread(connector)};
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long end = System.currentTimeMillis() + STRESS_MILLIS;
+        while (System.currentTimeMillis() < end) {
+            if (gate.beginConnect()) {
+                service.connect();
+                gate.endConnect(true);
+            }
+            if (gate.beginDisconnect()) {
+                assertEquals(0, gate.getUsers());
+                service.disconnect();
+                gate.endDisconnect();
+                cycles.incrementAndGet();
+            }
+        }
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+
+        assertNull(service.mError.get());
+        assertEquals(0, gate.getUsers());
+        assertTrue(cycles.get() > 100);
+        assertTrue(service.mUses.get() > 0);
+        assertTrue(skippedFrames.get() > 0);
+        assertTrue(racedConnects.get() > 0);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bucket bounds and quantiles of {@link LatencyHistogram}, concurrent recording, and the stage
+ * summaries of {@link LatencyTracker}.
+ */
+public class LatencyTrackerTest {
+    private static final long MILLIS = 1000000;
+
+    private static class FakeClock implements Clock {
+        long mNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+
+    @Test
+    public void bucketsHoldTheirValuesWithinAQuarter() {
+        for (long micros = 0; micros < 100000000; micros = micros * 9 / 8 + 1) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            long lower = LatencyHistogram.bucketLowerBound(bucket);
+            long upper = LatencyHistogram.bucketLowerBound(bucket + 1);
+            assertTrue(micros + " us", lower <= micros && micros < upper);
+            assertTrue(micros + " us", upper - lower <= Math.max(1, lower / 4));
+        }
+    }
+
+    @Test
+    public void quantilesAreBucketBoundsCappedAtTheMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getQuantileNanos(0.5));
+        assertEquals(0, histogram.getMaxNanos());
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis * MILLIS);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000 * MILLIS, histogram.getMaxNanos());
+        long median = histogram.getQuantileNanos(0.5);
+        assertTrue(median >= 500 * MILLIS && median <= 625 * MILLIS);
+        assertEquals(1000 * MILLIS, histogram.getQuantileNanos(1));
+        assertEquals(1000 * MILLIS, histogram.getQuantileNanos(0.999));
+
+        histogram.clear();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int perThread = 200000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        histogram.record((i % 1000) * MILLIS + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * perThread, histogram.getCount());
+        assertEquals(999 * MILLIS + threads.length - 1, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void stagesMeasureFromTheCaptureTimestamp() throws IOException {
+        FakeClock clock = new FakeClock();
+        LatencyTracker tracker = new LatencyTracker(clock);
+        clock.mNanos = 10250 * MILLIS;
+        tracker.stamp(LatencyTracker.STAGE_ANALYZED, 10.0);
+        clock.mNanos = 10300 * MILLIS;
+        tracker.stamp(LatencyTracker.STAGE_ANALYZED, 10.2);
+        LatencyHistogram analyzed = tracker.getHistogram(LatencyTracker.STAGE_ANALYZED);
+        assertEquals(2, analyzed.getCount());
+        assertEquals(250 * MILLIS, analyzed.getMaxNanos());
+        assertEquals(0, tracker.getHistogram(LatencyTracker.STAGE_DRAWN).getCount());
+
+        StringBuilder text = new StringBuilder();
+        tracker.format(text);
+        assertEquals(LatencyTracker.STAGE_COUNT, text.toString().split("\n").length);
+        assertTrue(text.toString(), text.toString().contains("max  250.0 ms  n=2"));
+
+        StringWriter tsv = new StringWriter();
+        tracker.dump(tsv);
+        String[] lines = tsv.toString().split("\n");
+        assertEquals(LatencyTracker.STAGE_COUNT + 1, lines.length);
+        assertEquals(LatencyTracker.getStageName(LatencyTracker.STAGE_ANALYZED) + "\t2",
+                lines[1 + LatencyTracker.STAGE_ANALYZED].substring(0, 10));
+        assertTrue(lines[1 + LatencyTracker.STAGE_ANALYZED].endsWith("\t250.000"));
+
+        tracker.clear();
+        assertEquals(0, analyzed.getCount());
+    }
+}
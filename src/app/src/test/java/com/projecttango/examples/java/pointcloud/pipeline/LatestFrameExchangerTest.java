@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LatestFrameExchangerTest {
+    private static LatestFrameExchanger<long[]> newExchanger(int length) {
+        return new LatestFrameExchanger<long[]>(new long[length], new long[length],
+                new long[length]);
+    }
+
+    @Test
+    public void pollIsEmptyUntilPublished() {
+        LatestFrameExchanger<long[]> exchanger = newExchanger(1);
+        assertFalse(exchanger.hasFresh());
+        assertNull(exchanger.poll());
+        exchanger.getWriteBuffer()[0] = 7;
+        assertFalse(exchanger.publish());
+        assertTrue(exchanger.hasFresh());
+        assertEquals(7, exchanger.poll()[0]);
+        assertNull(exchanger.poll());
+        assertEquals(1, exchanger.getPublishedCount());
+        assertEquals(0, exchanger.getDroppedCount());
+    }
+
+    @Test
+    public void latestWinsAndDropsAreCounted() {
+        LatestFrameExchanger<long[]> exchanger = newExchanger(1);
+        for (int i = 1; i <= 5; i++) {
+            exchanger.getWriteBuffer()[0] = i;
+            assertEquals(i > 1, exchanger.publish());
+        }
+        assertEquals(5, exchanger.poll()[0]);
+        assertNull(exchanger.poll());
+        assertEquals(5, exchanger.getPublishedCount());
+        assertEquals(4, exchanger.getDroppedCount());
+    }
+
+    @Test
+    public void droppedItemBecomesTheWriteBuffer() {
+        LatestFrameExchanger<long[]> exchanger = newExchanger(1);
+        long[] first = exchanger.getWriteBuffer();
+        exchanger.publish();
+        assertTrue(exchanger.publish());
+        assertSame(first, exchanger.getWriteBuffer());
+    }
+
+    @Test
+    public void consumerKeepsItsBufferUntilNextPoll() {
+        LatestFrameExchanger<long[]> exchanger = newExchanger(1);
+        exchanger.getWriteBuffer()[0] = 1;
+        exchanger.publish();
+        long[] taken = exchanger.poll();
+        // However often the producer publishes, it never writes into the buffer being read.
+        for (int i = 2; i < 10; i++) {
+            assertTrue(exchanger.getWriteBuffer() != taken);
+            exchanger.getWriteBuffer()[0] = i;
+            exchanger.publish();
+        }
+        assertEquals(1, taken[0]);
+        assertEquals(9, exchanger.poll()[0]);
+    }
+
+    @Test
+    public void noTornItemsUnderRacingThreads() throws InterruptedException {
+        final int length = 256;
+        final long items = 200000;
+        final LatestFrameExchanger<long[]> exchanger = newExchanger(length);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long sequence = 1; sequence <= items; sequence++) {
+                    long[] item = exchanger.getWriteBuffer();
+                    for (int i = 0; i < length; i++) {
+                        item[i] = sequence;
+                    }
+                    exchanger.publish();
+                }
+            }
+        });
+        producer.start();
+
+        long consumed = 0;
+        long last = 0;
+        while (producer.isAlive() || exchanger.hasFresh()) {
+            long[] item = exchanger.poll();
+            if (item == null) {
+                continue;
+            }
+            long sequence = item[0];
+            for (int i = 1; i < length; i++) {
+                if (item[i] != sequence) {
+                    fail("Torn item " + sequence + " at " + i + ": " + item[i]);
+                }
+            }
+            if (sequence <= last) {
+                fail("Item " + sequence + " after " + last);
+            }
+            last = sequence;
+            consumed++;
+        }
+        producer.join();
+        assertEquals(items, last);
+        assertEquals(items, exchanger.getPublishedCount());
+        assertEquals(items, consumed + exchanger.getDroppedCount());
+    }
+}
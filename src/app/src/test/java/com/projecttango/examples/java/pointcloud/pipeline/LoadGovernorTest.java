@@ -0,0 +1,229 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link LoadGovernor} simulated frame times.
+ */
+public class LoadGovernorTest {
+    private static final long BUDGET_MILLIS = 10;
+    private static final long MILLIS = 1000000L;
+    // Frames the smoothed load takes to cross a threshold after a step, more than enough.
+    private static final int SETTLE_FRAMES = 10;
+
+    /**
+     * Frame time as a function of the level, standing for the pipeline.
+     */
+    private interface Workload {
+        long frameNanos(int level);
+    }
+
+    private static Workload constant(final long millis) {
+        return new Workload() {
+            @Override
+            public long frameNanos(int level) {
+                return millis * MILLIS;
+            }
+        };
+    }
+
+    /**
+     * Over budget at {@code level} and below, well under it above.
+     */
+    private static Workload heavyUpTo(final int level) {
+        return new Workload() {
+            @Override
+            public long frameNanos(int current) {
+                return (current <= level ? 15 : 3) * MILLIS;
+            }
+        };
+    }
+
+    private static class Recorder implements LoadGovernor.Listener {
+        final List<Integer> mLevels = new ArrayList<Integer>();
+        final List<Integer> mFrames = new ArrayList<Integer>();
+        int mFrame;
+
+        @Override
+        public void onLevelChanged(LoadGovernor governor, int level) {
+            mLevels.add(level);
+            mFrames.add(mFrame);
+        }
+    }
+
+    private static void run(LoadGovernor governor, Recorder recorder, Workload workload,
+                            int frames) {
+        for (int i = 0; i < frames; i++) {
+            recorder.mFrame++;
+            governor.onFrameProcessed(workload.frameNanos(governor.getLevel()));
+        }
+    }
+
+    /**
+     * @return Frames fed until the level changed, or -1 if it didn't within {@code max}.
+     */
+    private static int framesUntilChange(LoadGovernor governor, Workload workload, int max) {
+        int level = governor.getLevel();
+        for (int i = 1; i <= max; i++) {
+            if (governor.onFrameProcessed(workload.frameNanos(level)) != level) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void raisedAfterRaiseFramesOverBudget() {
+        LoadGovernor governor = new LoadGovernor(BUDGET_MILLIS);
+        Recorder recorder = new Recorder();
+        governor.setListener(recorder);
+        assertEquals(LoadGovernor.RAISE_FRAMES,
+                framesUntilChange(governor, constant(20), 100));
+        assertEquals(1, governor.getLevel());
+        assertEquals(1, recorder.mLevels.size());
+        assertEquals(1, (int) recorder.mLevels.get(0));
+        assertEquals(2, governor.getLoad(), 0.01f);
+    }
+
+    @Test
+    public void stableUnderBudgetStaysAtFullQuality() {
+        LoadGovernor governor = new LoadGovernor(BUDGET_MILLIS);
+        assertEquals(-1, framesUntilChange(governor, constant(8), 1000));
+        assertEquals(0, governor.getLevel());
+        assertEquals(0, governor.getLevelChanges());
+    }
+
+    @Test
+    public void coolDownAfterEachChange() {
+        LoadGovernor governor = new LoadGovernor(BUDGET_MILLIS);
+        framesUntilChange(governor, constant(30), 100);
+        assertEquals(LoadGovernor.COOL_DOWN_FRAMES + LoadGovernor.RAISE_FRAMES,
+                framesUntilChange(governor, constant(30), 100));
+        assertEquals(2, governor.getLevel());
+        while (governor.getLevel() < LoadGovernor.MAX_LEVEL) {
+            framesUntilChange(governor, constant(30), 100);
+        }
+        assertEquals(-1, framesUntilChange(governor, constant(30), 1000));
+        assertEquals(LoadGovernor.MAX_LEVEL, governor.getLevel());
+        assertEquals(LoadGovernor.MAX_LEVEL, governor.getLevelChanges());
+    }
+
+    @Test
+    public void loweredSlowly() {
+        LoadGovernor governor = new LoadGovernor(BUDGET_MILLIS);
+        framesUntilChange(governor, constant(12), 100);
+        assertEquals(1, governor.getLevel());
+        int frames = framesUntilChange(governor, constant(2), 1000);
+        assertTrue(frames >= LoadGovernor.COOL_DOWN_FRAMES + LoadGovernor.LOWER_FRAMES);
+        assertTrue(frames <= LoadGovernor.COOL_DOWN_FRAMES + LoadGovernor.LOWER_FRAMES
+                + SETTLE_FRAMES);
+        assertEquals(0, governor.getLevel());
+    }
+
+    @Test
+    public void loadBetweenThresholdsHoldsTheLevel() {
+        LoadGovernor governor = new LoadGovernor(BUDGET_MILLIS);
+        framesUntilChange(governor, constant(20), 100);
+        assertEquals(-1, framesUntilChange(governor, constant(8), 1000));
+        assertEquals(1, governor.getLevel());
+    }
+
+    @Test
+    public void failedLoweringDoublesTheWaitUpToTheMaximum() {
+        LoadGovernor governor = new LoadGovernor(BUDGET_MILLIS);
+        Recorder recorder = new Recorder();
+        governor.setListener(recorder);
+        // Level 1 is enough, level 0 is not: every lowering is undone.
+        run(governor, recorder, heavyUpTo(0), 6000);
+
+        int expectedWait = LoadGovernor.LOWER_FRAMES;
+        int lowerings = 0;
+        for (int i = 1; i + 1 < recorder.mLevels.size(); i += 2) {
+            assertEquals(1, (int) recorder.mLevels.get(i - 1));
+            assertEquals(0, (int) recorder.mLevels.get(i));
+            int waited = recorder.mFrames.get(i) - recorder.mFrames.get(i - 1);
+            assertTrue("Waited " + waited + " for " + expectedWait,
+                    waited >= LoadGovernor.COOL_DOWN_FRAMES + expectedWait
+                            && waited <= LoadGovernor.COOL_DOWN_FRAMES + expectedWait
+                            + SETTLE_FRAMES);
+            // Undone within the cool down and RAISE_FRAMES.
+            int undone = recorder.mFrames.get(i + 1) - recorder.mFrames.get(i);
+            assertTrue(undone <= LoadGovernor.COOL_DOWN_FRAMES + SETTLE_FRAMES);
+            expectedWait = Math.min(expectedWait * 2, LoadGovernor.MAX_LOWER_FRAMES);
+            lowerings++;
+        }
+        // 20, 40, ... 640 and at least twice at the maximum.
+        assertTrue(lowerings >= 8);
+        assertEquals(LoadGovernor.MAX_LOWER_FRAMES, expectedWait);
+    }
+
+    @Test
+    public void loweringThatHoldsResetsTheWait() {
+        LoadGovernor governor = new LoadGovernor(BUDGET_MILLIS);
+        Recorder recorder = new Recorder();
+        governor.setListener(recorder);
+        run(governor, recorder, heavyUpTo(0), 300);
+        assertEquals(1, governor.getLevel());
+        // The load drops: the next lowering holds.
+        framesUntilChange(governor, constant(2), 2000);
+        assertEquals(0, governor.getLevel());
+        run(governor, recorder, constant(2), LoadGovernor.LOWER_FRAMES + 1);
+
+        framesUntilChange(governor, constant(20), 100);
+        assertEquals(1, governor.getLevel());
+        int frames = framesUntilChange(governor, constant(2), 2000);
+        assertTrue(frames <= LoadGovernor.COOL_DOWN_FRAMES + LoadGovernor.LOWER_FRAMES
+                + SETTLE_FRAMES);
+    }
+
+    @Test
+    public void leversDegradeWithTheLevel() {
+        LoadGovernor governor = new LoadGovernor(BUDGET_MILLIS);
+        assertEquals(1, governor.getAnalysisStride());
+        assertEquals(1f, governor.getVoxelSizeScale(), 0);
+        assertEquals(1f, governor.getPointBudgetScale(), 0);
+        assertEquals(1, governor.getUiIntervalScale());
+        int stride = 1;
+        float voxel = 1;
+        float points = 1;
+        int ui = 1;
+        while (governor.getLevel() < LoadGovernor.MAX_LEVEL) {
+            framesUntilChange(governor, constant(30), 100);
+            assertTrue(governor.getAnalysisStride() >= stride);
+            assertTrue(governor.getVoxelSizeScale() >= voxel);
+            assertTrue(governor.getPointBudgetScale() <= points);
+            assertTrue(governor.getUiIntervalScale() >= ui);
+            stride = governor.getAnalysisStride();
+            voxel = governor.getVoxelSizeScale();
+            points = governor.getPointBudgetScale();
+            ui = governor.getUiIntervalScale();
+        }
+        assertTrue(stride > 1 && voxel > 1 && points < 1 && ui > 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBudget() {
+        new LoadGovernor(0);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds {@link MotionEstimator} poses of simulated walks.
+ */
+public class MotionEstimatorTest {
+    private static final float TOLERANCE = 1e-4f;
+
+    private final MotionEstimator mEstimator = new MotionEstimator();
+    private final float[] mVelocity = new float[3];
+
+    /**
+     * Walks at a constant velocity from the origin, one pose every {@code period} seconds.
+     *
+     * @return Time of the last pose.
+     */
+    private double walk(double start, double seconds, double period,
+                        double vx, double vy, double vz) {
+        int poses = (int) Math.round(seconds / period);
+        double t = start;
+        for (int i = 0; i <= poses; i++) {
+            t = start + i * period;
+            double elapsed = t - start;
+            mEstimator.update(t, vx * elapsed, vy * elapsed, vz * elapsed);
+        }
+        return t;
+    }
+
+    private void assertVelocity(double timestamp, float vx, float vy, float vz) {
+        assertTrue(mEstimator.getVelocity(timestamp, mVelocity));
+        assertEquals(vx, mVelocity[0], TOLERANCE);
+        assertEquals(vy, mVelocity[1], TOLERANCE);
+        assertEquals(vz, mVelocity[2], TOLERANCE);
+    }
+
+    @Test
+    public void constantVelocity() {
+        double end = walk(10, 2, 1 / 30.0, 0.5, 0, -1.2);
+        assertVelocity(end, 0.5f, 0, -1.2f);
+    }
+
+    @Test
+    public void noVelocityBeforeHalfAWindow() {
+        assertFalse(mEstimator.getVelocity(0, mVelocity));
+        double end = walk(0, 0.4 * MotionEstimator.DEFAULT_WINDOW_SECONDS, 0.01, 1, 0, 0);
+        assertFalse(mEstimator.getVelocity(end, mVelocity));
+        end = walk(0, 0.6 * MotionEstimator.DEFAULT_WINDOW_SECONDS, 0.01, 1, 0, 0);
+        assertVelocity(end, 1, 0, 0);
+    }
+
+    @Test
+    public void stopIsFollowedWithinAWindow() {
+        double end = walk(0, 1, 1 / 30.0, 0, 0, -1);
+        double stopped = end + MotionEstimator.DEFAULT_WINDOW_SECONDS + 0.05;
+        for (double t = end + 1 / 30.0; t <= stopped; t += 1 / 30.0) {
+            mEstimator.update(t, 0, 0, -1);
+        }
+        assertVelocity(stopped, 0, 0, 0);
+    }
+
+    @Test
+    public void gapStartsANewHistory() {
+        double end = walk(0, 1, 1 / 30.0, 1, 0, 0);
+        // No pose for longer than the maximum gap: the estimate is stale.
+        assertFalse(mEstimator.getVelocity(end + MotionEstimator.DEFAULT_MAX_GAP_SECONDS + 0.01,
+                mVelocity));
+        assertTrue(mEstimator.getVelocity(end + MotionEstimator.DEFAULT_MAX_GAP_SECONDS - 0.01,
+                mVelocity));
+
+        // A pose after the gap doesn't make a velocity with the history before it.
+        double resumed = end + MotionEstimator.DEFAULT_MAX_GAP_SECONDS + 0.1;
+        mEstimator.update(resumed, 5, 0, 0);
+        assertFalse(mEstimator.getVelocity(resumed, mVelocity));
+        double walked = 0.2;
+        for (double t = resumed; t <= resumed + walked + 1e-9; t += 0.02) {
+            mEstimator.update(t, 5, 0, -2 * (t - resumed));
+        }
+        assertVelocity(resumed + walked, 0, 0, -2);
+    }
+
+    @Test
+    public void outOfOrderPoseStartsANewHistory() {
+        double end = walk(0, 1, 1 / 30.0, 1, 0, 0);
+        mEstimator.update(end - 0.5, 0, 0, 0);
+        assertFalse(mEstimator.getVelocity(end, mVelocity));
+    }
+
+    @Test
+    public void highRatePosesStillSpanTheWindow() {
+        // At 1 kHz the ring would only hold 64 ms of poses if every one was kept.
+        double end = walk(0, 2, 0.001, 0, 0.8, 0);
+        assertVelocity(end, 0, 0.8f, 0);
+
+        // Poses keep replacing the newest sample, so a change of speed still shows within a
+        // window.
+        double period = 0.001;
+        double t = end;
+        double y = 0.8 * 2;
+        double turned = end + MotionEstimator.DEFAULT_WINDOW_SECONDS + 0.05;
+        while (t < turned) {
+            t += period;
+            y -= 0.4 * period;
+            mEstimator.update(t, 0, y, 0);
+        }
+        assertVelocity(t, 0, -0.4f, 0);
+    }
+
+    @Test
+    public void resetForgetsTheHistory() {
+        double end = walk(0, 1, 1 / 30.0, 1, 0, 0);
+        mEstimator.reset();
+        assertFalse(mEstimator.getVelocity(end, mVelocity));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyWindow() {
+        new MotionEstimator(0, 1);
+    }
+}
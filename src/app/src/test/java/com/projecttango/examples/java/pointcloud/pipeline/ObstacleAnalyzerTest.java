@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks which obstacle {@link ObstacleAnalyzer} grades and points to, on frames without a
+ * pose holding small boxes of points.
+ */
+public class ObstacleAnalyzerTest {
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int MAX_POINTS = 4000;
+    private static final int SECTORS = 5;
+    private static final int BOX_POINTS = 400;
+
+    private final Random mRandom = new Random(13);
+    private final FloatBuffer mPoints = ByteBuffer.allocateDirect(
+            MAX_POINTS * FLOATS_PER_POINT * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private final ObstacleAnalyzer mAnalyzer =
+            new ObstacleAnalyzer(MAX_POINTS, FLOATS_PER_POINT, SECTORS);
+
+    /**
+     * Adds random points filling a 10 cm box centered on a position of the camera frame.
+     */
+    private void addBox(float x, float y, float z) {
+        for (int i = 0; i < BOX_POINTS; i++) {
+            mPoints.put(x + (mRandom.nextFloat() - 0.5f) * 0.1f);
+            mPoints.put(y + (mRandom.nextFloat() - 0.5f) * 0.1f);
+            mPoints.put(z + (mRandom.nextFloat() - 0.5f) * 0.1f);
+            mPoints.put(1);
+        }
+    }
+
+    private void analyze() {
+        int numPoints = mPoints.position() / FLOATS_PER_POINT;
+        PointCloudFrame frame = new PointCloudFrame(MAX_POINTS, FLOATS_PER_POINT);
+        mPoints.rewind();
+        frame.set(1, numPoints, mPoints);
+        mAnalyzer.process(frame);
+        mPoints.clear();
+    }
+
+    @Test
+    public void warningPointsToTheCorridorObstacle() {
+        // A box off to the left, outside the corridor but nearer, and one straight ahead.
+        addBox(-0.42f, 0, 0.75f);
+        addBox(0, 0, 0.9f);
+        analyze();
+        assertEquals(0, mAnalyzer.getObstacleSector());
+        assertEquals(AlertScheduler.SEVERITY_WARNING, mAnalyzer.getObstacleSeverity());
+        assertEquals(SECTORS / 2, mAnalyzer.getAlertSector());
+    }
+
+    @Test
+    public void obstacleOutsideTheCorridorIsNoticed() {
+        addBox(-0.42f, 0, 0.75f);
+        analyze();
+        assertEquals(Float.POSITIVE_INFINITY, mAnalyzer.getCorridorDistance(), 0);
+        assertEquals(AlertScheduler.SEVERITY_NOTICE, mAnalyzer.getObstacleSeverity());
+        assertEquals(0, mAnalyzer.getAlertSector());
+    }
+
+    @Test
+    public void nearCorridorObstacleIsUrgent() {
+        // Wholly inside the rightmost sector, from 18 degrees.
+        addBox(0.27f, 0, 0.6f);
+        analyze();
+        assertEquals(AlertScheduler.SEVERITY_URGENT, mAnalyzer.getObstacleSeverity());
+        assertEquals(mAnalyzer.getSectorHistogram().getAzimuthIndex(0.27f, 0.6f),
+                mAnalyzer.getAlertSector());
+    }
+
+    @Test
+    public void nothingWithinReach() {
+        addBox(0, 0, 3);
+        analyze();
+        assertEquals(AlertScheduler.SEVERITY_NONE, mAnalyzer.getObstacleSeverity());
+        assertEquals(-1, mAnalyzer.getAlertSector());
+    }
+}
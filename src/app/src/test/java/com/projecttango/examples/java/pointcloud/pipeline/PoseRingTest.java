@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.pipeline;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link PoseRing} lookups against poses of a known trajectory: a constant velocity
+ * walk turning at a constant rate about a fixed axis, along which linear interpolation of the
+ * translation and spherical interpolation of the rotation are exact.
+ */
+public class PoseRingTest {
+    private static final double PERIOD = 0.01;
+    private static final double TOLERANCE = 1e-9;
+    private static final long STRESS_MILLIS = 500;
+
+    private static final double[] VELOCITY = {0.4, -0.1, 1.5};
+    // Unit rotation axis.
+    private static final double[] AXIS = {0.6, 0, 0.8};
+
+    private final double[] mTranslation = new double[3];
+    private final double[] mRotation = new double[4];
+
+    /**
+     * Pose of the trajectory at a time, turning {@code rate} radians per second.
+     */
+    private static void trajectory(double t, double rate, double[] translation,
+                                   double[] rotation) {
+        for (int a = 0; a < 3; a++) {
+            translation[a] = VELOCITY[a] * t;
+        }
+        double half = rate * t / 2;
+        double sin = Math.sin(half);
+        rotation[0] = AXIS[0] * sin;
+        rotation[1] = AXIS[1] * sin;
+        rotation[2] = AXIS[2] * sin;
+        rotation[3] = Math.cos(half);
+    }
+
+    private void publish(PoseRing ring, int first, int count, double rate) {
+        for (int i = first; i < first + count; i++) {
+            double t = i * PERIOD;
+            trajectory(t, rate, mTranslation, mRotation);
+            assertTrue(ring.publish(t, mTranslation, mRotation));
+        }
+    }
+
+    /**
+     * @return Null if the pose is on the trajectory at its timestamp, or how it is off.
+     */
+    private static String checkOnTrajectory(PoseRing.Pose pose, double rate, double tolerance) {
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        trajectory(pose.timestamp, rate, translation, rotation);
+        for (int a = 0; a < 3; a++) {
+            if (Math.abs(translation[a] - pose.translation[a]) > tolerance) {
+                return "Translation " + a + " at " + pose.timestamp + ": "
+                        + pose.translation[a] + " instead of " + translation[a];
+            }
+        }
+        // q and -q are the same rotation.
+        double dot = 0;
+        for (int a = 0; a < 4; a++) {
+            dot += rotation[a] * pose.rotation[a];
+        }
+        if (Math.abs(Math.abs(dot) - 1) > tolerance) {
+            return "Rotation at " + pose.timestamp + " off by a dot of " + dot;
+        }
+        return null;
+    }
+
+    private static void assertOnTrajectory(PoseRing.Pose pose, double rate, double tolerance) {
+        assertNull(checkOnTrajectory(pose, rate, tolerance));
+    }
+
+    @Test
+    public void interpolatesSphericallyBetweenDistantRotations() {
+        // 0.5 radian between poses, well past the linear interpolation threshold.
+        double rate = 0.5 / PERIOD;
+        PoseRing ring = new PoseRing(16, 0.1);
+        publish(ring, 100, 16, rate);
+        PoseRing.Pose pose = new PoseRing.Pose();
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            double t = (101 + random.nextDouble() * 14) * PERIOD;
+            assertTrue(ring.getPoseAt(t, pose));
+            assertEquals(t, pose.timestamp, 0);
+            assertOnTrajectory(pose, rate, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void interpolatesCloseRotations() {
+        // 0.01 radian between poses, interpolated linearly and normalized.
+        double rate = 0.01 / PERIOD;
+        PoseRing ring = new PoseRing(16, 0.1);
+        publish(ring, 0, 16, rate);
+        PoseRing.Pose pose = new PoseRing.Pose();
+        for (double t = PERIOD; t < 15 * PERIOD; t += PERIOD / 7) {
+            assertTrue(ring.getPoseAt(t, pose));
+            // The chord differs from the arc by about angle^3 / 24.
+            assertOnTrajectory(pose, rate, 1e-7);
+        }
+    }
+
+    @Test
+    public void takesTheShorterWayAroundNegatedQuaternions() {
+        double rate = 0.2 / PERIOD;
+        PoseRing ring = new PoseRing(4, 0.1);
+        trajectory(0, rate, mTranslation, mRotation);
+        ring.publish(0, mTranslation, mRotation);
+        trajectory(PERIOD, rate, mTranslation, mRotation);
+        for (int a = 0; a < 4; a++) {
+            mRotation[a] = -mRotation[a];
+        }
+        ring.publish(PERIOD, mTranslation, mRotation);
+        PoseRing.Pose pose = new PoseRing.Pose();
+        assertTrue(ring.getPoseAt(0.3 * PERIOD, pose));
+        assertOnTrajectory(pose, rate, TOLERANCE);
+    }
+
+    @Test
+    public void exactTimestampsGiveThePublishedPose() {
+        double rate = 1;
+        PoseRing ring = new PoseRing(8, 0.1);
+        publish(ring, 0, 8, rate);
+        PoseRing.Pose pose = new PoseRing.Pose();
+        for (int i = 1; i < 8; i++) {
+            assertTrue(ring.getPoseAt(i * PERIOD, pose));
+            assertOnTrajectory(pose, rate, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void coverageOfTheRing() {
+        double rate = 1;
+        PoseRing ring = new PoseRing(8, 0.05);
+        PoseRing.Pose pose = new PoseRing.Pose();
+        assertFalse(ring.getLatestPose(pose));
+        assertFalse(ring.getPoseAt(0, pose));
+
+        publish(ring, 0, 20, rate);
+        assertEquals(20, ring.getPublishedCount());
+        assertTrue(ring.getLatestPose(pose));
+        assertEquals(19 * PERIOD, pose.timestamp, 0);
+        assertOnTrajectory(pose, rate, TOLERANCE);
+
+        // The ring reaches back capacity - 1 poses.
+        assertTrue(ring.getPoseAt(13 * PERIOD, pose));
+        assertFalse(ring.getPoseAt(13 * PERIOD - 1e-6, pose));
+
+        // Later than the newest pose, up to the maximum staleness, gets the newest pose.
+        double late = 19 * PERIOD + 0.04;
+        assertTrue(ring.getPoseAt(late, pose));
+        assertEquals(late, pose.timestamp, 0);
+        assertEquals(VELOCITY[0] * 19 * PERIOD, pose.translation[0], TOLERANCE);
+        assertFalse(ring.getPoseAt(19 * PERIOD + 0.06, pose));
+    }
+
+    @Test
+    public void dropsPosesOutOfOrder() {
+        PoseRing ring = new PoseRing(4, 0.1);
+        publish(ring, 0, 2, 1);
+        assertFalse(ring.publish(PERIOD, mTranslation, mRotation));
+        assertFalse(ring.publish(0, mTranslation, mRotation));
+        assertEquals(2, ring.getPublishedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacityBelowTwo() {
+        new PoseRing(1, 0.1);
+    }
+
+    /**
+     * Readers look up recent times while the writer laps a small ring as fast as it can. Every
+     * pose they get, interpolated or not, must lie on the trajectory: a pose mixing the fields of
+     * two slots would not.
+     */
+    @Test
+    public void readersNeverSeeTornPoses() throws InterruptedException {
+        final double rate = 0.3 / PERIOD;
+        final PoseRing ring = new PoseRing(4, 0.1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        publish(ring, 0, 4, rate);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                double[] translation = new double[3];
+                double[] rotation = new double[4];
+                for (int i = 4; running.get(); i++) {
+                    double t = i * PERIOD;
+                    trajectory(t, rate, translation, rotation);
+                    ring.publish(t, translation, rotation);
+                }
+            }
+        });
+        Runnable reader = new Runnable() {
+            @Override
+            public void run() {
+                PoseRing.Pose latest = new PoseRing.Pose();
+                PoseRing.Pose pose = new PoseRing.Pose();
+                Random random = new Random(Thread.currentThread().getId());
+                while (running.get()) {
+                    if (!ring.getLatestPose(latest)) {
+                        misses.incrementAndGet();
+                        continue;
+                    }
+                    String problem = checkOnTrajectory(latest, rate, 1e-6);
+                    double t = latest.timestamp - random.nextDouble() * 2 * PERIOD;
+                    if (problem == null && ring.getPoseAt(t, pose)) {
+                        problem = checkOnTrajectory(pose, rate, 1e-6);
+                        reads.incrementAndGet();
+                    } else {
+                        misses.incrementAndGet();
+                    }
+                    if (problem != null) {
+                        error.compareAndSet(null, problem);
+                    }
+                }
+            }
+        };
+        Thread[] readers = {new Thread(reader), new Thread(reader), new Thread(reader)};
+        writer.start();
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        Thread.sleep(STRESS_MILLIS);
+        running.set(false);
+        writer.join(5000);
+        for (Thread thread : readers) {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+
+        assertNull(error.get());
+        assertTrue(reads.get() > 1000);
+    }
+}
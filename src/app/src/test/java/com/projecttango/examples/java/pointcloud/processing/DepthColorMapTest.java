@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link DepthColorMap} bit for bit against the per point loop PointCloud used before it.
+ */
+public class DepthColorMapTest {
+    private static final float CLOUD_MAX_Z = 5;
+    private static final int PALETTE_SIZE = 360;
+    private static final int FLOATS_PER_POINT = 4;
+
+    private ParallelChunks mParallel;
+
+    @After
+    public void tearDown() {
+        if (mParallel != null) {
+            mParallel.shutdown();
+        }
+    }
+
+    /**
+     * Random ARGB colors, alpha included, so any swapped channel shows.
+     */
+    private static int[] randomPalette() {
+        Random random = new Random(360);
+        int[] palette = new int[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            palette[i] = random.nextInt();
+        }
+        return palette;
+    }
+
+    /**
+     * Depths covering the range, every palette boundary, and the values the old loop clamped.
+     */
+    private static FloatBuffer depths(int randomPoints) {
+        Random random = new Random(8);
+        int boundaries = PALETTE_SIZE + 1;
+        float[] special = {0, -0f, -1, CLOUD_MAX_Z, 2 * CLOUD_MAX_Z, Float.NaN,
+                Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE,
+                Math.nextAfter(CLOUD_MAX_Z, Double.NEGATIVE_INFINITY)};
+        int numPoints = randomPoints + 3 * boundaries + special.length;
+        FloatBuffer points = ByteBuffer.allocateDirect(numPoints * FLOATS_PER_POINT * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i < randomPoints; i++) {
+            putPoint(points, random.nextFloat() * 6 - 0.5f);
+        }
+        for (int i = 0; i < boundaries; i++) {
+            float z = (float) i * CLOUD_MAX_Z / PALETTE_SIZE;
+            putPoint(points, Math.nextAfter(z, Double.NEGATIVE_INFINITY));
+            putPoint(points, z);
+            putPoint(points, Math.nextUp(z));
+        }
+        for (float z : special) {
+            putPoint(points, z);
+        }
+        points.rewind();
+        return points;
+    }
+
+    private static void putPoint(FloatBuffer points, float z) {
+        points.put(0.1f).put(-0.2f).put(z).put(0.5f);
+    }
+
+    /**
+     * The colors PointCloud.calculateColors computed, with {@code Color.red} and friends inlined.
+     */
+    private static float[] legacyColors(int[] palette, FloatBuffer pointCloudBuffer,
+                                        int pointCount) {
+        float[] colorArray = new float[pointCount * 4];
+        for (int i = 0; i < pointCount; i++) {
+            float z = pointCloudBuffer.get(i * FLOATS_PER_POINT + 2);
+            int colorIndex = (int) Math.min(z / CLOUD_MAX_Z * palette.length, palette.length - 1);
+            colorIndex = Math.max(colorIndex, 0);
+            int color = palette[colorIndex];
+            colorArray[i * 4] = ((color >> 16) & 0xff) / 255f;
+            colorArray[i * 4 + 1] = ((color >> 8) & 0xff) / 255f;
+            colorArray[i * 4 + 2] = (color & 0xff) / 255f;
+            colorArray[i * 4 + 3] = (color >>> 24) / 255f;
+        }
+        return colorArray;
+    }
+
+    @Test
+    public void floatFillMatchesLegacyBitForBit() {
+        int[] palette = randomPalette();
+        FloatBuffer points = depths(5000);
+        int numPoints = points.capacity() / FLOATS_PER_POINT;
+        float[] expected = legacyColors(palette, points, numPoints);
+        float[] actual = new float[numPoints * 4];
+        new DepthColorMap(palette, CLOUD_MAX_Z, FLOATS_PER_POINT).fill(points, numPoints, actual);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Float " + i, Float.floatToRawIntBits(expected[i]),
+                    Float.floatToRawIntBits(actual[i]));
+        }
+    }
+
+    @Test
+    public void packedFillMatchesLegacyBitForBit() {
+        int[] palette = randomPalette();
+        FloatBuffer points = depths(5000);
+        int numPoints = points.capacity() / FLOATS_PER_POINT;
+        assertPackedMatches(new DepthColorMap(palette, CLOUD_MAX_Z, FLOATS_PER_POINT), palette,
+                points, numPoints);
+    }
+
+    @Test
+    public void parallelPackedFillMatchesLegacyBitForBit() {
+        mParallel = new ParallelChunks("test", 3, 1000, 0);
+        int[] palette = randomPalette();
+        FloatBuffer points = depths(60000);
+        int numPoints = points.capacity() / FLOATS_PER_POINT;
+        DepthColorMap colorMap = new DepthColorMap(palette, CLOUD_MAX_Z, FLOATS_PER_POINT);
+        colorMap.setParallel(mParallel);
+        assertPackedMatches(colorMap, palette, points, numPoints);
+        assertPackedMatches(colorMap, palette, points, numPoints - 1);
+    }
+
+    /**
+     * The GPU reads the packed colors as R, G, B and A bytes, normalized: each byte must be the
+     * channel the legacy float stood for.
+     */
+    private static void assertPackedMatches(DepthColorMap colorMap, int[] palette,
+                                            FloatBuffer points, int numPoints) {
+        float[] expected = legacyColors(palette, points, numPoints);
+        ByteBuffer bytes = ByteBuffer.allocateDirect((numPoints + 1)
+                * DepthColorMap.BYTES_PER_PACKED_COLOR).order(ByteOrder.nativeOrder());
+        colorMap.fill(points, numPoints, bytes.asIntBuffer());
+        assertEquals(0, points.position());
+        for (int i = 0; i < numPoints * 4; i++) {
+            int channel = bytes.get(i) & 0xff;
+            assertEquals("Byte " + i, Float.floatToRawIntBits(expected[i]),
+                    Float.floatToRawIntBits(channel / 255f));
+        }
+    }
+
+    @Test
+    public void packedFillLimitsTheBuffer() {
+        FloatBuffer points = depths(10);
+        IntBuffer colors = ByteBuffer.allocateDirect(100 * DepthColorMap.BYTES_PER_PACKED_COLOR)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        new DepthColorMap(randomPalette(), CLOUD_MAX_Z, FLOATS_PER_POINT).fill(points, 7, colors);
+        assertEquals(0, colors.position());
+        assertEquals(7, colors.limit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void packedFillRejectsForeignByteOrder() {
+        ByteOrder foreign = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+                ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        new DepthColorMap(randomPalette(), CLOUD_MAX_Z, FLOATS_PER_POINT).fill(depths(1), 1,
+                ByteBuffer.allocate(64).order(foreign).asIntBuffer());
+    }
+}
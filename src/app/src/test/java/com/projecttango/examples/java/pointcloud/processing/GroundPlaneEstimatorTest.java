@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link GroundPlaneEstimator} on synthetic rooms seen by the depth camera: X right, Y down,
+ * Z forward, with the floor 1.2 m below the camera.
+ */
+public class GroundPlaneEstimatorTest {
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int NUM_POINTS = 20000;
+    private static final float CAMERA_HEIGHT = 1.2f;
+    private static final float NOISE = 0.01f;
+    private static final long SEED = 17;
+
+    /**
+     * Synthetic room. The floor is tilted by {@code tiltDegrees} around the X axis, as when the
+     * device is pitched.
+     */
+    private static class Room {
+        final float mNormalX = 0;
+        final float mNormalY;
+        final float mNormalZ;
+        final FloatBuffer mPoints = FloatBuffer.allocate(NUM_POINTS * FLOATS_PER_POINT);
+        final boolean[] mFloor = new boolean[NUM_POINTS];
+        int mFloorPoints;
+
+        /**
+         * @param floorFraction Fraction of floor points, the rest split between two side walls,
+         *                      a far wall and uniform outliers.
+         */
+        Room(float tiltDegrees, float floorFraction, float outlierFraction, long seed) {
+            double tilt = Math.toRadians(tiltDegrees);
+            // Up is -Y, tilted towards -Z.
+            mNormalY = (float) -Math.cos(tilt);
+            mNormalZ = (float) -Math.sin(tilt);
+            Random random = new Random(seed);
+            for (int i = 0; i < NUM_POINTS; i++) {
+                float kind = random.nextFloat();
+                float x;
+                float y;
+                float z;
+                if (kind < floorFraction) {
+                    // Points at height zero above the floor, N.P + D = 0 with D = CAMERA_HEIGHT.
+                    x = random.nextFloat() * 4 - 2;
+                    z = 0.5f + random.nextFloat() * 4.5f;
+                    y = (-CAMERA_HEIGHT - mNormalZ * z) / mNormalY;
+                    y += (random.nextFloat() * 2 - 1) * NOISE;
+                    mFloor[i] = true;
+                    mFloorPoints++;
+                } else if (kind < 1 - outlierFraction) {
+                    int wall = random.nextInt(3);
+                    y = random.nextFloat() * 2.4f - 1.2f;
+                    if (wall == 2) {
+                        x = random.nextFloat() * 4 - 2;
+                        z = 5;
+                    } else {
+                        x = wall == 0 ? -2 : 2;
+                        z = 0.5f + random.nextFloat() * 4.5f;
+                    }
+                    x += (random.nextFloat() * 2 - 1) * NOISE;
+                } else {
+                    x = random.nextFloat() * 4 - 2;
+                    y = random.nextFloat() * 2 - 1.5f;
+                    z = 0.5f + random.nextFloat() * 4.5f;
+                }
+                mPoints.put(x).put(y).put(z).put(1);
+            }
+            mPoints.rewind();
+        }
+    }
+
+    private static GroundPlaneEstimator newEstimator() {
+        return new GroundPlaneEstimator(FLOATS_PER_POINT, GroundPlaneEstimator.DEFAULT_MAX_SAMPLES,
+                SEED);
+    }
+
+    private static void assertFoundFloor(GroundPlaneEstimator estimator, Room room) {
+        assertTrue(estimator.hasPlane());
+        double cosAngle = estimator.getNormalX() * room.mNormalX
+                + estimator.getNormalY() * room.mNormalY + estimator.getNormalZ() * room.mNormalZ;
+        assertTrue("Normal off by " + Math.toDegrees(Math.acos(cosAngle)) + " degrees",
+                cosAngle > Math.cos(Math.toRadians(1)));
+        assertEquals(CAMERA_HEIGHT, estimator.getOffset(), 0.02f);
+    }
+
+    @Test
+    public void findsTiltedFloor() {
+        Room room = new Room(12, 0.9f, 0.1f, 1);
+        GroundPlaneEstimator estimator = newEstimator();
+        assertTrue(estimator.estimate(room.mPoints, NUM_POINTS));
+        assertFoundFloor(estimator, room);
+        assertEquals(0, room.mPoints.position());
+        assertEquals(GroundPlaneEstimator.DEFAULT_MAX_SAMPLES, estimator.getSampleCount());
+    }
+
+    @Test
+    public void findsFloorAmongWallsAndOutliers() {
+        Room room = new Room(5, 0.35f, 0.25f, 2);
+        GroundPlaneEstimator estimator = newEstimator();
+        assertTrue(estimator.estimate(room.mPoints, NUM_POINTS));
+        assertFoundFloor(estimator, room);
+        // Refined on the floor samples only: about 35% of them, none from the walls.
+        float inlierFraction = (float) estimator.getInlierCount() / estimator.getSampleCount();
+        assertEquals(0.35f, inlierFraction, 0.05f);
+    }
+
+    @Test
+    public void rejectsFloorTiltedTooFar() {
+        Room room = new Room(30, 0.6f, 0.1f, 3);
+        GroundPlaneEstimator estimator = newEstimator();
+        assertFalse(estimator.estimate(room.mPoints, NUM_POINTS));
+        assertFalse(estimator.hasPlane());
+
+        estimator.setMaxTiltDegrees(35);
+        assertTrue(estimator.estimate(room.mPoints, NUM_POINTS));
+        assertFoundFloor(estimator, room);
+    }
+
+    /**
+     * A level room where the floor has the fewest points: a large table top right under the
+     * device and a ceiling above it have more.
+     */
+    private static FloatBuffer roomWithTableAndCeiling(float tableDepth) {
+        Random random = new Random(10);
+        FloatBuffer points = FloatBuffer.allocate(NUM_POINTS * FLOATS_PER_POINT);
+        for (int i = 0; i < NUM_POINTS; i++) {
+            float kind = random.nextFloat();
+            float x = random.nextFloat() * 4 - 2;
+            float z = 0.5f + random.nextFloat() * 4.5f;
+            float y;
+            if (kind < 0.25f) {
+                y = CAMERA_HEIGHT;
+            } else if (kind < 0.65f) {
+                x = x * 0.4f;
+                z = 0.5f + (z - 0.5f) * 0.3f;
+                y = tableDepth;
+            } else {
+                y = -1.3f;
+            }
+            y += (random.nextFloat() * 2 - 1) * NOISE;
+            points.put(x).put(y).put(z).put(1);
+        }
+        points.rewind();
+        return points;
+    }
+
+    @Test
+    public void tableAndCeilingAreNotTheFloor() {
+        Room level = new Room(0, 1, 0, 11);
+        FloatBuffer points = roomWithTableAndCeiling(0.2f);
+        GroundPlaneEstimator estimator = newEstimator();
+        assertTrue(estimator.estimate(points, NUM_POINTS));
+        assertFoundFloor(estimator, level);
+
+        // The table has the most points, so it wins once it is far enough below the camera.
+        estimator.setMinCameraHeight(0.1f);
+        estimator.reset();
+        assertTrue(estimator.estimate(points, NUM_POINTS));
+        assertEquals(0.2f, estimator.getOffset(), 0.02f);
+    }
+
+    @Test
+    public void noPlaneWithoutEnoughPoints() {
+        Room room = new Room(0, 1, 0, 4);
+        GroundPlaneEstimator estimator = newEstimator();
+        assertFalse(estimator.estimate(room.mPoints, 2));
+        assertFalse(estimator.estimate(room.mPoints, 20));
+        assertTrue(estimator.estimate(room.mPoints, 200));
+    }
+
+    @Test
+    public void warmStartReducesIterations() {
+        Room first = new Room(5, 0.35f, 0.25f, 5);
+        Room second = new Room(5, 0.35f, 0.25f, 6);
+        GroundPlaneEstimator estimator = newEstimator();
+        assertTrue(estimator.estimate(first.mPoints, NUM_POINTS));
+        assertFalse(estimator.wasWarmStarted());
+        int coldIterations = estimator.getIterations();
+
+        assertTrue(estimator.estimate(second.mPoints, NUM_POINTS));
+        assertTrue(estimator.wasWarmStarted());
+        assertFoundFloor(estimator, second);
+        int warmIterations = estimator.getIterations();
+        assertTrue(warmIterations + " warm against " + coldIterations + " cold",
+                warmIterations < coldIterations);
+        assertTrue(warmIterations <= GroundPlaneEstimator.DEFAULT_MAX_ITERATIONS / 8);
+
+        estimator.reset();
+        assertTrue(estimator.estimate(second.mPoints, NUM_POINTS));
+        assertFalse(estimator.wasWarmStarted());
+        assertTrue(estimator.getIterations() > warmIterations);
+    }
+
+    @Test
+    public void sameSeedSameResult() {
+        Room room = new Room(8, 0.4f, 0.2f, 7);
+        GroundPlaneEstimator a = newEstimator();
+        GroundPlaneEstimator b = newEstimator();
+        a.estimate(room.mPoints, NUM_POINTS);
+        b.estimate(room.mPoints, NUM_POINTS);
+        assertEquals(a.getIterations(), b.getIterations());
+        assertEquals(a.getNormalY(), b.getNormalY(), 0);
+        assertEquals(a.getOffset(), b.getOffset(), 0);
+    }
+
+    @Test
+    public void removeFloorKeepsEverythingElse() {
+        Room room = new Room(10, 0.5f, 0.1f, 8);
+        GroundPlaneEstimator estimator = newEstimator();
+        assertTrue(estimator.estimate(room.mPoints, NUM_POINTS));
+        FloatBuffer output = FloatBuffer.allocate(NUM_POINTS * FLOATS_PER_POINT);
+        int kept = estimator.removeFloor(room.mPoints, NUM_POINTS, output);
+        assertEquals(0, room.mPoints.position());
+        assertEquals(kept * FLOATS_PER_POINT, output.limit());
+
+        // The output is the input minus the points the estimator calls floor, in order.
+        int out = 0;
+        int floorRemoved = 0;
+        for (int i = 0; i < NUM_POINTS; i++) {
+            int p = i * FLOATS_PER_POINT;
+            float x = room.mPoints.get(p);
+            float y = room.mPoints.get(p + 1);
+            float z = room.mPoints.get(p + 2);
+            if (estimator.isFloor(x, y, z)) {
+                if (room.mFloor[i]) {
+                    floorRemoved++;
+                }
+                continue;
+            }
+            for (int j = 0; j < FLOATS_PER_POINT; j++) {
+                assertEquals(room.mPoints.get(p + j), output.get(out * FLOATS_PER_POINT + j), 0);
+            }
+            out++;
+        }
+        assertEquals(out, kept);
+        // Floor points are within the noise of the plane, so all of them go.
+        assertEquals(room.mFloorPoints, floorRemoved);
+        assertTrue(kept < NUM_POINTS - room.mFloorPoints + NUM_POINTS / 50);
+    }
+
+    @Test
+    public void removeFloorWithoutPlaneCopiesEverything() {
+        Room room = new Room(0, 0.5f, 0.1f, 9);
+        GroundPlaneEstimator estimator = newEstimator();
+        FloatBuffer output = FloatBuffer.allocate(NUM_POINTS * FLOATS_PER_POINT);
+        assertEquals(NUM_POINTS, estimator.removeFloor(room.mPoints, NUM_POINTS, output));
+        assertEquals(room.mPoints, output);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link LongIntHashMap} with a {@link HashMap} through growth and clears.
+ */
+public class LongIntHashMapTest {
+    private final Random mRandom = new Random(7);
+
+    private long randomKey() {
+        // Few distinct keys, so puts often replace, and keys that only differ in their high bits.
+        long key = mRandom.nextInt(3000);
+        return mRandom.nextBoolean() ? key : key << 42 | key;
+    }
+
+    @Test
+    public void matchesHashMapWhileGrowing() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        Map<Long, Integer> reference = new HashMap<Long, Integer>();
+        int initialCapacity = map.capacity();
+        for (int i = 0; i < 20000; i++) {
+            long key = randomKey();
+            int value = mRandom.nextInt(1000);
+            if (mRandom.nextBoolean()) {
+                map.put(key, value);
+                reference.put(key, value);
+            } else {
+                Integer previous = reference.get(key);
+                assertEquals(previous == null ? LongIntHashMap.NO_VALUE : previous.intValue(),
+                        map.putIfAbsent(key, value));
+                if (previous == null) {
+                    reference.put(key, value);
+                }
+            }
+            assertEquals(reference.size(), map.size());
+        }
+        assertTrue(map.capacity() > initialCapacity);
+        assertTrue(map.size() <= map.capacity() / 2);
+        for (Map.Entry<Long, Integer> entry : reference.entrySet()) {
+            assertEquals(entry.getValue().intValue(), map.get(entry.getKey()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            long key = 5000 + mRandom.nextInt(100000);
+            assertFalse(map.containsKey(key));
+        }
+    }
+
+    @Test
+    public void clearForgetsEveryKeyWithoutShrinking() {
+        LongIntHashMap map = new LongIntHashMap(1000);
+        int capacity = map.capacity();
+        for (int frame = 0; frame < 100; frame++) {
+            long base = frame * 10000L;
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(LongIntHashMap.NO_VALUE, map.putIfAbsent(base + i, i));
+            }
+            assertEquals(1000, map.size());
+            map.clear();
+            assertEquals(0, map.size());
+            for (int i = 0; i < 1000; i += 97) {
+                assertEquals(LongIntHashMap.NO_VALUE, map.get(base + i));
+            }
+        }
+        assertEquals(capacity, map.capacity());
+    }
+
+    @Test
+    public void keysClearedFromTheirSlotsAreFoundAgain() {
+        // Keys stay in the table after a clear, only their stamp goes stale, so the same keys
+        // must land in the same slots as new entries.
+        LongIntHashMap map = new LongIntHashMap(64);
+        for (int i = 0; i < 64; i++) {
+            map.put(i, i);
+        }
+        map.clear();
+        for (int i = 63; i >= 0; i--) {
+            assertEquals(LongIntHashMap.NO_VALUE, map.putIfAbsent(i, 100 + i));
+        }
+        for (int i = 0; i < 64; i++) {
+            assertEquals(100 + i, map.get(i));
+        }
+        assertEquals(64, map.size());
+    }
+
+    @Test
+    public void extremeKeys() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        long[] keys = {0, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 32, -(1L << 32)};
+        for (int i = 0; i < keys.length; i++) {
+            map.put(keys[i], i);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(i, map.get(keys[i]));
+        }
+        assertEquals(keys.length, map.size());
+    }
+}
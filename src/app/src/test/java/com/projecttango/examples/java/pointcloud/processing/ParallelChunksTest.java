@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link ParallelChunks} runs every chunk of a call once, with that call's task.
+ */
+public class ParallelChunksTest {
+    private static final int CHUNK_POINTS = 16;
+
+    private ParallelChunks mParallel;
+
+    @After
+    public void tearDown() {
+        if (mParallel != null) {
+            mParallel.shutdown();
+        }
+    }
+
+    /**
+     * Counts the chunks it is given, and fails on chunks outside its own call.
+     */
+    private static class CountingTask implements ParallelChunks.ChunkTask {
+        final int mNumPoints;
+        final AtomicIntegerArray mRuns;
+        volatile String mError;
+
+        CountingTask(int numPoints, int chunkCount) {
+            mNumPoints = numPoints;
+            mRuns = new AtomicIntegerArray(chunkCount);
+        }
+
+        @Override
+        public void processChunk(int worker, int chunk, int first, int count) {
+            if (chunk >= mRuns.length() || first != chunk * CHUNK_POINTS
+                    || count != Math.min(CHUNK_POINTS, mNumPoints - first)) {
+                mError = "Foreign chunk " + chunk + " at " + first + " of " + count;
+                return;
+            }
+            mRuns.incrementAndGet(chunk);
+            if ((chunk & 3) == 0) {
+                // Lets the other threads fall behind.
+                Thread.yield();
+            }
+        }
+
+        void check() {
+            if (mError != null) {
+                fail(mError);
+            }
+            for (int i = 0; i < mRuns.length(); i++) {
+                assertEquals("Runs of chunk " + i, 1, mRuns.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void everyChunkOnceAcrossCallsOfDifferentSizes() {
+        mParallel = new ParallelChunks("test", 4, CHUNK_POINTS, 0);
+        // Alternating small and large calls is what let a late worker of a small call claim
+        // chunks of the following large one.
+        int[] sizes = {3 * CHUNK_POINTS, 40 * CHUNK_POINTS + 5, 2 * CHUNK_POINTS + 1,
+                17 * CHUNK_POINTS};
+        for (int i = 0; i < 20000; i++) {
+            int numPoints = sizes[i % sizes.length];
+            CountingTask task = new CountingTask(numPoints, mParallel.getChunkCount(numPoints));
+            mParallel.forEachChunk(numPoints, task);
+            task.check();
+        }
+    }
+
+    @Test
+    public void sequentialBelowTheThreshold() {
+        mParallel = new ParallelChunks("test", 4, CHUNK_POINTS, 8 * CHUNK_POINTS);
+        final Thread caller = Thread.currentThread();
+        final int[] next = new int[1];
+        mParallel.forEachChunk(8 * CHUNK_POINTS - 1, new ParallelChunks.ChunkTask() {
+            @Override
+            public void processChunk(int worker, int chunk, int first, int count) {
+                assertEquals(0, worker);
+                assertTrue(Thread.currentThread() == caller);
+                assertEquals(next[0]++, chunk);
+            }
+        });
+        assertEquals(8, next[0]);
+    }
+
+    @Test
+    public void taskExceptionRethrownOnCaller() {
+        mParallel = new ParallelChunks("test", 3, CHUNK_POINTS, 0);
+        try {
+            mParallel.forEachChunk(10 * CHUNK_POINTS, new ParallelChunks.ChunkTask() {
+                @Override
+                public void processChunk(int worker, int chunk, int first, int count) {
+                    if (chunk == 7) {
+                        throw new IllegalStateException("chunk 7");
+                    }
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("chunk 7", e.getMessage());
+        }
+        // The pool is still usable.
+        CountingTask task = new CountingTask(10 * CHUNK_POINTS, 10);
+        mParallel.forEachChunk(10 * CHUNK_POINTS, task);
+        task.check();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shutDownPoolRejectsParallelCalls() {
+        mParallel = new ParallelChunks("test", 2, CHUNK_POINTS, 4 * CHUNK_POINTS);
+        mParallel.shutdown();
+        // Still fine sequentially.
+        mParallel.forEachChunk(CHUNK_POINTS, new CountingTask(CHUNK_POINTS, 1));
+        mParallel.forEachChunk(4 * CHUNK_POINTS, new CountingTask(4 * CHUNK_POINTS, 4));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link PointCompactor} with a straightforward filter, on random clouds spanning more
+ * than one chunk and on points exactly on the thresholds.
+ */
+public class PointCompactorTest {
+    private static final int FLOATS_PER_POINT = PointCompactor.FLOATS_PER_POINT;
+    private static final float MIN_CONFIDENCE = 0.3f;
+    private static final float MIN_DEPTH = 0.5f;
+    private static final float MAX_DEPTH = 5f;
+
+    private static FloatBuffer allocate(int numPoints) {
+        return ByteBuffer.allocateDirect(numPoints * FLOATS_PER_POINT * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static void assertCompacted(PointCompactor compactor, FloatBuffer points,
+                                        int numPoints) {
+        int kept = compactor.compact(points, numPoints);
+        FloatBuffer output = compactor.getOutput();
+        int expected = 0;
+        for (int p = 0; p < numPoints; p++) {
+            int i = p * FLOATS_PER_POINT;
+            float z = points.get(i + 2);
+            float c = points.get(i + 3);
+            if (c >= MIN_CONFIDENCE && z >= MIN_DEPTH && z <= MAX_DEPTH) {
+                for (int f = 0; f < FLOATS_PER_POINT; f++) {
+                    assertEquals(points.get(i + f),
+                            output.get(expected * FLOATS_PER_POINT + f), 0);
+                }
+                expected++;
+            }
+        }
+        assertEquals(expected, kept);
+        assertEquals(kept * FLOATS_PER_POINT, output.limit());
+        assertEquals(numPoints, compactor.getInputCount());
+        assertEquals(numPoints - kept, compactor.getDroppedCount());
+        assertEquals(0, points.position());
+    }
+
+    @Test
+    public void keepsWhatAPlainFilterKeeps() {
+        int maxPoints = 5000;
+        PointCompactor compactor = new PointCompactor(maxPoints, MIN_CONFIDENCE, MIN_DEPTH,
+                MAX_DEPTH);
+        Random random = new Random(5);
+        FloatBuffer points = allocate(maxPoints);
+        long total = 0;
+        for (int cloud = 0; cloud < 50; cloud++) {
+            int numPoints = random.nextInt(maxPoints + 1);
+            points.clear();
+            for (int p = 0; p < numPoints; p++) {
+                points.put(random.nextFloat() - 0.5f);
+                points.put(random.nextFloat() - 0.5f);
+                points.put(random.nextInt(20) == 0 ? Float.NaN : random.nextFloat() * 6);
+                points.put(random.nextFloat());
+            }
+            assertCompacted(compactor, points, numPoints);
+            total += numPoints;
+        }
+        assertEquals(total, compactor.getTotalInput());
+    }
+
+    @Test
+    public void thresholdsAreInclusive() {
+        float[] values = {
+                0, 0, MIN_DEPTH, MIN_CONFIDENCE,
+                0, 0, MAX_DEPTH, 1,
+                0, 0, Math.nextAfter(MIN_DEPTH, 0), 1,
+                0, 0, Math.nextUp(MAX_DEPTH), 1,
+                0, 0, 1, Math.nextAfter(MIN_CONFIDENCE, 0),
+                0, 0, Float.NaN, 1,
+        };
+        FloatBuffer points = allocate(values.length / FLOATS_PER_POINT);
+        points.put(values);
+        PointCompactor compactor = new PointCompactor(values.length / FLOATS_PER_POINT,
+                MIN_CONFIDENCE, MIN_DEPTH, MAX_DEPTH);
+        assertEquals(2, compactor.compact(points, values.length / FLOATS_PER_POINT));
+        assertCompacted(compactor, points, values.length / FLOATS_PER_POINT);
+        assertEquals(2f / 6, compactor.getKeptRatio(), 1e-6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyDepthRange() {
+        new PointCompactor(10, MIN_CONFIDENCE, MAX_DEPTH, MIN_DEPTH);
+    }
+}
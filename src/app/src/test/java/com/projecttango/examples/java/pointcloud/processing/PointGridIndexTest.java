@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link PointGridIndex} queries against linear scans of random clouds.
+ */
+public class PointGridIndexTest {
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int MAX_POINTS = 5000;
+    private static final int QUERIES = 300;
+    private static final float TOLERANCE = 1e-5f;
+
+    private static FloatBuffer allocate(int numPoints) {
+        return ByteBuffer.allocateDirect(numPoints * FLOATS_PER_POINT * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Points spread over a box of the given size, half of them in a few tight clusters so some
+     * cells hold many points and most hold none.
+     */
+    private static FloatBuffer randomCloud(Random random, int numPoints, float size) {
+        FloatBuffer points = allocate(numPoints);
+        float[] center = new float[3];
+        for (int i = 0; i < numPoints; i++) {
+            if (i % 500 == 0) {
+                for (int a = 0; a < 3; a++) {
+                    center[a] = (random.nextFloat() - 0.5f) * size;
+                }
+            }
+            for (int a = 0; a < 3; a++) {
+                float value = (i & 1) == 0 ? (random.nextFloat() - 0.5f) * size
+                        : center[a] + (float) random.nextGaussian() * 0.02f;
+                points.put(value);
+            }
+            points.put(random.nextFloat());
+        }
+        points.rewind();
+        return points;
+    }
+
+    /**
+     * @return A coordinate mostly within the cloud, sometimes well outside it.
+     */
+    private static float randomCoordinate(Random random, float size) {
+        float spread = random.nextInt(4) == 0 ? 3 * size : size;
+        return (random.nextFloat() - 0.5f) * spread;
+    }
+
+    private static int linearCount(FloatBuffer points, int numPoints, float[] box) {
+        int count = 0;
+        for (int p = 0; p < numPoints; p++) {
+            if (inBox(points, p, box)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean inBox(FloatBuffer points, int p, float[] box) {
+        int o = p * FLOATS_PER_POINT;
+        for (int a = 0; a < 3; a++) {
+            float value = points.get(o + a);
+            if (!(value >= box[a] && value <= box[a + 3])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static float distance(FloatBuffer points, int p, float x, float y, float z) {
+        int o = p * FLOATS_PER_POINT;
+        float dx = points.get(o) - x;
+        float dy = points.get(o + 1) - y;
+        float dz = points.get(o + 2) - z;
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * @return Sorted distances of every point, or every point in the box if there is one.
+     */
+    private static float[] linearDistances(FloatBuffer points, int numPoints, float[] box,
+                                           float x, float y, float z) {
+        float[] distances = new float[numPoints];
+        int found = 0;
+        for (int p = 0; p < numPoints; p++) {
+            if (box == null || inBox(points, p, box)) {
+                distances[found++] = distance(points, p, x, y, z);
+            }
+        }
+        distances = Arrays.copyOf(distances, found);
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    private static float[] randomBox(Random random, float size) {
+        float[] box = new float[6];
+        for (int a = 0; a < 3; a++) {
+            float first = randomCoordinate(random, size);
+            float second = first + random.nextFloat() * size * 0.5f;
+            box[a] = first;
+            box[a + 3] = second;
+        }
+        return box;
+    }
+
+    private static void checkQueries(PointGridIndex index, FloatBuffer points, int numPoints,
+                                     float size, long seed) {
+        Random random = new Random(seed);
+        int k = 8;
+        int[] indices = new int[k];
+        float[] distances = new float[k];
+        for (int q = 0; q < QUERIES; q++) {
+            float[] box = randomBox(random, size);
+            assertEquals(linearCount(points, numPoints, box),
+                    index.countInBox(box[0], box[1], box[2], box[3], box[4], box[5]));
+
+            float x = randomCoordinate(random, size);
+            float y = randomCoordinate(random, size);
+            float z = randomCoordinate(random, size);
+            int found = index.nearest(x, y, z, k, indices, distances);
+            checkNearest(points, numPoints, null, x, y, z, k, found, indices, distances);
+
+            found = index.nearestInBox(box[0], box[1], box[2], box[3], box[4], box[5],
+                    x, y, z, k, indices, distances);
+            checkNearest(points, numPoints, box, x, y, z, k, found, indices, distances);
+        }
+    }
+
+    private static void checkNearest(FloatBuffer points, int numPoints, float[] box,
+                                     float x, float y, float z, int k, int found,
+                                     int[] indices, float[] distances) {
+        float[] expected = linearDistances(points, numPoints, box, x, y, z);
+        assertEquals(Math.min(k, expected.length), found);
+        for (int i = 0; i < found; i++) {
+            // Ties may come back in any order, so compare distances, not indices.
+            assertEquals(expected[i], distances[i], TOLERANCE);
+            assertEquals(distances[i], distance(points, indices[i], x, y, z), TOLERANCE);
+            if (box != null) {
+                assertTrue(inBox(points, indices[i], box));
+            }
+        }
+    }
+
+    @Test
+    public void matchesLinearScans() {
+        Random random = new Random(3);
+        PointGridIndex index = new PointGridIndex(MAX_POINTS, FLOATS_PER_POINT, 0.1f, 32768);
+        for (int frame = 0; frame < 4; frame++) {
+            int numPoints = 1 + random.nextInt(MAX_POINTS);
+            FloatBuffer points = randomCloud(random, numPoints, 2);
+            index.build(points, numPoints);
+            assertEquals(0.1f, index.getCellSize(), 0);
+            checkQueries(index, points, numPoints, 2, frame);
+        }
+    }
+
+    @Test
+    public void matchesLinearScansWithGrownCells() {
+        Random random = new Random(5);
+        PointGridIndex index = new PointGridIndex(MAX_POINTS, FLOATS_PER_POINT, 0.05f, 64);
+        for (int frame = 0; frame < 4; frame++) {
+            int numPoints = 1 + random.nextInt(MAX_POINTS);
+            FloatBuffer points = randomCloud(random, numPoints, 6);
+            index.build(points, numPoints);
+            assertTrue(index.getCellSize() > 0.05f);
+            assertTrue(index.getCellCount() <= 64);
+            checkQueries(index, points, numPoints, 6, frame);
+        }
+    }
+
+    @Test
+    public void flatAndSinglePointFrames() {
+        Random random = new Random(7);
+        PointGridIndex index = new PointGridIndex(MAX_POINTS, FLOATS_PER_POINT, 0.1f, 4096);
+        // A wall: every point has the same Z, so the grid is one cell deep.
+        FloatBuffer wall = randomCloud(random, 2000, 3);
+        for (int p = 0; p < 2000; p++) {
+            wall.put(p * FLOATS_PER_POINT + 2, 1.5f);
+        }
+        index.build(wall, 2000);
+        checkQueries(index, wall, 2000, 3, 1);
+
+        FloatBuffer single = allocate(1);
+        single.put(new float[] {0.3f, -0.2f, 1.1f, 1});
+        single.rewind();
+        index.build(single, 1);
+        assertEquals(1, index.getCellCount());
+        checkQueries(index, single, 1, 2, 2);
+    }
+
+    @Test
+    public void emptyFrame() {
+        PointGridIndex index = new PointGridIndex(MAX_POINTS, FLOATS_PER_POINT, 0.1f, 4096);
+        index.build(allocate(0), 0);
+        int[] indices = new int[4];
+        float[] distances = new float[4];
+        assertEquals(0, index.countInBox(-1, -1, -1, 1, 1, 1));
+        assertEquals(0, index.nearest(0, 0, 0, 4, indices, distances));
+        assertEquals(0, index.nearestInBox(-1, -1, -1, 1, 1, 1, 0, 0, 0, 4, indices,
+                distances));
+    }
+
+    @Test
+    public void invertedBoxIsEmpty() {
+        Random random = new Random(11);
+        PointGridIndex index = new PointGridIndex(MAX_POINTS, FLOATS_PER_POINT, 0.1f, 4096);
+        FloatBuffer points = randomCloud(random, 1000, 2);
+        index.build(points, 1000);
+        assertEquals(0, index.countInBox(0.5f, -1, -1, -0.5f, 1, 1));
+        assertEquals(0, index.nearestInBox(0.5f, -1, -1, -0.5f, 1, 1, 0, 0, 0, 4,
+                new int[4], new float[4]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyPoints() {
+        new PointGridIndex(10, FLOATS_PER_POINT, 0.1f, 64).build(allocate(11), 11);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link PointStatisticsKernel} against the averages the activity used to compute, and
+ * its parallel partials against the sequential pass.
+ */
+public class PointStatisticsKernelTest {
+    private static final int FLOATS_PER_POINT = 4;
+
+    private ParallelChunks mParallel;
+
+    @After
+    public void tearDown() {
+        if (mParallel != null) {
+            mParallel.shutdown();
+        }
+    }
+
+    private static FloatBuffer randomCloud(int numPoints, long seed) {
+        Random random = new Random(seed);
+        FloatBuffer points = ByteBuffer.allocateDirect(numPoints * FLOATS_PER_POINT * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (int i = 0; i < numPoints; i++) {
+            points.put(random.nextFloat() * 4 - 2);
+            points.put(random.nextFloat() * 3 - 1.5f);
+            points.put(0.5f + random.nextFloat() * 4);
+            points.put(random.nextFloat());
+        }
+        points.rewind();
+        return points;
+    }
+
+    /**
+     * The average depth as computed by the activity before the kernel.
+     */
+    private static float baselineAveragedDepth(FloatBuffer pointCloudBuffer, int numPoints) {
+        float totalZ = 0;
+        float averageZ = 0;
+        if (numPoints != 0) {
+            int numFloats = 4 * numPoints;
+            for (int i = 2; i < numFloats; i = i + 4) {
+                totalZ = totalZ + pointCloudBuffer.get(i);
+            }
+            averageZ = totalZ / numPoints;
+        }
+        return averageZ;
+    }
+
+    /**
+     * The average of X and Y as computed by the activity before the kernel.
+     */
+    private static float[] baselineAveragedXY(FloatBuffer pointCloudBuffer, int numPoints) {
+        float totalX = 0;
+        float totalY = 0;
+        float[] average = new float[2];
+        if (numPoints != 0) {
+            int numFloats = 4 * numPoints;
+            for (int i = 0; i < numFloats; i = i + 4) {
+                totalX = totalX + pointCloudBuffer.get(i);
+                totalY = totalY + pointCloudBuffer.get(i + 1);
+            }
+            average[0] = totalX / numPoints;
+            average[1] = totalY / numPoints;
+        }
+        return average;
+    }
+
+    @Test
+    public void matchesBaselineAverages() {
+        PointStatisticsKernel kernel = new PointStatisticsKernel(FLOATS_PER_POINT);
+        PointCloudStats stats = new PointCloudStats();
+        for (int numPoints : new int[] {1, 7, PointStatisticsKernel.CHUNK_POINTS + 3, 60000}) {
+            FloatBuffer points = randomCloud(numPoints, numPoints);
+            kernel.compute(points, numPoints, stats);
+            float[] xy = baselineAveragedXY(points, numPoints);
+            // The baseline sums in float, so it is the one drifting on large clouds.
+            float tolerance = 1e-6f * numPoints + 1e-6f;
+            assertEquals(numPoints, stats.getCount());
+            assertEquals(baselineAveragedDepth(points, numPoints), stats.getMeanZ(), tolerance);
+            assertEquals(xy[0], stats.getMeanX(), tolerance);
+            assertEquals(xy[1], stats.getMeanY(), tolerance);
+            assertEquals(0, points.position());
+        }
+    }
+
+    @Test
+    public void boundsAndWeightedMeans() {
+        int numPoints = 5000;
+        FloatBuffer points = randomCloud(numPoints, 42);
+        PointStatisticsKernel kernel = new PointStatisticsKernel(FLOATS_PER_POINT);
+        PointCloudStats stats = new PointCloudStats();
+        kernel.compute(points, numPoints, stats);
+
+        float minZ = Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        double sumC = 0;
+        double sumCZ = 0;
+        for (int i = 0; i < numPoints; i++) {
+            float z = points.get(i * 4 + 2);
+            float c = points.get(i * 4 + 3);
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
+            sumC += c;
+            sumCZ += c * z;
+        }
+        assertEquals(minZ, stats.getMinZ(), 0);
+        assertEquals(maxZ, stats.getMaxZ(), 0);
+        assertEquals(sumC, stats.getConfidenceSum(), 1e-9 * numPoints);
+        assertEquals(sumCZ / sumC, stats.getWeightedMeanZ(), 1e-9);
+    }
+
+    @Test
+    public void emptyCloudLikeBaseline() {
+        FloatBuffer points = randomCloud(4, 1);
+        PointStatisticsKernel kernel = new PointStatisticsKernel(FLOATS_PER_POINT);
+        PointCloudStats stats = new PointCloudStats();
+        kernel.compute(points, 4, stats);
+        kernel.compute(points, 0, stats);
+        assertEquals(0, stats.getCount());
+        assertEquals(baselineAveragedDepth(points, 0), stats.getMeanZ(), 0);
+        assertEquals(baselineAveragedXY(points, 0)[0], stats.getMeanX(), 0);
+        assertEquals(baselineAveragedXY(points, 0)[1], stats.getMeanY(), 0);
+    }
+
+    @Test
+    public void nanPropagatesLikeBaseline() {
+        int numPoints = 100;
+        FloatBuffer points = randomCloud(numPoints, 3);
+        points.put(10 * 4 + 2, Float.NaN);
+        points.put(20 * 4, Float.NaN);
+        PointStatisticsKernel kernel = new PointStatisticsKernel(FLOATS_PER_POINT);
+        PointCloudStats stats = new PointCloudStats();
+        kernel.compute(points, numPoints, stats);
+        assertTrue(Float.isNaN(baselineAveragedDepth(points, numPoints)));
+        assertTrue(Double.isNaN(stats.getMeanZ()));
+        assertTrue(Float.isNaN(baselineAveragedXY(points, numPoints)[0]));
+        assertTrue(Double.isNaN(stats.getMeanX()));
+        assertEquals(baselineAveragedXY(points, numPoints)[1], stats.getMeanY(), 1e-4);
+    }
+
+    @Test
+    public void xyzPointsHaveUnitConfidence() {
+        int numPoints = 10;
+        FloatBuffer points = FloatBuffer.allocate(numPoints * 3);
+        for (int i = 0; i < numPoints; i++) {
+            points.put(i).put(-i).put(1 + i);
+        }
+        points.rewind();
+        PointStatisticsKernel kernel = new PointStatisticsKernel(3);
+        PointCloudStats stats = new PointCloudStats();
+        kernel.compute(points, numPoints, stats);
+        assertEquals(numPoints, stats.getConfidenceSum(), 0);
+        assertEquals(4.5, stats.getMeanX(), 1e-12);
+        assertEquals(5.5, stats.getWeightedMeanZ(), 1e-12);
+    }
+
+    @Test
+    public void accumulateMergesRanges() {
+        int numPoints = 3000;
+        FloatBuffer points = randomCloud(numPoints, 5);
+        PointStatisticsKernel kernel = new PointStatisticsKernel(FLOATS_PER_POINT);
+        PointCloudStats whole = new PointCloudStats();
+        kernel.compute(points, numPoints, whole);
+
+        PointCloudStats merged = new PointCloudStats();
+        kernel.accumulate(points, 1000, merged);
+        kernel.accumulate(points, numPoints - 1000, merged);
+        points.rewind();
+        assertEquals(whole.getCount(), merged.getCount());
+        assertEquals(whole.getMeanZ(), merged.getMeanZ(), 1e-12);
+        assertEquals(whole.getMinX(), merged.getMinX(), 0);
+        assertEquals(whole.getMaxY(), merged.getMaxY(), 0);
+    }
+
+    @Test
+    public void parallelPartialsMatchSequential() {
+        int maxPoints = 60000;
+        mParallel = new ParallelChunks("test", 4, 4096, 0);
+        PointStatisticsKernel sequential = new PointStatisticsKernel(FLOATS_PER_POINT);
+        PointStatisticsKernel parallel = new PointStatisticsKernel(FLOATS_PER_POINT);
+        parallel.setParallel(mParallel, maxPoints);
+        PointCloudStats expected = new PointCloudStats();
+        PointCloudStats actual = new PointCloudStats();
+        PointCloudStats again = new PointCloudStats();
+        for (int numPoints : new int[] {maxPoints, 4096 * 3 + 17, 4097}) {
+            FloatBuffer points = randomCloud(numPoints, numPoints);
+            sequential.compute(points, numPoints, expected);
+            parallel.compute(points, numPoints, actual);
+            parallel.compute(points, numPoints, again);
+            assertEquals(expected.getCount(), actual.getCount());
+            assertEquals(expected.getMeanX(), actual.getMeanX(), 1e-9);
+            assertEquals(expected.getMeanZ(), actual.getMeanZ(), 1e-9);
+            assertEquals(expected.getWeightedMeanY(), actual.getWeightedMeanY(), 1e-9);
+            assertEquals(expected.getMinZ(), actual.getMinZ(), 0);
+            assertEquals(expected.getMaxX(), actual.getMaxX(), 0);
+            // Merged in chunk order, so the result doesn't depend on which thread ran a chunk.
+            assertEquals(actual.getMeanZ(), again.getMeanZ(), 0);
+            assertEquals(actual.getConfidenceSum(), again.getConfidenceSum(), 0);
+            assertEquals(0, points.position());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parallelRejectsTooManyPoints() {
+        mParallel = new ParallelChunks("test", 2, 4096, 0);
+        PointStatisticsKernel kernel = new PointStatisticsKernel(FLOATS_PER_POINT);
+        kernel.setParallel(mParallel, 4096);
+        kernel.compute(randomCloud(4097, 1), 4097, new PointCloudStats());
+    }
+}
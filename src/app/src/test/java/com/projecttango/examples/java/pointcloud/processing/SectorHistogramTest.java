@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link SectorHistogram} on synthetic scenes against bins computed with atan.
+ */
+public class SectorHistogramTest {
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int AZIMUTH_BINS = 8;
+    private static final float HORIZONTAL_FOV = 80;
+    private static final int ELEVATION_BINS = 4;
+    private static final float VERTICAL_FOV = 60;
+    // Table cells are 0.05 degrees wide at most, so points further than that from a bin edge
+    // have a single possible bin.
+    private static final double EDGE_MARGIN_DEGREES = 0.1;
+
+    private static FloatBuffer cloud(float... xyz) {
+        int numPoints = xyz.length / 3;
+        FloatBuffer points = FloatBuffer.allocate(numPoints * FLOATS_PER_POINT);
+        for (int i = 0; i < numPoints; i++) {
+            points.put(xyz[3 * i]).put(xyz[3 * i + 1]).put(xyz[3 * i + 2]).put(1);
+        }
+        points.rewind();
+        return points;
+    }
+
+    private static float xAt(double azimuthDegrees, float z) {
+        return (float) (Math.tan(Math.toRadians(azimuthDegrees)) * z);
+    }
+
+    private static SectorHistogram azimuthOnly() {
+        return new SectorHistogram(FLOATS_PER_POINT, AZIMUTH_BINS, HORIZONTAL_FOV, 1, 1);
+    }
+
+    @Test
+    public void sectorsAroundBoundaryAngles() {
+        SectorHistogram histogram = azimuthOnly();
+        float binWidth = HORIZONTAL_FOV / AZIMUTH_BINS;
+        for (int edge = 1; edge < AZIMUTH_BINS; edge++) {
+            double angle = -HORIZONTAL_FOV / 2 + edge * binWidth;
+            histogram.compute(cloud(xAt(angle - 0.2, 2), 0, 2, xAt(angle + 0.2, 3), 0, 3), 2);
+            assertEquals(2, histogram.getBinnedPoints());
+            assertEquals(1, histogram.getPointCount(edge - 1));
+            assertEquals(1, histogram.getPointCount(edge));
+            assertEquals(2, histogram.getNearestDepth(edge - 1), 0);
+            assertEquals(3, histogram.getNearestDepth(edge), 0);
+        }
+        // Azimuth zero is at the far left.
+        histogram.compute(cloud(xAt(-39.5, 2), 0, 2, xAt(39.5, 2), 0, 2), 2);
+        assertEquals(1, histogram.getPointCount(0));
+        assertEquals(1, histogram.getPointCount(AZIMUTH_BINS - 1));
+        assertEquals(-35, histogram.getAzimuthDegrees(0), 1e-4);
+        assertEquals(35, histogram.getAzimuthDegrees(AZIMUTH_BINS - 1), 1e-4);
+    }
+
+    @Test
+    public void elevationRowsFromTheTop() {
+        SectorHistogram histogram = new SectorHistogram(FLOATS_PER_POINT, AZIMUTH_BINS,
+                HORIZONTAL_FOV, ELEVATION_BINS, VERTICAL_FOV);
+        // Y points down, so a negative Y is above the optical axis.
+        float up = (float) -Math.tan(Math.toRadians(25)) * 2;
+        float down = (float) Math.tan(Math.toRadians(10)) * 2;
+        histogram.compute(cloud(xAt(-37, 2), up, 2, xAt(12, 2), down, 2), 2);
+        assertEquals(1, histogram.getPointCount(0));
+        assertEquals(1, histogram.getPointCount(2 * AZIMUTH_BINS + 5));
+        assertEquals(2, histogram.getElevationIndex(2 * AZIMUTH_BINS + 5));
+        assertEquals(5, histogram.getAzimuthIndex(2 * AZIMUTH_BINS + 5));
+        assertEquals(7.5, histogram.getElevationDegrees(2 * AZIMUTH_BINS + 5), 1e-4);
+    }
+
+    @Test
+    public void outOfRangePointsAreSkipped() {
+        SectorHistogram histogram = azimuthOnly();
+        histogram.setDepthRange(0.5f, 4);
+        histogram.compute(cloud(
+                0, 0, 0.4f,
+                0, 0, 4.5f,
+                xAt(41, 2), 0, 2,
+                xAt(-41, 2), 0, 2,
+                xAt(-25, 2), 0, 2), 5);
+        assertEquals(1, histogram.getBinnedPoints());
+        assertEquals(1, histogram.getPointCount(1));
+
+        SectorHistogram rows = new SectorHistogram(FLOATS_PER_POINT, AZIMUTH_BINS,
+                HORIZONTAL_FOV, ELEVATION_BINS, VERTICAL_FOV);
+        rows.compute(cloud(0, 3, 2, 0, -3, 2), 2);
+        assertEquals(0, rows.getBinnedPoints());
+    }
+
+    @Test
+    public void pointsJustLeftOfTheFieldOfViewAreSkipped() {
+        SectorHistogram histogram = azimuthOnly();
+        // Less than one table cell left of the edge: the cell index is in (-1, 0), which a cast
+        // alone would truncate to cell zero.
+        float maxTan = (float) Math.tan(Math.toRadians(HORIZONTAL_FOV / 2));
+        float scale = 2048 / (2 * maxTan);
+        float z = 2;
+        float x = (-maxTan - 0.5f / scale) * z;
+        float cell = (x * (1f / z) + maxTan) * scale;
+        assertEquals(-0.5f, cell, 0.25f);
+        histogram.compute(cloud(x, 0, z), 1);
+        assertEquals(0, histogram.getBinnedPoints());
+        assertEquals(0, histogram.getPointCount(0));
+
+        SectorHistogram rows = new SectorHistogram(FLOATS_PER_POINT, AZIMUTH_BINS,
+                HORIZONTAL_FOV, ELEVATION_BINS, VERTICAL_FOV);
+        float maxTanY = (float) Math.tan(Math.toRadians(VERTICAL_FOV / 2));
+        float scaleY = 2048 / (2 * maxTanY);
+        rows.compute(cloud(0, (-maxTanY - 0.5f / scaleY) * z, z), 1);
+        assertEquals(0, rows.getBinnedPoints());
+    }
+
+    @Test
+    public void nanPointsAreSkipped() {
+        SectorHistogram histogram = new SectorHistogram(FLOATS_PER_POINT, AZIMUTH_BINS,
+                HORIZONTAL_FOV, ELEVATION_BINS, VERTICAL_FOV);
+        histogram.compute(cloud(
+                Float.NaN, 0, 2,
+                0, Float.NaN, 2,
+                0, 0, Float.NaN,
+                0, 0, 2), 4);
+        assertEquals(1, histogram.getBinnedPoints());
+        for (int bin = 0; bin < histogram.getBinCount(); bin++) {
+            float depth = histogram.getNearestDepth(bin);
+            assertEquals(Float.isInfinite(depth) ? 0 : 1, histogram.getPointCount(bin));
+        }
+    }
+
+    @Test
+    public void nearestPerSectorMatchesBruteForce() {
+        SectorHistogram histogram = new SectorHistogram(FLOATS_PER_POINT, AZIMUTH_BINS,
+                HORIZONTAL_FOV, ELEVATION_BINS, VERTICAL_FOV);
+        histogram.setDepthRange(0.2f, 8);
+        float alertDistance = 1.5f;
+        histogram.setAlertDistance(alertDistance);
+        int bins = AZIMUTH_BINS * ELEVATION_BINS;
+        float[] nearest = new float[bins];
+        int[] counts = new int[bins];
+        int[] nearCounts = new int[bins];
+        Arrays.fill(nearest, Float.POSITIVE_INFINITY);
+
+        Random random = new Random(11);
+        int numPoints = 20000;
+        FloatBuffer points = FloatBuffer.allocate(numPoints * FLOATS_PER_POINT);
+        int generated = 0;
+        while (generated < numPoints) {
+            double azimuth = (random.nextDouble() * 2 - 1) * HORIZONTAL_FOV / 2;
+            double elevation = (random.nextDouble() * 2 - 1) * VERTICAL_FOV / 2;
+            int azimuthBin = (int) ((azimuth + HORIZONTAL_FOV / 2) / (HORIZONTAL_FOV
+                    / AZIMUTH_BINS));
+            int elevationBin = (int) ((elevation + VERTICAL_FOV / 2) / (VERTICAL_FOV
+                    / ELEVATION_BINS));
+            if (nearEdge(azimuth, HORIZONTAL_FOV, AZIMUTH_BINS)
+                    || nearEdge(elevation, VERTICAL_FOV, ELEVATION_BINS)) {
+                continue;
+            }
+            float z = 0.3f + random.nextFloat() * 7;
+            points.put(xAt(azimuth, z));
+            points.put((float) Math.tan(Math.toRadians(elevation)) * z);
+            points.put(z);
+            points.put(1);
+            int bin = elevationBin * AZIMUTH_BINS + azimuthBin;
+            counts[bin]++;
+            nearest[bin] = Math.min(nearest[bin], z);
+            if (z <= alertDistance) {
+                nearCounts[bin]++;
+            }
+            generated++;
+        }
+        points.rewind();
+        histogram.compute(points, numPoints);
+
+        assertEquals(numPoints, histogram.getBinnedPoints());
+        int expectedObstacle = -1;
+        for (int bin = 0; bin < bins; bin++) {
+            assertEquals(counts[bin], histogram.getPointCount(bin));
+            assertEquals(nearCounts[bin], histogram.getNearCount(bin));
+            assertEquals(nearest[bin], histogram.getNearestDepth(bin), 0);
+            if (nearCounts[bin] >= 20 && (expectedObstacle < 0
+                    || nearest[bin] < nearest[expectedObstacle])) {
+                expectedObstacle = bin;
+            }
+        }
+        assertEquals(expectedObstacle, histogram.findNearestObstacle(20));
+        assertEquals(-1, histogram.findNearestObstacle(numPoints + 1));
+    }
+
+    private static boolean nearEdge(double angle, float fov, int bins) {
+        double position = (angle + fov / 2) / (fov / bins);
+        double distance = Math.abs(position - Math.round(position)) * fov / bins;
+        return distance < EDGE_MARGIN_DEGREES;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link TemporalVoxelFilter} on synthetic sequences: a wall seen with sensor noise, plus
+ * speckle scattered anywhere in the frame.
+ */
+public class TemporalVoxelFilterTest {
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int WALL_POINTS = 3000;
+    private static final int SPECKLE_POINTS = 300;
+    private static final int MAX_POINTS = WALL_POINTS + SPECKLE_POINTS;
+    private static final int FLICKER_POINTS = 8;
+    // A 1 m square wall, about 7 points per 5 cm voxel.
+    private static final float WALL_HALF_WIDTH = 0.5f;
+    // Middle of a layer of voxels, so the depth noise keeps the wall in it.
+    private static final float WALL_DEPTH = 2.025f;
+    // Confidence marking speckle, to tell the kept points apart.
+    private static final float SPECKLE = 0.25f;
+
+    private final Random mRandom = new Random(17);
+    private final FloatBuffer mInput = allocate(MAX_POINTS);
+    private final FloatBuffer mOutput = allocate(MAX_POINTS);
+
+    private static FloatBuffer allocate(int numPoints) {
+        return ByteBuffer.allocateDirect(numPoints * FLOATS_PER_POINT * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static float[] translation(float x, float y, float z) {
+        float[] pose = new float[16];
+        pose[0] = 1;
+        pose[5] = 1;
+        pose[10] = 1;
+        pose[15] = 1;
+        pose[12] = x;
+        pose[13] = y;
+        pose[14] = z;
+        return pose;
+    }
+
+    /**
+     * Fills a frame with a wall at {@code depth} with 5 mm of depth noise, and speckle up to 4 m
+     * away.
+     *
+     * @return Number of points.
+     */
+    private int noisyWall(float depth, int wallPoints, int specklePoints) {
+        mInput.clear();
+        for (int i = 0; i < wallPoints; i++) {
+            mInput.put((mRandom.nextFloat() * 2 - 1) * WALL_HALF_WIDTH);
+            mInput.put((mRandom.nextFloat() * 2 - 1) * WALL_HALF_WIDTH);
+            mInput.put(depth + (float) mRandom.nextGaussian() * 0.005f);
+            mInput.put(1);
+        }
+        for (int i = 0; i < specklePoints; i++) {
+            mInput.put(mRandom.nextFloat() * 4 - 2);
+            mInput.put(mRandom.nextFloat() * 4 - 2);
+            mInput.put(mRandom.nextFloat() * 4);
+            mInput.put(SPECKLE);
+        }
+        mInput.rewind();
+        return wallPoints + specklePoints;
+    }
+
+    private int countSpeckle(int numPoints) {
+        int speckle = 0;
+        for (int p = 0; p < numPoints; p++) {
+            if (mOutput.get(p * FLOATS_PER_POINT + 3) == SPECKLE) {
+                speckle++;
+            }
+        }
+        return speckle;
+    }
+
+    @Test
+    public void keepsTheWallAndDropsSpeckle() {
+        TemporalVoxelFilter filter = new TemporalVoxelFilter(MAX_POINTS, FLOATS_PER_POINT,
+                TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS, 1 << 14);
+        float[] pose = translation(0, 0, 0);
+        int numPoints = noisyWall(WALL_DEPTH, WALL_POINTS, SPECKLE_POINTS);
+        // Nothing has been seen twice yet.
+        assertEquals(0, filter.filter(mInput, numPoints, pose, mOutput));
+
+        long wallKept = 0;
+        long speckleKept = 0;
+        for (int frame = 0; frame < 20; frame++) {
+            numPoints = noisyWall(WALL_DEPTH, WALL_POINTS, SPECKLE_POINTS);
+            int kept = filter.filter(mInput, numPoints, pose, mOutput);
+            int speckle = countSpeckle(kept);
+            wallKept += kept - speckle;
+            speckleKept += speckle;
+        }
+        assertTrue("Wall kept " + wallKept, wallKept > 0.95 * 20 * WALL_POINTS);
+        assertTrue("Speckle kept " + speckleKept, speckleKept < 0.05 * 20 * SPECKLE_POINTS);
+    }
+
+    /**
+     * Fills a frame with the wall, plus a few returns from one voxel off the wall if
+     * {@code flicker} is set.
+     *
+     * @return Number of points.
+     */
+    private int wallWithFlicker(boolean flicker) {
+        int numPoints = noisyWall(WALL_DEPTH, WALL_POINTS, 0);
+        if (flicker) {
+            mInput.position(numPoints * FLOATS_PER_POINT);
+            for (int i = 0; i < FLICKER_POINTS; i++) {
+                mInput.put(1.025f).put(1.025f).put(1.025f).put(SPECKLE);
+            }
+            mInput.rewind();
+            numPoints += FLICKER_POINTS;
+        }
+        return numPoints;
+    }
+
+    @Test
+    public void dropsVoxelsHitEveryOtherFrame() {
+        TemporalVoxelFilter filter = new TemporalVoxelFilter(MAX_POINTS, FLOATS_PER_POINT,
+                TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS, 1 << 14);
+        float[] pose = translation(0, 0, 0);
+        for (int frame = 0; frame < 30; frame++) {
+            int numPoints = wallWithFlicker(frame % 2 == 0);
+            int kept = filter.filter(mInput, numPoints, pose, mOutput);
+            assertEquals("Frame " + frame, 0, countSpeckle(kept));
+        }
+        // Once seen on two frames in a row, it is kept.
+        filter.filter(mInput, wallWithFlicker(true), pose, mOutput);
+        int kept = filter.filter(mInput, wallWithFlicker(true), pose, mOutput);
+        assertEquals(FLICKER_POINTS, countSpeckle(kept));
+    }
+
+    @Test
+    public void tracksTheWallInTheWorldWhileTheCameraMoves() {
+        TemporalVoxelFilter filter = new TemporalVoxelFilter(MAX_POINTS, FLOATS_PER_POINT,
+                TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS, 1 << 14);
+        long wallKept = 0;
+        for (int frame = 0; frame < 20; frame++) {
+            // Walking toward the wall, which stays put in the world.
+            float walked = frame * 0.05f;
+            int numPoints = noisyWall(WALL_DEPTH + 1 - walked, WALL_POINTS, 0);
+            int kept = filter.filter(mInput, numPoints, translation(0, 0, walked), mOutput);
+            if (frame > 0) {
+                wallKept += kept;
+            }
+        }
+        assertTrue("Wall kept " + wallKept, wallKept > 0.95 * 19 * WALL_POINTS);
+    }
+
+    @Test
+    public void spreadOutVoxelsAreDropped() {
+        // A 5 cm voxel whose points spread over it has a larger spread than a 1 cm limit.
+        TemporalVoxelFilter filter = new TemporalVoxelFilter(MAX_POINTS, FLOATS_PER_POINT,
+                TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS, 1 << 14,
+                TemporalVoxelFilter.DEFAULT_DECAY, 0.01f);
+        float[] pose = translation(0, 0, 0);
+        int kept = 0;
+        for (int frame = 0; frame < 5; frame++) {
+            int numPoints = noisyWall(WALL_DEPTH, WALL_POINTS, 0);
+            kept = filter.filter(mInput, numPoints, pose, mOutput);
+        }
+        assertEquals(0, kept);
+    }
+
+    @Test
+    public void evictsOldVoxelsWhenFull() {
+        TemporalVoxelFilter filter = new TemporalVoxelFilter(MAX_POINTS, FLOATS_PER_POINT,
+                TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS, 4096);
+        long wallKept = 0;
+        for (int frame = 0; frame < 60; frame++) {
+            // Sideways, so the wall keeps filling new voxels.
+            float[] pose = translation(frame * 0.1f, 0, 0);
+            int numPoints = noisyWall(WALL_DEPTH, WALL_POINTS, SPECKLE_POINTS);
+            int kept = filter.filter(mInput, numPoints, pose, mOutput);
+            assertTrue(filter.getVoxelCount() <= filter.getMaxVoxels());
+            if (frame > 0) {
+                wallKept += kept - countSpeckle(kept);
+            }
+        }
+        assertTrue(filter.getEvictionCount() > 0);
+        assertTrue(filter.getEvictedCount() > 0);
+        // The wall moves a tenth of its width per frame, so most of it was seen last frame.
+        assertTrue("Wall kept " + wallKept, wallKept > 0.85 * 59 * WALL_POINTS);
+    }
+
+    @Test
+    public void givesUpOnAFrameThatNeedsMoreVoxelsThanThereAre() {
+        int maxVoxels = 256;
+        TemporalVoxelFilter filter = new TemporalVoxelFilter(MAX_POINTS, FLOATS_PER_POINT,
+                TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS, maxVoxels);
+        filter.setMinHits(1);
+        float[] pose = translation(0, 0, 0);
+        for (int frame = 0; frame < 10; frame++) {
+            // Thousands of speckle voxels in every frame.
+            int numPoints = noisyWall(WALL_DEPTH, 0, MAX_POINTS);
+            long evictions = filter.getEvictionCount();
+            int kept = filter.filter(mInput, numPoints, pose, mOutput);
+            // One eviction frees the voxels of the last frame, a second finds nothing to free.
+            assertTrue(filter.getEvictionCount() - evictions <= 2);
+            assertEquals(maxVoxels, filter.getVoxelCount());
+            assertTrue(kept >= maxVoxels && kept < numPoints);
+        }
+    }
+
+    @Test
+    public void allocatesNothingOnceFull() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int maxVoxels = 1 << 10;
+        TemporalVoxelFilter filter = new TemporalVoxelFilter(MAX_POINTS, FLOATS_PER_POINT,
+                TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS, maxVoxels);
+        int numPoints = noisyWall(WALL_DEPTH, 0, MAX_POINTS);
+        float[] pose = translation(0, 0, 0);
+        // Warm up, so the JIT has compiled the filter and the table is full.
+        for (int frame = 0; frame < 200; frame++) {
+            pose[12] = frame * 0.01f;
+            filter.filter(mInput, numPoints, pose, mOutput);
+        }
+        assertEquals(maxVoxels, filter.getVoxelCount());
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int frame = 0; frame < 50; frame++) {
+            pose[12] = frame * 0.01f;
+            filter.filter(mInput, numPoints, pose, mOutput);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertEquals(0, allocated);
+    }
+}
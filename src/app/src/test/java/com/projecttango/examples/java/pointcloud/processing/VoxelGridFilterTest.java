@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.processing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link VoxelGridFilter} against a reference downsampling built on a {@link HashMap},
+ * with clouds around the origin so voxels on both sides of zero are exercised.
+ */
+public class VoxelGridFilterTest {
+    private static final float VOXEL_SIZE = 0.1f;
+    // The filter multiplies by the inverse, so voxels on their boundaries match.
+    private static final float INVERSE_VOXEL_SIZE = 1f / VOXEL_SIZE;
+
+    private final Random mRandom = new Random(13);
+
+    private static FloatBuffer allocate(int numPoints, int floatsPerPoint) {
+        return ByteBuffer.allocateDirect(numPoints * floatsPerPoint * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private FloatBuffer randomCloud(int numPoints, int floatsPerPoint) {
+        FloatBuffer points = allocate(numPoints, floatsPerPoint);
+        for (int i = 0; i < numPoints; i++) {
+            points.put(mRandom.nextFloat() * 2 - 1);
+            points.put(mRandom.nextFloat() * 2 - 1);
+            points.put(mRandom.nextFloat() * 2 - 1);
+            if (floatsPerPoint == 4) {
+                points.put(mRandom.nextFloat());
+            }
+        }
+        points.rewind();
+        return points;
+    }
+
+    private static long voxelOf(float x, float y, float z) {
+        return VoxelGridFilter.voxelKey((int) Math.floor(x * INVERSE_VOXEL_SIZE),
+                (int) Math.floor(y * INVERSE_VOXEL_SIZE), (int) Math.floor(z * INVERSE_VOXEL_SIZE));
+    }
+
+    @Test
+    public void floorRoundsTowardsNegativeInfinity() {
+        assertEquals(0, VoxelGridFilter.floor(0f));
+        assertEquals(0, VoxelGridFilter.floor(0.99f));
+        assertEquals(1, VoxelGridFilter.floor(1f));
+        assertEquals(-1, VoxelGridFilter.floor(-0.01f));
+        assertEquals(-1, VoxelGridFilter.floor(-1f));
+        assertEquals(-2, VoxelGridFilter.floor(-1.5f));
+    }
+
+    @Test
+    public void neighbouringVoxelsHaveDistinctKeys() {
+        Set<Long> keys = new HashSet<Long>();
+        int[] coordinates = {-(1 << 20), -1001, -2, -1, 0, 1, 2, 1000, (1 << 20) - 1};
+        for (int x : coordinates) {
+            for (int y : coordinates) {
+                for (int z : coordinates) {
+                    assertTrue(keys.add(VoxelGridFilter.voxelKey(x, y, z)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pointsEitherSideOfZeroStayApart() {
+        VoxelGridFilter filter = new VoxelGridFilter(4, 3, VOXEL_SIZE);
+        FloatBuffer points = allocate(4, 3);
+        points.put(new float[] {-0.01f, 0.5f, 1, 0.01f, 0.5f, 1, -0.02f, 0.5f, 1, 0.02f, 0.5f, 1});
+        points.rewind();
+        assertEquals(2, filter.filter(points, 4));
+        FloatBuffer output = filter.getOutput();
+        assertEquals(-0.015f, output.get(0), 1e-6f);
+        assertEquals(0.015f, output.get(VoxelGridFilter.OUTPUT_FLOATS_PER_POINT), 1e-6f);
+        // XYZ input has full confidence.
+        assertEquals(1f, output.get(3), 0f);
+    }
+
+    @Test
+    public void centroidsMatchReference() {
+        int numPoints = 20000;
+        VoxelGridFilter filter = new VoxelGridFilter(numPoints, 4, VOXEL_SIZE);
+        for (int frame = 0; frame < 3; frame++) {
+            // Fewer points in later frames, so voxels of the earlier ones must not leak through.
+            int count = numPoints >> frame;
+            FloatBuffer points = randomCloud(count, 4);
+
+            Map<Long, double[]> reference = new HashMap<Long, double[]>();
+            for (int i = 0; i < count; i++) {
+                float x = points.get(i * 4);
+                float y = points.get(i * 4 + 1);
+                float z = points.get(i * 4 + 2);
+                long key = voxelOf(x, y, z);
+                double[] sums = reference.get(key);
+                if (sums == null) {
+                    sums = new double[5];
+                    reference.put(key, sums);
+                }
+                sums[0] += x;
+                sums[1] += y;
+                sums[2] += z;
+                sums[3] += points.get(i * 4 + 3);
+                sums[4]++;
+            }
+
+            int voxels = filter.filter(points, count);
+            assertEquals(0, points.position());
+            assertEquals(reference.size(), voxels);
+            assertEquals(count, filter.getInputCount());
+            FloatBuffer output = filter.getOutput();
+            for (int v = 0; v < voxels; v++) {
+                int o = v * VoxelGridFilter.OUTPUT_FLOATS_PER_POINT;
+                float x = output.get(o);
+                float y = output.get(o + 1);
+                float z = output.get(o + 2);
+                double[] sums = reference.remove(voxelOf(x, y, z));
+                assertTrue("Unexpected voxel at " + x + ", " + y + ", " + z, sums != null);
+                assertEquals(sums[0] / sums[4], x, 1e-5);
+                assertEquals(sums[1] / sums[4], y, 1e-5);
+                assertEquals(sums[2] / sums[4], z, 1e-5);
+                assertEquals(sums[3] / sums[4], output.get(o + 3), 1e-5);
+            }
+            assertTrue(reference.isEmpty());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveVoxelSize() {
+        new VoxelGridFilter(1, 3, 0);
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.recording;
+
+import com.projecttango.examples.java.pointcloud.pipeline.AnalysisWorker;
+import com.projecttango.examples.java.pointcloud.pipeline.DepthPoseProvider;
+import com.projecttango.examples.java.pointcloud.pipeline.ObstacleAnalyzer;
+import com.projecttango.examples.java.pointcloud.pipeline.PointCloudFrame;
+import com.projecttango.examples.java.pointcloud.processing.PointCompactor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Recordings written by {@link PointCloudRecorder} and read back by {@link PointCloudReplay},
+ * through the index, by walking the frames of a truncated file, and across several mappings,
+ * raw and quantized, and compacted as live frames are. Version 1 files are written by hand.
+ */
+public class PointCloudReplayTest {
+    private static final int FLOATS_PER_POINT = 4;
+    private static final int FRAMES = 5;
+    private static final int MAX_POINTS = 3000;
+    private static final double FRAME_PERIOD = 0.05;
+
+    private File mFile;
+    private File mQuantizedFile;
+    private final FloatBuffer[] mFrames = new FloatBuffer[FRAMES];
+    private final int[] mNumPoints = new int[FRAMES];
+
+    /**
+     * Poses for every other frame, translated along X by the frame timestamp.
+     */
+    private static class FakePoses implements DepthPoseProvider {
+        @Override
+        public boolean getDepthPose(double timestamp, float[] worldTdepth) {
+            if (frameOf(timestamp) % 2 != 0) {
+                return false;
+            }
+            for (int i = 0; i < 16; i++) {
+                worldTdepth[i] = i % 5 == 0 ? 1 : 0;
+            }
+            worldTdepth[12] = (float) timestamp;
+            return true;
+        }
+    }
+
+    private static int frameOf(double timestamp) {
+        return (int) Math.round(timestamp / FRAME_PERIOD);
+    }
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        mFile = File.createTempFile("replay", ".icurec");
+        record(mFile, false);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        if (mQuantizedFile != null) {
+            mQuantizedFile.delete();
+        }
+    }
+
+    /**
+     * Record the same frames again, encoded by the codec.
+     */
+    private File recordQuantized() throws IOException, InterruptedException {
+        mQuantizedFile = File.createTempFile("replay", ".icurec");
+        record(mQuantizedFile, true);
+        return mQuantizedFile;
+    }
+
+    private void record(File file, boolean quantized) throws IOException, InterruptedException {
+        PointCloudRecorder recorder = new PointCloudRecorder(file, MAX_POINTS, FLOATS_PER_POINT,
+                new FakePoses(), quantized);
+        recorder.start();
+        Random random = new Random(9);
+        for (int i = 0; i < FRAMES; i++) {
+            int numPoints = MAX_POINTS - 200 * i;
+            FloatBuffer points = ByteBuffer.allocateDirect(numPoints * FLOATS_PER_POINT * 4)
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            for (int p = 0; p < numPoints; p++) {
+                // Depths and confidences either side of the live thresholds.
+                points.put(random.nextFloat() - 0.5f);
+                points.put(random.nextFloat() - 0.5f);
+                points.put(random.nextFloat() * 7);
+                points.put(random.nextFloat());
+            }
+            points.rewind();
+            mFrames[i] = points;
+            mNumPoints[i] = numPoints;
+            while (!recorder.record(i * FRAME_PERIOD, numPoints, points)) {
+                Thread.sleep(1);
+            }
+        }
+        recorder.close();
+        assertEquals(FRAMES, recorder.getFramesRecorded());
+    }
+
+    /**
+     * @return File offsets of the frame records, read from the index of a complete recording.
+     */
+    private static long[] readIndex(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer trailer = ByteBuffer.allocate(RecordingFormat.TRAILER_BYTES)
+                    .order(RecordingFormat.BYTE_ORDER);
+            input.seek(input.length() - RecordingFormat.TRAILER_BYTES);
+            input.readFully(trailer.array());
+            assertEquals(RecordingFormat.TRAILER_MAGIC, trailer.getInt(8));
+            input.seek(trailer.getLong(0));
+            ByteBuffer header = ByteBuffer.allocate(RecordingFormat.INDEX_HEADER_BYTES)
+                    .order(RecordingFormat.BYTE_ORDER);
+            input.readFully(header.array());
+            assertEquals(RecordingFormat.RECORD_INDEX, header.getInt(0));
+            ByteBuffer offsets = ByteBuffer.allocate(header.getInt(4) * 8)
+                    .order(RecordingFormat.BYTE_ORDER);
+            input.readFully(offsets.array());
+            long[] result = new long[header.getInt(4)];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = offsets.getLong(i * 8);
+            }
+            return result;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(length);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return File offset of a frame record of the recording made by {@link #setUp}.
+     */
+    private long frameOffset(int frame) {
+        long offset = RecordingFormat.FILE_HEADER_BYTES;
+        for (int i = 0; i < frame; i++) {
+            offset += frameBytes(i);
+        }
+        return offset;
+    }
+
+    private long frameBytes(int frame) {
+        return RecordingFormat.FRAME_HEADER_BYTES
+                + mNumPoints[frame] * FLOATS_PER_POINT * RecordingFormat.BYTES_PER_FLOAT;
+    }
+
+    private void assertFrame(int i, PointCloudFrame frame) {
+        assertFrame(i, frame, false);
+    }
+
+    /**
+     * @param quantized Whether values may differ by the codec rounding.
+     */
+    private void assertFrame(int i, PointCloudFrame frame, boolean quantized) {
+        assertEquals(i * FRAME_PERIOD, frame.getTimestamp(), 0);
+        assertEquals(mNumPoints[i], frame.getNumPoints());
+        assertEquals(i % 2 == 0, frame.hasDepthPose());
+        if (frame.hasDepthPose()) {
+            assertEquals(i * FRAME_PERIOD, frame.getDepthPose()[12], 1e-6);
+            assertEquals(1f, frame.getDepthPose()[15], 0);
+        }
+        // Half a step, and a little more for the float rounding of the decoded value.
+        float positionDelta = quantized ? PointCloudCodec.POSITION_STEP_METERS * 0.501f : 0;
+        float confidenceDelta = quantized ? PointCloudCodec.CONFIDENCE_STEP * 0.501f : 0;
+        FloatBuffer points = frame.getPoints();
+        for (int f = 0; f < mNumPoints[i] * FLOATS_PER_POINT; f++) {
+            float delta = f % FLOATS_PER_POINT == 3 ? confidenceDelta : positionDelta;
+            assertEquals(mFrames[i].get(f), points.get(f), delta);
+        }
+    }
+
+    private void assertFrames(PointCloudReplay replay, int frames) {
+        assertEquals(frames, replay.getFrameCount());
+        assertEquals(FLOATS_PER_POINT, replay.getFloatsPerPoint());
+        PointCloudFrame frame = new PointCloudFrame(FLOATS_PER_POINT);
+        // Backwards, so a pose left over from the previous frame would show.
+        for (int i = frames - 1; i >= 0; i--) {
+            replay.readFrame(i, frame);
+            assertFrame(i, frame, replay.isQuantized());
+        }
+    }
+
+    @Test
+    public void replaysEveryFrameThroughTheIndex() throws IOException {
+        PointCloudReplay replay = new PointCloudReplay(mFile);
+        try {
+            assertFrames(replay, FRAMES);
+            assertEquals(MAX_POINTS, replay.getMaxPoints());
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void recordingWithoutIndexKeepsItsWholeFrames() throws IOException {
+        // As if the app died while writing the last frame.
+        truncate(mFile, frameOffset(FRAMES - 1) + RecordingFormat.FRAME_HEADER_BYTES + 100);
+        PointCloudReplay replay = new PointCloudReplay(mFile);
+        try {
+            assertFrames(replay, FRAMES - 1);
+        } finally {
+            replay.close();
+        }
+
+        // And right after the last frame, before the index.
+        truncate(mFile, frameOffset(FRAMES - 2));
+        replay = new PointCloudReplay(mFile);
+        try {
+            assertFrames(replay, FRAMES - 2);
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void framesAreSplitAcrossMappings() throws IOException {
+        // Room for a frame and a half per mapping, then less than any single frame.
+        long[] mappingBytes = {frameBytes(0) * 3 / 2, 1};
+        for (long bytes : mappingBytes) {
+            PointCloudReplay replay = new PointCloudReplay(mFile, bytes);
+            try {
+                assertFrames(replay, FRAMES);
+            } finally {
+                replay.close();
+            }
+        }
+    }
+
+    @Test
+    public void playsFramesAtTheirRecordedPace() throws IOException, InterruptedException {
+        PointCloudReplay replay = new PointCloudReplay(mFile);
+        try {
+            final int[] played = new int[1];
+            long start = System.nanoTime();
+            replay.play(new AnalysisWorker.FrameProcessor() {
+                @Override
+                public void process(PointCloudFrame frame) {
+                    assertFrame(played[0]++, frame);
+                }
+            }, true);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(FRAMES, played[0]);
+            assertTrue("Played in " + elapsed + " ns",
+                    elapsed >= (long) ((FRAMES - 1) * FRAME_PERIOD * 1e9));
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void rejectsFilesThatAreNotRecordings() throws IOException {
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(new byte[64]);
+        } finally {
+            output.close();
+        }
+        try {
+            new PointCloudReplay(mFile).close();
+            fail("Opened a file of zeros");
+        } catch (IOException expected) {
+            assertFalse(expected.getMessage().isEmpty());
+        }
+    }
+
+    @Test
+    public void quantizedRecordingsRoundTripWithinOneStep()
+            throws IOException, InterruptedException {
+        File file = recordQuantized();
+        // Random points don't have the small scan order differences of real frames, but the
+        // rounding alone still saves half.
+        assertTrue(file.length() + " bytes", file.length() * 2 < mFile.length());
+        PointCloudReplay replay = new PointCloudReplay(file);
+        try {
+            assertTrue(replay.isQuantized());
+            assertFrames(replay, FRAMES);
+            final int[] played = new int[1];
+            replay.play(new AnalysisWorker.FrameProcessor() {
+                @Override
+                public void process(PointCloudFrame frame) {
+                    assertFrame(played[0]++, frame, true);
+                }
+            }, false);
+            assertEquals(FRAMES, played[0]);
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void quantizedRecordingWithoutIndexKeepsItsWholeFrames()
+            throws IOException, InterruptedException {
+        File file = recordQuantized();
+        long[] offsets = readIndex(file);
+        assertEquals(FRAMES, offsets.length);
+        for (int i = 1; i < FRAMES; i++) {
+            // Encoded frames vary in size but keep the records aligned.
+            assertEquals(0, offsets[i] % RecordingFormat.RECORD_ALIGNMENT);
+        }
+        // Inside the encoded points of the last frame, then on a frame boundary.
+        long[] lengths = {offsets[FRAMES - 1] + RecordingFormat.FRAME_HEADER_BYTES + 100,
+                offsets[FRAMES - 2]};
+        for (int i = 0; i < lengths.length; i++) {
+            truncate(file, lengths[i]);
+            PointCloudReplay replay = new PointCloudReplay(file);
+            try {
+                assertFrames(replay, FRAMES - 1 - i);
+            } finally {
+                replay.close();
+            }
+        }
+    }
+
+    @Test
+    public void quantizedFramesAreSplitAcrossMappings() throws IOException, InterruptedException {
+        File file = recordQuantized();
+        long[] offsets = readIndex(file);
+        long[] mappingBytes = {(offsets[1] - offsets[0]) * 3 / 2, 1};
+        for (long bytes : mappingBytes) {
+            PointCloudReplay replay = new PointCloudReplay(file, bytes);
+            try {
+                assertFrames(replay, FRAMES);
+            } finally {
+                replay.close();
+            }
+        }
+    }
+
+    /**
+     * Write a version 1 recording of XYZ frames of 1, 3, 5... points, whose point data are not
+     * padded, so every other frame starts off the 8 byte alignment.
+     *
+     * @return The points of each frame.
+     */
+    private static float[][] writeVersion1(File file, int frames, boolean withIndex)
+            throws IOException {
+        final int floatsPerPoint = 3;
+        float[][] points = new float[frames][];
+        long[] offsets = new long[frames];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(RecordingFormat.FILE_HEADER_BYTES)
+                .order(RecordingFormat.BYTE_ORDER);
+        header.putInt(RecordingFormat.FILE_MAGIC);
+        header.putInt(RecordingFormat.FIRST_VERSION);
+        header.putInt(floatsPerPoint);
+        header.putInt(0);
+        bytes.write(header.array(), 0, header.capacity());
+        for (int i = 0; i < frames; i++) {
+            points[i] = new float[(2 * i + 1) * floatsPerPoint];
+            for (int f = 0; f < points[i].length; f++) {
+                points[i][f] = i + f * 0.25f;
+            }
+            ByteBuffer record = ByteBuffer.allocate(RecordingFormat.FRAME_HEADER_BYTES
+                    + points[i].length * RecordingFormat.BYTES_PER_FLOAT)
+                    .order(RecordingFormat.BYTE_ORDER);
+            record.putInt(RecordingFormat.RECORD_FRAME);
+            record.putInt(points[i].length / floatsPerPoint);
+            record.putDouble(i * FRAME_PERIOD);
+            record.putInt(i == 1 ? 1 : 0);
+            // Reserved in version 1.
+            record.putInt(0);
+            for (int p = 0; p < 16; p++) {
+                record.putFloat(i == 1 && p % 5 == 0 ? 1 : 0);
+            }
+            for (float value : points[i]) {
+                record.putFloat(value);
+            }
+            offsets[i] = bytes.size();
+            bytes.write(record.array(), 0, record.capacity());
+        }
+        if (withIndex) {
+            ByteBuffer index = ByteBuffer.allocate(RecordingFormat.INDEX_HEADER_BYTES
+                    + frames * 8 + RecordingFormat.TRAILER_BYTES)
+                    .order(RecordingFormat.BYTE_ORDER);
+            index.putInt(RecordingFormat.RECORD_INDEX);
+            index.putInt(frames);
+            for (long offset : offsets) {
+                index.putLong(offset);
+            }
+            index.putLong(bytes.size());
+            index.putInt(RecordingFormat.TRAILER_MAGIC);
+            index.putInt(0);
+            bytes.write(index.array(), 0, index.capacity());
+        }
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            bytes.writeTo(output);
+        } finally {
+            output.close();
+        }
+        return points;
+    }
+
+    @Test
+    public void readsVersion1Recordings() throws IOException {
+        final int frames = 4;
+        boolean[] withIndex = {true, false};
+        for (boolean index : withIndex) {
+            float[][] expected = writeVersion1(mFile, frames, index);
+            // Splitting the mappings as well, so some regions start on an odd frame.
+            long[] mappingBytes = {Long.MAX_VALUE, 1};
+            for (long bytes : mappingBytes) {
+                PointCloudReplay replay = new PointCloudReplay(mFile, bytes);
+                try {
+                    assertFalse(replay.isQuantized());
+                    assertEquals(frames, replay.getFrameCount());
+                    assertEquals(3, replay.getFloatsPerPoint());
+                    PointCloudFrame frame = new PointCloudFrame(3);
+                    for (int i = frames - 1; i >= 0; i--) {
+                        replay.readFrame(i, frame);
+                        assertEquals(i * FRAME_PERIOD, frame.getTimestamp(), 0);
+                        assertEquals(expected[i].length / 3, frame.getNumPoints());
+                        assertEquals(i == 1, frame.hasDepthPose());
+                        FloatBuffer points = frame.getPoints();
+                        for (int f = 0; f < expected[i].length; f++) {
+                            assertEquals(expected[i][f], points.get(f), 0);
+                        }
+                    }
+                } finally {
+                    replay.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsNewerVersions() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RecordingFormat.FILE_HEADER_BYTES)
+                .order(RecordingFormat.BYTE_ORDER);
+        header.putInt(RecordingFormat.FILE_MAGIC);
+        header.putInt(RecordingFormat.VERSION + 1);
+        header.putInt(FLOATS_PER_POINT);
+        header.putInt(0);
+        FileOutputStream output = new FileOutputStream(mFile);
+        try {
+            output.write(header.array());
+        } finally {
+            output.close();
+        }
+        try {
+            new PointCloudReplay(mFile).close();
+            fail("Opened a version " + (RecordingFormat.VERSION + 1) + " recording");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(),
+                    expected.getMessage().contains(String.valueOf(RecordingFormat.VERSION + 1)));
+        }
+    }
+
+    @Test
+    public void replaysEveryPointWithoutACompactor() throws IOException {
+        PointCloudReplay replay = new PointCloudReplay(mFile);
+        try {
+            PointCloudFrame frame = new PointCloudFrame(FLOATS_PER_POINT);
+            for (int i = 0; i < FRAMES; i++) {
+                replay.readFrame(i, frame);
+                assertEquals(mNumPoints[i], frame.getNumPoints());
+            }
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void compactsLikeTheLiveFrames() throws IOException, InterruptedException {
+        final PointCompactor live = ObstacleAnalyzer.createPointCompactor(MAX_POINTS);
+        final PointCloudReplay replay = new PointCloudReplay(mFile);
+        try {
+            replay.setCompactor(ObstacleAnalyzer.createPointCompactor(replay.getMaxPoints()));
+            final int[] played = new int[1];
+            replay.play(new AnalysisWorker.FrameProcessor() {
+                @Override
+                public void process(PointCloudFrame frame) {
+                    int i = played[0]++;
+                    int numPoints = live.compact(mFrames[i], mNumPoints[i]);
+                    assertTrue(numPoints < mNumPoints[i]);
+                    assertEquals(numPoints, frame.getNumPoints());
+                    FloatBuffer expected = live.getOutput();
+                    FloatBuffer points = frame.getPoints();
+                    for (int f = 0; f < numPoints * FLOATS_PER_POINT; f++) {
+                        assertEquals(expected.get(f), points.get(f), 0);
+                    }
+                }
+            }, false);
+            assertEquals(FRAMES, played[0]);
+        } finally {
+            replay.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyXyzcRecordingsAreCompacted() throws IOException, InterruptedException {
+        File file = File.createTempFile("replay", ".icurec");
+        try {
+            PointCloudRecorder recorder = new PointCloudRecorder(file, 10, 3, null);
+            recorder.start();
+            recorder.close();
+            PointCloudReplay replay = new PointCloudReplay(file);
+            try {
+                replay.setCompactor(ObstacleAnalyzer.createPointCompactor(10));
+            } finally {
+                replay.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.recording;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of {@link RansByteCoder} on streams it compresses and streams it stores raw.
+ */
+public class RansByteCoderTest {
+    private static final int LENGTH = 20000;
+
+    private final Random mRandom = new Random(5);
+    private final RansByteCoder mCoder = new RansByteCoder(LENGTH);
+
+    /**
+     * @return Encoded size in bytes.
+     */
+    private int roundTrip(byte[] symbols, int length) {
+        ByteBuffer encoded = ByteBuffer.allocate(RansByteCoder.getMaxEncodedBytes(length));
+        mCoder.encode(symbols, length, encoded);
+        int bytes = encoded.position();
+        encoded.flip();
+        byte[] decoded = new byte[LENGTH];
+        assertEquals(length, mCoder.decode(encoded, decoded));
+        assertEquals(bytes, encoded.position());
+        assertArrayEquals(Arrays.copyOf(symbols, length), Arrays.copyOf(decoded, length));
+        return bytes;
+    }
+
+    @Test
+    public void skewedStreamsShrink() {
+        // Small zigzag coded differences, as the point codec produces.
+        byte[] symbols = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            symbols[i] = (byte) Math.min(255, (int) Math.abs(mRandom.nextGaussian() * 6));
+        }
+        int bytes = roundTrip(symbols, LENGTH);
+        assertTrue("Encoded to " + bytes, bytes < LENGTH / 2);
+    }
+
+    @Test
+    public void rareSymbolsSurviveScaling() {
+        // Every symbol but one occurs once, far below one slot of the scaled frequencies.
+        byte[] symbols = new byte[LENGTH];
+        for (int i = 0; i < 255; i++) {
+            symbols[i * 61] = (byte) (i + 1);
+        }
+        roundTrip(symbols, LENGTH);
+    }
+
+    @Test
+    public void uniformStreamsAreStoredRaw() {
+        byte[] symbols = new byte[LENGTH];
+        mRandom.nextBytes(symbols);
+        assertEquals(RansByteCoder.getMaxEncodedBytes(LENGTH), roundTrip(symbols, LENGTH));
+    }
+
+    @Test
+    public void singleSymbolStreams() {
+        byte[] symbols = new byte[LENGTH];
+        Arrays.fill(symbols, (byte) 0x80);
+        assertTrue(roundTrip(symbols, LENGTH) < 100);
+        roundTrip(symbols, 1);
+    }
+
+    @Test
+    public void emptyStream() {
+        assertEquals(RansByteCoder.getMaxEncodedBytes(0), roundTrip(new byte[0], 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStreamsLongerThanTheTarget() {
+        byte[] symbols = new byte[LENGTH];
+        ByteBuffer encoded = ByteBuffer.allocate(RansByteCoder.getMaxEncodedBytes(LENGTH));
+        mCoder.encode(symbols, LENGTH, encoded);
+        encoded.flip();
+        mCoder.decode(encoded, new byte[LENGTH - 1]);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.trace;
+
+import com.projecttango.examples.java.pointcloud.pipeline.Clock;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes trace files with {@link TraceLog} and reads them back with {@link TraceDecoder}.
+ */
+public class TraceLogTest {
+    private static final String[] EVENTS = {"frame", "alert"};
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Ticks one microsecond per reading.
+    private final Clock mClock = new Clock() {
+        private final AtomicLong mNanos = new AtomicLong();
+
+        @Override
+        public long nanoTime() {
+            return mNanos.addAndGet(1000);
+        }
+    };
+
+    private File mDirectory;
+
+    private static class Record {
+        final long mTime;
+        final int mEvent;
+        final String mName;
+        final int mArg;
+        final double mValue0;
+        final double mValue1;
+
+        Record(long time, int event, String name, int arg, double value0, double value1) {
+            mTime = time;
+            mEvent = event;
+            mName = name;
+            mArg = arg;
+            mValue0 = value0;
+            mValue1 = value1;
+        }
+    }
+
+    private static List<Record> decode(File... files) throws IOException {
+        final List<Record> records = new ArrayList<Record>();
+        for (File file : files) {
+            int before = records.size();
+            long count = TraceDecoder.decode(file, new TraceDecoder.Visitor() {
+                @Override
+                public void onRecord(long timeNanos, int event, String eventName, int arg,
+                                     double value0, double value1) {
+                    records.add(new Record(timeNanos, event, eventName, arg, value0, value1));
+                }
+            });
+            assertEquals(records.size() - before, count);
+        }
+        return records;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder();
+    }
+
+    private TraceLog open(int capacity, long maxFileBytes, int maxFiles) throws IOException {
+        return new TraceLog(mDirectory, "test", EVENTS, mClock, capacity, maxFileBytes,
+                maxFiles);
+    }
+
+    @Test
+    public void recordsRoundTrip() throws IOException {
+        TraceLog log = open(16, TraceLog.DEFAULT_MAX_FILE_BYTES, 1);
+        assertTrue(log.trace(0, 60000, 1.5, -2.25));
+        assertTrue(log.trace(1, 3, Double.NaN, Double.MAX_VALUE));
+        log.close();
+        assertEquals(2, log.getRecordsWritten());
+
+        List<Record> records = decode(log.getFile(0));
+        assertEquals(2, records.size());
+        Record frame = records.get(0);
+        assertEquals(1000, frame.mTime);
+        assertEquals("frame", frame.mName);
+        assertEquals(60000, frame.mArg);
+        assertEquals(1.5, frame.mValue0, 0);
+        assertEquals(-2.25, frame.mValue1, 0);
+        Record alert = records.get(1);
+        assertEquals(2000, alert.mTime);
+        assertEquals(1, alert.mEvent);
+        assertEquals("alert", alert.mName);
+        assertTrue(Double.isNaN(alert.mValue0));
+        assertEquals(Double.MAX_VALUE, alert.mValue1, 0);
+    }
+
+    @Test
+    public void fullRingDropsAndCountsRecords() throws IOException {
+        // Without the writer thread nothing drains the ring until close.
+        TraceLog log = open(8, TraceLog.DEFAULT_MAX_FILE_BYTES, 1);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i < 8, log.trace(0, i, i, 0));
+        }
+        assertEquals(12, log.getRecordsDropped());
+        log.close();
+
+        List<Record> records = decode(log.getFile(0));
+        assertEquals(9, records.size());
+        assertEquals(TraceFormat.EVENT_OVERFLOW, records.get(0).mEvent);
+        assertEquals("overflow", records.get(0).mName);
+        assertEquals(12, records.get(0).mArg);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, records.get(i + 1).mArg);
+        }
+    }
+
+    @Test
+    public void rotationKeepsTheNewestFiles() throws IOException {
+        // The writer checks the size before each batch of 512 records, so this writes one batch
+        // per file.
+        long maxFileBytes = 64 + 600 * TraceFormat.RECORD_BYTES;
+        TraceLog log = open(4096, maxFileBytes, 2);
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            assertTrue(log.trace(0, i, 0, 0));
+        }
+        log.close();
+
+        assertEquals(3, log.getCurrentFileIndex());
+        assertFalse(log.getFile(0).exists());
+        assertFalse(log.getFile(1).exists());
+        assertTrue(log.getFile(2).length() <= maxFileBytes);
+        List<Record> records = decode(log.getFile(2), log.getFile(3));
+        assertEquals(count - 2 * 512, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(2 * 512 + i, records.get(i).mArg);
+        }
+    }
+
+    @Test
+    public void concurrentProducersKeepTheirOrder() throws IOException, InterruptedException {
+        final TraceLog log = open(1024, TraceLog.DEFAULT_MAX_FILE_BYTES, 1);
+        log.start();
+        final int producers = 4;
+        final int perProducer = 50000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        // Both values derive from the sequence, so a torn record shows.
+                        log.trace(1, producer, i, -i);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.close();
+
+        List<Record> records = decode(log.getFile(0));
+        assertEquals(log.getRecordsWritten(), records.size());
+        long[] last = new long[producers];
+        Arrays.fill(last, -1);
+        long received = 0;
+        long overflowed = 0;
+        for (Record record : records) {
+            if (record.mEvent == TraceFormat.EVENT_OVERFLOW) {
+                overflowed += record.mArg;
+                continue;
+            }
+            assertEquals("alert", record.mName);
+            assertEquals(-record.mValue0, record.mValue1, 0);
+            long sequence = (long) record.mValue0;
+            assertTrue(sequence > last[record.mArg]);
+            last[record.mArg] = sequence;
+            received++;
+        }
+        assertEquals(log.getRecordsDropped(), overflowed);
+        assertEquals((long) producers * perProducer, received + overflowed);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.mapping.OccupancyMap;
+import com.projecttango.examples.java.pointcloud.pipeline.ObstacleAnalyzer;
+import com.projecttango.examples.java.pointcloud.pipeline.PointCloudFrame;
+import com.projecttango.examples.java.pointcloud.processing.SectorHistogram;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The analysis stages run by {@link ObstacleAnalyzer} on every frame, alone and combined.
+ * Stages after the voxel filter are measured on both the raw and the downsampled cloud.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AnalysisBenchmark {
+    private static final int SECTORS = 3;
+    private static final float[] IDENTITY = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1
+    };
+
+    @Param({"10000", "60000"})
+    public int numPoints;
+
+    private FloatBuffer mPoints;
+    private FloatBuffer mVoxels;
+    private int mNumVoxels;
+    private SectorHistogram mSectorHistogram;
+    private OccupancyMap mOccupancyMap;
+    private ObstacleAnalyzer mAnalyzer;
+    private PointCloudFrame mFrame;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPoints = BenchmarkClouds.load(numPoints, 4);
+
+        VoxelGridFilter filter = new VoxelGridFilter(numPoints, BenchmarkClouds.FLOATS_PER_POINT,
+                ObstacleAnalyzer.DEFAULT_VOXEL_SIZE_METERS);
+        mNumVoxels = filter.filter(mPoints, numPoints);
+        mVoxels = filter.getOutput();
+
+        mSectorHistogram = new SectorHistogram(BenchmarkClouds.FLOATS_PER_POINT, SECTORS,
+                ObstacleAnalyzer.DEPTH_HORIZONTAL_FOV_DEGREES, 1,
+                ObstacleAnalyzer.DEPTH_VERTICAL_FOV_DEGREES);
+        mSectorHistogram.setDepthRange(ObstacleAnalyzer.MIN_TRACKING_METERS,
+                ObstacleAnalyzer.MAX_TRACKING_METERS);
+        mSectorHistogram.setAlertDistance(ObstacleAnalyzer.ARM_LENGTH_METERS);
+
+        // The map reaches its steady state after the first frame, since every frame is the same.
+        mOccupancyMap = new OccupancyMap(ObstacleAnalyzer.OCCUPANCY_VOXEL_SIZE_METERS, numPoints,
+                BenchmarkClouds.FLOATS_PER_POINT);
+        mOccupancyMap.integrate(mPoints, numPoints, IDENTITY);
+
+        mAnalyzer = new ObstacleAnalyzer(numPoints, BenchmarkClouds.FLOATS_PER_POINT, SECTORS);
+        mFrame = new PointCloudFrame(BenchmarkClouds.FLOATS_PER_POINT);
+    }
+
+    @Benchmark
+    public int sectorHistogramRaw() {
+        mSectorHistogram.compute(mPoints, numPoints);
+        return mSectorHistogram.findNearestObstacle(ObstacleAnalyzer.MIN_OBSTACLE_POINTS);
+    }
+
+    @Benchmark
+    public int sectorHistogramVoxels() {
+        mSectorHistogram.compute(mVoxels, mNumVoxels);
+        return mSectorHistogram.findNearestObstacle(ObstacleAnalyzer.MIN_OBSTACLE_POINTS);
+    }
+
+    @Benchmark
+    public int occupancyMapRaw() {
+        mOccupancyMap.integrate(mPoints, numPoints, IDENTITY);
+        return mOccupancyMap.getVoxelsUpdatedLastFrame();
+    }
+
+    @Benchmark
+    public int occupancyMapVoxels() {
+        mOccupancyMap.integrate(mVoxels, mNumVoxels, IDENTITY);
+        return mOccupancyMap.getVoxelsUpdatedLastFrame();
+    }
+
+    @Benchmark
+    public int obstacleAnalyzer() {
+        mFrame.setView(0, numPoints, mPoints);
+        mFrame.setDepthPose(IDENTITY);
+        mAnalyzer.process(mFrame);
+        return mAnalyzer.getObstacleSector();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.processing.PointCloudStats;
+import com.projecttango.examples.java.pointcloud.processing.PointStatisticsKernel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Depth and XY averaging: the two pass absolute-get loops PointCloudActivity used to run on every
+ * frame, against the single pass {@link PointStatisticsKernel}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AveragingBenchmark {
+    @Param({"1000", "10000", "30000", "60000"})
+    public int numPoints;
+
+    private FloatBuffer mPoints;
+    private final PointStatisticsKernel mKernel =
+            new PointStatisticsKernel(BenchmarkClouds.FLOATS_PER_POINT);
+    private final PointCloudStats mStats = new PointCloudStats();
+
+    @Setup
+    public void setUp() throws IOException {
+        mPoints = BenchmarkClouds.load(numPoints, 1);
+    }
+
+    @Benchmark
+    public void legacyAveraging(Blackhole blackhole) {
+        blackhole.consume(legacyAveragedDepth(mPoints, numPoints));
+        blackhole.consume(legacyAveragedXY(mPoints, numPoints));
+    }
+
+    @Benchmark
+    public PointCloudStats statisticsKernel() {
+        mKernel.compute(mPoints, numPoints, mStats);
+        return mStats;
+    }
+
+    // Verbatim copies of the original PointCloudActivity helpers, kept as the baseline.
+
+    private static float legacyAveragedDepth(FloatBuffer pointCloudBuffer, int numPoints) {
+        float totalZ = 0;
+        float averageZ = 0;
+
+        if (numPoints != 0) {
+            int numFloats = 4 * numPoints;
+            for (int i = 2; i < numFloats; i = i + 4) {
+                totalZ = totalZ + pointCloudBuffer.get(i);
+            }
+            averageZ = totalZ / numPoints;
+        }
+        return averageZ;
+    }
+
+    private static float[] legacyAveragedXY(FloatBuffer pointCloudBuffer, int numPoints) {
+        float ret[] = new float[2];
+        ret[0] = 0;
+        ret[1] = 0;
+
+        float totalX = 0;
+        float totalY = 0;
+
+        if (numPoints != 0) {
+            int numFloats = 4 * numPoints;
+            for (int i = 1; i < numFloats; i = i + 4) {
+                totalX = totalX + pointCloudBuffer.get(i - 1);
+                totalY = totalY + pointCloudBuffer.get(i);
+            }
+            ret[0] = totalX / numPoints;
+            ret[1] = totalY / numPoints;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.pipeline.PointCloudFrame;
+import com.projecttango.examples.java.pointcloud.recording.PointCloudReplay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Point cloud inputs for the benchmarks.
+ * <p/>
+ * By default clouds are synthetic: a depth camera standing in a corridor, looking at a wall with
+ * a floor below and a pole ahead-left, with depth noise growing with distance like the Tango
+ * sensor. If the {@code pointcloud.recording} system property names a recording, clouds are taken
+ * from its frames instead.
+ */
+public final class BenchmarkClouds {
+    public static final int FLOATS_PER_POINT = 4;
+    public static final String RECORDING_PROPERTY = "pointcloud.recording";
+
+    private static final int BYTES_PER_FLOAT = 4;
+    private static final float HALF_FOV_TAN_X = 0.58f;
+    private static final float HALF_FOV_TAN_Y = 0.41f;
+    private static final float WALL_DEPTH = 3.5f;
+    private static final float FLOOR_HEIGHT = 1.3f;
+    private static final float POLE_DEPTH = 1.1f;
+    private static final float POLE_X = -0.35f;
+    private static final float POLE_RADIUS = 0.08f;
+
+    private BenchmarkClouds() {
+    }
+
+    public static FloatBuffer allocate(int numPoints) {
+        return ByteBuffer.allocateDirect(numPoints * FLOATS_PER_POINT * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * @return A cloud of {@code numPoints} XYZC points in a direct buffer, from the recording if
+     * one is configured, synthetic otherwise.
+     */
+    public static FloatBuffer load(int numPoints, long seed) throws IOException {
+        String recording = System.getProperty(RECORDING_PROPERTY);
+        if (recording != null) {
+            return fromRecording(new File(recording), numPoints);
+        }
+        return synthetic(numPoints, seed);
+    }
+
+    /**
+     * Generate a synthetic depth frame in the depth camera frame (X right, Y down, Z forward).
+     */
+    public static FloatBuffer synthetic(int numPoints, long seed) {
+        FloatBuffer points = allocate(numPoints);
+        fillSynthetic(points, numPoints, new Random(seed), 0f);
+        return points;
+    }
+
+    /**
+     * Fill a buffer with a synthetic frame, seen from {@code forward} meters closer to the wall.
+     */
+    public static void fillSynthetic(FloatBuffer points, int numPoints, Random random,
+                                     float forward) {
+        points.clear();
+        for (int i = 0; i < numPoints; i++) {
+            float tanX = (random.nextFloat() * 2 - 1) * HALF_FOV_TAN_X;
+            float tanY = (random.nextFloat() * 2 - 1) * HALF_FOV_TAN_Y;
+            putPoint(points, tanX, tanY, random, forward);
+        }
+        points.flip();
+    }
+
+    /**
+     * Generate the synthetic frame with points in the sensor scan order, row by row, like the
+     * frames delivered by Tango. Needed where the order matters, as for delta coding.
+     */
+    public static FloatBuffer scanned(int numPoints, long seed) {
+        FloatBuffer points = allocate(numPoints);
+        Random random = new Random(seed);
+        int columns = (int) Math.ceil(Math.sqrt(numPoints * HALF_FOV_TAN_X / HALF_FOV_TAN_Y));
+        int rows = (numPoints + columns - 1) / columns;
+        for (int i = 0; i < numPoints; i++) {
+            float tanX = ((i % columns + 0.5f) / columns * 2 - 1) * HALF_FOV_TAN_X;
+            float tanY = ((i / columns + 0.5f) / rows * 2 - 1) * HALF_FOV_TAN_Y;
+            putPoint(points, tanX, tanY, random, 0f);
+        }
+        points.flip();
+        return points;
+    }
+
+    private static void putPoint(FloatBuffer points, float tanX, float tanY, Random random,
+                                 float forward) {
+        float depth = WALL_DEPTH - forward;
+        if (tanY > 0) {
+            depth = Math.min(depth, FLOOR_HEIGHT / tanY);
+        }
+        float poleDepth = POLE_DEPTH - forward;
+        if (poleDepth > 0 && Math.abs(tanX * poleDepth - POLE_X) < POLE_RADIUS) {
+            depth = Math.min(depth, poleDepth);
+        }
+        // Tango depth noise grows roughly with the square of the distance.
+        depth += (float) random.nextGaussian() * 0.005f * depth * depth;
+        points.put(tanX * depth);
+        points.put(tanY * depth);
+        points.put(depth);
+        points.put(random.nextFloat());
+    }
+
+    /**
+     * Copy points out of recorded frames into a new buffer, repeating frames until
+     * {@code numPoints} points are collected.
+     */
+    public static FloatBuffer fromRecording(File file, int numPoints) throws IOException {
+        PointCloudReplay replay = new PointCloudReplay(file);
+        try {
+            if (replay.getFrameCount() == 0 || replay.getFloatsPerPoint() != FLOATS_PER_POINT) {
+                throw new IOException("Recording has no usable XYZC frames: " + file);
+            }
+            FloatBuffer points = allocate(numPoints);
+            PointCloudFrame frame = new PointCloudFrame(FLOATS_PER_POINT);
+            int frameIndex = 0;
+            int passStart = 0;
+            while (points.position() < numPoints * FLOATS_PER_POINT) {
+                replay.readFrame(frameIndex, frame);
+                FloatBuffer source = frame.getPoints();
+                source.rewind();
+                int floats = Math.min(frame.getNumPoints() * FLOATS_PER_POINT, points.remaining());
+                source.limit(floats);
+                points.put(source);
+                frameIndex = (frameIndex + 1) % replay.getFrameCount();
+                if (frameIndex == 0) {
+                    // Repeating a recording whose frames are all empty would never finish.
+                    if (points.position() == passStart) {
+                        throw new IOException("Recording has no points: " + file);
+                    }
+                    passStart = points.position();
+                }
+            }
+            points.flip();
+            return points;
+        } finally {
+            replay.close();
+        }
+    }
+}
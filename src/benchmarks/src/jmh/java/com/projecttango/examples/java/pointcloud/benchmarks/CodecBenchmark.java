@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.recording.PointCloudCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding and decoding a depth frame with {@link PointCloudCodec}, which has to keep up
+ * with the depth camera to record in real time. Frames are in the sensor scan order: taken from
+ * the recording named by the {@code pointcloud.recording} system property, or synthetic.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+    @Param({"60000"})
+    public int numPoints;
+
+    private FloatBuffer mPoints;
+    private FloatBuffer mDecoded;
+    private ByteBuffer mEncoded;
+    private PointCloudCodec mEncoder;
+    private PointCloudCodec mDecoder;
+
+    @Setup
+    public void setUp() throws IOException {
+        String recording = System.getProperty(BenchmarkClouds.RECORDING_PROPERTY);
+        mPoints = recording != null
+                ? BenchmarkClouds.fromRecording(new File(recording), numPoints)
+                : BenchmarkClouds.scanned(numPoints, 25);
+        mDecoded = BenchmarkClouds.allocate(numPoints);
+        mEncoded = ByteBuffer.allocateDirect(PointCloudCodec.getMaxEncodedBytes(numPoints,
+                BenchmarkClouds.FLOATS_PER_POINT)).order(ByteOrder.LITTLE_ENDIAN);
+        mEncoder = new PointCloudCodec(numPoints, BenchmarkClouds.FLOATS_PER_POINT);
+        mDecoder = new PointCloudCodec(numPoints, BenchmarkClouds.FLOATS_PER_POINT);
+        mEncoder.encode(mPoints, numPoints, mEncoded);
+    }
+
+    @Benchmark
+    public int encode() {
+        mEncoded.clear();
+        return mEncoder.encode(mPoints, numPoints, mEncoded);
+    }
+
+    @Benchmark
+    public int decode() {
+        mEncoded.flip();
+        return mDecoder.decode(mEncoded, mDecoded);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.processing.DepthColorMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per point depth colouring for {@code rajawali.PointCloud}: the original float colouring loop,
+ * copied here with {@code android.graphics.Color} replaced by the equivalent bit operations,
+ * against the {@link DepthColorMap} lookup tables now used by the renderer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColorBenchmark {
+    private static final float CLOUD_MAX_Z = 5;
+    private static final int PALETTE_SIZE = 360;
+    private static final float HUE_BEGIN = 0;
+    private static final float HUE_END = 320;
+
+    @Param({"1000", "10000", "30000", "60000"})
+    public int numPoints;
+
+    private FloatBuffer mPoints;
+    private int[] mPalette;
+    private float[] mColorArray;
+    private final int mFloatsPerPoint = BenchmarkClouds.FLOATS_PER_POINT;
+    private DepthColorMap mColorMap;
+    private IntBuffer mPackedColors;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPoints = BenchmarkClouds.load(numPoints, 2);
+        mPalette = createPalette();
+        mColorArray = new float[numPoints * 4];
+        mColorMap = new DepthColorMap(mPalette, CLOUD_MAX_Z, mFloatsPerPoint);
+        mPackedColors = ByteBuffer.allocateDirect(numPoints * DepthColorMap.BYTES_PER_PACKED_COLOR)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    @Benchmark
+    public float[] legacyCalculateColors() {
+        calculateColors(numPoints, mPoints);
+        return mColorArray;
+    }
+
+    @Benchmark
+    public float[] colorMapFloat() {
+        mColorMap.fill(mPoints, numPoints, mColorArray);
+        return mColorArray;
+    }
+
+    @Benchmark
+    public IntBuffer colorMapPacked() {
+        mColorMap.fill(mPoints, numPoints, mPackedColors);
+        return mPackedColors;
+    }
+
+    private static int[] createPalette() {
+        int[] palette = new int[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            palette[i] = hsvToColor((HUE_END - HUE_BEGIN) * i / PALETTE_SIZE + HUE_BEGIN);
+        }
+        return palette;
+    }
+
+    /**
+     * ARGB colour of a hue with full saturation and value, like {@code Color.HSVToColor}.
+     */
+    static int hsvToColor(float hue) {
+        float h = hue / 60f;
+        int sector = (int) h % 6;
+        float f = h - (int) h;
+        int rising = Math.round(f * 255);
+        int falling = 255 - rising;
+        int r;
+        int g;
+        int b;
+        switch (sector) {
+            case 0:
+                r = 255;
+                g = rising;
+                b = 0;
+                break;
+            case 1:
+                r = falling;
+                g = 255;
+                b = 0;
+                break;
+            case 2:
+                r = 0;
+                g = 255;
+                b = rising;
+                break;
+            case 3:
+                r = 0;
+                g = falling;
+                b = 255;
+                break;
+            case 4:
+                r = rising;
+                g = 0;
+                b = 255;
+                break;
+            default:
+                r = 255;
+                g = 0;
+                b = falling;
+                break;
+        }
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    // Copy of PointCloud.calculateColors, including its per frame allocation.
+    private void calculateColors(int pointCount, FloatBuffer pointCloudBuffer) {
+        float[] points = new float[pointCount * 4];
+        pointCloudBuffer.rewind();
+        pointCloudBuffer.get(points);
+        pointCloudBuffer.rewind();
+
+        int color;
+        int colorIndex;
+        float z;
+        for (int i = 0; i < pointCount; i++) {
+            z = points[i * mFloatsPerPoint + 2];
+            colorIndex = (int) Math.min(z / CLOUD_MAX_Z * mPalette.length, mPalette.length - 1);
+            colorIndex = Math.max(colorIndex, 0);
+            color = mPalette[colorIndex];
+            mColorArray[i * 4] = ((color >> 16) & 0xff) / 255f;
+            mColorArray[i * 4 + 1] = ((color >> 8) & 0xff) / 255f;
+            mColorArray[i * 4 + 2] = (color & 0xff) / 255f;
+            mColorArray[i * 4 + 3] = (color >>> 24) / 255f;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.processing.DepthColorMap;
+import com.projecttango.examples.java.pointcloud.processing.PointCompactor;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link PointCompactor} and of the render preparation downstream of it, on every point
+ * against only the points kept. Synthetic clouds have uniform confidences, so the confidence
+ * threshold alone sets the fraction kept.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompactionBenchmark {
+    private static final float MIN_DEPTH = 0.5f;
+    private static final float MAX_DEPTH = 5f;
+    private static final float VOXEL_SIZE = 0.03f;
+
+    @Param({"60000"})
+    public int numPoints;
+
+    @Param({"0.3", "0.5"})
+    public float minConfidence;
+
+    private FloatBuffer mPoints;
+    private PointCompactor mCompactor;
+    private int mNumKept;
+    private VoxelGridFilter mVoxelFilter;
+    private DepthColorMap mColorMap;
+    private FloatBuffer mFiltered;
+    private IntBuffer mColors;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPoints = BenchmarkClouds.load(numPoints, 22);
+        mCompactor = new PointCompactor(numPoints, minConfidence, MIN_DEPTH, MAX_DEPTH);
+        mNumKept = mCompactor.compact(mPoints, numPoints);
+        mVoxelFilter = new VoxelGridFilter(numPoints, BenchmarkClouds.FLOATS_PER_POINT,
+                VOXEL_SIZE);
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = 0xff000000 | i << 8;
+        }
+        mColorMap = new DepthColorMap(palette, MAX_DEPTH, BenchmarkClouds.FLOATS_PER_POINT);
+        mFiltered = BenchmarkClouds.allocate(numPoints);
+        mColors = ByteBuffer.allocateDirect(numPoints * DepthColorMap.BYTES_PER_PACKED_COLOR)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    @Benchmark
+    public int compact() {
+        return mCompactor.compact(mPoints, numPoints);
+    }
+
+    @Benchmark
+    public IntBuffer prepareAll() {
+        return prepare(mPoints, numPoints);
+    }
+
+    /**
+     * Compaction followed by the same preparation on the points kept.
+     */
+    @Benchmark
+    public IntBuffer compactAndPrepare() {
+        int kept = mCompactor.compact(mPoints, numPoints);
+        return prepare(mCompactor.getOutput(), kept);
+    }
+
+    @Benchmark
+    public IntBuffer prepareKept() {
+        return prepare(mCompactor.getOutput(), mNumKept);
+    }
+
+    private IntBuffer prepare(FloatBuffer points, int count) {
+        int filtered = mVoxelFilter.filter(points, count, mFiltered);
+        mColorMap.fill(mFiltered, filtered, mColors);
+        return mColors;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Voxel grid downsampling of a full frame at several voxel sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FilterBenchmark {
+    @Param({"10000", "60000"})
+    public int numPoints;
+
+    @Param({"0.02", "0.03", "0.05"})
+    public float voxelSize;
+
+    private FloatBuffer mPoints;
+    private VoxelGridFilter mFilter;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPoints = BenchmarkClouds.load(numPoints, 3);
+        mFilter = new VoxelGridFilter(numPoints, BenchmarkClouds.FLOATS_PER_POINT, voxelSize);
+    }
+
+    @Benchmark
+    public int voxelGridFilter() {
+        return mFilter.filter(mPoints, numPoints);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.processing.GroundPlaneEstimator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Floor detection with {@link GroundPlaneEstimator}, from scratch and warm started from the
+ * previous frame's plane as on live footage, and removal of the floor points.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FloorBenchmark {
+    @Param({"10000", "60000"})
+    public int numPoints;
+
+    private FloatBuffer mPoints;
+    private FloatBuffer mOutput;
+    private GroundPlaneEstimator mEstimator;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPoints = BenchmarkClouds.load(numPoints, 13);
+        mOutput = BenchmarkClouds.allocate(numPoints);
+        mEstimator = new GroundPlaneEstimator(BenchmarkClouds.FLOATS_PER_POINT,
+                GroundPlaneEstimator.DEFAULT_MAX_SAMPLES, 13);
+        mEstimator.estimate(mPoints, numPoints);
+    }
+
+    @Benchmark
+    public float estimateCold() {
+        mEstimator.reset();
+        mEstimator.estimate(mPoints, numPoints);
+        return mEstimator.getOffset();
+    }
+
+    @Benchmark
+    public float estimateWarm() {
+        mEstimator.estimate(mPoints, numPoints);
+        return mEstimator.getOffset();
+    }
+
+    @Benchmark
+    public int removeFloor() {
+        return mEstimator.removeFloor(mPoints, numPoints, mOutput);
+    }
+}
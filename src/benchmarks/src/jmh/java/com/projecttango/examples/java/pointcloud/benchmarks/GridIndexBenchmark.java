@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.processing.PointGridIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a {@link PointGridIndex} and querying the walking corridor with it, against a scan of
+ * every point for the same answer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GridIndexBenchmark {
+    private static final float CELL_SIZE = 0.1f;
+    private static final float HALF_WIDTH = 0.3f;
+    private static final float HALF_HEIGHT = 0.5f;
+    private static final float NEAR = 0.5f;
+    private static final float FAR = 1.42f;
+    private static final int K = 3;
+
+    @Param({"10000", "60000"})
+    public int numPoints;
+
+    private FloatBuffer mPoints;
+    private float[] mXyz;
+    private PointGridIndex mIndex;
+    private final int[] mIndices = new int[K];
+    private final float[] mDistances = new float[K];
+
+    @Setup
+    public void setUp() throws IOException {
+        mPoints = BenchmarkClouds.load(numPoints, 19);
+        mXyz = new float[numPoints * 3];
+        for (int i = 0; i < numPoints; i++) {
+            for (int j = 0; j < 3; j++) {
+                mXyz[i * 3 + j] = mPoints.get(i * BenchmarkClouds.FLOATS_PER_POINT + j);
+            }
+        }
+        mIndex = new PointGridIndex(numPoints, BenchmarkClouds.FLOATS_PER_POINT, CELL_SIZE,
+                2 * numPoints);
+        mIndex.build(mPoints, numPoints);
+    }
+
+    @Benchmark
+    public int build() {
+        mIndex.build(mPoints, numPoints);
+        return mIndex.getCellCount();
+    }
+
+    @Benchmark
+    public float corridorNearest() {
+        mIndex.nearestInBox(-HALF_WIDTH, -HALF_HEIGHT, NEAR, HALF_WIDTH, HALF_HEIGHT, FAR,
+                0, 0, 0, K, mIndices, mDistances);
+        return mDistances[K - 1];
+    }
+
+    @Benchmark
+    public int corridorCount() {
+        return mIndex.countInBox(-HALF_WIDTH, -HALF_HEIGHT, NEAR, HALF_WIDTH, HALF_HEIGHT, FAR);
+    }
+
+    @Benchmark
+    public float nearestToPoint() {
+        mIndex.nearest(0.2f, 0.1f, 2f, K, mIndices, mDistances);
+        return mDistances[K - 1];
+    }
+
+    /**
+     * The nearest point in the corridor found by looking at every point.
+     */
+    @Benchmark
+    public float corridorScan() {
+        float best = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < numPoints * 3; i += 3) {
+            float x = mXyz[i];
+            float y = mXyz[i + 1];
+            float z = mXyz[i + 2];
+            if (x >= -HALF_WIDTH && x <= HALF_WIDTH && y >= -HALF_HEIGHT && y <= HALF_HEIGHT
+                    && z >= NEAR && z <= FAR) {
+                best = Math.min(best, x * x + y * y + z * z);
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.processing.DepthColorMap;
+import com.projecttango.examples.java.pointcloud.processing.ParallelChunks;
+import com.projecttango.examples.java.pointcloud.processing.PointCloudStats;
+import com.projecttango.examples.java.pointcloud.processing.PointStatisticsKernel;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kernels split across {@link ParallelChunks} threads, from one thread, which runs every chunk on
+ * the benchmark thread, to four. Scaling only shows on a device with that many free cores. The
+ * voxel filter only computes voxel keys in parallel, so it should gain the least.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParallelBenchmark {
+    private static final float VOXEL_SIZE = 0.03f;
+    private static final float MAX_DEPTH = 5;
+
+    @Param({"60000"})
+    public int numPoints;
+
+    @Param({"1", "2", "3", "4"})
+    public int threads;
+
+    private FloatBuffer mPoints;
+    private IntBuffer mPackedColors;
+    private ParallelChunks mParallel;
+    private PointStatisticsKernel mStatsKernel;
+    private final PointCloudStats mStats = new PointCloudStats();
+    private VoxelGridFilter mVoxelFilter;
+    private DepthColorMap mColorMap;
+
+    @Setup
+    public void setUp() throws IOException {
+        mPoints = BenchmarkClouds.load(numPoints, 18);
+        mPackedColors = ByteBuffer.allocateDirect(numPoints * DepthColorMap.BYTES_PER_PACKED_COLOR)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        mParallel = new ParallelChunks("benchmark", threads);
+        mStatsKernel = new PointStatisticsKernel(BenchmarkClouds.FLOATS_PER_POINT);
+        mStatsKernel.setParallel(mParallel, numPoints);
+        mVoxelFilter = new VoxelGridFilter(numPoints, BenchmarkClouds.FLOATS_PER_POINT,
+                VOXEL_SIZE);
+        mVoxelFilter.setParallel(mParallel);
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = 0xff000000 | i << 16 | (255 - i);
+        }
+        mColorMap = new DepthColorMap(palette, MAX_DEPTH, BenchmarkClouds.FLOATS_PER_POINT);
+        mColorMap.setParallel(mParallel);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mParallel.shutdown();
+    }
+
+    @Benchmark
+    public PointCloudStats statistics() {
+        mStatsKernel.compute(mPoints, numPoints, mStats);
+        return mStats;
+    }
+
+    @Benchmark
+    public IntBuffer colors() {
+        mColorMap.fill(mPoints, numPoints, mPackedColors);
+        return mPackedColors;
+    }
+
+    @Benchmark
+    public int voxelFilter() {
+        return mVoxelFilter.filter(mPoints, numPoints);
+    }
+}
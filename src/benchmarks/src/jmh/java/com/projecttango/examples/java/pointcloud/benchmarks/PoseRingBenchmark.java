@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.pipeline.PoseRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pose lookups in a full {@link PoseRing} of 100Hz poses, as done for every depth frame and every
+ * rendered frame instead of querying Tango.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PoseRingBenchmark {
+    private static final int CAPACITY = 256;
+    private static final double POSE_INTERVAL = 0.01;
+
+    private PoseRing mRing;
+    private final PoseRing.Pose mPose = new PoseRing.Pose();
+    private double mQueryTime;
+
+    @Setup
+    public void setUp() {
+        mRing = new PoseRing(CAPACITY, 0.1);
+        double[] translation = new double[3];
+        double[] rotation = new double[4];
+        for (int i = 0; i < 2 * CAPACITY; i++) {
+            double t = i * POSE_INTERVAL;
+            translation[0] = t;
+            translation[2] = -0.5 * t;
+            rotation[1] = Math.sin(0.1 * t);
+            rotation[3] = Math.cos(0.1 * t);
+            mRing.publish(t, translation, rotation);
+        }
+        // A depth frame a quarter second behind the newest pose, between two poses.
+        mQueryTime = (2 * CAPACITY - 25.5) * POSE_INTERVAL;
+    }
+
+    @Benchmark
+    public double poseAt() {
+        mRing.getPoseAt(mQueryTime, mPose);
+        return mPose.translation[0];
+    }
+
+    @Benchmark
+    public double latestPose() {
+        mRing.getLatestPose(mPose);
+        return mPose.translation[0];
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.pipeline.DepthPoseProvider;
+import com.projecttango.examples.java.pointcloud.pipeline.ObstacleAnalyzer;
+import com.projecttango.examples.java.pointcloud.processing.PointCompactor;
+import com.projecttango.examples.java.pointcloud.recording.PointCloudRecorder;
+import com.projecttango.examples.java.pointcloud.recording.PointCloudReplay;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole analysis pipeline over a recorded session, replayed as fast as possible.
+ * Uses the recording named by the {@code pointcloud.recording} system property, or a synthetic
+ * recording of the camera walking towards a wall.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReplayBenchmark {
+    private static final int SYNTHETIC_FRAMES = 50;
+    private static final int SYNTHETIC_POINTS = 20000;
+    private static final double FRAME_INTERVAL = 0.2;
+    private static final float WALK_SPEED = 0.5f;
+    private static final int SECTORS = 3;
+
+    private File mTempFile;
+    private PointCloudReplay mReplay;
+    private ObstacleAnalyzer mAnalyzer;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        String recording = System.getProperty(BenchmarkClouds.RECORDING_PROPERTY);
+        File file;
+        if (recording != null) {
+            file = new File(recording);
+        } else {
+            mTempFile = File.createTempFile("pointcloud", ".icurec");
+            writeSyntheticRecording(mTempFile);
+            file = mTempFile;
+        }
+        mReplay = new PointCloudReplay(file);
+        if (mReplay.getFloatsPerPoint() == PointCompactor.FLOATS_PER_POINT) {
+            // Replay what the app feeds the pipeline, not every recorded point.
+            mReplay.setCompactor(ObstacleAnalyzer.createPointCompactor(mReplay.getMaxPoints()));
+        }
+        mAnalyzer = new ObstacleAnalyzer(mReplay.getMaxPoints(), mReplay.getFloatsPerPoint(),
+                SECTORS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mReplay.close();
+        if (mTempFile != null) {
+            mTempFile.delete();
+        }
+    }
+
+    @Benchmark
+    public int replaySession() throws InterruptedException {
+        mReplay.play(mAnalyzer, false);
+        return mAnalyzer.getOccupancyMap().getBlockCount();
+    }
+
+    static void writeSyntheticRecording(File file)
+            throws IOException, InterruptedException {
+        DepthPoseProvider walkingForward = new DepthPoseProvider() {
+            @Override
+            public boolean getDepthPose(double timestamp, float[] worldTdepth) {
+                for (int i = 0; i < 16; i++) {
+                    worldTdepth[i] = i % 5 == 0 ? 1 : 0;
+                }
+                worldTdepth[14] = (float) timestamp * WALK_SPEED;
+                return true;
+            }
+        };
+        PointCloudRecorder recorder = new PointCloudRecorder(file, SYNTHETIC_POINTS,
+                BenchmarkClouds.FLOATS_PER_POINT, walkingForward);
+        recorder.start();
+        FloatBuffer points = BenchmarkClouds.allocate(SYNTHETIC_POINTS);
+        Random random = new Random(5);
+        for (int i = 0; i < SYNTHETIC_FRAMES; i++) {
+            double timestamp = i * FRAME_INTERVAL;
+            BenchmarkClouds.fillSynthetic(points, SYNTHETIC_POINTS, random,
+                    (float) timestamp * WALK_SPEED);
+            // The recorder drops frames rather than block; wait for a free slot instead.
+            while (!recorder.record(timestamp, SYNTHETIC_POINTS, points)) {
+                Thread.sleep(1);
+            }
+        }
+        recorder.close();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.mapping.MarchingCubes;
+import com.projecttango.examples.java.pointcloud.mapping.TsdfVolume;
+import com.projecttango.examples.java.pointcloud.pipeline.AnalysisWorker;
+import com.projecttango.examples.java.pointcloud.pipeline.ObstacleAnalyzer;
+import com.projecttango.examples.java.pointcloud.pipeline.PointCloudFrame;
+import com.projecttango.examples.java.pointcloud.pipeline.SurfaceReconstructor;
+import com.projecttango.examples.java.pointcloud.processing.PointCompactor;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+import com.projecttango.examples.java.pointcloud.recording.PointCloudReplay;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the surface reconstruction: fusing one downsampled frame into the
+ * {@link TsdfVolume}, meshing every block it touched, and both over a replayed session. The
+ * session is the recording named by the {@code pointcloud.recording} system property, or the
+ * synthetic one of {@link ReplayBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SurfaceBenchmark {
+    @Param({"60000"})
+    public int numPoints;
+
+    private FloatBuffer mDownsampled;
+    private int mNumDownsampled;
+    private TsdfVolume mVolume;
+    private final MarchingCubes mMesher = new MarchingCubes();
+    private final float[] mPose = new float[16];
+
+    private File mTempFile;
+    private PointCloudReplay mReplay;
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        FloatBuffer points = BenchmarkClouds.load(numPoints, 24);
+        VoxelGridFilter voxelFilter = new VoxelGridFilter(numPoints,
+                BenchmarkClouds.FLOATS_PER_POINT, SurfaceReconstructor.DEFAULT_VOXEL_SIZE_METERS);
+        mDownsampled = BenchmarkClouds.allocate(numPoints);
+        mNumDownsampled = voxelFilter.filter(points, numPoints, mDownsampled);
+        mVolume = new TsdfVolume(SurfaceReconstructor.DEFAULT_VOXEL_SIZE_METERS,
+                SurfaceReconstructor.DEFAULT_TRUNCATION_METERS,
+                SurfaceReconstructor.DEFAULT_MAX_BLOCKS, BenchmarkClouds.FLOATS_PER_POINT);
+        mPose[0] = 1;
+        mPose[5] = 1;
+        mPose[10] = 1;
+        mPose[15] = 1;
+        mVolume.integrate(mDownsampled, mNumDownsampled, mPose);
+
+        String recording = System.getProperty(BenchmarkClouds.RECORDING_PROPERTY);
+        File file;
+        if (recording != null) {
+            file = new File(recording);
+        } else {
+            mTempFile = File.createTempFile("pointcloud", ".icurec");
+            ReplayBenchmark.writeSyntheticRecording(mTempFile);
+            file = mTempFile;
+        }
+        mReplay = new PointCloudReplay(file);
+        if (mReplay.getFloatsPerPoint() == PointCompactor.FLOATS_PER_POINT) {
+            // The app only fuses compacted frames.
+            mReplay.setCompactor(ObstacleAnalyzer.createPointCompactor(mReplay.getMaxPoints()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mReplay.close();
+        if (mTempFile != null) {
+            mTempFile.delete();
+        }
+    }
+
+    @Benchmark
+    public int integrate() {
+        mVolume.integrate(mDownsampled, mNumDownsampled, mPose);
+        return mVolume.getVoxelsUpdatedLastFrame();
+    }
+
+    @Benchmark
+    public int meshTouchedBlocks() {
+        int vertices = 0;
+        for (int block = 0; block < mVolume.getBlockCount(); block++) {
+            vertices += mMesher.meshBlock(mVolume, block);
+        }
+        return vertices;
+    }
+
+    @Benchmark
+    public int replaySession() throws InterruptedException {
+        final SurfaceReconstructor reconstructor = new SurfaceReconstructor(
+                mReplay.getMaxPoints(), mReplay.getFloatsPerPoint());
+        // Take every update as the rendering thread would, so none is dropped and meshed again.
+        mReplay.play(new AnalysisWorker.FrameProcessor() {
+            @Override
+            public void process(PointCloudFrame frame) {
+                reconstructor.process(frame);
+                reconstructor.poll();
+            }
+        }, false);
+        return reconstructor.getVolume().getBlockCount();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.projecttango.examples.java.pointcloud.benchmarks;
+
+import com.projecttango.examples.java.pointcloud.processing.TemporalVoxelFilter;
+import com.projecttango.examples.java.pointcloud.processing.VoxelGridFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link TemporalVoxelFilter} on the downsampled cloud the obstacle analysis feeds it,
+ * with the camera standing still and with the camera moving so new voxels keep being created and
+ * old ones evicted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TemporalFilterBenchmark {
+    private static final float VOXEL_SIZE = 0.03f;
+    private static final int MAX_VOXELS = 1 << 16;
+    // Camera motion per frame when walking at about 1m/s with 5 depth frames per second.
+    private static final float STEP_METERS = 0.2f;
+
+    @Param({"60000"})
+    public int numPoints;
+
+    private FloatBuffer mDownsampled;
+    private int mNumDownsampled;
+    private FloatBuffer mOutput;
+    private TemporalVoxelFilter mFilter;
+    private final float[] mPose = new float[16];
+
+    @Setup
+    public void setUp() throws IOException {
+        FloatBuffer points = BenchmarkClouds.load(numPoints, 23);
+        VoxelGridFilter voxelFilter = new VoxelGridFilter(numPoints,
+                BenchmarkClouds.FLOATS_PER_POINT, VOXEL_SIZE);
+        mDownsampled = BenchmarkClouds.allocate(numPoints);
+        mNumDownsampled = voxelFilter.filter(points, numPoints, mDownsampled);
+        mOutput = BenchmarkClouds.allocate(numPoints);
+        mFilter = new TemporalVoxelFilter(numPoints, BenchmarkClouds.FLOATS_PER_POINT,
+                TemporalVoxelFilter.DEFAULT_VOXEL_SIZE_METERS, MAX_VOXELS);
+        mPose[0] = 1;
+        mPose[5] = 1;
+        mPose[10] = 1;
+        mPose[15] = 1;
+    }
+
+    @Benchmark
+    public int still() {
+        return mFilter.filter(mDownsampled, mNumDownsampled, mPose, mOutput);
+    }
+
+    @Benchmark
+    public int moving() {
+        mPose[12] += STEP_METERS;
+        return mFilter.filter(mDownsampled, mNumDownsampled, mPose, mOutput);
+    }
+}